@@ -0,0 +1,314 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.scu.sat.DownloadQueue.Priority;
+import edu.scu.sat.DownloadQueue.Task;
+import edu.scu.sat.json.JsonWriter;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Works through a {@link DownloadQueue} on a fixed pool of worker threads.
+ * Every file goes through {@link SATdownload#fetchFile(String)} of the
+ * organization it belongs to, so the files of an organization share one
+ * login, and every organization shares the warm HTTP transport.
+ * </p>
+ * <p>
+ * Given an explicit list of score files (for example a batch CollegeBoard
+ * has re-issued), it queues them, downloads them along with anything left
+ * in the queue by an earlier run, and writes the outcome of each file in
+ * the list to a results file with one JSON object per line, in the same
+ * order as the list.
+ * </p>
+ * <p>
+ * In daemon mode the workers keep taking files as they are queued, and one
+ * more worker only takes live files, so a new file never waits for a
+ * backfill transfer to finish.
+ * </p>
+ */
+public class BatchDownloader {
+
+  /**
+   * Read a list of file names. Blank lines and lines starting with
+   * <code>#</code> are skipped, as are names already in the list.
+   * 
+   * @param path Path of the list, or <code>-</code> for standard input
+   * @return File names in the order they first appear
+   * @throws IOException if the list could not be read
+   */
+  public static List<String> readFileList(String path) throws IOException {
+    InputStream in = "-".equals(path) ? System.in : new FileInputStream(path);
+    Set<String> names = new LinkedHashSet<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#"))
+          names.add(line);
+      }
+    } finally {
+      if (in != System.in)
+        reader.close();
+    }
+    return new ArrayList<String>(names);
+  }
+
+  /**
+   * Write results with one JSON object per line.
+   * 
+   * @param results Results to write
+   * @param file File to write to
+   * @throws IOException if the file could not be written
+   */
+  public static void writeResults(List<DownloadResult> results, File file)
+      throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), StandardCharsets.UTF_8));
+    try {
+      JsonWriter json = new JsonWriter();
+      for (DownloadResult result : results) {
+        result.toJson(json.reset());
+        out.append(json.getBuilder()).append('\n');
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Number of files downloaded at the same time, not counting the live
+   * worker.
+   */
+  private final int concurrency;
+
+  /**
+   * Runs the workers, or <code>null</code> when none are running.
+   */
+  private ExecutorService pool;
+
+  /**
+   * Queue to work through.
+   */
+  private final DownloadQueue queue;
+
+  /**
+   * Downloader of each organization.
+   */
+  private final Map<String, SATdownload> sats =
+      new HashMap<String, SATdownload>();
+
+  /**
+   * Create a new BatchDownloader.
+   * 
+   * @param sats Configured downloader of each organization
+   * @param queue Queue to work through
+   * @param concurrency Number of files to download at the same time
+   */
+  public BatchDownloader(List<SATdownload> sats, DownloadQueue queue,
+      int concurrency) {
+    for (SATdownload sat : sats)
+      this.sats.put(sat.getOrgID(), sat);
+    this.queue = queue;
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+  /**
+   * Download every file in a list, and anything already queued, then stop.
+   * 
+   * @param fileNames Files to download
+   * @param priority Priority to queue them at
+   * @return Outcome of each file, in the same order as
+   *         <code>fileNames</code>
+   */
+  public List<DownloadResult> run(List<String> fileNames, Priority priority) {
+    List<Task> tasks = queue.submitAll(null, fileNames, priority);
+    int earlier = queue.getQueued() - fileNames.size();
+    Log.info("Downloading " + fileNames.size() + " file(s)"
+        + (earlier > 0 ? " and " + earlier + " left from an earlier run" : "")
+        + ", " + concurrency + " at a time");
+    int threads = Math.min(concurrency, Math.max(1, queue.getQueued()));
+    ExecutorService workers = newPool(threads);
+    for (int i = 0; i < threads; ++i) {
+      workers.execute(new Runnable() {
+        //@Override
+        public void run() {
+          Task task;
+          while ((task = queue.poll(Priority.BACKFILL)) != null)
+            fetch(task);
+        }
+      });
+    }
+    workers.shutdown();
+
+    List<DownloadResult> results = new ArrayList<DownloadResult>(
+        fileNames.size());
+    for (int i = 0; i < tasks.size(); ++i) {
+      DownloadResult result;
+      try {
+        result = tasks.get(i).await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        workers.shutdownNow();
+        result = new DownloadResult(fileNames.get(i));
+        result.setError("Interrupted");
+      }
+      results.add(result);
+    }
+    try {
+      // Files left from an earlier run may still be downloading
+      while (!workers.awaitTermination(1, TimeUnit.MINUTES))
+        Log.info(queue.getRunning() + " file(s) still downloading");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return results;
+  }
+
+  /**
+   * Start the workers, which keep taking files from the queue until
+   * {@link #stop} is called.
+   */
+  public synchronized void start() {
+    if (pool != null)
+      return;
+    pool = newPool(concurrency + 1);
+    pool.execute(newWorker(Priority.LIVE));
+    for (int i = 0; i < concurrency; ++i)
+      pool.execute(newWorker(Priority.BACKFILL));
+  }
+
+  /**
+   * Stop handing out files and wait for the transfers in progress to
+   * finish. Queued files stay in the queue for the next run.
+   * 
+   * @param timeoutMillis Longest time to wait
+   */
+  public synchronized void stop(long timeoutMillis) {
+    queue.close();
+    if (pool == null)
+      return;
+    pool.shutdown();
+    try {
+      pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool = null;
+  }
+
+  /**
+   * Download one file from the queue and report the outcome to it.
+   * 
+   * @param task File to download
+   */
+  private void fetch(Task task) {
+    SATdownload sat = sats.get(task.getOrgID());
+    DownloadResult result;
+    if (sat == null) {
+      result = new DownloadResult(task.getFileName());
+      result.setError("Organization " + task.getOrgID()
+          + " is not in the config file");
+      Log.error("Cannot download " + task.getFileName() + ": "
+          + result.getError(), null);
+    } else {
+      try {
+        result = sat.fetchFile(task.getFileName(),
+            task.getPriority() == Priority.LIVE);
+      } catch (RuntimeException e) {
+        result = new DownloadResult(task.getFileName());
+        result.setError(String.valueOf(e));
+        Log.error("Error downloading " + task.getFileName(), e);
+      }
+    }
+    queue.done(task, result);
+  }
+
+  /**
+   * Create a pool of worker threads.
+   * 
+   * @param threads Number of threads
+   * @return The pool
+   */
+  private static ExecutorService newPool(int threads) {
+    final AtomicInteger threadNum = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      //@Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "batch-" + threadNum.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Create a worker that takes files from the queue until it is closed.
+   * 
+   * @param lowest Lowest priority of file the worker takes
+   * @return The worker
+   */
+  private Runnable newWorker(final Priority lowest) {
+    return new Runnable() {
+      //@Override
+      public void run() {
+        try {
+          Task task;
+          while ((task = queue.take(lowest)) != null)
+            fetch(task);
+        } catch (InterruptedException e) {
+          // Stopping
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,757 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import edu.scu.sat.json.JsonWriter;
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Queue of files waiting to be downloaded, shared by every organization in
+ * the process and worked through by {@link BatchDownloader}.
+ * </p>
+ * <p>
+ * Each file has a {@link Priority}. A file of a higher priority always
+ * starts before one of a lower priority, so a long backfill never holds up
+ * today's files. Within a priority, organizations take turns in proportion
+ * to their <code>queueWeight</code> (stride scheduling): with weights 2 and
+ * 1, the first gets two files started for each one of the second. Files of
+ * one organization and priority start in the order they were queued.
+ * </p>
+ * <p>
+ * A file is only queued once per organization; queueing it again at a
+ * higher priority moves it up. A file that has not started yet can be
+ * cancelled.
+ * </p>
+ * <p>
+ * Re-issued and backfill files are kept in a file, one
+ * <code>PRIORITY ORGID FILENAME</code> line each, until they have been
+ * downloaded or cancelled, so a restart carries on where it stopped. Live
+ * files are not kept: polling finds them again. Instances are thread-safe.
+ * </p>
+ */
+public class DownloadQueue {
+
+  /**
+   * Pass added to an organization of weight 1 each time one of its files
+   * starts.
+   */
+  private static final long STRIDE = 1L << 20;
+
+  /**
+   * Whether the queue has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * File the queue is kept in, or <code>null</code> to keep it in memory.
+   */
+  private final File file;
+
+  /**
+   * Queued files of each priority.
+   */
+  private final Map<Priority, Lane> lanes = new EnumMap<Priority, Lane>(
+      Priority.class);
+
+  /**
+   * Weight of each organization, in the order they were added; the first
+   * one takes files whose name does not start with a known org ID.
+   */
+  private final Map<String, Integer> organizations =
+      new LinkedHashMap<String, Integer>();
+
+  /**
+   * Files that have started and not finished, by organization and file name.
+   */
+  private final Map<String, Task> running = new HashMap<String, Task>();
+
+  /**
+   * Number of the next task, for keeping queue order.
+   */
+  private long sequence;
+
+  /**
+   * Create a new DownloadQueue, reading the files left in it by the last
+   * run. A line that cannot be read is dropped with a warning.
+   * 
+   * @param file File to keep the queue in, or <code>null</code> to keep it
+   *          in memory only
+   * @throws IOException if the file could not be read
+   */
+  public DownloadQueue(File file) throws IOException {
+    this.file = file;
+    for (Priority priority : Priority.values())
+      lanes.put(priority, new Lane());
+    if (file == null || !file.isFile())
+      return;
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8));
+    int count = 0;
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] parts = line.trim().split(" ");
+        try {
+          if (parts.length != 3)
+            throw new IllegalArgumentException("expected 3 fields");
+          checkFileName(parts[2]);
+          add(new Task(parts[1], parts[2], Priority.parse(parts[0])));
+          count++;
+        } catch (IllegalArgumentException e) {
+          Log.at(Level.WARN).phase("queue").log("Ignoring bad line in "
+              + file + ": " + line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (count > 0)
+      Log.info(count + " file(s) left in the download queue " + file);
+  }
+
+  /**
+   * Add an organization, or change its weight.
+   * 
+   * @param orgID Organization ID
+   * @param weight Share of the downloads it gets, from 1
+   */
+  public synchronized void addOrganization(String orgID, int weight) {
+    organizations.put(orgID, Math.max(1, weight));
+    for (Lane lane : lanes.values()) {
+      if (lane.strides.containsKey(orgID))
+        lane.strides.put(orgID, STRIDE / weight(orgID));
+    }
+  }
+
+  /**
+   * Cancel a file that has not started yet. Anything waiting for it gets a
+   * result with the error <code>Cancelled</code>.
+   * 
+   * @param orgID Organization ID, or <code>null</code> for the one the file
+   *          name belongs to
+   * @param fileName File to cancel
+   * @return TRUE if the file was queued
+   */
+  public boolean cancel(String orgID, String fileName) {
+    Task task;
+    synchronized (this) {
+      if (orgID == null)
+        orgID = orgFor(fileName);
+      task = null;
+      for (Lane lane : lanes.values()) {
+        task = lane.remove(orgID, fileName);
+        if (task != null)
+          break;
+      }
+      if (task == null)
+        return false;
+      save();
+    }
+    DownloadResult result = new DownloadResult(fileName);
+    result.setError("Cancelled");
+    task.result.complete(result);
+    Log.at(Level.INFO).file(fileName).phase("queue").log("Cancelled");
+    return true;
+  }
+
+  /**
+   * Stop handing out files. Workers waiting in {@link #take} get
+   * <code>null</code>; queued files stay in the file for the next run.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Record that a file has finished, successfully or not, and pass the
+   * result to anything waiting for it.
+   * 
+   * @param task File returned by {@link #take} or {@link #poll}
+   * @param result Outcome of the download
+   */
+  public void done(Task task, DownloadResult result) {
+    synchronized (this) {
+      running.remove(task.key());
+      if (task.priority != Priority.LIVE)
+        save();
+    }
+    task.result.complete(result);
+  }
+
+  /**
+   * Get the number of files waiting to start.
+   * 
+   * @return Number of files
+   */
+  public synchronized int getQueued() {
+    int queued = 0;
+    for (Lane lane : lanes.values())
+      queued += lane.size;
+    return queued;
+  }
+
+  /**
+   * Get the number of files that have started and not finished.
+   * 
+   * @return Number of files
+   */
+  public synchronized int getRunning() {
+    return running.size();
+  }
+
+  /**
+   * Find the organization a file belongs to: the one whose ID the file name
+   * starts with, or else the first one added.
+   * 
+   * @param fileName File name, such as <code>ORGID_YYYYMMDD_NNN.txt</code>
+   * @return Organization ID, or <code>null</code> if none has been added
+   */
+  public synchronized String orgFor(String fileName) {
+    int end = fileName.indexOf('_');
+    if (end > 0 && organizations.containsKey(fileName.substring(0, end)))
+      return fileName.substring(0, end);
+    return organizations.isEmpty() ? null
+        : organizations.keySet().iterator().next();
+  }
+
+  /**
+   * Start the next file without waiting.
+   * 
+   * @param lowest Lowest priority to hand out
+   * @return The file, or <code>null</code> if none of that priority or
+   *         higher is queued
+   */
+  public synchronized Task poll(Priority lowest) {
+    if (closed)
+      return null;
+    for (Priority priority : Priority.values()) {
+      if (priority.compareTo(lowest) > 0)
+        break;
+      Task task = lanes.get(priority).next();
+      if (task != null) {
+        running.put(task.key(), task);
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Queue a file. If it is already queued for the organization, it is moved
+   * up to <code>priority</code> if that is higher and the queued task is
+   * returned instead; if it has started, the running task is returned.
+   * 
+   * @param orgID Organization ID, or <code>null</code> for the one the file
+   *          name belongs to
+   * @param fileName File to download
+   * @param priority Priority of the file
+   * @return The task for the file, to wait for its result
+   * @throws IllegalArgumentException if the file name is not valid; see
+   *           {@link #submitAll}
+   */
+  public Task submit(String orgID, String fileName, Priority priority) {
+    List<String> names = new ArrayList<String>(1);
+    names.add(fileName);
+    return submitAll(orgID, names, priority).get(0);
+  }
+
+  /**
+   * Queue several files, saving the queue once. See {@link #submit}. The
+   * names come from the command line and the admin server and end up in
+   * local paths, so a name with white space, a path separator or
+   * <code>..</code> is rejected, and then none of the files are queued.
+   * 
+   * @param orgID Organization ID, or <code>null</code> for the one each file
+   *          name belongs to
+   * @param fileNames Files to download
+   * @param priority Priority of the files
+   * @return The task for each file, in the same order
+   * @throws IllegalArgumentException if a file name is not valid
+   */
+  public synchronized List<Task> submitAll(String orgID,
+      List<String> fileNames, Priority priority) {
+    for (String fileName : fileNames)
+      checkFileName(fileName);
+    List<Task> tasks = new ArrayList<Task>(fileNames.size());
+    boolean changed = false;
+    for (String fileName : fileNames) {
+      Task task = new Task(orgID == null ? orgFor(fileName) : orgID,
+          fileName, priority);
+      Task existing = running.get(task.key());
+      if (existing == null)
+        existing = find(task.orgID, fileName);
+      if (existing == null) {
+        add(task);
+        changed |= priority != Priority.LIVE;
+      } else {
+        if (priority.compareTo(existing.priority) < 0
+            && lanes.get(existing.priority).remove(existing.orgID,
+                existing.fileName) != null) {
+          existing.priority = priority;
+          lanes.get(priority).add(existing, weight(existing.orgID));
+          changed = true;
+        }
+        task = existing;
+      }
+      tasks.add(task);
+    }
+    if (changed)
+      save();
+    notifyAll();
+    return tasks;
+  }
+
+  /**
+   * Start the next file, waiting for one if there is none.
+   * 
+   * @param lowest Lowest priority to hand out
+   * @return The file, or <code>null</code> if the queue has been closed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized Task take(Priority lowest)
+      throws InterruptedException {
+    Task task;
+    while ((task = poll(lowest)) == null && !closed)
+      wait();
+    return task;
+  }
+
+  /**
+   * Write the queue as a JSON object: the number of files queued at each
+   * priority and the files that have started.
+   * 
+   * @param w Writer to write to
+   * @return <code>w</code>
+   */
+  public synchronized JsonWriter toJson(JsonWriter w) {
+    w.beginObject();
+    w.name("queued").beginObject();
+    for (Priority priority : Priority.values())
+      w.name(priority.getName()).value(lanes.get(priority).size);
+    w.endObject();
+    w.name("running").beginArray();
+    for (Task task : running.values()) {
+      w.beginObject();
+      w.name("orgID").value(task.orgID);
+      w.name("fileName").value(task.fileName);
+      w.name("priority").value(task.priority.getName());
+      w.endObject();
+    }
+    w.endArray();
+    w.endObject();
+    return w;
+  }
+
+  /**
+   * Add a new task to the lane of its priority.
+   * 
+   * @param task Task to add
+   */
+  private void add(Task task) {
+    task.sequence = sequence++;
+    lanes.get(task.priority).add(task, weight(task.orgID));
+  }
+
+  /**
+   * Check that a file name names a file in the download directory.
+   * 
+   * @param fileName File name
+   * @throws IllegalArgumentException if it is empty or contains white
+   *           space, a path separator or <code>..</code>
+   */
+  private static void checkFileName(String fileName) {
+    if (fileName.isEmpty() || !fileName.matches("[^\\s/\\\\]+")
+        || fileName.contains(".."))
+      throw new IllegalArgumentException("Invalid file name: " + fileName);
+  }
+
+  /**
+   * Find a queued task.
+   * 
+   * @param orgID Organization ID
+   * @param fileName File name
+   * @return The task, or <code>null</code> if it is not queued
+   */
+  private Task find(String orgID, String fileName) {
+    for (Lane lane : lanes.values()) {
+      Task task = lane.find(orgID, fileName);
+      if (task != null)
+        return task;
+    }
+    return null;
+  }
+
+  /**
+   * Write the re-issue and backfill files, queued or running, to the file. A
+   * failure is logged and otherwise ignored; the queue carries on in memory.
+   */
+  private void save() {
+    if (file == null)
+      return;
+    List<Task> tasks = new ArrayList<Task>(running.values());
+    for (Lane lane : lanes.values())
+      lane.addTo(tasks);
+    StringBuilder sb = new StringBuilder();
+    for (Task task : tasks) {
+      if (task.priority != Priority.LIVE)
+        sb.append(task.priority.getName()).append(' ').append(task.orgID)
+            .append(' ').append(task.fileName).append('\n');
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Could not create directory " + dir);
+      Files.write(tmp.toPath(), sb.toString().getBytes(
+          StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Log.at(Level.WARN).phase("queue")
+          .log("Could not save download queue: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Get the weight of an organization.
+   * 
+   * @param orgID Organization ID
+   * @return Weight, 1 if the organization has not been added
+   */
+  private int weight(String orgID) {
+    Integer weight = organizations.get(orgID);
+    return weight == null ? 1 : weight.intValue();
+  }
+
+  /**
+   * Priority of a queued file, highest first.
+   */
+  public enum Priority {
+
+    /**
+     * A new file found by polling.
+     */
+    LIVE,
+
+    /**
+     * A file CollegeBoard has re-issued.
+     */
+    REISSUE,
+
+    /**
+     * An old file being fetched again.
+     */
+    BACKFILL;
+
+    /**
+     * Find a priority by name, ignoring case.
+     * 
+     * @param name Name such as <code>backfill</code>
+     * @return The priority
+     * @throws IllegalArgumentException if there is no such priority
+     */
+    public static Priority parse(String name) {
+      for (Priority priority : values()) {
+        if (priority.name().equalsIgnoreCase(name.trim()))
+          return priority;
+      }
+      throw new IllegalArgumentException("Unknown priority: " + name);
+    }
+
+    /**
+     * Get the name of the priority as used in the config file and on the
+     * command line.
+     * 
+     * @return Lower-case name
+     */
+    public String getName() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * A file in the queue.
+   */
+  public static final class Task {
+
+    /**
+     * Name of the file.
+     */
+    final String fileName;
+
+    /**
+     * Organization the file belongs to.
+     */
+    final String orgID;
+
+    /**
+     * Priority of the file. Only changed while holding the queue's lock.
+     */
+    volatile Priority priority;
+
+    /**
+     * Outcome of the download, once it has finished or been cancelled.
+     */
+    final CompletableFuture<DownloadResult> result =
+        new CompletableFuture<DownloadResult>();
+
+    /**
+     * Position of the task in queue order.
+     */
+    long sequence;
+
+    /**
+     * Create a new Task.
+     * 
+     * @param orgID Organization the file belongs to
+     * @param fileName Name of the file
+     * @param priority Priority of the file
+     */
+    Task(String orgID, String fileName, Priority priority) {
+      this.orgID = orgID;
+      this.fileName = fileName;
+      this.priority = priority;
+    }
+
+    /**
+     * Wait for the download to finish.
+     * 
+     * @return Outcome of the download
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public DownloadResult await() throws InterruptedException {
+      try {
+        return result.get();
+      } catch (ExecutionException e) {
+        // The future is only ever completed normally
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    /**
+     * Get the name of the file.
+     * 
+     * @return File name
+     */
+    public String getFileName() {
+      return fileName;
+    }
+
+    /**
+     * Get the organization the file belongs to.
+     * 
+     * @return Organization ID
+     */
+    public String getOrgID() {
+      return orgID;
+    }
+
+    /**
+     * Get the priority of the file.
+     * 
+     * @return Priority
+     */
+    public Priority getPriority() {
+      return priority;
+    }
+
+    /**
+     * Get the key the task is looked up by.
+     * 
+     * @return Organization ID and file name
+     */
+    String key() {
+      return orgID + " " + fileName;
+    }
+  }
+
+  /**
+   * Queued files of one priority, with one first-in first-out queue per
+   * organization and the stride scheduling state.
+   */
+  private static final class Lane {
+
+    /**
+     * Queued files of each organization that has any.
+     */
+    final Map<String, ArrayDeque<Task>> queues =
+        new LinkedHashMap<String, ArrayDeque<Task>>();
+
+    /**
+     * Pass of each organization; the one with the lowest goes next.
+     */
+    final Map<String, Long> passes = new HashMap<String, Long>();
+
+    /**
+     * Stride of each organization, <code>STRIDE / weight</code>.
+     */
+    final Map<String, Long> strides = new HashMap<String, Long>();
+
+    /**
+     * Number of queued files.
+     */
+    int size;
+
+    /**
+     * Pass of the organization that went last. An organization that has
+     * been idle starts from here, so it cannot make up for lost time.
+     */
+    long virtualTime;
+
+    /**
+     * Add a file to the end of its organization's queue.
+     * 
+     * @param task File to add
+     * @param weight Weight of the organization
+     */
+    void add(Task task, int weight) {
+      ArrayDeque<Task> queue = queues.get(task.orgID);
+      if (queue == null) {
+        queue = new ArrayDeque<Task>();
+        queues.put(task.orgID, queue);
+        Long pass = passes.get(task.orgID);
+        passes.put(task.orgID, Math.max(pass == null ? 0 : pass.longValue(),
+            virtualTime));
+      }
+      strides.put(task.orgID, STRIDE / weight);
+      // Files moved up from a lower priority keep their place in line
+      if (queue.isEmpty() || queue.peekLast().sequence < task.sequence) {
+        queue.addLast(task);
+      } else {
+        List<Task> ordered = new ArrayList<Task>(queue);
+        int i = 0;
+        while (ordered.get(i).sequence < task.sequence)
+          i++;
+        ordered.add(i, task);
+        queue.clear();
+        queue.addAll(ordered);
+      }
+      size++;
+    }
+
+    /**
+     * Add every queued file to a list, organization by organization.
+     * 
+     * @param tasks List to add to
+     */
+    void addTo(List<Task> tasks) {
+      for (ArrayDeque<Task> queue : queues.values())
+        tasks.addAll(queue);
+    }
+
+    /**
+     * Find a queued file.
+     * 
+     * @param orgID Organization ID
+     * @param fileName File name
+     * @return The file, or <code>null</code> if it is not queued
+     */
+    Task find(String orgID, String fileName) {
+      ArrayDeque<Task> queue = queues.get(orgID);
+      if (queue != null) {
+        for (Task task : queue) {
+          if (task.fileName.equals(fileName))
+            return task;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Take the next file: the first one of the organization with the
+     * lowest pass, or of the one queued earliest if they are level.
+     * 
+     * @return The file, or <code>null</code> if none is queued
+     */
+    Task next() {
+      String best = null;
+      long bestPass = 0;
+      long bestSequence = 0;
+      for (Map.Entry<String, ArrayDeque<Task>> e : queues.entrySet()) {
+        long pass = passes.get(e.getKey());
+        long seq = e.getValue().peekFirst().sequence;
+        if (best == null || pass < bestPass
+            || (pass == bestPass && seq < bestSequence)) {
+          best = e.getKey();
+          bestPass = pass;
+          bestSequence = seq;
+        }
+      }
+      if (best == null)
+        return null;
+      ArrayDeque<Task> queue = queues.get(best);
+      Task task = queue.pollFirst();
+      if (queue.isEmpty())
+        queues.remove(best);
+      virtualTime = bestPass;
+      passes.put(best, bestPass + strides.get(best));
+      size--;
+      return task;
+    }
+
+    /**
+     * Remove a queued file.
+     * 
+     * @param orgID Organization ID
+     * @param fileName File name
+     * @return The file, or <code>null</code> if it was not queued
+     */
+    Task remove(String orgID, String fileName) {
+      Task task = find(orgID, fileName);
+      if (task == null)
+        return null;
+      ArrayDeque<Task> queue = queues.get(orgID);
+      queue.remove(task);
+      if (queue.isEmpty())
+        queues.remove(orgID);
+      size--;
+      return task;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import edu.scu.sat.json.JsonWriter;
+
+/**
+ * Outcome of downloading one score file, as returned by
+ * {@link SATdownload#fetchFile(String)}.
+ */
+public class DownloadResult {
+
+  /**
+   * Number of bytes written, or -1 if nothing was downloaded.
+   */
+  private long bytes = -1;
+
+  /**
+   * Whether the transfer probably reused an open connection.
+   */
+  private boolean connectionReused;
+
+  /**
+   * Time taken, in milliseconds.
+   */
+  private long durationMs;
+
+  /**
+   * Error message if the download failed.
+   */
+  private String error;
+
+  /**
+   * Name of the score file.
+   */
+  private final String fileName;
+
+  /**
+   * HTTP status returned by the service when it refused a request, or 0.
+   */
+  private int httpStatus;
+
+  /**
+   * Local path the file was written to.
+   */
+  private String localPath;
+
+  /**
+   * Number of records in the file, or -1 if they were not counted.
+   */
+  private long records = -1;
+
+  /**
+   * Time taken to look up the download URL, in milliseconds, or -1.
+   */
+  private long resolveMs = -1;
+
+  /**
+   * Whether the file was downloaded.
+   */
+  private boolean success;
+
+  /**
+   * Time taken to transfer the file, in milliseconds, or -1.
+   */
+  private long transferMs = -1;
+
+  /**
+   * Create a new DownloadResult.
+   * 
+   * @param fileName Name of the score file
+   */
+  public DownloadResult(String fileName) {
+    this.fileName = fileName;
+  }
+
+  /**
+   * Get the number of bytes written
+   * 
+   * @return the bytes, or -1 if nothing was downloaded
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Get the time taken
+   * 
+   * @return the duration in milliseconds
+   */
+  public long getDurationMs() {
+    return durationMs;
+  }
+
+  /**
+   * Get the error message
+   * 
+   * @return the error, or <code>null</code> if there was none
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Get the name of the score file
+   * 
+   * @return the fileName
+   */
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * Get the HTTP status returned by the service when it refused a request
+   * 
+   * @return the httpStatus, or 0 if there was none
+   */
+  public int getHttpStatus() {
+    return httpStatus;
+  }
+
+  /**
+   * Get the local path the file was written to
+   * 
+   * @return the localPath, or <code>null</code> if nothing was written
+   */
+  public String getLocalPath() {
+    return localPath;
+  }
+
+  /**
+   * Get the number of records in the file
+   * 
+   * @return the records, or -1 if they were not counted
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  /**
+   * Get the time taken to look up the download URL
+   * 
+   * @return the resolveMs, or -1 if the URL was not looked up
+   */
+  public long getResolveMs() {
+    return resolveMs;
+  }
+
+  /**
+   * Get the time taken to transfer the file
+   * 
+   * @return the transferMs, or -1 if no transfer was started
+   */
+  public long getTransferMs() {
+    return transferMs;
+  }
+
+  /**
+   * Check if the transfer probably reused an open connection
+   * 
+   * @return TRUE if a connection to the same host was probably still open
+   */
+  public boolean isConnectionReused() {
+    return connectionReused;
+  }
+
+  /**
+   * Check if the file was downloaded
+   * 
+   * @return TRUE if the file was downloaded<br>
+   *         FALSE if it failed or could not be found
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  /**
+   * @param bytes the bytes to set
+   */
+  public void setBytes(long bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * @param connectionReused the connectionReused to set
+   */
+  public void setConnectionReused(boolean connectionReused) {
+    this.connectionReused = connectionReused;
+  }
+
+  /**
+   * @param durationMs the durationMs to set
+   */
+  public void setDurationMs(long durationMs) {
+    this.durationMs = durationMs;
+  }
+
+  /**
+   * @param error the error to set
+   */
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  /**
+   * @param httpStatus the httpStatus to set
+   */
+  public void setHttpStatus(int httpStatus) {
+    this.httpStatus = httpStatus;
+  }
+
+  /**
+   * @param localPath the localPath to set
+   */
+  public void setLocalPath(String localPath) {
+    this.localPath = localPath;
+  }
+
+  /**
+   * @param records the records to set
+   */
+  public void setRecords(long records) {
+    this.records = records;
+  }
+
+  /**
+   * @param resolveMs the resolveMs to set
+   */
+  public void setResolveMs(long resolveMs) {
+    this.resolveMs = resolveMs;
+  }
+
+  /**
+   * @param success the success to set
+   */
+  public void setSuccess(boolean success) {
+    this.success = success;
+  }
+
+  /**
+   * @param transferMs the transferMs to set
+   */
+  public void setTransferMs(long transferMs) {
+    this.transferMs = transferMs;
+  }
+
+  /**
+   * Write this result as a JSON object.
+   * 
+   * @param w Writer to write to
+   * @return <code>w</code>
+   */
+  public JsonWriter toJson(JsonWriter w) {
+    w.beginObject();
+    w.name("file").value(fileName);
+    w.name("status").value(success ? "downloaded" : "failed");
+    if (localPath != null)
+      w.name("path").value(localPath);
+    if (bytes >= 0)
+      w.name("bytes").value(bytes);
+    if (records >= 0)
+      w.name("records").value(records);
+    w.name("durationMs").value(durationMs);
+    if (resolveMs >= 0)
+      w.name("resolveMs").value(resolveMs);
+    if (transferMs >= 0) {
+      w.name("transferMs").value(transferMs);
+      w.name("connectionReused").value(connectionReused);
+    }
+    if (httpStatus != 0)
+      w.name("httpStatus").value(httpStatus);
+    if (error != null)
+      w.name("error").value(error);
+    return w.endObject();
+  }
+}
@@ -0,0 +1,602 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import edu.scu.sat.config.Config;
+import edu.scu.sat.fault.FaultInjectingTransport;
+import edu.scu.sat.fault.FaultProfile;
+import edu.scu.sat.fault.StubServer;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Measures how the downloader copes with failures. It first downloads the
+ * files of a date without faults, as a reference, and then again from
+ * scratch under each built-in {@link FaultProfile}, calling the downloader
+ * over and over (as cron or daemon mode would) until every file is in or
+ * the time for the profile is up.
+ * </p>
+ * <p>
+ * By default the files come from a {@link StubServer} started for the run,
+ * and the server and credentials in the config file are not used. The
+ * suite can instead be pointed at the server in the config file, but only
+ * if it is on this host; it never runs against CollegeBoard's site.
+ * </p>
+ * <p>
+ * After every run it checks that no file was committed with different
+ * content from the reference, that the counter file never points past a
+ * file that is not there, and that no <code>.part</code> file was left
+ * behind. It reports the number of files completed per minute under each
+ * profile, and fails if any check did.
+ * </p>
+ * <p>
+ * Each profile runs in a directory of its own under
+ * <code>stateDir/fault-suite</code>, with hooks, tracing, tenants,
+ * coordination and the admin server turned off. The directory is deleted
+ * when the suite ends.
+ * </p>
+ */
+public class FaultSuite {
+
+  /**
+   * Options that are dropped from the config for the runs of the suite.
+   */
+  private static final String[] DROPPED = { "tenants", "hookCommand",
+      "hookUrl", "hookDrop", "traceFile", "traceUrl", "quarantineDir",
+      "leaseDir", "faultInjection" };
+
+  /**
+   * Pause after a run that completed no file, in milliseconds, so a
+   * profile that keeps failing does not hammer the server.
+   */
+  private static final long IDLE_PAUSE_MILLIS = 500;
+
+  /**
+   * Number of files the stub server serves.
+   */
+  private static final int STUB_FILES = 4;
+
+  /**
+   * Number of records in the first file of the stub server. Each file after
+   * it has this many more.
+   */
+  private static final int STUB_RECORDS = 5000;
+
+  /**
+   * Longest time each profile may take, in milliseconds.
+   */
+  private final long budgetMillis;
+
+  /**
+   * Config read from the config file.
+   */
+  private final Config config;
+
+  /**
+   * Options from the config file.
+   */
+  private final Properties props;
+
+  /**
+   * Where the options came from, for error messages.
+   */
+  private final String source;
+
+  /**
+   * Date of the files to download, as <code>YYYYMMDD</code>.
+   */
+  private final String date;
+
+  /**
+   * Number of the first file to download.
+   */
+  private final int firstFile;
+
+  /**
+   * Whether the files come from a stub server started for the run.
+   */
+  private final boolean useStub;
+
+  /**
+   * Directory the profiles run in.
+   */
+  private final File workDir;
+
+  /**
+   * Create a new FaultSuite.
+   * 
+   * @param configFile Config file
+   * @param config Config read from it
+   * @param date Date of the files to download, as <code>YYYYMMDD</code>
+   * @param firstFile Number of the first file to download
+   * @param budgetMillis Longest time each profile may take, in milliseconds
+   * @param useStub TRUE to download from a stub server started for the run,
+   *          FALSE to download from the server in the config file
+   * @throws IOException if the config file could not be read, or the
+   *           server in it is not on this host and <code>useStub</code> is
+   *           FALSE
+   */
+  public FaultSuite(File configFile, Config config, String date,
+      int firstFile, long budgetMillis, boolean useStub) throws IOException {
+    if (!useStub && !isLocal(config.getScoredwnldUrlRoot()))
+      throw new IOException("scoredwnldUrlRoot "
+          + config.getScoredwnldUrlRoot() + " is not on this host; the "
+          + "fault suite only runs against a local test server");
+    this.props = new Properties();
+    InputStream in = new FileInputStream(configFile);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    this.source = configFile.getPath();
+    this.config = config;
+    this.date = date;
+    this.firstFile = firstFile;
+    this.budgetMillis = budgetMillis;
+    this.useStub = useStub;
+    this.workDir = new File(config.getStateDir(), "fault-suite");
+  }
+
+  /**
+   * Delete a directory and everything in it.
+   * 
+   * @param dir Directory to delete
+   * @throws IOException if something could not be deleted
+   */
+  private static void delete(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        delete(file);
+    if (dir.exists() && !dir.delete())
+      throw new IOException("Could not delete " + dir);
+  }
+
+  /**
+   * Hash the content of a file.
+   * 
+   * @param file File to hash
+   * @return SHA-256 digest in hex
+   * @throws IOException if the file could not be read
+   */
+  private static String digest(File file) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[65536];
+      for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+        md.update(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest())
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  /**
+   * Get the number of a score file from its name.
+   * 
+   * @param name File name such as <code>123_20261019_000002.txt</code>
+   * @return File number
+   */
+  private static int fileNumber(String name) {
+    int end = name.lastIndexOf('.');
+    return Integer.parseInt(
+        name.substring(name.lastIndexOf('_') + 1, end < 0 ? name.length()
+            : end));
+  }
+
+  /**
+   * Check whether a URL points at this host.
+   * 
+   * @param url URL, or <code>null</code>
+   * @return TRUE if its host is <code>localhost</code> or a loopback
+   *         address
+   */
+  static boolean isLocal(String url) {
+    if (url == null)
+      return false;
+    String host;
+    try {
+      host = new URI(url).getHost();
+    } catch (URISyntaxException e) {
+      return false;
+    }
+    if (host == null)
+      return false;
+    host = host.toLowerCase();
+    return host.equals("localhost") || host.equals("[::1]")
+        || host.matches("127\\.\\d+\\.\\d+\\.\\d+");
+  }
+
+  /**
+   * Make the files the stub server serves: records of made-up scores with
+   * the delimiter, header lines and field count the config expects.
+   * 
+   * @return Content of each file, by name
+   */
+  private Map<String, byte[]> makeStubFiles() {
+    int fields = Math.max(4, config.getValidateFieldCount());
+    int[] keys = config.getDeltaKeyFields();
+    if (keys != null)
+      for (int key : keys)
+        fields = Math.max(fields, key + 1);
+    String delimiter = String.valueOf(config.getDeltaDelimiter());
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    for (int n = 0; n < STUB_FILES; n++) {
+      StringBuilder content = new StringBuilder();
+      for (int i = 0; i < config.getDeltaHeaderLines(); i++) {
+        for (int f = 0; f < fields; f++)
+          content.append(f == 0 ? "" : delimiter).append("field").append(f);
+        content.append('\n');
+      }
+      for (int i = 0; i < STUB_RECORDS * (n + 1); i++) {
+        content.append(i).append(delimiter).append("Student ").append(i)
+            .append(delimiter).append(date).append(delimiter)
+            .append(400 + i % 1201);
+        for (int f = 4; f < fields; f++)
+          content.append(delimiter).append(f);
+        content.append('\n');
+      }
+      String number = String.valueOf(firstFile + n);
+      while (number.length() < config.getFileNumPadding())
+        number = "0" + number;
+      files.put(config.getOrgID() + "_" + date + "_" + number + "."
+          + config.getFileExtension(),
+          content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return files;
+  }
+
+  /**
+   * Read the counter file of a run.
+   * 
+   * @param counterFile Counter file
+   * @return Number of the last file downloaded
+   * @throws IOException if the file could not be read
+   */
+  private static int readCounter(File counterFile) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(counterFile));
+    try {
+      return Integer.parseInt(in.readLine().trim());
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid counter file " + counterFile, e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Run the reference download and every profile, and report the results.
+   * The work directory is deleted afterwards.
+   * 
+   * @return {@link SATdownload.ExitStatus#SUCCESS} if no check failed,
+   *         else {@link SATdownload.ExitStatus#FAULT_SUITE_FAILED}
+   * @throws IOException if a run could not be set up
+   */
+  public int run() throws IOException {
+    StubServer stub = null;
+    try {
+      if (useStub) {
+        stub = new StubServer(makeStubFiles());
+        props.setProperty("scoredwnldUrlRoot", stub.getUrlRoot());
+        props.setProperty("username", StubServer.USERNAME);
+        props.setProperty("password", StubServer.PASSWORD);
+        SATdownload.log("Fault suite: serving " + STUB_FILES
+            + " test files at " + stub.getUrlRoot());
+      }
+      return runProfiles();
+    } finally {
+      if (stub != null)
+        stub.stop();
+      try {
+        delete(workDir);
+      } catch (IOException e) {
+        Log.warn("Fault suite: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Run the reference download and every profile, and report the results.
+   * 
+   * @return {@link SATdownload.ExitStatus#SUCCESS} if no check failed,
+   *         else {@link SATdownload.ExitStatus#FAULT_SUITE_FAILED}
+   * @throws IOException if a run could not be set up
+   */
+  private int runProfiles() throws IOException {
+    SATdownload.log("Fault suite: downloading the reference files for "
+        + date);
+    Run reference = runProfile("none", null, null);
+    if (reference.files.isEmpty()) {
+      Log.error("Fault suite: no files could be downloaded for " + date
+          + " starting at file " + firstFile, null);
+      return SATdownload.ExitStatus.FAULT_SUITE_FAILED.getCode();
+    }
+
+    List<Run> runs = new ArrayList<Run>();
+    runs.add(reference);
+    for (Map.Entry<String, String> profile : FaultProfile.PROFILES
+        .entrySet()) {
+      SATdownload.log("Fault suite: running profile " + profile.getKey()
+          + " (" + profile.getValue() + ")");
+      runs.add(runProfile(profile.getKey(), profile.getValue(),
+          reference.files));
+    }
+
+    boolean failed = false;
+    SATdownload.log("Fault suite results for " + reference.files.size()
+        + " file(s) of " + date + ":");
+    SATdownload.log(String.format("%-17s %7s %6s %8s %9s  %s", "Profile",
+        "Files", "Runs", "Seconds", "Files/min", "Faults injected"));
+    for (Run run : runs) {
+      SATdownload.log(String.format("%-17s %3d/%-3d %6d %8.1f %9.1f  %s",
+          run.name, run.completed, reference.files.size(), run.passes,
+          run.millis / 1000.0, run.completed * 60000.0
+              / Math.max(1, run.millis), run.injected));
+      for (String problem : run.problems) {
+        Log.error("Fault suite: " + run.name + ": " + problem, null);
+        failed = true;
+      }
+    }
+    if (failed)
+      return SATdownload.ExitStatus.FAULT_SUITE_FAILED.getCode();
+    SATdownload.log("Fault suite passed: no corrupt file or wrong counter "
+        + "under any profile");
+    return SATdownload.ExitStatus.SUCCESS.getCode();
+  }
+
+  /**
+   * Check the state a run has left on disk.
+   * 
+   * @param dir Download directory
+   * @param counterFile Counter file
+   * @param reference Digest of each reference file, by name
+   * @param problems List to add problems to; each is only added once
+   * @return Number of reference files committed with the right content
+   * @throws IOException if the files could not be read
+   */
+  private int check(File dir, File counterFile,
+      Map<String, String> reference, List<String> problems)
+      throws IOException {
+    int counter = readCounter(counterFile);
+    int completed = 0;
+    for (Map.Entry<String, String> e : reference.entrySet()) {
+      File file = new File(dir, e.getKey());
+      if (file.isFile()) {
+        if (digest(file).equals(e.getValue()))
+          completed++;
+        else
+          problem(problems, e.getKey() + " was committed with the wrong "
+              + "content");
+      } else if (fileNumber(e.getKey()) <= counter) {
+        problem(problems, "the counter is " + counter + " but "
+            + e.getKey() + " is missing");
+      }
+    }
+    int last = firstFile - 1 + reference.size();
+    if (counter > last)
+      problem(problems, "the counter is " + counter
+          + " but the last file is " + last);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files)
+        if (file.getName().endsWith(SATdownload.PART_SUFFIX))
+          problem(problems, file.getName() + " was left behind");
+    }
+    return completed;
+  }
+
+  /**
+   * Make the config of a run.
+   * 
+   * @param dir Directory of the run
+   * @param faults Fault profile, or <code>null</code> for none
+   * @return Config
+   * @throws IOException if the options are not valid
+   */
+  private Config configFor(File dir, String faults) throws IOException {
+    Properties run = new Properties();
+    run.putAll(props);
+    for (String key : DROPPED)
+      run.remove(key);
+    run.setProperty("localFilePath", new File(dir, "files").getPath());
+    run.setProperty("counterFile", new File(dir, "counter").getPath());
+    run.setProperty("stateDir", new File(dir, "state").getPath());
+    run.setProperty("downloadConsecutiveFiles", "true");
+    run.setProperty("coordination", "false");
+    run.setProperty("adminPort", "0");
+    if (faults != null)
+      run.setProperty("faultInjection", faults);
+    return Config.parse(run, source + " (fault suite)");
+  }
+
+  /**
+   * Record a problem unless it has been already.
+   * 
+   * @param problems Problems so far
+   * @param problem Problem
+   */
+  private static void problem(List<String> problems, String problem) {
+    if (!problems.contains(problem))
+      problems.add(problem);
+  }
+
+  /**
+   * Download the files of the date from scratch under a fault profile.
+   * 
+   * @param name Name of the profile
+   * @param faults Fault profile, or <code>null</code> for the reference run
+   * @param reference Digest of each reference file by name, or
+   *          <code>null</code> for the reference run
+   * @return Outcome of the profile
+   * @throws IOException if the run could not be set up
+   */
+  private Run runProfile(String name, String faults,
+      Map<String, String> reference) throws IOException {
+    File dir = new File(workDir, name);
+    delete(dir);
+    File files = new File(dir, "files");
+    if (!files.mkdirs())
+      throw new IOException("Could not create " + files);
+    File counterFile = new File(dir, "counter");
+    FileWriter out = new FileWriter(counterFile);
+    try {
+      out.write((firstFile - 1) + "\n");
+    } finally {
+      out.close();
+    }
+
+    Run run = new Run(name);
+    SATdownload sat = new SATdownload(configFor(dir, faults));
+    try {
+      sat.setDateString(date);
+      long start = System.nanoTime();
+      long deadline = start + budgetMillis * 1000000L;
+      while (true) {
+        run.passes++;
+        sat.setCounter(-1);
+        sat.downloadNewFiles(sat.getNextFileName());
+        if (reference == null)
+          break;
+        int completed = run.completed;
+        run.completed = check(files, counterFile, reference, run.problems);
+        if (run.completed >= reference.size()
+            || System.nanoTime() >= deadline)
+          break;
+        if (run.completed == completed) {
+          try {
+            Thread.sleep(IDLE_PAUSE_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Fault suite interrupted");
+          }
+        }
+      }
+      run.millis = (System.nanoTime() - start) / 1000000L;
+      FaultInjectingTransport injector = sat.getFaultInjector();
+      if (injector != null)
+        run.injected = injector.getInjected().toString();
+    } finally {
+      sat.close();
+    }
+
+    if (reference == null) {
+      // Everything up to the counter is the reference
+      int counter = readCounter(counterFile);
+      File[] found = files.listFiles();
+      Arrays.sort(found);
+      for (File file : found) {
+        String fileName = file.getName();
+        if (fileName.matches(".*_\\d+\\.[^.]+") && !fileName.endsWith(
+            SATdownload.PART_SUFFIX) && fileNumber(fileName) <= counter)
+          run.files.put(fileName, digest(file));
+      }
+      run.completed = run.files.size();
+    }
+    return run;
+  }
+
+  /**
+   * Outcome of one profile.
+   */
+  private static final class Run {
+
+    /**
+     * Number of reference files committed with the right content.
+     */
+    private int completed;
+
+    /**
+     * Digest of each file downloaded, by name. Only set for the reference
+     * run.
+     */
+    private final Map<String, String> files = new TreeMap<String, String>();
+
+    /**
+     * Number of faults of each kind injected.
+     */
+    private String injected = "";
+
+    /**
+     * Time the profile took, in milliseconds.
+     */
+    private long millis;
+
+    /**
+     * Name of the profile.
+     */
+    private final String name;
+
+    /**
+     * Number of times the downloader was run.
+     */
+    private int passes;
+
+    /**
+     * Checks that failed.
+     */
+    private final List<String> problems = new ArrayList<String>();
+
+    /**
+     * Create a new Run.
+     * 
+     * @param name Name of the profile
+     */
+    Run(String name) {
+      this.name = name;
+    }
+  }
+}
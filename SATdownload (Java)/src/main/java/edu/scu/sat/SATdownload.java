@@ -29,38 +29,73 @@ package edu.scu.sat;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 import org.collegeboard.scoredwnld.client.FileInfo;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientHandlerException;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.UniformInterfaceException;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.client.urlconnection.HTTPSProperties;
+import edu.scu.sat.DownloadQueue.Priority;
+import edu.scu.sat.admin.AdminServer;
+import edu.scu.sat.admin.StatusBoard;
+import edu.scu.sat.archive.Archiver;
+import edu.scu.sat.config.Config;
+import edu.scu.sat.config.ConfigException;
+import edu.scu.sat.config.ConfigWatcher;
+import edu.scu.sat.coord.Lease;
+import edu.scu.sat.delta.DeltaExtractor;
+import edu.scu.sat.disk.DiskFiles;
+import edu.scu.sat.disk.FreeSpaceGate;
+import edu.scu.sat.fault.FaultInjectingTransport;
+import edu.scu.sat.fault.FaultProfile;
+import edu.scu.sat.coord.LeaseManager;
+import edu.scu.sat.hook.CommandHook;
+import edu.scu.sat.hook.DropHook;
+import edu.scu.sat.hook.FileEvent;
+import edu.scu.sat.hook.Hook;
+import edu.scu.sat.hook.HookDispatcher;
+import edu.scu.sat.hook.WebhookHook;
+import edu.scu.sat.history.HistoryLog;
+import edu.scu.sat.history.HistoryRecord;
+import edu.scu.sat.history.HistoryReport;
+import edu.scu.sat.json.JsonReader;
+import edu.scu.sat.json.JsonWriter;
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+import edu.scu.sat.reader.RecordIndex;
+import edu.scu.sat.schedule.PollPlanner;
+import edu.scu.sat.schedule.PublishManifest;
+import edu.scu.sat.store.LongLongMap;
+import edu.scu.sat.store.MappedLongLongMap;
+import edu.scu.sat.store.OffHeapLongLongMap;
+import edu.scu.sat.trace.Span;
+import edu.scu.sat.trace.TraceExporter;
+import edu.scu.sat.trace.Tracer;
+import edu.scu.sat.transport.HttpStatusException;
+import edu.scu.sat.transport.RangeNotSupportedException;
+import edu.scu.sat.transport.RateLimitedTransport;
+import edu.scu.sat.transport.RetryingTransport;
+import edu.scu.sat.transport.SegmentedDownloader;
+import edu.scu.sat.transport.TrackingTransport;
+import edu.scu.sat.transport.TracingTransport;
+import edu.scu.sat.transport.Transport;
+import edu.scu.sat.transport.Transports;
+import edu.scu.sat.validate.FileValidator;
+import edu.scu.sat.validate.ValidationException;
 
 /**
  * <p>
@@ -96,11 +131,58 @@ import com.sun.jersey.client.urlconnection.HTTPSProperties;
  *  --filename=FILENAME 
  *    Specify the exact file name to download.
  * 
+ *  --filelist=PATH|-
+ *    Download every file named in PATH (one name per line), or read the names
+ *    from standard input if PATH is -.  Files are downloaded concurrently
+ *    with one shared login and the counter file is not updated.
+ * 
+ *  --priority=live|reissue|backfill
+ *    Queue the files of --filelist at this priority.  Default is reissue.
+ * 
+ *  --results=PATH
+ *    Where to write the per-file results of --filelist as JSON lines.
+ *    Default is SATdownload-YYYYMMDDHHMMSS.results.jsonl.
+ * 
+ *  --report[=DAYS]
+ *    Print percentiles and the trend of transfer times over the last DAYS
+ *    days (default 30) from the history log, then exit.
+ * 
+ *  --archive
+ *    Move the score files of dates more than archiveAfterDays days ago into
+ *    one compressed pack file per month in archiveDir, then exit.
+ * 
+ *  --fault-suite[=SECONDS]
+ *    Start a stub server with test files for --date (starting at --filenum,
+ *    default 1), download them once as a reference, then again under each
+ *    built-in fault profile for up to SECONDS (default 120) each.  Reports
+ *    files completed per minute and exits with code 7 if a corrupt file or
+ *    a wrong counter was ever committed.  The server and credentials in the
+ *    config file are not used, and the work files in
+ *    stateDir/fault-suite are deleted at the end.
+ * 
+ *  --fault-suite-server
+ *    Run --fault-suite against scoredwnldUrlRoot instead of the stub
+ *    server.  Refused unless it is on this host (localhost or a loopback
+ *    address).
+ * 
+ *  --daemon
+ *    Keep running and poll for new files every pollIntervalSeconds, or more
+ *    often around the times files are usually published.  Without --date,
+ *    the date follows today's date.  Changes to the config file are applied
+ *    without a restart.
+ * 
  *  -h | --help
  *    Display this help information.
  * </pre>
  *
  * <p>
+ * If the config file lists <code>tenants</code>, files are downloaded for
+ * each of those organizations too. --filenum and --filename only apply to
+ * the top-level organization; a file in a --filelist is downloaded for the
+ * organization whose org ID its name starts with.
+ * </p>
+ *
+ * <p>
  * NOTE: The development of this program was based on the sample provided by
  * CollegeBoard at: <a href=
  * "https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip">
@@ -125,6 +207,10 @@ import com.sun.jersey.client.urlconnection.HTTPSProperties;
  * <li>2 - Cannot find the config file</li>
  * <li>3 - Invalid date format</li>
  * <li>4 - Invalid file number</li>
+ * <li>5 - One or more files in a batch could not be downloaded</li>
+ * <li>6 - The config file has missing or invalid options</li>
+ * <li>7 - The fault suite found a corrupt file or a wrong counter</li>
+ * <li>8 - Files could not be archived</li>
  * </ul>
  * 
  * @author Brian Moon (bmoon@scu.edu)
@@ -140,6 +226,18 @@ public class SATdownload {
    *
    */
   public static enum ExitStatus {
+    /**
+     * Files could not be archived (8)
+     */
+    ARCHIVE_FAILED(8),
+    /**
+     * One or more files in a batch could not be downloaded (5)
+     */
+    BATCH_INCOMPLETE(5),
+    /**
+     * The fault suite found a corrupt file or a wrong counter (7)
+     */
+    FAULT_SUITE_FAILED(7),
     /**
      * Invalid date given on the command line (3)
      */
@@ -148,6 +246,10 @@ public class SATdownload {
      * Invalid file number given on the command line (4)
      */
     INVALID_FILE_NUM(4),
+    /**
+     * The configuration file has missing or invalid options (6)
+     */
+    INVALID_CONFIG(6),
     /**
      * Cannot find the configuration file (2)
      */
@@ -178,14 +280,48 @@ public class SATdownload {
   }
 
   /**
-   * Print a time-stamped log message on the console
+   * Value of <code>fingerprintStore</code> selecting the memory-mapped store.
+   */
+  public static final String FINGERPRINT_STORE_MAPPED =
+      Config.FINGERPRINT_STORE_MAPPED;
+
+  /**
+   * Longest time {@link #close()} waits for queued hook events to be
+   * delivered, in milliseconds.
+   */
+  private static final long HOOK_SHUTDOWN_MILLIS = 30000;
+
+  /**
+   * Number of traces waiting to be exported before new ones are dropped.
+   */
+  private static final int TRACE_QUEUE_SIZE = 1000;
+
+  /**
+   * Longest time {@link #close()} waits for kept traces to be exported, in
+   * milliseconds.
+   */
+  private static final long TRACE_SHUTDOWN_MILLIS = 10000;
+
+  /**
+   * Longest time the program waits for the daemon to finish its current
+   * transfer when it is stopped, in milliseconds.
+   */
+  private static final long DAEMON_SHUTDOWN_MILLIS = 60000;
+
+  /**
+   * Suffix of a file while it is being downloaded. It is renamed to its own
+   * name once the transfer has finished.
+   */
+  public static final String PART_SUFFIX = ".part";
+
+  /**
+   * Print a time-stamped log message on the console. This is shorthand for
+   * {@link Log#info(String)}.
    * 
    * @param msg Message to print
    */
   public static void log(String msg) {
-    System.out
-        .println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
-            + ": " + msg);
+    Log.info(msg);
   }
 
   /**
@@ -205,8 +341,16 @@ public class SATdownload {
     // Initialize configuration options
     String configFile = null;
     String fileName = null;
+    String fileList = null;
     String fileNum = null;
+    String resultsFile = null;
+    String priority = null;
     String date = null;
+    boolean daemon = false;
+    String reportDays = null;
+    String faultSuite = null;
+    boolean faultSuiteServer = false;
+    boolean archive = false;
     boolean saveCounter = true;
 
     // Check command line options
@@ -220,6 +364,19 @@ public class SATdownload {
         fileName = removeQuotes(args[i].replaceFirst("--filename=", ""));
         saveCounter = false;
       }
+      // Look for a list of file names to download
+      else if (args[i].startsWith("--filelist=")) {
+        fileList = removeQuotes(args[i].replaceFirst("--filelist=", ""));
+        saveCounter = false;
+      }
+      // Look for the priority to queue a file list at
+      else if (args[i].startsWith("--priority="))
+        priority = removeQuotes(args[i].replaceFirst("--priority=", ""));
+
+      // Look for where to write the results of a file list
+      else if (args[i].startsWith("--results="))
+        resultsFile = removeQuotes(args[i].replaceFirst("--results=", ""));
+
       // Look for a specified file number to start searching from
       else if (args[i].startsWith("--filenum=")) {
         fileNum = removeQuotes(args[i].replaceFirst("--filenum=", ""));
@@ -229,6 +386,28 @@ public class SATdownload {
       else if (args[i].startsWith("--date="))
         date = removeQuotes(args[i].replaceFirst("--date=", ""));
 
+      // Look for daemon mode
+      else if (args[i].equals("--daemon"))
+        daemon = true;
+
+      // Look for a request for the transfer history report
+      else if (args[i].equals("--report"))
+        reportDays = "30";
+      else if (args[i].startsWith("--report="))
+        reportDays = removeQuotes(args[i].replaceFirst("--report=", ""));
+
+      // Look for a request to archive the files of past dates
+      else if (args[i].equals("--archive"))
+        archive = true;
+
+      // Look for a request to run the fault suite
+      else if (args[i].equals("--fault-suite"))
+        faultSuite = "120";
+      else if (args[i].startsWith("--fault-suite="))
+        faultSuite = removeQuotes(args[i].replaceFirst("--fault-suite=", ""));
+      else if (args[i].equals("--fault-suite-server"))
+        faultSuiteServer = true;
+
       // Look to see if the user wants the help information
       else if (args[i].equalsIgnoreCase("--help") || args[i].equals("-h")) {
         printHelp();
@@ -242,63 +421,421 @@ public class SATdownload {
       }
     }
 
+    Priority listPriority = Priority.REISSUE;
+    if (priority != null) {
+      try {
+        listPriority = Priority.parse(priority);
+      } catch (IllegalArgumentException e) {
+        System.out.println(e.getMessage());
+        printHelp();
+        System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+      }
+      if (fileList == null) {
+        System.out.println("--priority only applies to --filelist");
+        printHelp();
+        System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+      }
+    }
+
+    if (faultSuite != null
+        && (daemon || fileName != null || fileList != null)) {
+      System.out.println("--fault-suite cannot be used with --daemon, "
+          + "--filename or --filelist");
+      printHelp();
+      System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+    }
+
+    if (faultSuiteServer && faultSuite == null) {
+      System.out.println("--fault-suite-server only applies to --fault-suite");
+      printHelp();
+      System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+    }
+
+    if (daemon && (fileName != null || fileList != null)) {
+      System.out.println(
+          "--daemon cannot be used with --filename or --filelist");
+      printHelp();
+      System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+    }
+
     // If a configFile has not been specified yet, use SATdownload.conf
     if (configFile == null)
       configFile = "SATdownload.conf";
 
-    // Create new SATdownload Object
-    SATdownload sat = new SATdownload(configFile);
-    sat.setSaveCounter(saveCounter);
+    // Create one SATdownload object per organization in the config file. The
+    // first one owns the connections, the status board, the download queue
+    // and the admin server and the others share them. Options naming a file
+    // or a file number only make sense for one organization, so they apply
+    // to the first one alone.
+    Config config = readConfig(configFile);
+    if (faultSuite != null) {
+      System.exit(runFaultSuite(configFile, config, faultSuite, date,
+          fileNum, !faultSuiteServer));
+      return;
+    }
+    List<SATdownload> sats = new ArrayList<SATdownload>();
+    SATdownload sat = new SATdownload(config);
+    sats.add(sat);
+
+    // Report on the transfer history instead of downloading
+    if (reportDays != null) {
+      int days = 0;
+      try {
+        days = Integer.parseInt(reportDays);
+      } catch (NumberFormatException e) {
+        // Reported below
+      }
+      if (days < 1) {
+        System.out.println("Invalid number of days: " + reportDays);
+        printHelp();
+        System.exit(ExitStatus.UNKNOWN_OPTION.getCode());
+      }
+      sat.printReport(days);
+      sat.close();
+      return;
+    }
+
+    if (fileName == null && fileNum == null) {
+      for (Config tenant : config.getTenants())
+        if (tenant != config)
+          sats.add(new SATdownload(tenant, sat));
+    }
+
+    // Archive the files of past dates instead of downloading
+    if (archive) {
+      boolean archived = true;
+      for (SATdownload s : sats)
+        archived &= s.archive();
+      closeAll(sats);
+      log("Done.");
+      if (!archived)
+        System.exit(ExitStatus.ARCHIVE_FAILED.getCode());
+      return;
+    }
+    for (SATdownload s : sats)
+      s.setSaveCounter(saveCounter);
+    openQueue(sats);
+    sat.startAdminServer();
 
     // Set date of file to download. Use today's date if a date was not
     // specified on the command line.
     SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
-    if (date == null) {
-      sat.setDateString(df.format(new Date()));
-    } else {
+    if (date != null) {
       try {
-        sat.setDateString(df.format(df.parse(date)));
+        date = df.format(df.parse(date));
       } catch (ParseException e) {
-        log("Invalid date specified: " + date);
+        Log.error("Invalid date specified: " + date, null);
         System.exit(ExitStatus.INVALID_DATE_FORMAT.getCode());
       }
     }
+    for (SATdownload s : sats)
+      s.setDateString(date == null ? df.format(new Date()) : date);
 
     // Set file counter if specified on the command line
     if (fileNum != null) {
       try {
         sat.setCounter(Integer.parseInt(fileNum));
       } catch (NumberFormatException e) {
-        log("Invalid file number specified: " + fileNum);
+        Log.error("Invalid file number specified: " + fileNum, null);
         System.exit(ExitStatus.INVALID_FILE_NUM.getCode());
       }
     }
 
-    // Set fileName. If not specified on the command line, generate the next
-    // file name using getNextFileName().
-    if (fileName == null)
-      fileName = sat.getNextFileName();
-    else
-      sat.setDownloadConsecutiveFiles(false);
+    // Download an explicit list of files
+    if (fileList != null) {
+      if (resultsFile == null)
+        resultsFile = "SATdownload-"
+            + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date())
+            + ".results.jsonl";
+      int status = downloadFileList(sats, fileList, listPriority,
+          new File(resultsFile));
+      closeAll(sats);
+      log("Done.");
+      if (status != ExitStatus.SUCCESS.getCode())
+        System.exit(status);
+      return;
+    }
+
+    // Keep polling for new files until stopped, applying changes to the
+    // config file as they are made
+    if (daemon) {
+      ConfigWatcher watcher = watchConfig(configFile, sats);
+      runDaemon(sats, date == null);
+      if (watcher != null)
+        watcher.close();
+      log("Done.");
+      return;
+    }
 
-    // Download file(s)
-    boolean successfulDownload = true;
     try {
-      do {
-        successfulDownload = sat.downloadFile(fileName);
-        // If download is successful, prepare to download the next file
-        if (sat.getCounter() > 1 && successfulDownload) {
-          sat.writeCounterFile();
-          sat.incrementCounter();
-          fileName = sat.getNextFileName();
+      for (SATdownload s : sats) {
+        // When several hosts share the download directory, only the one
+        // holding the lease for this organization and date may download or
+        // touch the counter file. Claim it before the counter file is read.
+        if (!s.acquireLease())
+          continue;
+
+        // Download file(s). If a file name was not specified on the command
+        // line, generate the next file name using getNextFileName().
+        if (fileName == null) {
+          s.downloadNewFiles(s.getNextFileName());
+        } else {
+          s.setDownloadConsecutiveFiles(false);
+          s.downloadNewFiles(fileName);
         }
-      } while (sat.isDownloadConsecutiveFiles() && successfulDownload);
-    } catch (RuntimeException e) {
-      log(e.getMessage());
+      }
+    } finally {
+      closeAll(sats);
     }
     log("Done.");
   }
 
+  /**
+   * Run the fault suite against a stub server, or the local test server in
+   * the config file.
+   * 
+   * @param configFile Path of the config file
+   * @param config Config read from it
+   * @param seconds Longest time each fault profile may take, in seconds
+   * @param date Date of the files to download, or <code>null</code> for
+   *          today
+   * @param fileNum Number of the first file to download, or
+   *          <code>null</code> for 1
+   * @param useStub TRUE to download from a stub server started for the run,
+   *          FALSE to download from the server in the config file
+   * @return Exit code
+   */
+  private static int runFaultSuite(String configFile, Config config,
+      String seconds, String date, String fileNum, boolean useStub) {
+    long budget = 0;
+    int first = 0;
+    SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
+    try {
+      budget = Long.parseLong(seconds);
+      first = fileNum == null ? 1 : Integer.parseInt(fileNum);
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    if (budget < 1 || first < 1) {
+      System.out.println("Invalid --fault-suite time or --filenum");
+      printHelp();
+      return ExitStatus.UNKNOWN_OPTION.getCode();
+    }
+    try {
+      date = df.format(date == null ? new Date() : df.parse(date));
+    } catch (ParseException e) {
+      Log.error("Invalid date specified: " + date, null);
+      return ExitStatus.INVALID_DATE_FORMAT.getCode();
+    }
+    if (!useStub && !FaultSuite.isLocal(config.getScoredwnldUrlRoot())) {
+      Log.error("--fault-suite-server refused: scoredwnldUrlRoot "
+          + config.getScoredwnldUrlRoot() + " is not on this host", null);
+      return ExitStatus.FAULT_SUITE_FAILED.getCode();
+    }
+    try {
+      return new FaultSuite(new File(configFile), config, date, first,
+          1000 * budget, useStub).run();
+    } catch (IOException e) {
+      Log.error("Fault suite could not run: " + e.getMessage(), e);
+      return ExitStatus.FAULT_SUITE_FAILED.getCode();
+    }
+  }
+
+  /**
+   * Apply a reloaded config file to the organizations being downloaded.
+   * Organizations are matched by org ID, except the first one, which always
+   * takes the top-level options. Adding or removing an organization needs a
+   * restart.
+   * 
+   * @param config New config
+   * @param sats One SATdownload object per organization, the first one
+   *          first
+   */
+  private static void applyTenants(Config config, List<SATdownload> sats) {
+    List<Config> tenants = config.getTenants();
+    sats.get(0).applyConfig(config);
+    List<String> orgIDs = new ArrayList<String>();
+    for (SATdownload sat : sats.subList(1, sats.size())) {
+      orgIDs.add(sat.getOrgID());
+      Config tenant = null;
+      for (Config c : tenants.subList(1, tenants.size()))
+        if (c.getOrgID().equals(sat.getOrgID()))
+          tenant = c;
+      if (tenant == null)
+        Log.warn("Organization " + sat.getOrgID() + " was removed from the "
+            + "config file; it is downloaded until the next restart", null);
+      else
+        sat.applyConfig(tenant);
+    }
+    for (Config c : tenants.subList(1, tenants.size()))
+      if (!orgIDs.contains(c.getOrgID()))
+        Log.warn("Organization " + c.getOrgID() + " was added to the config "
+            + "file; it is not downloaded until the next restart", null);
+  }
+
+  /**
+   * Close SATdownload objects sharing one set of connections. The first
+   * one, which owns them, is closed last.
+   * 
+   * @param sats One SATdownload object per organization, the first one
+   *          first
+   */
+  private static void closeAll(List<SATdownload> sats) {
+    for (int i = sats.size() - 1; i >= 0; --i)
+      sats.get(i).close();
+  }
+
+  /**
+   * Close a stream, ignoring any error
+   * 
+   * @param in Stream to close
+   */
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // Nothing useful can be done
+    }
+  }
+
+  /**
+   * Get the options that the delta extractor is opened with.
+   * 
+   * @param config Config
+   * @return Option values
+   */
+  private static Object[] deltaOptions(Config config) {
+    return new Object[] { config.getStateDir(), config.getDeltaKeyFields(),
+        config.getDeltaDelimiter(), config.getDeltaHeaderLines(),
+        config.getFingerprintStore() };
+  }
+
+  /**
+   * Download every file named in a list and write the outcome of each one to
+   * a results file. Each file is queued for the organization its name
+   * belongs to, and files left in the queue by an earlier run are
+   * downloaded too. See {@link BatchDownloader}.
+   * 
+   * @param sats One SATdownload object per organization, the first one
+   *          first
+   * @param fileList Path of the list, or <code>-</code> for standard input
+   * @param priority Priority to queue the files at
+   * @param resultsFile File to write the results to
+   * @return Exit code: {@link ExitStatus#SUCCESS} if every file was
+   *         downloaded, otherwise {@link ExitStatus#BATCH_INCOMPLETE}
+   */
+  public static int downloadFileList(List<SATdownload> sats, String fileList,
+      Priority priority, File resultsFile) {
+    List<String> fileNames;
+    try {
+      fileNames = BatchDownloader.readFileList(fileList);
+    } catch (IOException e) {
+      Log.error("Could not read file list " + fileList, e);
+      return ExitStatus.BATCH_INCOMPLETE.getCode();
+    }
+
+    List<DownloadResult> results;
+    try {
+      results = new BatchDownloader(sats, openQueue(sats),
+          sats.get(0).concurrency).run(fileNames, priority);
+    } catch (IllegalArgumentException e) {
+      Log.error("Could not queue file list " + fileList + ": "
+          + e.getMessage(), null);
+      return ExitStatus.BATCH_INCOMPLETE.getCode();
+    }
+    for (SATdownload sat : sats)
+      sat.syncBatch();
+    int failed = 0;
+    for (DownloadResult result : results) {
+      if (!result.isSuccess())
+        failed++;
+    }
+
+    try {
+      BatchDownloader.writeResults(results, resultsFile);
+      log("Results written to " + resultsFile);
+    } catch (IOException e) {
+      Log.error("Could not write results to " + resultsFile, e);
+      return ExitStatus.BATCH_INCOMPLETE.getCode();
+    }
+
+    log((results.size() - failed) + " of " + results.size()
+        + " file(s) downloaded");
+    return failed == 0 ? ExitStatus.SUCCESS.getCode()
+        : ExitStatus.BATCH_INCOMPLETE.getCode();
+  }
+
+  /**
+   * Get the number of milliseconds since a <code>System.nanoTime()</code>
+   * reading
+   * 
+   * @param startNanos Earlier <code>System.nanoTime()</code> reading
+   * @return Elapsed milliseconds
+   */
+  private static long elapsedMillis(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1000000L;
+  }
+
+  /**
+   * Get the options that the hooks are created with.
+   * 
+   * @param config Config
+   * @return Option values
+   */
+  private static Object[] hookOptions(Config config) {
+    return new Object[] { config.getHookCommand(),
+        config.getHookCommandTimeoutSeconds(), config.getHookUrl(),
+        config.getHookDrop(), config.getHookQueueSize(),
+        config.getHookAttempts(), config.getHookRetryDelaySeconds() };
+  }
+
+  /**
+   * Get the wait before the first retry of a request.
+   * 
+   * @param config Config
+   * @return Wait in milliseconds
+   */
+  private static long retryDelayMillis(Config config) {
+    return Math.round(1000 * config.getRequestRetryDelaySeconds());
+  }
+
+  /**
+   * Get the options that the tracer depends on.
+   * 
+   * @param config Config
+   * @return Option values
+   */
+  private static Object[] traceOptions(Config config) {
+    return new Object[] { config.getTraceFile(), config.getTraceUrl(),
+        config.getTraceSampleRate(), config.getTraceSlowSeconds() };
+  }
+
+  /**
+   * Get the options that the download token depends on.
+   * 
+   * @param config Config
+   * @return Option values
+   */
+  private static Object[] loginOptions(Config config) {
+    return new Object[] { config.getScoredwnldUrlRoot(),
+        config.getUsername(), config.getPassword() };
+  }
+
+  /**
+   * Get the download queue shared by every organization, with each of them
+   * added at its weight.
+   * 
+   * @param sats One SATdownload object per organization, the first one
+   *          first
+   * @return Download queue
+   */
+  private static DownloadQueue openQueue(List<SATdownload> sats) {
+    DownloadQueue queue = sats.get(0).getDownloadQueue();
+    for (SATdownload sat : sats)
+      queue.addOrganization(sat.orgID, sat.config.getQueueWeight());
+    return queue;
+  }
+
   /**
    * Pad number with zeroes to get the correct number of digits
    *
@@ -324,12 +861,33 @@ public class SATdownload {
     return str;
   }
 
+  /**
+   * Parse a file size reported by the service.
+   * 
+   * @param size Size in bytes, or <code>null</code>
+   * @return Size, or -1 if it is missing or not a number
+   */
+  private static long parseSize(String size) {
+    if (size == null)
+      return -1;
+    try {
+      return Long.parseLong(size.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   /**
    * Print help information to the console
    */
   private static void printHelp() {
     System.out.println(
-        "Usage: SATdownload [--config=CONFIGFILE --date=DATE | --filenum=NUM | --filename=FILENAME]\n\n"
+        "Usage: SATdownload [--config=CONFIGFILE --date=DATE | --filenum=NUM | --filename=FILENAME\n"
+            + "                   | --filelist=PATH [--results=PATH] [--priority=CLASS]\n"
+            + "                   | --daemon\n"
+            + "                   | --report[=DAYS]\n"
+            + "                   | --archive\n"
+            + "                   | --fault-suite[=SECONDS] [--fault-suite-server]]\n\n"
             + "Options:\n" + " --config=CONFIGFILE\n"
             + "   Specify the path and file name of the config file.  Default is\n"
             + "   SATdownload.conf.\n\n" + " --date=DATE\n"
@@ -339,7 +897,71 @@ public class SATdownload {
             + "   part of the file name.  Default is the next number in the counter\n"
             + "   file.\n\n" + " --filename=FILENAME\n"
             + "   Specify the exact file name to download.\n\n"
-            + " -h | --help\n" + "   Display this help information.");
+            + " --filelist=PATH|-\n"
+            + "   Download every file named in PATH (one name per line), or read\n"
+            + "   the names from standard input if PATH is -.  Files are\n"
+            + "   downloaded concurrently with one shared login and the counter\n"
+            + "   file is not updated.\n\n"
+            + " --priority=live|reissue|backfill\n"
+            + "   Queue the files of --filelist at this priority.  Default is\n"
+            + "   reissue.\n\n" + " --results=PATH\n"
+            + "   Where to write the per-file results of --filelist as JSON\n"
+            + "   lines.  Default is SATdownload-YYYYMMDDHHMMSS.results.jsonl.\n\n"
+            + " --report[=DAYS]\n"
+            + "   Print percentiles and the trend of transfer times over the last\n"
+            + "   DAYS days (default 30) from the history log, then exit.\n\n"
+            + " --archive\n"
+            + "   Move the score files of dates more than archiveAfterDays days\n"
+            + "   ago into one compressed pack file per month in archiveDir, then\n"
+            + "   exit.\n\n"
+            + " --fault-suite[=SECONDS]\n"
+            + "   Start a stub server with test files for --date (starting at\n"
+            + "   --filenum, default 1), download them once as a reference, then\n"
+            + "   again under each built-in fault profile for up to SECONDS\n"
+            + "   (default 120) each.  Reports files completed per minute and\n"
+            + "   exits with code 7 if a corrupt file or a wrong counter was\n"
+            + "   ever committed.  The server and credentials in the config file\n"
+            + "   are not used, and the work files in stateDir/fault-suite are\n"
+            + "   deleted at the end.\n\n"
+            + " --fault-suite-server\n"
+            + "   Run --fault-suite against scoredwnldUrlRoot instead of the stub\n"
+            + "   server.  Refused unless it is on this host (localhost or a\n"
+            + "   loopback address).\n\n"
+            + " --daemon\n"
+            + "   Keep running and poll for new files every pollIntervalSeconds,\n"
+            + "   or more often around the times files are usually published.\n"
+            + "   Without --date, the date follows today's date.  Changes to the\n"
+            + "   config file are applied without a restart.\n\n"
+            + " -h | --help\n" + "   Display this help information.\n\n"
+            + "If the config file lists tenants, files are downloaded for each of\n"
+            + "them too.  --filenum and --filename only apply to the top-level\n"
+            + "orgID; a file in a --filelist is downloaded for the organization\n"
+            + "whose orgID its name starts with.");
+  }
+
+  /**
+   * Load and check the config file. The program exits if the file is
+   * missing or any option in it is invalid.
+   * 
+   * @param fileName Full path to the configuration file
+   * @return Config of the first organization; see
+   *         {@link Config#getTenants()} for the others
+   */
+  private static Config readConfig(String fileName) {
+    log("Loading config file " + fileName);
+    try {
+      return Config.load(new File(fileName));
+    } catch (FileNotFoundException e) {
+      log("Could not find config file " + fileName);
+      System.exit(ExitStatus.MISSING_CONFIG_FILE.getCode());
+    } catch (ConfigException e) {
+      Log.error(e.getMessage(), null);
+      System.exit(ExitStatus.INVALID_CONFIG.getCode());
+    } catch (IOException e) {
+      Log.error("Error reading config file " + fileName, e);
+      System.exit(ExitStatus.MISSING_CONFIG_FILE.getCode());
+    }
+    return null;
   }
 
   /**
@@ -353,14 +975,183 @@ public class SATdownload {
   }
 
   /**
-   * File counter.
+   * <p>
+   * Keep downloading new files for every organization as they are
+   * published, polling every <code>pollIntervalSeconds</code>, until the
+   * program is stopped. A poll can also be started, and downloads paused,
+   * through the admin server.
+   * </p>
+   * <p>
+   * With <code>prefetch</code> on, each organization learns when its files
+   * are usually published (see {@link PollPlanner}). Inside those windows
+   * it polls every <code>prefetchPollSeconds</code>, logging in again just
+   * before each one; outside them it backs off to as little as one poll
+   * every <code>prefetchMaxIdleSeconds</code>.
+   * </p>
+   * <p>
+   * Files are downloaded by a {@link BatchDownloader} working through the
+   * download queue: new files found by polling go in at the live priority,
+   * ahead of re-issued and backfill files queued through the admin server
+   * or left by an earlier run.
+   * </p>
+   * <p>
+   * The counter files are read again before each poll, so another host may
+   * take over when coordination is on.
+   * </p>
+   * 
+   * @param sats One SATdownload object per organization; the first one
+   *          owns the status board the others share
+   * @param followToday TRUE to download today's files, moving on to the
+   *          next date at midnight; FALSE to keep to the date already set
    */
-  private int counter = -1;
+  public static void runDaemon(List<SATdownload> sats, boolean followToday) {
+    final SATdownload first = sats.get(0);
+    final Thread mainThread = Thread.currentThread();
+    Thread hook = new Thread(new Runnable() {
+      //@Override
+      public void run() {
+        // Let the current transfer finish and the leases be released
+        first.status.stop();
+        try {
+          mainThread.join(DAEMON_SHUTDOWN_MILLIS);
+        } catch (InterruptedException e) {
+          // Exiting anyway
+        }
+      }
+    }, "daemon-shutdown");
+    Runtime.getRuntime().addShutdownHook(hook);
+
+    log("Polling for new files every " + first.config.getPollIntervalSeconds()
+        + " seconds" + (first.config.isPrefetch()
+            ? ", or more often around the usual publish times" : ""));
+    DownloadQueue queue = openQueue(sats);
+    BatchDownloader workers = new BatchDownloader(sats, queue,
+        first.concurrency);
+    workers.start();
+    for (SATdownload sat : sats)
+      sat.liveQueue = queue;
+    try {
+      boolean requested = true;
+      while (true) {
+        long next = Long.MAX_VALUE;
+        for (SATdownload sat : sats) {
+          sat.pollIfDue(System.currentTimeMillis(), requested, followToday);
+          next = Math.min(next, sat.getNextWakeMillis());
+        }
+        if (!first.status.awaitPoll(Math.max(0,
+            next - System.currentTimeMillis())))
+          break;
+        // A poll requested through the admin server ends the wait early
+        requested = System.currentTimeMillis() < next;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (SATdownload sat : sats)
+        sat.liveQueue = null;
+      workers.stop(DAEMON_SHUTDOWN_MILLIS / 2);
+      closeAll(sats);
+    }
+  }
+
+  /**
+   * Log the options that have changed in a reloaded config but only take
+   * effect at startup.
+   * 
+   * @param old Config in effect
+   * @param config Reloaded config
+   */
+  private static void warnRestartNeeded(Config old, Config config) {
+    List<String> changed = new ArrayList<String>();
+    if (!old.getOrgID().equals(config.getOrgID()))
+      changed.add("orgID");
+    if (!old.getTransport().equals(config.getTransport()))
+      changed.add("transport");
+    if (old.isCoordination() != config.isCoordination())
+      changed.add("coordination");
+    if (!old.getLeaseDir().equals(config.getLeaseDir()))
+      changed.add("leaseDir");
+    if (old.getLeaseTtlSeconds() != config.getLeaseTtlSeconds())
+      changed.add("leaseTtlSeconds");
+    if (!old.getNodeId().equals(config.getNodeId()))
+      changed.add("nodeId");
+    if (old.getAdminPort() != config.getAdminPort())
+      changed.add("adminPort");
+    if (!old.getAdminBind().equals(config.getAdminBind()))
+      changed.add("adminBind");
+    // The number of queue workers is fixed when the daemon starts
+    if (old.getConcurrency() != config.getConcurrency())
+      changed.add("concurrency");
+    if (!String.valueOf(old.getFaultInjection())
+        .equals(String.valueOf(config.getFaultInjection())))
+      changed.add("faultInjection");
+    if (!changed.isEmpty())
+      Log.warn("Changes to " + changed + " for organization "
+          + old.getOrgID() + " take effect after a restart", null);
+  }
+
+  /**
+   * Start watching the config file so changes to it are applied while the
+   * daemon runs. A failure to watch it is logged and otherwise ignored.
+   * 
+   * @param fileName Full path to the configuration file
+   * @param sats One SATdownload object per organization, the first one
+   *          first
+   * @return Config watcher, or <code>null</code> if the file is not watched
+   */
+  private static ConfigWatcher watchConfig(String fileName,
+      final List<SATdownload> sats) {
+    try {
+      return new ConfigWatcher(new File(fileName),
+          new ConfigWatcher.Listener() {
+            //@Override
+            public void configChanged(Config config) {
+              applyTenants(config, sats);
+            }
+          });
+    } catch (IOException e) {
+      Log.warn("Could not watch config file " + fileName
+          + "; changes to it need a restart", e);
+      return null;
+    }
+  }
+
+  /**
+   * Address the admin server listens on.
+   */
+  private String adminBind;
+
+  /**
+   * Port the admin server listens on, or 0 if it is off.
+   */
+  private int adminPort;
+
+  /**
+   * Admin server, if started.
+   */
+  private AdminServer adminServer;
+
+  /**
+   * Whether to coordinate with other hosts through lease files.
+   */
+  private boolean coordination;
+
+  /**
+   * Config this downloader was last set up with. A reload replaces it as a
+   * whole; each file reads every option from the one in effect when it
+   * started, and never from this field again.
+   */
+  private volatile Config config;
 
   /**
-   * File where the file counter is saved.
+   * Number of files to download at the same time in batch mode.
    */
-  private String counterFile;
+  private int concurrency;
+
+  /**
+   * File counter.
+   */
+  private int counter = -1;
 
   /**
    * Date to download files from. Value must be in the format
@@ -369,60 +1160,531 @@ public class SATdownload {
   private String dateString;
 
   /**
-   * Whether the program should download consecutive files for a specific date
-   * or not.
+   * Writes the new and changed records of each downloaded file to a sidecar
+   * file. Opened on first use.
    */
-  private boolean downloadConsecutiveFiles;
+  private DeltaExtractor deltaExtractor;
 
   /**
-   * File extension of the SAT score file.
+   * Config the delta extractor was built from. Guarded by
+   * {@link #deltaLock}.
    */
-  private String fileExtension;
+  private Config deltaConfig;
 
   /**
-   * Number of digits in the file number field of the file name.
+   * Held while the delta extractor is opened, used or closed, so that its
+   * fingerprint store is never closed under a file being processed.
    */
-  private int fileNumPadding;
+  private final Object deltaLock = new Object();
 
   /**
-   * Local directory to save SAT score files.
+   * Queue of files to download, shared by every organization. Opened on
+   * first use.
    */
-  private String localFilePath;
+  private DownloadQueue downloadQueue;
 
   /**
-   * Organization ID with CollegeBoard. This is the first field in the file
-   * name.
+   * FALSE to download only the file asked for, even if the config says to
+   * download consecutive files.
    */
-  private String orgID;
+  private volatile boolean downloadConsecutiveFiles = true;
 
   /**
-   * Password to login with.
+   * Innermost part of {@link #transport} when <code>faultInjection</code> is
+   * set, else <code>null</code>.
    */
-  private String password;
+  private FaultInjectingTransport faults;
 
   /**
-   * Whether the counter should be saved or not.
+   * Admission control on the free space for downloads. Created on first use.
    */
-  private boolean saveCounter = true;
+  private FreeSpaceGate freeSpaceGate;
 
   /**
-   * Root URL to download files from.
+   * Fingerprints of previously seen records, used by the delta stage.
    */
-  private String scoredwnldUrlRoot;
+  private LongLongMap fingerprints;
 
   /**
-   * Username to login with.
+   * Delivers events to the hooks. Created on first use if any hook is set.
    */
-  private String username;
+  private HookDispatcher hookDispatcher;
 
   /**
-   * Create a new SATdownload object. Creation requires a valid config file.
-   * 
-   * @param configFile Full path to the configuration file
+   * Log of transfer timings, in the state directory. Opened on first use.
    */
-  public SATdownload(String configFile) {
-    this.loadConfig(configFile);
-  }
+  private HistoryLog historyLog;
+
+  /**
+   * Number of polls in a row outside a publish window, for backing off.
+   */
+  private int idlePolls;
+
+  /**
+   * When the last poll in daemon mode started, or 0 before the first one.
+   */
+  private long lastPollMillis;
+
+  /**
+   * Lease on the organization and date being downloaded, when coordination
+   * is on.
+   */
+  private Lease lease;
+
+  /**
+   * Shared directory for lease files. Defaults to the local file path.
+   */
+  private String leaseDir;
+
+  /**
+   * Hands out leases when coordination is on.
+   */
+  private LeaseManager leaseManager;
+
+  /**
+   * Seconds a lease lasts without a heartbeat.
+   */
+  private long leaseTtlSeconds;
+
+  /**
+   * Queue that new files go through while {@link BatchDownloader} workers
+   * are running, or <code>null</code> to download them on the calling
+   * thread.
+   */
+  private volatile DownloadQueue liveQueue;
+
+  /**
+   * When each file was found, for learning the publish windows. Opened on
+   * first use.
+   */
+  private PublishManifest manifest;
+
+  /**
+   * When the next poll is due in daemon mode.
+   */
+  private long nextPollMillis;
+
+  /**
+   * ID of this host when coordinating with other hosts.
+   */
+  private String nodeId;
+
+  /**
+   * Organization ID with CollegeBoard. This is the first field in the file
+   * name.
+   */
+  private String orgID;
+
+  /**
+   * Downloader of the first organization in the config file, whose transport
+   * and status board this one shares, or <code>null</code> if this is the
+   * first one.
+   */
+  private final SATdownload primary;
+
+  /**
+   * Outermost part of the shared transport, which retries requests that
+   * fail in a way that may go away on its own. Created with
+   * {@link #transport}.
+   */
+  private RetryingTransport retrier;
+
+  /**
+   * Whether the counter should be saved or not.
+   */
+  private boolean saveCounter = true;
+
+  /**
+   * Downloads large files in segments over the shared transport. Created on
+   * first use.
+   */
+  private SegmentedDownloader segmentedDownloader;
+
+  /**
+   * Download token shared by every request. Guarded by {@link #tokenLock}.
+   */
+  private String token;
+
+  /**
+   * Lock guarding {@link #token}.
+   */
+  private final Object tokenLock = new Object();
+
+  /**
+   * Starts the trace of each file and exports the ones worth keeping.
+   * Created on first use if a trace file or URL is set.
+   */
+  private Tracer tracer;
+
+  /**
+   * HTTP transport used to talk to the PAScoresDwnld site, limited to
+   * <code>requestsPerSecond</code>. Created on first use by
+   * {@link #getTransport()}.
+   */
+  private RateLimitedTransport transport;
+
+  /**
+   * Innermost part of {@link #transport}, which tracks when each host was
+   * last used.
+   */
+  private TrackingTransport tracker;
+
+  /**
+   * Name of the transport to use (see {@link Transports}).
+   */
+  private String transportName;
+
+  /**
+   * Files downloaded since the end of the last batch that have not been
+   * flushed to disk yet, when <code>fsync</code> is <code>batch</code>.
+   */
+  private final List<File> unsynced = new ArrayList<File>();
+
+  /**
+   * What this downloader is doing, for the admin server.
+   */
+  private final StatusBoard status;
+
+  /**
+   * Checks downloaded files. Created on first use.
+   */
+  private FileValidator validator;
+
+  /**
+   * Threads that validate files when <code>validateParallelism</code> is
+   * set. Created with the validator.
+   */
+  private ForkJoinPool validatorPool;
+
+  /**
+   * When the login is next refreshed ahead of a publish window, or 0.
+   */
+  private long warmUpMillis;
+
+  /**
+   * Publish windows last logged, or <code>null</code>.
+   */
+  private String windows;
+
+  /**
+   * Create a new SATdownload object. Creation requires a valid config file.
+   * 
+   * @param configFile Full path to the configuration file
+   */
+  public SATdownload(String configFile) {
+    this.primary = null;
+    this.status = new StatusBoard();
+    this.loadConfig(configFile);
+  }
+
+  /**
+   * Create a new SATdownload object from a config that has already been
+   * loaded.
+   * 
+   * @param config Config of the organization to download files for
+   */
+  public SATdownload(Config config) {
+    this(config, null);
+  }
+
+  /**
+   * Create a new SATdownload object for one of several organizations. It
+   * shares the connections and the status board of <code>primary</code>,
+   * which must be closed after it.
+   * 
+   * @param config Config of the organization to download files for
+   * @param primary Downloader to share connections with, or
+   *          <code>null</code>
+   */
+  public SATdownload(Config config, SATdownload primary) {
+    this.primary = primary;
+    this.status = primary == null ? new StatusBoard() : primary.status;
+    this.applyConfig(config);
+  }
+
+  /**
+   * <p>
+   * Claim the lease for the current organization and date. This only does
+   * something when <code>coordination</code> is turned on in the config
+   * file; otherwise it always succeeds.
+   * </p>
+   * <p>
+   * If another live host holds the lease, this host must not download files
+   * for that date. A lease whose holder has stopped sending heartbeats for
+   * <code>leaseTtlSeconds</code> is taken over.
+   * </p>
+   * 
+   * @return TRUE if this host may download files for the date<br>
+   *         FALSE if another host holds the lease or it could not be claimed
+   */
+  public synchronized boolean acquireLease() {
+    if (!coordination)
+      return true;
+    if (lease != null && lease.isValid())
+      return true;
+    try {
+      if (leaseManager == null)
+        leaseManager = new LeaseManager(new File(leaseDir), nodeId,
+            leaseTtlSeconds);
+      lease = leaseManager.tryAcquire(orgID, dateString);
+    } catch (IOException e) {
+      Log.error("Could not claim lease in " + leaseDir, e);
+      lease = null;
+    }
+    return lease != null;
+  }
+
+  /**
+   * Run the post-download stages on a file that has just been downloaded.
+   * If a stage fails, the file counts as not downloaded so the counter is not
+   * advanced past it.
+   * 
+   * @param fileInfo Details of the file from the service
+   * @param result Result of the download
+   * @param options Config the file was started with
+   * @return TRUE if every stage succeeded
+   */
+  private boolean afterDownload(FileInfo fileInfo, DownloadResult result,
+      Config options) {
+    File file = new File(result.getLocalPath());
+    if (options.isValidate()) {
+      Span span = Span.current().startChild("validate");
+      try {
+        if (!validateFile(fileInfo, result, file, options)) {
+          span.error(result.getError());
+          return false;
+        }
+      } finally {
+        span.end();
+      }
+    }
+    if (options.getDeltaKeyFields() != null) {
+      Span span = Span.current().startChild("delta");
+      try {
+        processDelta(file);
+      } catch (IOException e) {
+        span.error(e.getMessage());
+        Log.at(Level.ERROR).file(result.getFileName()).phase("delta").error(e)
+            .log("Could not extract delta: " + e.getMessage());
+        result.setError(e.getMessage());
+        status.recordError(result.getFileName(), e.getMessage());
+        // The store is only updated once a file succeeds, but reopen it in
+        // case the failure came from the store itself
+        closeDeltaExtractor();
+        return false;
+      } finally {
+        span.end();
+      }
+    }
+    if (options.isIndex()) {
+      // Readers fall back to scanning the file without it, so a failure is
+      // not worth downloading the file again for
+      Span span = Span.current().startChild("index");
+      try {
+        RecordIndex.write(file, options.getDeltaHeaderLines());
+      } catch (IOException e) {
+        span.error(e.getMessage());
+        Log.at(Level.WARN).file(result.getFileName()).phase("index")
+            .log("Could not write record index: " + e.getMessage());
+      } finally {
+        span.end();
+      }
+    }
+
+    HookDispatcher dispatcher = getHookDispatcher();
+    if (dispatcher != null) {
+      dispatcher.fire(new FileEvent(result.getFileName(), file.getPath(),
+          result.getBytes(), result.getRecords(),
+          options.getDeltaKeyFields() == null ? null
+              : DeltaExtractor.deltaFileFor(file).getPath()));
+    }
+    return true;
+  }
+
+  /**
+   * <p>
+   * Set this downloader up with a config. It may be called again with a
+   * reloaded config while files are being downloaded: the rate limit, the
+   * file naming, validation, delta, hook and polling options take effect
+   * for the next file, and the connections are kept open. A changed
+   * username or password causes a new login.
+   * </p>
+   * <p>
+   * Download threads never see a half-applied config: each file takes the
+   * config in effect when it starts and reads all its options from that.
+   * The validator, delta extractor, hooks and tracer are built from the
+   * config in effect when they are first needed, and rebuilt after a reload
+   * that changes their options.
+   * </p>
+   * <p>
+   * The transport, coordination, admin server and organization options only
+   * take effect at startup; changes to them are reported and ignored.
+   * </p>
+   * 
+   * @param config Config of the organization to download files for
+   */
+  public void applyConfig(Config config) {
+    HookDispatcher oldHooks = null;
+    Tracer oldTracer = null;
+    synchronized (this) {
+      Config old = this.config;
+      this.config = config;
+      if (primary == null)
+        Log.configure(config.getLogLevel(), config.getLogFormat());
+
+      if (old == null) {
+        this.orgID = config.getOrgID();
+        this.transportName = config.getTransport();
+        this.coordination = config.isCoordination();
+        this.leaseDir = config.getLeaseDir();
+        this.leaseTtlSeconds = config.getLeaseTtlSeconds();
+        this.nodeId = config.getNodeId();
+        this.adminPort = config.getAdminPort();
+        this.adminBind = config.getAdminBind();
+        this.concurrency = config.getConcurrency();
+      } else {
+        warnRestartNeeded(old, config);
+        if (!Arrays.equals(loginOptions(old), loginOptions(config))) {
+          synchronized (tokenLock) {
+            token = null;
+          }
+        }
+        if (!Arrays.equals(hookOptions(old), hookOptions(config))) {
+          oldHooks = hookDispatcher;
+          hookDispatcher = null;
+        }
+        if (!Arrays.equals(traceOptions(old), traceOptions(config))) {
+          oldTracer = tracer;
+          tracer = null;
+        }
+        // Idle pool threads exit on their own
+        validator = null;
+        validatorPool = null;
+        if (transport != null)
+          transport.setRequestsPerSecond(config.getRequestsPerSecond());
+        if (retrier != null)
+          retrier.setPolicy(config.getRequestAttempts(),
+              retryDelayMillis(config));
+      }
+
+      if (historyLog != null)
+        historyLog.setRetentionDays(config.getHistoryRetentionDays());
+      if (old != null)
+        getDownloadQueue().addOrganization(orgID, config.getQueueWeight());
+    }
+
+    // Let the old hooks deliver what they have queued
+    if (oldHooks != null)
+      oldHooks.shutdown(HOOK_SHUTDOWN_MILLIS);
+    if (oldTracer != null)
+      oldTracer.close(TRACE_SHUTDOWN_MILLIS);
+  }
+
+  /**
+   * Move the files of dates more than <code>archiveAfterDays</code> days ago
+   * into pack files (see {@link Archiver}). The counter file and the publish
+   * manifest only record dates and file numbers, so archived files still
+   * count as downloaded; a file fetched again later is packed again,
+   * replacing the archived copy.
+   * 
+   * @return TRUE if every file that could be archived was
+   */
+  public boolean archive() {
+    Config options = config;
+    Calendar cal = Calendar.getInstance();
+    cal.add(Calendar.DAY_OF_MONTH, -options.getArchiveAfterDays());
+    String before = new SimpleDateFormat("yyyyMMdd").format(cal.getTime());
+    Archiver archiver = new Archiver(new File(options.getLocalFilePath()),
+        new File(options.getArchiveDir()), orgID, options.getFileExtension());
+    try {
+      int archived = archiver.archive(before);
+      log(archived + " file(s) of " + orgID + " from before " + before
+          + " archived in " + options.getArchiveDir());
+      return true;
+    } catch (IOException e) {
+      Log.error("Could not archive the files of " + orgID + ": "
+          + e.getMessage(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Release the lease (if any), the HTTP transport and any connections it is
+   * holding open, and stop the hooks and the admin server. A downloader
+   * sharing the transport of another leaves the transport and the status
+   * board alone.
+   */
+  public synchronized void close() {
+    syncBatch();
+    releaseLease();
+    if (leaseManager != null) {
+      leaseManager.shutdown();
+      leaseManager = null;
+    }
+    if (hookDispatcher != null) {
+      hookDispatcher.shutdown(HOOK_SHUTDOWN_MILLIS);
+      hookDispatcher = null;
+    }
+    if (adminServer != null) {
+      adminServer.stop();
+      adminServer = null;
+    }
+    if (primary == null)
+      status.stop();
+    if (downloadQueue != null) {
+      downloadQueue.close();
+      downloadQueue = null;
+    }
+    closeDeltaExtractor();
+    if (validatorPool != null) {
+      validatorPool.shutdown();
+      validatorPool = null;
+    }
+    if (historyLog != null) {
+      try {
+        historyLog.close();
+      } catch (IOException e) {
+        Log.warn("Error closing history log: " + e.getMessage(), e);
+      }
+      historyLog = null;
+    }
+    if (segmentedDownloader != null) {
+      segmentedDownloader.close();
+      segmentedDownloader = null;
+    }
+    if (tracer != null) {
+      tracer.close(TRACE_SHUTDOWN_MILLIS);
+      tracer = null;
+    }
+    if (transport != null) {
+      try {
+        transport.close();
+      } catch (IOException e) {
+        Log.warn("Error closing transport: " + e.getMessage(), e);
+      }
+      transport = null;
+      retrier = null;
+      faults = null;
+    }
+  }
+
+  /**
+   * Close the delta extractor and its fingerprint store, once no file is
+   * being processed.
+   */
+  private void closeDeltaExtractor() {
+    synchronized (deltaLock) {
+      if (fingerprints != null) {
+        try {
+          fingerprints.close();
+        } catch (IOException e) {
+          Log.warn("Error closing fingerprint store: " + e.getMessage(), e);
+        }
+      }
+      fingerprints = null;
+      deltaExtractor = null;
+    }
+  }
 
   /**
    * <p>
@@ -444,42 +1706,253 @@ public class SATdownload {
    * </p>
    * 
    * @author CollegeBoard
-   * @param filePath Path of file to download
-   * @param url URL to download file from
+   * @param fileInfo Details of the file from the service
+   * @param result Result to record the outcome in
+   * @param options Config the file was started with
    * @return TRUE if file download was successful<br>
    *         FALSE if there was an error
    */
-  private boolean download(String filePath, String url) {
-    log("Downloading file: " + filePath);
+  private boolean download(FileInfo fileInfo, DownloadResult result,
+      Config options) {
+    String filePath = fileInfo.getFileName();
+    String url = fileInfo.getFileUrl();
     try {
-      Client client = getClient();
-      WebResource webResource = client.resource(url);
-      InputStream inputStream = webResource.accept("application/octet-stream")
-          .get(InputStream.class);
-      if (inputStream == null) {
-        throw new RuntimeException("Failed : HTTP error code : ");
+      if (!status.awaitResumed()) {
+        result.setError("Shutting down");
+        return false;
       }
-
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.setError("Interrupted");
+      return false;
+    }
+    Log.at(Level.INFO).file(filePath).phase("download")
+        .log("Downloading file: " + filePath);
+    long start = System.nanoTime();
+    StatusBoard.Transfer transfer = null;
+    FreeSpaceGate.Reservation reservation = null;
+    File part = null;
+    Span span = Span.current().startChild("download");
+    try {
       String fileName = null; // response.headers['content-disposition'].split('filename=')[1];
       if (fileName == null) {
         fileName = filePath.substring(filePath.lastIndexOf("/") + 1);
       }
 
-      FileOutputStream out = new FileOutputStream(localFilePath + fileName);
-      byte[] buffer = new byte[2048];
-      int size = inputStream.read(buffer);
-      while (size > 0) {
-        out.write(buffer, 0, size);
-        size = inputStream.read(buffer);
+      // A tenant's directory is created on its first download
+      String localFilePath = options.getLocalFilePath();
+      File target = new File(localFilePath + fileName);
+      File dir = target.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Could not create directory " + dir);
+      long size = parseSize(fileInfo.getFileSize());
+      span.attribute("size", size);
+
+      // Wait for room on the disk rather than running out halfway through,
+      // and write to a .part file so a failed transfer never leaves a
+      // partial file under the real name
+      part = new File(target.getPath() + PART_SUFFIX);
+      Span step = span.startChild("disk.reserve");
+      try {
+        reservation = getFreeSpaceGate().reserve(part, fileName, size,
+            options.getMinFreeSpace());
+      } finally {
+        step.end();
+      }
+      start = System.nanoTime();
+      if (options.isPreallocate() && size > 0) {
+        step = span.startChild("preallocate");
+        try {
+          DiskFiles.preallocate(part, size);
+          // Its length no longer shows how much has been written
+          reservation.setWritten(0);
+        } finally {
+          step.end();
+        }
+      }
+      transfer = status.startTransfer(filePath, part, size);
+      result.setConnectionReused(isConnectionWarm(url));
+      long bytes = -1;
+      int segments = options.getDownloadSegments();
+      if (segments > 1 && size >= options.getDownloadSegmentMinSize()
+          && getSegmentedDownloader().isRangeSupported(url)) {
+        span.attribute("segments", segments);
+        bytes = downloadSegmented(filePath, url, part, size, segments,
+            transfer, reservation);
+      }
+      if (bytes < 0)
+        bytes = getTransport().download(url, part);
+      // A body cut short without an error must not be renamed into place
+      if (size >= 0 && bytes != size)
+        throw new IOException("Received " + bytes + " bytes, expected "
+            + size);
+      String fsync = options.getFsync();
+      if (Config.FSYNC_FILE.equals(fsync)) {
+        step = span.startChild("fsync");
+        try {
+          DiskFiles.force(part);
+        } finally {
+          step.end();
+        }
+      }
+      step = span.startChild("rename");
+      try {
+        Files.move(part.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        if (Config.FSYNC_FILE.equals(fsync))
+          DiskFiles.forceDirectory(dir);
+        else if (Config.FSYNC_BATCH.equals(fsync))
+          addUnsynced(target);
+      } finally {
+        step.end();
       }
-      out.close();
-      inputStream.close();
-      log("file downloaded to: " + localFilePath + fileName);
+      span.attribute("bytes", bytes);
+      result.setTransferMs(elapsedMillis(start));
+      Log.at(Level.INFO).file(filePath).phase("download").bytes(bytes)
+          .duration(result.getTransferMs())
+          .log("file downloaded to: " + localFilePath + fileName);
+      result.setBytes(bytes);
+      result.setLocalPath(localFilePath + fileName);
+      recordHistory(result, true, options);
       return true;
     } catch (Exception e) {
-      log("Error: " + e.getMessage());
-      e.printStackTrace();
+      Log.at(Level.ERROR).file(filePath).phase("download")
+          .duration(elapsedMillis(start)).error(e)
+          .log("Error: " + e.getMessage());
+      result.setError(e.getMessage());
+      status.recordError(filePath, e.getMessage());
+      span.error(e.getMessage());
+      if (e instanceof HttpStatusException)
+        result.setHttpStatus(((HttpStatusException) e).getStatus());
+      if (transfer != null) {
+        result.setTransferMs(elapsedMillis(start));
+        recordHistory(result, false, options);
+      }
+      if (part != null && part.exists() && !part.delete())
+        Log.at(Level.WARN).file(filePath).log("Could not delete " + part);
       return false;
+    } finally {
+      if (transfer != null)
+        status.finishTransfer(transfer);
+      if (reservation != null)
+        reservation.release();
+      span.end();
+    }
+  }
+
+  /**
+   * Remember a downloaded file to flush at the end of the batch.
+   * 
+   * @param file File to flush
+   */
+  private void addUnsynced(File file) {
+    synchronized (unsynced) {
+      unsynced.add(file);
+    }
+  }
+
+  /**
+   * Flush the files downloaded since the end of the last batch, and their
+   * directories, to disk. Only has an effect when <code>fsync</code> is
+   * <code>batch</code>.
+   */
+  public void syncBatch() {
+    List<File> files;
+    synchronized (unsynced) {
+      if (unsynced.isEmpty())
+        return;
+      files = new ArrayList<File>(unsynced);
+      unsynced.clear();
+    }
+    long start = System.nanoTime();
+    List<File> dirs = new ArrayList<File>();
+    for (File file : files) {
+      try {
+        DiskFiles.force(file);
+      } catch (IOException e) {
+        // It may have been moved or quarantined since
+        Log.at(Level.WARN).file(file.getName())
+            .log("Could not flush " + file + ": " + e.getMessage());
+      }
+      if (!dirs.contains(file.getParentFile()))
+        dirs.add(file.getParentFile());
+    }
+    for (File dir : dirs)
+      DiskFiles.forceDirectory(dir);
+    Log.at(Level.DEBUG).duration(elapsedMillis(start))
+        .log(files.size() + " file(s) flushed to disk");
+  }
+
+  /**
+   * Download a large file in segments over several connections at once.
+   * 
+   * @param filePath Name of the file
+   * @param url URL of the file
+   * @param target Local file to write to
+   * @param size Size of the file reported by the service
+   * @param segments Number of segments
+   * @param transfer Transfer to report the progress to
+   * @param reservation Disk space reservation to report the progress to
+   * @return Number of bytes written, or -1 if the server cannot send the
+   *         file in segments and it should be downloaded in one piece
+   * @throws IOException if the file could not be downloaded
+   */
+  private long downloadSegmented(String filePath, String url, File target,
+      long size, int segments, final StatusBoard.Transfer transfer,
+      final FreeSpaceGate.Reservation reservation) throws IOException {
+    Log.at(Level.DEBUG).file(filePath).phase("download")
+        .log("Downloading in " + segments + " segments");
+    try {
+      return getSegmentedDownloader().download(url, target, size, segments,
+          new LongConsumer() {
+            //@Override
+            public void accept(long bytes) {
+              transfer.setWritten(bytes);
+              reservation.setWritten(bytes);
+            }
+          });
+    } catch (RangeNotSupportedException e) {
+      Log.at(Level.INFO).file(filePath).phase("download")
+          .log(e.getMessage() + "; downloading in one piece");
+      transfer.setWritten(-1);
+      // The file was already set to its full size and a download in one
+      // piece reports no progress, so hold on to the whole reservation
+      reservation.setWritten(0);
+      return -1;
+    }
+  }
+
+  /**
+   * Download a file and, if <code>downloadConsecutiveFiles</code> is set,
+   * the files after it until one is not available yet. The counter file is
+   * updated after each file.
+   * 
+   * @param fileName First file to download
+   */
+  public void downloadNewFiles(String fileName) {
+    boolean successfulDownload = true;
+    try {
+      do {
+        successfulDownload = downloadFile(fileName);
+        // If download is successful, prepare to download the next file
+        if (getCounter() > 0 && successfulDownload) {
+          writeCounterFile();
+          incrementCounter();
+          fileName = getNextFileName();
+        }
+      } while (isDownloadConsecutiveFiles() && successfulDownload
+          && holdsLease());
+    } catch (HttpStatusException e) {
+      // 404 is the usual way of finding out the next file is not there yet
+      log(e.getMessage());
+      if (e.getStatus() != 404)
+        status.recordError(fileName, e.getMessage());
+    } catch (RuntimeException e) {
+      log(e.getMessage());
+      status.recordError(fileName, e.getMessage());
+    } finally {
+      syncBatch();
     }
   }
 
@@ -506,62 +1979,144 @@ public class SATdownload {
    * @param filePath File to download
    * @return TRUE if file download was successful<br>
    *         FALSE if there was an error or could not find the file
+   * @see #fetchFile(String)
    */
   public boolean downloadFile(String filePath) {
-    log("Getting download token for " + filePath);
-    FileInfo fileInfo = null;
-    String token = login(username, password);
-    if ((token != null) && !token.isEmpty()) {
-      fileInfo = getFileUrlByToken(token, filePath);
+    DownloadQueue queue = liveQueue;
+    if (queue != null) {
+      DownloadResult result;
+      try {
+        result = queue.submit(orgID, filePath, Priority.LIVE).await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      // Report a refusal to resolve the file the same way as below
+      if (!result.isSuccess() && result.getHttpStatus() != 0
+          && result.getResolveMs() < 0)
+        throw new HttpStatusException(result.getHttpStatus());
+      return result.isSuccess();
     }
 
-    if (fileInfo != null) {
-      return download(fileInfo.getFileName(), fileInfo.getFileUrl());
+    Log.at(Level.INFO).file(filePath).phase("login")
+        .log("Getting download token for " + filePath);
+    DownloadResult result = new DownloadResult(filePath);
+    Config options = config;
+    Span root = startTrace(filePath);
+    try {
+      FileInfo fileInfo = resolveFile(filePath, result, options);
+      if (fileInfo != null)
+        result.setSuccess(download(fileInfo, result, options)
+            && afterDownload(fileInfo, result, options));
+      if (!result.isSuccess())
+        root.error(result.getError());
+      return result.isSuccess();
+    } catch (HttpStatusException e) {
+      // 404 only means the file is not there yet
+      root.attribute("http.response.status_code", e.getStatus());
+      if (e.getStatus() != 404)
+        root.error(e.getMessage());
+      throw e;
+    } catch (RuntimeException e) {
+      root.error(e.getMessage());
+      throw e;
+    } finally {
+      endTrace(root, result);
     }
-    return false;
   }
 
   /**
-   * <p>
-   * Create the JerseyClient to be used when downloading a file. This has not
-   * been modified from the original version.
-   * </p>
-   * <p>
-   * For more information, please see: <a href=
-   * "https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-portal-help#features">
-   * https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-
-   * portal-help#features</a>
-   * </p>
-   * <p>
-   * Original code can be accessed at: <a href=
-   * "https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip">
-   * https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip
-   * </a>
-   * </p>
+   * Download a file like {@link #downloadFile(String)}, but report the
+   * outcome instead of throwing when the service refuses a request. Safe to
+   * call from several threads at once; all of them share one login.
    * 
-   * @author CollegeBoard
-   * @return Configured JerseyClient
+   * @param filePath File to download
+   * @return Outcome of the download
    */
-  protected Client getClient() {
-    Client jerseyClient = null;
-    SSLContext sslContext = this.getSslContextAcceptsBadCerts();
+  public DownloadResult fetchFile(String filePath) {
+    return fetchFile(filePath, false);
+  }
 
-    // Set up a hostname verifier that ignores invalid hostnames
-    HostnameVerifier hostnameVerifier = new HostnameVerifier() {
-      //@Override
-      public boolean verify(String hostname, SSLSession sslSession) {
-        return true;
+  /**
+   * Download a file like {@link #fetchFile(String)}.
+   * 
+   * @param filePath File to download
+   * @param live TRUE if the file was found by polling: a refusal to resolve
+   *          it is left to the poll to report, since 404 only means it is
+   *          not there yet
+   * @return Outcome of the download
+   */
+  DownloadResult fetchFile(String filePath, boolean live) {
+    DownloadResult result = new DownloadResult(filePath);
+    Config options = config;
+    long start = System.nanoTime();
+    Span root = startTrace(filePath);
+    try {
+      Log.at(Level.INFO).file(filePath).phase("login")
+          .log("Getting download token for " + filePath);
+      FileInfo fileInfo = resolveFile(filePath, result, options);
+      if (fileInfo == null)
+        result.setError("Could not get the URL of " + filePath);
+      else
+        result.setSuccess(download(fileInfo, result, options)
+            && afterDownload(fileInfo, result, options));
+      if (!result.isSuccess())
+        root.error(result.getError());
+    } catch (HttpStatusException e) {
+      result.setHttpStatus(e.getStatus());
+      result.setError(e.getMessage());
+      root.attribute("http.response.status_code", e.getStatus());
+      if (!live) {
+        Log.at(Level.WARN).file(filePath).phase("resolve")
+            .log(e.getMessage());
+        status.recordError(filePath, e.getMessage());
+        root.error(e.getMessage());
       }
-    };
-
-    ClientConfig jerseyClientConfig = new DefaultClientConfig();
-    jerseyClientConfig.getProperties().put(
-        HTTPSProperties.PROPERTY_HTTPS_PROPERTIES,
-        new HTTPSProperties(hostnameVerifier, sslContext));
+    } catch (RuntimeException e) {
+      Log.at(Level.ERROR).file(filePath).error(e)
+          .log("Error: " + e.getMessage());
+      result.setError(e.getMessage());
+      status.recordError(filePath, e.getMessage());
+      root.error(e.getMessage());
+    }
+    result.setDurationMs(elapsedMillis(start));
+    endTrace(root, result);
+    return result;
+  }
 
-    jerseyClient = Client.create(jerseyClientConfig);
+  /**
+   * Get the number of files to download at the same time in batch mode
+   * 
+   * @return the concurrency
+   */
+  public int getConcurrency() {
+    return concurrency;
+  }
 
-    return jerseyClient;
+  /**
+   * Get the delta extractor, opening the fingerprint store on first use and
+   * again after a reload that changes the delta options. The caller must
+   * hold {@link #deltaLock}.
+   * 
+   * @return Delta extractor
+   * @throws IOException if the fingerprint store could not be opened
+   */
+  private DeltaExtractor getDeltaExtractor() throws IOException {
+    Config options = config;
+    if (deltaExtractor != null && !Arrays.deepEquals(deltaOptions(deltaConfig),
+        deltaOptions(options)))
+      closeDeltaExtractor();
+    if (deltaExtractor == null) {
+      File dir = new File(options.getStateDir());
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Could not create state directory " + dir);
+      fingerprints = openFingerprintStore(dir, options);
+      deltaExtractor = new DeltaExtractor(fingerprints,
+          options.getDeltaKeyFields(), options.getDeltaDelimiter(),
+          options.getDeltaHeaderLines());
+      deltaConfig = options;
+    }
+    return deltaExtractor;
   }
 
   /**
@@ -579,7 +2134,7 @@ public class SATdownload {
    * @return the counterFile
    */
   public String getCounterFile() {
-    return counterFile;
+    return config.getCounterFile();
   }
 
   /**
@@ -593,13 +2148,40 @@ public class SATdownload {
     return dateString;
   }
 
+  /**
+   * Get the download queue, opening it on first use. Downloaders for several
+   * organizations share the queue of the first one. If the queue file cannot
+   * be read, the queue starts empty and is kept in memory.
+   * 
+   * @return Download queue
+   */
+  private synchronized DownloadQueue getDownloadQueue() {
+    if (primary != null)
+      return primary.getDownloadQueue();
+    if (downloadQueue == null) {
+      File file = new File(config.getStateDir(), "download.queue");
+      try {
+        downloadQueue = new DownloadQueue(file);
+      } catch (IOException e) {
+        Log.error("Could not read download queue " + file
+            + "; starting with an empty queue", e);
+        try {
+          downloadQueue = new DownloadQueue(null);
+        } catch (IOException cannotHappen) {
+          throw new IllegalStateException(cannotHappen);
+        }
+      }
+    }
+    return downloadQueue;
+  }
+
   /**
    * Get the file extension of the SAT score file
    * 
    * @return the fileExtension
    */
   public String getFileExtension() {
-    return fileExtension;
+    return config.getFileExtension();
   }
 
   /**
@@ -609,13 +2191,13 @@ public class SATdownload {
    * @return the fileNumPadding Number of digits in the file number field
    */
   public int getFileNumPadding() {
-    return fileNumPadding;
+    return config.getFileNumPadding();
   }
 
   /**
    * <p>
-   * Get the URL of the file to download. This has not been modified from the
-   * original version.
+   * Get the URL of the file to download. Only slight modifications were made
+   * to this function (specifically the transport and the JSON parsing).
    * </p>
    * <p>
    * For more information, please see: <a href=
@@ -630,177 +2212,411 @@ public class SATdownload {
    * </a>
    * </p>
    * 
-   * @see #login(String, String)
+   * @see #login(String, String, String)
    * @see org.collegeboard.scoredwnld.client.FileInfo
    * @author CollegeBoard
    * @param accessToken Access token obtained from
-   *          {@link #login(String, String)}
+   *          {@link #login(String, String, String)}
    * @param filePath File to download
+   * @param scoredwnldUrlRoot Root URL of the service
    * @return FileInfo descriptor of file to download
    */
-  private FileInfo getFileUrlByToken(String accessToken, String filePath) {
+  private FileInfo getFileUrlByToken(String accessToken, String filePath,
+      String scoredwnldUrlRoot) {
+
+    InputStream response;
+    try {
+      response = getTransport().getJson(scoredwnldUrlRoot
+          + "/pascoredwnld/file?tok=" + accessToken + "&filename=" + filePath);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed : " + e.getMessage(), e);
+    }
 
-    Client client = getClient();
-    WebResource webResource = client.resource(scoredwnldUrlRoot
-        + "/pascoredwnld/file?tok=" + accessToken + "&filename=" + filePath);
-    ClientResponse response = webResource.accept("application/json")
-        .get(ClientResponse.class);
-    if (response.getStatus() != 200) {
-      throw new RuntimeException(
-          "Failed : HTTP error code : " + response.getStatus());
+    try {
+      String[] fields = JsonReader.readFields(response, "fileUrl", "fileSize");
+      if (fields[0] == null)
+        throw new IOException("fileUrl missing from response");
+      FileInfo fileInfo = new FileInfo();
+      fileInfo.setFileName(filePath);
+      fileInfo.setFileUrl(fields[0]);
+      fileInfo.setFileSize(fields[1]);
+      return fileInfo;
+    } catch (IOException e) {
+      Log.at(Level.ERROR).file(filePath).phase("resolve").error(e)
+          .log("Error: " + e.getMessage());
+    } finally {
+      closeQuietly(response);
     }
 
-    try {
-      JSONObject json = new JSONObject(response.getEntity(String.class));
-      FileInfo fileInfo = new FileInfo();
-      fileInfo.setFileName(filePath);
-      fileInfo.setFileUrl(String.valueOf(json.get("fileUrl")));
-      return fileInfo;
-    } catch (ClientHandlerException e) {
-      log("Error: " + e.getMessage());
-      e.printStackTrace();
-    } catch (UniformInterfaceException e) {
-      log("Error: " + e.getMessage());
-      e.printStackTrace();
-    } catch (JSONException e) {
-      log("Error: " + e.getMessage());
-      e.printStackTrace();
-    }
+    return null;
+  }
+
+  /**
+   * Get local file path to download files to
+   * 
+   * @return the localFilePath
+   */
+  public String getLocalFilePath() {
+    return config.getLocalFilePath();
+  }
+
+  /**
+   * Get when this downloader next needs to refresh its login or poll in
+   * daemon mode.
+   * 
+   * @return Time in milliseconds since the epoch
+   */
+  private long getNextWakeMillis() {
+    if (warmUpMillis > 0)
+      return Math.min(warmUpMillis, nextPollMillis);
+    return nextPollMillis;
+  }
+
+  /**
+   * <p>
+   * Generate the name of the next file in the sequence to download. If counter
+   * has not been set, then the counter will be read from the counter file.
+   * </p>
+   * <p>
+   * File name is in the format: <code>ORGID_YYYYMMDD_FILENUM.txt</code>.
+   * </p>
+   * 
+   * @return File name
+   */
+  public String getNextFileName() {
+    Config options = config;
+    String counterFile = options.getCounterFile();
+    // If counter does not have a valid value, read in the value from the
+    // counter file.
+    if (this.counter < 0) {
+      try {
+        BufferedReader buf = new BufferedReader(
+            new FileReader(counterFile));
+        String line = buf.readLine();
+        buf.close();
+        this.setCounter(Integer.parseInt(line) + 1);
+      } catch (NumberFormatException e) {
+        log("Invalid number in counter file " + counterFile);
+      } catch (FileNotFoundException e) {
+        log("Could not find counter file " + counterFile);
+      } catch (IOException e) {
+        Log.error("Error reading counter file " + counterFile, e);
+      } finally {
+        if (this.counter < 1) {
+          log("Using default counter value of 1");
+          this.setCounter(1);
+        }
+      }
+    }
+
+    // Return name of next file to download
+    return this.orgID + "_" + this.dateString + "_"
+        + padString(this.counter, options.getFileNumPadding()) + "."
+        + options.getFileExtension();
+  }
+
+  /**
+   * Get the organization ID
+   * 
+   * @return the orgID
+   */
+  public String getOrgID() {
+    return orgID;
+  }
+
+  /**
+   * Get the SAT score download root URL
+   * 
+   * @return the scoredwnldUrlRoot
+   */
+  public String getScoredwnldUrlRoot() {
+    return config.getScoredwnldUrlRoot();
+  }
+
+  /**
+   * Get the download token shared by every request, logging in if there is
+   * none yet.
+   * 
+   * @param options Config to log in with
+   * @return Download token, or an empty string if the login failed
+   */
+  private String getToken(Config options) {
+    synchronized (tokenLock) {
+      if (token == null || token.isEmpty()) {
+        long start = System.nanoTime();
+        Span span = Span.current().startChild("login");
+        try {
+          token = login(options.getScoredwnldUrlRoot(), options.getUsername(),
+              options.getPassword());
+          if (token.isEmpty())
+            span.error("Login failed");
+        } catch (RuntimeException e) {
+          span.error(e.getMessage());
+          throw e;
+        } finally {
+          span.end();
+        }
+        Log.at(Level.DEBUG).phase("login").duration(elapsedMillis(start))
+            .log("Logged in");
+      }
+      return token;
+    }
+  }
+
+  /**
+   * Get the HTTP transport used to talk to the PAScoresDwnld site, creating it
+   * on first use. Downloaders for several organizations share the transport
+   * of the first one, and with it the connection pool, the rate limit and
+   * the retry policy.
+   * 
+   * @return the transport
+   */
+  public synchronized Transport getTransport() {
+    if (primary != null)
+      return primary.getTransport();
+    if (transport == null) {
+      log("Using " + transportName + " transport");
+      Transport base = Transports.create(transportName);
+      if (config.getFaultInjection() != null) {
+        FaultProfile profile = FaultProfile.parse(config.getFaultInjection());
+        Log.warn("Injecting faults into every request: " + profile, null);
+        faults = new FaultInjectingTransport(base, profile);
+        base = faults;
+      }
+      tracker = new TrackingTransport(base);
+      transport = new RateLimitedTransport(new TracingTransport(tracker),
+          config.getRequestsPerSecond());
+      retrier = new RetryingTransport(transport,
+          config.getRequestAttempts(), retryDelayMillis(config));
+    }
+    return retrier;
+  }
+
+  /**
+   * Get the fault injector of the shared transport.
+   * 
+   * @return Fault injector, or <code>null</code> if no faults are injected
+   */
+  synchronized FaultInjectingTransport getFaultInjector() {
+    if (primary != null)
+      return primary.getFaultInjector();
+    getTransport();
+    return faults;
+  }
+
+  /**
+   * Get the admission control on free space, creating it on first use.
+   * Downloaders for several organizations share the one of the first, since
+   * they may download to the same file system.
+   * 
+   * @return Free space gate
+   */
+  private synchronized FreeSpaceGate getFreeSpaceGate() {
+    if (primary != null)
+      return primary.getFreeSpaceGate();
+    if (freeSpaceGate == null)
+      freeSpaceGate = new FreeSpaceGate();
+    return freeSpaceGate;
+  }
+
+  /**
+   * Get the downloader for large files, creating it on first use.
+   * Downloaders for several organizations share the one of the first.
+   * 
+   * @return Segmented downloader
+   */
+  private synchronized SegmentedDownloader getSegmentedDownloader() {
+    if (primary != null)
+      return primary.getSegmentedDownloader();
+    if (segmentedDownloader == null)
+      segmentedDownloader = new SegmentedDownloader(getTransport());
+    return segmentedDownloader;
+  }
+
+  /**
+   * Get the tracer, creating it on first use. Downloaders for several
+   * organizations share the one of the first, so only the top-level trace
+   * options count.
+   * 
+   * @return Tracer, or <code>null</code> if tracing is off
+   */
+  private synchronized Tracer getTracer() {
+    if (primary != null)
+      return primary.getTracer();
+    if (tracer == null
+        && (config.getTraceFile() != null || config.getTraceUrl() != null)) {
+      tracer = new Tracer(new TraceExporter(config.getTraceFile() == null
+          ? null : new File(config.getTraceFile()), config.getTraceUrl(),
+          TRACE_QUEUE_SIZE), config.getTraceSampleRate(),
+          1000 * config.getTraceSlowSeconds());
+    }
+    return tracer;
+  }
+
+  /**
+   * Start the trace of a file's download.
+   * 
+   * @param filePath File to download
+   * @return Root span, or {@link Span#NONE} if tracing is off
+   */
+  private Span startTrace(String filePath) {
+    Tracer t = getTracer();
+    if (t == null)
+      return Span.NONE;
+    return t.start("downloadFile").attribute("file", filePath)
+        .attribute("org", orgID);
+  }
+
+  /**
+   * End the trace of a file's download.
+   * 
+   * @param root Root span
+   * @param result Outcome of the download
+   */
+  private static void endTrace(Span root, DownloadResult result) {
+    root.attribute("success", result.isSuccess());
+    if (result.getBytes() > 0)
+      root.attribute("bytes", result.getBytes());
+    if (result.getRecords() > 0)
+      root.attribute("records", result.getRecords());
+    root.end();
+  }
 
-    return null;
+  /**
+   * Get the status board shown by the admin server
+   * 
+   * @return the status board
+   */
+  public StatusBoard getStatusBoard() {
+    return status;
   }
 
   /**
-   * Get local file path to download files to
+   * Get the username used to access the PAScoresDwnld site
    * 
-   * @return the localFilePath
+   * @return the username
    */
-  public String getLocalFilePath() {
-    return localFilePath;
+  public String getUsername() {
+    return config.getUsername();
   }
 
   /**
-   * <p>
-   * Generate the name of the next file in the sequence to download. If counter
-   * has not been set, then the counter will be read from the counter file.
-   * </p>
-   * <p>
-   * File name is in the format: <code>ORGID_YYYYMMDD_FILENUM.txt</code>.
-   * </p>
+   * Get the file validator, creating it on first use. Files are checked on
+   * the common fork/join pool unless <code>validateParallelism</code> is
+   * set.
    * 
-   * @return File name
+   * @return File validator
    */
-  public String getNextFileName() {
-    // If counter does not have a valid value, read in the value from the
-    // counter file.
-    if (this.counter < 0) {
-      try {
-        BufferedReader buf = new BufferedReader(
-            new FileReader(this.counterFile));
-        String line = buf.readLine();
-        buf.close();
-        this.setCounter(Integer.parseInt(line) + 1);
-      } catch (NumberFormatException e) {
-        log("Invalid number in counter file " + this.counterFile);
-      } catch (FileNotFoundException e) {
-        log("Could not find counter file " + this.counterFile);
-      } catch (IOException e) {
-        log("Error reading counter file " + this.counterFile);
-        e.printStackTrace();
-      } finally {
-        if (this.counter < 1) {
-          log("Using default counter value of 1");
-          this.setCounter(1);
-        }
+  private synchronized FileValidator getValidator() {
+    if (validator == null) {
+      Config options = config;
+      ForkJoinPool pool = ForkJoinPool.commonPool();
+      if (options.getValidateParallelism() > 0) {
+        validatorPool = new ForkJoinPool(options.getValidateParallelism());
+        pool = validatorPool;
       }
+      validator = new FileValidator(pool, options.getDeltaDelimiter(),
+          options.getDeltaHeaderLines(), options.getValidateFieldCount(),
+          options.getValidateChunkSize());
     }
-
-    // Return name of next file to download
-    return this.orgID + "_" + this.dateString + "_"
-        + padString(this.counter, this.fileNumPadding) + "."
-        + this.fileExtension;
+    return validator;
   }
 
   /**
-   * Get the organization ID
+   * Get the history log, opening it on first use. Downloaders for several
+   * organizations share the log of the first one.
    * 
-   * @return the orgID
+   * @return History log
    */
-  public String getOrgID() {
-    return orgID;
+  private synchronized HistoryLog getHistoryLog() {
+    if (primary != null)
+      return primary.getHistoryLog();
+    if (historyLog == null)
+      historyLog = new HistoryLog(new File(config.getStateDir(), "history"),
+          config.getHistoryRetentionDays());
+    return historyLog;
   }
 
   /**
-   * Get the SAT score download root URL
+   * Get the publish manifest of this organization, opening it on first use.
    * 
-   * @return the scoredwnldUrlRoot
+   * @return Publish manifest
+   * @throws IOException if it could not be read
    */
-  public String getScoredwnldUrlRoot() {
-    return scoredwnldUrlRoot;
+  private synchronized PublishManifest getManifest() throws IOException {
+    if (manifest == null)
+      manifest = new PublishManifest(new File(new File(config.getStateDir(),
+          "manifest"), orgID + ".published"));
+    return manifest;
   }
 
   /**
-   * <p>
-   * Create a SSLContext with a TrustManager that will accept all certificates.
-   * This method has not been modified from the original published by
-   * CollegeBoard.
-   * </p>
-   * <p>
-   * For more information, please see: <a href=
-   * "https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-portal-help#features">
-   * https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-
-   * portal-help#features</a>
-   * </p>
-   * <p>
-   * Original code can be accessed at: <a href=
-   * "https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip">
-   * https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip
-   * </a>
-   * </p>
+   * Get the hook dispatcher, creating it on first use.
    * 
-   * @see SSLContext
-   * @author CollegeBoard
-   * @return SSLContext that will trust any certificate
+   * @return Hook dispatcher, or <code>null</code> if no hook is configured
    */
-  private SSLContext getSslContextAcceptsBadCerts() {
-    SSLContext sslContext = null;
-    try {
-      sslContext = SSLContext.getInstance("SSL");
-
-      // set up a TrustManager that trusts everything
-      sslContext.init(null, new TrustManager[] { new X509TrustManager() {
-        X509Certificate[] certificates = null;
-
-        //@Override
-        public void checkClientTrusted(X509Certificate[] certs, String authType)// NOPMD
-        {
-        }
-
+  private synchronized HookDispatcher getHookDispatcher() {
+    if (hookDispatcher == null) {
+      Config options = config;
+      List<Hook> hooks = new ArrayList<Hook>();
+      if (options.getHookCommand() != null)
+        hooks.add(new CommandHook(options.getHookCommand(),
+            options.getHookCommandTimeoutSeconds()));
+      if (options.getHookUrl() != null)
+        hooks.add(new WebhookHook(options.getHookUrl()));
+      if (options.getHookDrop() != null)
+        hooks.add(new DropHook(new File(options.getHookDrop())));
+      if (hooks.isEmpty())
+        return null;
+      hookDispatcher = new HookDispatcher(hooks, options.getHookQueueSize(),
+          options.getHookAttempts(),
+          1000L * options.getHookRetryDelaySeconds());
+      final HookDispatcher dispatcher = hookDispatcher;
+      status.setQueueDepth(new IntSupplier() {
         //@Override
-        public void checkServerTrusted(X509Certificate[] certs, String authType)// NOPMD
-        {
+        public int getAsInt() {
+          return dispatcher.getQueueDepth();
         }
-
-        //@Override
-        public X509Certificate[] getAcceptedIssuers() {
-          return certificates;
-        }
-
-      } }, new SecureRandom());
-    } catch (Exception ex) {
-      throw new RuntimeException("Problem getting ssl context", ex); // NOPMD
+      });
     }
+    return hookDispatcher;
+  }
 
-    return sslContext;
+  /**
+   * Check if this host may keep downloading. Always TRUE when coordination is
+   * off.
+   * 
+   * @return TRUE if coordination is off or the lease is still held
+   */
+  public synchronized boolean holdsLease() {
+    return !coordination || (lease != null && lease.isValid());
   }
 
   /**
-   * Get the username used to access the PAScoresDwnld site
+   * Check whether a request to a URL would probably reuse an open
+   * connection of the shared transport.
    * 
-   * @return the username
+   * @param url URL about to be requested
+   * @return TRUE if a connection to its host is probably still open
    */
-  public String getUsername() {
-    return username;
+  private boolean isConnectionWarm(String url) {
+    if (primary != null)
+      return primary.isConnectionWarm(url);
+    getTransport();
+    return tracker.isWarm(url);
+  }
+
+  /**
+   * Forget the shared download token so the next request logs in again.
+   * Nothing happens if another thread already replaced it.
+   * 
+   * @param stale Token the service rejected
+   */
+  private void invalidateToken(String stale) {
+    synchronized (tokenLock) {
+      if (stale.equals(token))
+        token = null;
+    }
   }
 
   /**
@@ -818,7 +2634,7 @@ public class SATdownload {
    *         FALSE if the program should download a single file
    */
   public boolean isDownloadConsecutiveFiles() {
-    return downloadConsecutiveFiles;
+    return downloadConsecutiveFiles && config.isDownloadConsecutiveFiles();
   }
 
   /**
@@ -831,6 +2647,32 @@ public class SATdownload {
     return saveCounter;
   }
 
+  /**
+   * Learn the publish windows of this organization, logging them when they
+   * change.
+   * 
+   * @param now Current time
+   * @param options Config to read the window size from
+   * @return Publish windows, or <code>null</code> if too few files have been
+   *         seen to tell
+   */
+  private PollPlanner learnWindows(long now, Config options) {
+    PollPlanner planner;
+    try {
+      planner = PollPlanner.learn(getManifest(), now,
+          options.getPrefetchWindowMinutes() * 60000L);
+    } catch (IOException e) {
+      Log.at(Level.WARN).phase("prefetch")
+          .log("Could not read publish manifest: " + e.getMessage());
+      return null;
+    }
+    String text = planner == null ? null : planner.toString();
+    if (text != null && !text.equals(windows))
+      log("Files for " + orgID + " are usually published around " + text);
+    windows = text;
+    return planner;
+  }
+
   /**
    * <p>
    * Load the configuration file. Supported configuration options are:
@@ -845,71 +2687,76 @@ public class SATdownload {
    * <li>downloadConsecutiveFiles</li>
    * <li>counterFile</li>
    * <li>fileNumPadding</li>
+   * <li>transport</li>
+   * <li>logLevel</li>
+   * <li>logFormat</li>
+   * <li>coordination</li>
+   * <li>leaseDir</li>
+   * <li>leaseTtlSeconds</li>
+   * <li>nodeId</li>
+   * <li>concurrency</li>
+   * <li>stateDir</li>
+   * <li>deltaKeyFields</li>
+   * <li>deltaDelimiter</li>
+   * <li>deltaHeaderLines</li>
+   * <li>fingerprintStore</li>
+   * <li>validate</li>
+   * <li>validateFieldCount</li>
+   * <li>quarantineDir</li>
+   * <li>hookCommand</li>
+   * <li>hookCommandTimeoutSeconds</li>
+   * <li>hookUrl</li>
+   * <li>hookDrop</li>
+   * <li>hookQueueSize</li>
+   * <li>hookAttempts</li>
+   * <li>hookRetryDelaySeconds</li>
+   * <li>adminPort</li>
+   * <li>adminBind</li>
+   * <li>pollIntervalSeconds</li>
+   * <li>requestsPerSecond</li>
+   * <li>validateChunkSize</li>
+   * <li>validateParallelism</li>
+   * <li>tenants</li>
+   * <li>history</li>
+   * <li>historyRetentionDays</li>
+   * <li>index</li>
+   * <li>prefetch</li>
+   * <li>prefetchWindowMinutes</li>
+   * <li>prefetchPollSeconds</li>
+   * <li>prefetchWarmupSeconds</li>
+   * <li>prefetchMaxIdleSeconds</li>
+   * <li>queueWeight</li>
+   * <li>downloadSegments</li>
+   * <li>downloadSegmentMinSize</li>
+   * <li>minFreeSpace</li>
+   * <li>preallocate</li>
+   * <li>fsync</li>
+   * <li>requestAttempts</li>
+   * <li>requestRetryDelaySeconds</li>
+   * <li>faultInjection</li>
+   * <li>traceFile</li>
+   * <li>traceUrl</li>
+   * <li>traceSampleRate</li>
+   * <li>traceSlowSeconds</li>
+   * <li>archiveAfterDays</li>
+   * <li>archiveDir</li>
    * </ul>
    * <p>
    * For a description of these, please refer to the sample
-   * <code>SATdownload.conf</code>.
+   * <code>SATdownload.conf</code>. Only the top-level organization of the
+   * file is loaded; the program exits if an option is missing or invalid.
    * </p>
    * 
    * @param fileName Full path to the configuration file
    */
   public void loadConfig(String fileName) {
-    log("Loading config file " + fileName);
-    Properties config = new Properties();
-
-    // Attempt to open the configuration file and populate config
-    try {
-      InputStream configFileIS = new FileInputStream(fileName);
-      config.load(configFileIS);
-    } catch (FileNotFoundException e) {
-      log("Could not find config file " + fileName);
-      System.exit(ExitStatus.MISSING_CONFIG_FILE.getCode());
-    } catch (IOException e) {
-      log("Error reading config file " + fileName);
-      e.printStackTrace();
-    }
-
-    // ---------------------------------------------------------------------
-    // Setup this SATdownload object with the options set in the config file
-    // ---------------------------------------------------------------------
-
-    // Set the counter file
-    this.setCounterFile(
-        removeQuotes(config.getProperty("counterFile", "SATdownload.counter")));
-
-    // Set if this should attempt to download consecutive files
-    this.setDownloadConsecutiveFiles(Boolean.parseBoolean(
-        removeQuotes(config.getProperty("downloadConsecutiveFiles", "true"))));
-
-    // Set the file extension
-    this.setFileExtension(
-        removeQuotes(config.getProperty("fileExtension", "txt")));
-
-    // Set the number of digits in the file number field of the file name
-    this.setFileNumPadding(Integer
-        .parseInt(removeQuotes(config.getProperty("fileNumPadding", "6"))));
-
-    // Set the local directory to download SAT score files
-    this.setLocalFilePath(removeQuotes(config.getProperty("localFilePath")));
-
-    // Set the organization ID
-    this.setOrgID(removeQuotes(config.getProperty("orgID")));
-
-    // Set the password to login with
-    this.setPassword(removeQuotes(config.getProperty("password")));
-
-    // Set the root URL of the scores download site
-    this.setScoredwnldUrlRoot(removeQuotes(config.getProperty(
-        "scoredwnldUrlRoot", "https://scoresdownload.collegeboard.org")));
-
-    // Set the username to login with
-    this.setUsername(removeQuotes(config.getProperty("username")));
+    applyConfig(readConfig(fileName));
   }
 
   /**
    * <p>
-   * Login to the PAScoresDwnld site. This method has not been modified from the
-   * original published by CollegeBoard.
+   * Login to the PAScoresDwnld site. Only slight modifications were made to
+   * this function (specifically the transport and the JSON handling).
    * </p>
    * <p>
    * For more information, please see: <a href=
@@ -925,34 +2772,338 @@ public class SATdownload {
    * </p>
    * 
    * @author CollegeBoard
+   * @param scoredwnldUrlRoot Root URL of the service
    * @param username Username to login with
    * @param password Password to login with
    * @return Authentication token
    */
-  private String login(String username, String password) {
-    Client client = getClient();
-    WebResource webResource = client
-        .resource(scoredwnldUrlRoot + "/pascoredwnld/login");
+  private String login(String scoredwnldUrlRoot, String username,
+      String password) {
+    String input = new JsonWriter().beginObject().name("username")
+        .value(username).name("password").value(password).endObject()
+        .toString();
+
+    InputStream response;
+    try {
+      response = getTransport()
+          .postJson(scoredwnldUrlRoot + "/pascoredwnld/login", input);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed : " + e.getMessage(), e);
+    }
+
+    try {
+      String token = JsonReader.readFields(response, "token")[0];
+      if (token == null)
+        throw new IOException("token missing from response");
+      return token;
+    } catch (IOException e) {
+      Log.at(Level.ERROR).phase("login").error(e)
+          .log("Error: " + e.getMessage());
+    } finally {
+      closeQuietly(response);
+    }
+    return "";
+  }
+
+  /**
+   * Open the fingerprint store of the delta stage. The <code>mapped</code>
+   * store is a memory-mapped file that is updated in place, so memory use
+   * stays flat however many records have been seen; the <code>memory</code>
+   * store keeps the whole table in direct memory and saves it after every
+   * file. Switching to the mapped store imports an existing memory store.
+   * 
+   * @param dir State directory
+   * @param options Config to read the store type from
+   * @return Open fingerprint store
+   * @throws IOException if the store could not be opened
+   */
+  private LongLongMap openFingerprintStore(File dir, Config options)
+      throws IOException {
+    File saved = new File(dir, orgID + ".fingerprints");
+    if (!FINGERPRINT_STORE_MAPPED.equalsIgnoreCase(
+        options.getFingerprintStore()))
+      return OffHeapLongLongMap.open(saved, 1 << 16);
+
+    File mapped = new File(dir, orgID + ".fpmap");
+    if (MappedLongLongMap.exists(mapped) || !saved.exists())
+      return MappedLongLongMap.open(mapped, 1 << 16);
+
+    log("Importing fingerprints from " + saved + " into " + mapped);
+    OffHeapLongLongMap old = OffHeapLongLongMap.load(saved);
+    try {
+      return MappedLongLongMap.copyOf(mapped, old);
+    } finally {
+      old.close();
+    }
+  }
+
+  /**
+   * Download the files published since the last poll. Does nothing if
+   * another host holds the lease. Files found are added to the publish
+   * manifest, as published halfway between this poll and the last one.
+   * 
+   * @param followToday TRUE to move on to today's date if it has changed
+   * @return TRUE if a file was downloaded
+   */
+  private boolean poll(boolean followToday) {
+    if (followToday) {
+      String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+      if (!today.equals(getDateString())) {
+        releaseLease();
+        setDateString(today);
+      }
+    }
+    if (!acquireLease()) {
+      log("Another host is downloading files for " + orgID + " on "
+          + getDateString());
+      return false;
+    }
+    // Start from the counter file, which may have been moved on by another
+    // host, unless the counter was given on the command line
+    if (isSaveCounter())
+      setCounter(-1);
+    String fileName = getNextFileName();
+    String date = getDateString();
+    int first = getCounter();
+    long started = System.currentTimeMillis();
+    downloadNewFiles(fileName);
+    int found = getCounter() - first;
+    // The first poll may find files published long before it started
+    if (config.isPrefetch() && found > 0 && lastPollMillis > 0)
+      recordPublished(date, first, found, (lastPollMillis + started) / 2);
+    lastPollMillis = started;
+    return found > 0;
+  }
+
+  /**
+   * In daemon mode, refresh the login or poll if it is time to.
+   * 
+   * @param now Current time
+   * @param requested TRUE to poll now whatever the schedule
+   * @param followToday TRUE to move on to today's date if it has changed
+   */
+  private void pollIfDue(long now, boolean requested, boolean followToday) {
+    if (warmUpMillis > 0 && now >= warmUpMillis) {
+      warmUpMillis = 0;
+      warmUp();
+    }
+    if (requested || now >= nextPollMillis) {
+      boolean found = poll(followToday);
+      schedulePoll(System.currentTimeMillis(), found);
+    }
+  }
+
+  /**
+   * Print a report of the transfers in the history log over the last few
+   * days. See {@link HistoryReport}.
+   * 
+   * @param days Number of days, including today
+   */
+  public void printReport(int days) {
+    long from = HistoryReport.startOf(days);
+    HistoryLog source = getHistoryLog();
+    System.out.println("History in " + source.getDir());
+    new HistoryReport(source.read(from), days, from).print(System.out);
+  }
+
+  /**
+   * Write the delta file of a downloaded file. The delta extractor is held
+   * for the whole file, so a config reload or a failure on another thread
+   * cannot close its fingerprint store halfway through.
+   * 
+   * @param file Downloaded score file
+   * @return Number of records written to the delta file
+   * @throws IOException if the delta file could not be written
+   */
+  private long processDelta(File file) throws IOException {
+    synchronized (deltaLock) {
+      return getDeltaExtractor().process(file);
+    }
+  }
 
-    String input = "{\"username\":\"" + username + "\",\"password\":\""
-        + password + "\"};";
+  /**
+   * Add the timings of a transfer to the history log, if it is kept. A
+   * failure to write it is logged and otherwise ignored.
+   * 
+   * @param result Result of the transfer
+   * @param success Whether the transfer succeeded
+   * @param options Config the file was started with
+   */
+  private void recordHistory(DownloadResult result, boolean success,
+      Config options) {
+    if (!options.isHistory())
+      return;
+    int org;
+    try {
+      org = Integer.parseInt(orgID);
+    } catch (NumberFormatException e) {
+      org = 0;
+    }
+    try {
+      getHistoryLog().append(new HistoryRecord(
+          System.currentTimeMillis() - result.getTransferMs(), org,
+          result.getResolveMs(), result.getTransferMs(), result.getBytes(),
+          result.isConnectionReused(), success));
+    } catch (IOException e) {
+      Log.at(Level.WARN).file(result.getFileName()).phase("history")
+          .log("Could not write history: " + e.getMessage());
+    }
+  }
 
-    ClientResponse response = webResource.accept("application/json")
-        .type("application/json").post(ClientResponse.class, input);
+  /**
+   * Add files found by a poll to the publish manifest. A failure to write
+   * it is logged and otherwise ignored.
+   * 
+   * @param date Date of the files
+   * @param first Number of the first file
+   * @param count Number of files
+   * @param time Estimated publish time
+   */
+  private void recordPublished(String date, int first, int count,
+      long time) {
+    try {
+      PublishManifest published = getManifest();
+      for (int i = 0; i < count; ++i)
+        published.add(date, first + i, time);
+    } catch (IOException e) {
+      Log.at(Level.WARN).phase("prefetch")
+          .log("Could not update publish manifest: " + e.getMessage());
+    }
+  }
 
-    if (response.getStatus() != 200) {
-      throw new RuntimeException(
-          "Failed : HTTP error code : " + response.getStatus());
+  /**
+   * Release the lease, if one is held.
+   */
+  private synchronized void releaseLease() {
+    if (lease != null) {
+      lease.release();
+      lease = null;
     }
+  }
 
+  /**
+   * Get the download URL of a file using the shared download token. If the
+   * service rejects the token (it may have expired), log in again and retry
+   * once.
+   * 
+   * @param filePath File to download
+   * @param result Result to record the time taken in
+   * @param options Config the file was started with
+   * @return FileInfo descriptor of file to download, or <code>null</code> if
+   *         it could not be read from the response
+   * @throws HttpStatusException if the service refuses the request
+   */
+  private FileInfo resolveFile(String filePath, DownloadResult result,
+      Config options) {
+    Span span = Span.current().startChild("resolve");
     try {
-      JSONObject json = new JSONObject(response.getEntity(String.class));
-      return String.valueOf(json.get("token"));
-    } catch (Exception e) {
-      log("Error: " + e.getMessage());
-      e.printStackTrace();
+      return resolveFile(filePath, result, options, span);
+    } catch (RuntimeException e) {
+      span.error(e.getMessage());
+      throw e;
+    } finally {
+      span.end();
     }
-    return "";
+  }
+
+  /**
+   * Get the download URL of a file like
+   * {@link #resolveFile(String, DownloadResult, Config)}.
+   * 
+   * @param filePath File to download
+   * @param result Result to record the time taken in
+   * @param options Config the file was started with
+   * @param span Span of the step
+   * @return FileInfo descriptor of file to download, or <code>null</code>
+   * @throws HttpStatusException if the service refuses the request
+   */
+  private FileInfo resolveFile(String filePath, DownloadResult result,
+      Config options, Span span) {
+    String token = getToken(options);
+    if ((token == null) || token.isEmpty()) {
+      span.error("No download token");
+      return null;
+    }
+
+    long start = System.nanoTime();
+    FileInfo fileInfo;
+    try {
+      fileInfo = getFileUrlByToken(token, filePath,
+          options.getScoredwnldUrlRoot());
+    } catch (HttpStatusException e) {
+      if (e.getStatus() != 401 && e.getStatus() != 403)
+        throw e;
+      Log.at(Level.INFO).file(filePath).phase("login")
+          .log("Download token rejected; logging in again");
+      span.event("token_rejected");
+      invalidateToken(token);
+      token = getToken(options);
+      if ((token == null) || token.isEmpty()) {
+        span.error("No download token");
+        return null;
+      }
+      fileInfo = getFileUrlByToken(token, filePath,
+          options.getScoredwnldUrlRoot());
+    }
+    if (fileInfo == null)
+      span.error("Could not read the file URL");
+    result.setResolveMs(elapsedMillis(start));
+    Log.at(Level.DEBUG).file(filePath).phase("resolve")
+        .duration(result.getResolveMs()).log("Resolved file URL");
+    return fileInfo;
+  }
+
+  /**
+   * Work out when to poll next in daemon mode. Without enough history, or
+   * with <code>prefetch</code> off, that is every
+   * <code>pollIntervalSeconds</code>. Inside a publish window it is every
+   * <code>prefetchPollSeconds</code>. Outside one, the wait doubles after
+   * each poll that finds nothing, up to <code>prefetchMaxIdleSeconds</code>,
+   * but never runs past the start of the next window, and the login is
+   * refreshed <code>prefetchWarmupSeconds</code> before it.
+   * 
+   * @param now Current time
+   * @param found TRUE if the last poll downloaded a file
+   */
+  private void schedulePoll(long now, boolean found) {
+    Config options = config;
+    long interval = options.getPollIntervalSeconds() * 1000L;
+    long maxIdle = 1000L * options.getPrefetchMaxIdleSeconds();
+    long warmUp = 1000L * options.getPrefetchWarmupSeconds();
+    PollPlanner planner = options.isPrefetch() ? learnWindows(now, options)
+        : null;
+    warmUpMillis = 0;
+    if (planner == null) {
+      nextPollMillis = now + interval;
+      return;
+    }
+    if (found || planner.isInWindow(now))
+      idlePolls = 0;
+    if (planner.isInWindow(now)) {
+      nextPollMillis = now + 1000L * options.getPrefetchPollSeconds();
+      return;
+    }
+
+    long wait = interval;
+    for (int i = 0; i < idlePolls && wait < maxIdle; ++i)
+      wait *= 2;
+    wait = Math.max(interval, Math.min(wait, maxIdle));
+    idlePolls++;
+    long window = planner.nextWindowStart(now);
+    nextPollMillis = Math.min(now + wait, window);
+    if (nextPollMillis == window && window - warmUp > now && warmUp > 0)
+      warmUpMillis = window - warmUp;
+    Log.at(Level.DEBUG).phase("prefetch").log("Next poll for " + orgID
+        + " in " + (nextPollMillis - now) / 1000 + " seconds");
+  }
+
+  /**
+   * Set the number of files to download at the same time in batch mode
+   * 
+   * @param concurrency the concurrency to set
+   */
+  public void setConcurrency(int concurrency) {
+    this.concurrency = concurrency;
   }
 
   /**
@@ -968,9 +3119,14 @@ public class SATdownload {
    * Set the full path to the counter file
    * 
    * @param counterFile the counterFile to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>counterFile</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setCounterFile(String counterFile) {
-    this.counterFile = counterFile;
+    setOption("counterFile", counterFile);
   }
 
   /**
@@ -981,12 +3137,16 @@ public class SATdownload {
    */
   public void setDateString(String dateString) {
     this.dateString = dateString;
+    status.setDate(dateString);
   }
 
   /**
    * Set whether this program should attempt to download consecutive files for a
    * specified date.
    * 
+   * Turning it off overrides the config; turning it back on follows the
+   * config again.
+   * 
    * @param downloadConsecutiveFiles the downloadConsecutiveFiles to set
    */
   public void setDownloadConsecutiveFiles(boolean downloadConsecutiveFiles) {
@@ -997,12 +3157,14 @@ public class SATdownload {
    * Set the file extension of the SAT score file
    * 
    * @param fileExtension the fileExtension to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>fileExtension</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setFileExtension(String fileExtension) {
-    if (fileExtension.charAt(0) == '.')
-      this.fileExtension = fileExtension.substring(1);
-    else
-      this.fileExtension = fileExtension;
+    setOption("fileExtension", fileExtension);
   }
 
   /**
@@ -1010,21 +3172,28 @@ public class SATdownload {
    * file name.
    * 
    * @param fileNumPadding the fileNumPadding to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>fileNumPadding</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setFileNumPadding(int fileNumPadding) {
-    this.fileNumPadding = fileNumPadding;
+    setOption("fileNumPadding", String.valueOf(fileNumPadding));
   }
 
   /**
    * Set the local path to download SAT score files.
    * 
-   * @param localFilePath the setLocalFilePath to set
+   * @param localFilePath the localFilePath to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>localFilePath</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setLocalFilePath(String localFilePath) {
-    if (localFilePath.charAt(localFilePath.length() - 1) != File.separatorChar)
-      this.localFilePath = localFilePath + File.separatorChar;
-    else
-      this.localFilePath = localFilePath;
+    setOption("localFilePath", localFilePath);
   }
 
   /**
@@ -1036,13 +3205,34 @@ public class SATdownload {
     this.orgID = orgID;
   }
 
+  /**
+   * Change one option of the current config and apply the result as if the
+   * config file had been reloaded.
+   * 
+   * @param key Option name
+   * @param value New value
+   * @throws IllegalArgumentException if the value is not valid
+   */
+  private void setOption(String key, String value) {
+    try {
+      applyConfig(config.with(key, value));
+    } catch (ConfigException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
   /**
    * Set the password used to access the PAScoresDwnld site
    * 
    * @param password the password to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>password</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setPassword(String password) {
-    this.password = password;
+    setOption("password", password);
   }
 
   /**
@@ -1055,19 +3245,138 @@ public class SATdownload {
   /**
    * Set the SAT score download root URL
    * 
-   * @param scoredwnldUrlRoot Root URL
+   * @param scoredwnldUrlRoot the scoredwnldUrlRoot to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>scoredwnldUrlRoot</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setScoredwnldUrlRoot(String scoredwnldUrlRoot) {
-    this.scoredwnldUrlRoot = scoredwnldUrlRoot;
+    setOption("scoredwnldUrlRoot", scoredwnldUrlRoot);
+  }
+
+  /**
+   * Set the name of the HTTP transport to use. Takes effect the next time a
+   * transport is created.
+   * 
+   * @param transportName the transportName to set (see {@link Transports})
+   */
+  public void setTransportName(String transportName) {
+    this.transportName = transportName;
   }
 
   /**
    * Set the username used to access the PAScoresDwnld site
    * 
    * @param username the username to set
+   * @throws IllegalArgumentException if the value is not valid
+   * @deprecated Set <code>username</code> in the config file instead. This
+   *             applies a copy of the current config with the option
+   *             changed, as a reload would.
    */
+  @Deprecated
   public void setUsername(String username) {
-    this.username = username;
+    setOption("username", username);
+  }
+
+  /**
+   * Start the admin server if <code>adminPort</code> is set. A failure to
+   * start it is logged and otherwise ignored.
+   */
+  public synchronized void startAdminServer() {
+    if (adminPort <= 0 || adminServer != null)
+      return;
+    try {
+      final DownloadQueue queue = getDownloadQueue();
+      adminServer = new AdminServer(adminBind, adminPort, status,
+          new AdminServer.QueueControl() {
+            //@Override
+            public boolean cancel(String fileName) {
+              return queue.cancel(null, fileName);
+            }
+
+            //@Override
+            public int submit(List<String> fileNames, String priority) {
+              return queue.submitAll(null, fileNames,
+                  Priority.parse(priority)).size();
+            }
+
+            //@Override
+            public JsonWriter toJson(JsonWriter w) {
+              return queue.toJson(w);
+            }
+          });
+    } catch (IOException e) {
+      Log.error("Could not start admin server on " + adminBind + ":"
+          + adminPort, e);
+    }
+  }
+
+  /**
+   * Check a downloaded file with the {@link FileValidator}. A file that is
+   * truncated or malformed is moved to the quarantine directory, so that
+   * nothing downstream picks it up, and counts as not downloaded.
+   * 
+   * @param fileInfo Details of the file from the service
+   * @param result Result of the download
+   * @param file Downloaded file
+   * @param options Config the file was started with
+   * @return TRUE if the file is valid
+   */
+  private boolean validateFile(FileInfo fileInfo, DownloadResult result,
+      File file, Config options) {
+    long expectedSize = parseSize(fileInfo.getFileSize());
+    if (expectedSize < 0 && fileInfo.getFileSize() != null)
+      Log.at(Level.WARN).file(result.getFileName()).phase("validate")
+          .log("Ignoring invalid file size " + fileInfo.getFileSize());
+
+    try {
+      result.setRecords(getValidator().validate(file, expectedSize));
+      return true;
+    } catch (ValidationException e) {
+      result.setError(e.getMessage());
+      status.recordError(result.getFileName(), e.getMessage());
+      File dir = new File(options.getQuarantineDir());
+      File target = new File(dir, file.getName());
+      try {
+        if (!dir.isDirectory() && !dir.mkdirs())
+          throw new IOException("Could not create " + dir);
+        Files.move(file.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        result.setLocalPath(target.getPath());
+        Log.at(Level.ERROR).file(result.getFileName()).phase("validate")
+            .log(e.getMessage() + "; file quarantined to " + target);
+      } catch (IOException moveError) {
+        Log.at(Level.ERROR).file(result.getFileName()).phase("validate")
+            .error(moveError).log(e.getMessage() + "; could not move file to "
+                + target + ": " + moveError.getMessage());
+      }
+    } catch (IOException e) {
+      Log.at(Level.ERROR).file(result.getFileName()).phase("validate")
+          .error(e).log("Could not validate file: " + e.getMessage());
+      result.setError(e.getMessage());
+      status.recordError(result.getFileName(), e.getMessage());
+    }
+    return false;
+  }
+
+  /**
+   * Get ready for a publish window by logging in again, so that the polls
+   * in it do not have to and the connection to the service is already open.
+   */
+  private void warmUp() {
+    Log.at(Level.DEBUG).phase("prefetch")
+        .log("Refreshing login for " + orgID + " before publish window");
+    synchronized (tokenLock) {
+      token = null;
+    }
+    try {
+      getToken(config);
+    } catch (RuntimeException e) {
+      Log.at(Level.WARN).phase("prefetch")
+          .log("Could not refresh login: " + e.getMessage());
+    }
   }
 
   /**
@@ -1078,14 +3387,27 @@ public class SATdownload {
    */
   public boolean writeCounterFile() {
     if (this.isSaveCounter()) {
+      if (!holdsLease()) {
+        Log.error("Lease lost; not writing counter file "
+            + this.getCounterFile(), null);
+        return false;
+      }
       try {
+        // Write to a temporary file and rename it so that another host never
+        // sees a half-written counter
+        File target = new File(this.getCounterFile());
+        File tmp = new File(target.getPath() + ".tmp");
         BufferedWriter counterFile = new BufferedWriter(
-            new FileWriter(this.getCounterFile(), false));
+            new FileWriter(tmp, false));
         counterFile.write("" + getCounter() + "\n");
         counterFile.close();
+        Files.move(tmp.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        status.setCounter(orgID, getCounter());
         return true;
       } catch (IOException e) {
-        log("Error writing to counter file " + this.getCounterFile());
+        Log.error("Error writing to counter file " + this.getCounterFile(), e);
         return false;
       }
     } else
@@ -0,0 +1,418 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.admin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.scu.sat.json.JsonWriter;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Small HTTP server that shows the {@link StatusBoard} and lets operators
+ * control the downloader:
+ * </p>
+ * <ul>
+ * <li><code>GET /status</code> returns the current status as JSON;</li>
+ * <li><code>POST /poll</code> starts a poll now;</li>
+ * <li><code>POST /pause</code> stops new transfers from starting;</li>
+ * <li><code>POST /resume</code> lets them start again;</li>
+ * <li><code>GET /queue</code> returns the download queue as JSON;</li>
+ * <li><code>POST /queue?priority=PRIORITY</code> queues the files named in
+ * the body, one per line, at <code>reissue</code> (the default) or
+ * <code>backfill</code> priority;</li>
+ * <li><code>DELETE /queue?file=NAME</code> cancels a queued file.</li>
+ * </ul>
+ * <p>
+ * Requests are handled on one background thread of their own and only read
+ * the status board or queue, so they never hold up a transfer. There is no
+ * authentication; bind the server to the loopback address (the default) or
+ * an internal network.
+ * </p>
+ */
+public class AdminServer {
+
+  /**
+   * Largest request body accepted, in bytes.
+   */
+  private static final int MAX_BODY = 1 << 20;
+
+  /**
+   * Download queue to show and control, or <code>null</code>.
+   */
+  private final QueueControl queue;
+
+  /**
+   * Underlying server.
+   */
+  private final HttpServer server;
+
+  /**
+   * Status to show and control.
+   */
+  private final StatusBoard status;
+
+  /**
+   * Thread handling requests.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Create and start a new AdminServer.
+   * 
+   * @param bindAddress Address to listen on
+   * @param port Port to listen on
+   * @param status Status to show and control
+   * @param queue Download queue to show and control, or <code>null</code>
+   * @throws IOException if the server could not listen on the address
+   */
+  public AdminServer(String bindAddress, int port, StatusBoard status,
+      QueueControl queue) throws IOException {
+    this.status = status;
+    this.queue = queue;
+    this.server = HttpServer.create(new InetSocketAddress(bindAddress, port),
+        0);
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      //@Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "admin-server");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext("/status", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (checkMethod(exchange, "GET"))
+          sendStatus(exchange, 200);
+      }
+    });
+    server.createContext("/poll", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (checkMethod(exchange, "POST")) {
+          AdminServer.this.status.requestPoll();
+          Log.info("Poll requested through the admin server");
+          sendStatus(exchange, 202);
+        }
+      }
+    });
+    server.createContext("/pause", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (checkMethod(exchange, "POST")) {
+          AdminServer.this.status.pause();
+          Log.info("Downloads paused through the admin server");
+          sendStatus(exchange, 200);
+        }
+      }
+    });
+    server.createContext("/resume", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (checkMethod(exchange, "POST")) {
+          AdminServer.this.status.resume();
+          Log.info("Downloads resumed through the admin server");
+          sendStatus(exchange, 200);
+        }
+      }
+    });
+    server.createContext("/queue", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleQueue(exchange);
+      }
+    });
+    server.start();
+    Log.info("Admin server listening on " + getAddress());
+  }
+
+  /**
+   * Get the address the server is listening on.
+   * 
+   * @return Address and port
+   */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  /**
+   * Get a parameter from the query string of a request.
+   * 
+   * @param exchange Request
+   * @param name Parameter name
+   * @return Decoded value, or <code>null</code> if it is not there
+   */
+  private static String parameter(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null)
+      return null;
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = eq < 0 ? pair : pair.substring(0, eq);
+      if (URLDecoder.decode(key, StandardCharsets.UTF_8).equals(name))
+        return eq < 0 ? ""
+            : URLDecoder.decode(pair.substring(eq + 1),
+                StandardCharsets.UTF_8);
+    }
+    return null;
+  }
+
+  /**
+   * Read the lines of a request body, skipping blank lines and comments
+   * starting with #.
+   * 
+   * @param in Request body
+   * @return Trimmed lines
+   * @throws IOException if the body could not be read or is too large
+   */
+  private static List<String> readLines(InputStream in) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      long size = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        size += line.length() + 1;
+        if (size > MAX_BODY)
+          throw new IOException("Request body is too large");
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#"))
+          lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Handle a request to show or change the download queue.
+   * 
+   * @param exchange Request
+   * @throws IOException if the response could not be sent
+   */
+  private void handleQueue(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod().toUpperCase();
+    if (queue == null
+        || !exchange.getRequestURI().getPath().equals("/queue")) {
+      drain(exchange.getRequestBody());
+      send(exchange, 404, "{\"error\":\"Not found\"}");
+      return;
+    }
+    if (method.equals("POST")) {
+      String priority = parameter(exchange, "priority");
+      int count;
+      try {
+        List<String> names = readLines(exchange.getRequestBody());
+        if (names.isEmpty())
+          throw new IllegalArgumentException("No file names in the body");
+        if ("live".equalsIgnoreCase(priority))
+          throw new IllegalArgumentException(
+              "Live files are only queued by polling");
+        count = queue.submit(names, priority == null ? "reissue" : priority);
+      } catch (IllegalArgumentException e) {
+        send(exchange, 400, new JsonWriter().beginObject().name("error")
+            .value(e.getMessage()).endObject().toString());
+        return;
+      } catch (IOException e) {
+        send(exchange, 413, new JsonWriter().beginObject().name("error")
+            .value(e.getMessage()).endObject().toString());
+        return;
+      }
+      Log.info(count + " file(s) queued through the admin server");
+      sendQueue(exchange, 202);
+    } else if (method.equals("DELETE")) {
+      drain(exchange.getRequestBody());
+      String file = parameter(exchange, "file");
+      if (file == null || file.isEmpty()) {
+        send(exchange, 400, "{\"error\":\"No file parameter\"}");
+      } else if (!queue.cancel(file)) {
+        send(exchange, 404, new JsonWriter().beginObject().name("error")
+            .value(file + " is not queued").endObject().toString());
+      } else {
+        Log.info(file + " cancelled through the admin server");
+        sendQueue(exchange, 200);
+      }
+    } else if (method.equals("GET")) {
+      drain(exchange.getRequestBody());
+      sendQueue(exchange, 200);
+    } else {
+      drain(exchange.getRequestBody());
+      exchange.getResponseHeaders().set("Allow", "GET, POST, DELETE");
+      send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+    }
+  }
+
+  /**
+   * Stop the server.
+   */
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Reject a request that does not use the expected method.
+   * 
+   * @param exchange Request
+   * @param method Expected method
+   * @return TRUE if the request uses the expected method
+   * @throws IOException if the response could not be sent
+   */
+  private boolean checkMethod(HttpExchange exchange, String method)
+      throws IOException {
+    drain(exchange.getRequestBody());
+    // Contexts match by prefix; only the exact path is handled
+    if (!exchange.getRequestURI().getPath()
+        .equals(exchange.getHttpContext().getPath())) {
+      send(exchange, 404, "{\"error\":\"Not found\"}");
+      return false;
+    }
+    if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+      exchange.getResponseHeaders().set("Allow", method);
+      send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Read and discard a request body.
+   * 
+   * @param in Request body
+   * @throws IOException if the body could not be read
+   */
+  private static void drain(InputStream in) throws IOException {
+    byte[] buf = new byte[512];
+    while (in.read(buf) >= 0) {
+      // Discard
+    }
+    in.close();
+  }
+
+  /**
+   * Send a JSON response.
+   * 
+   * @param exchange Request to respond to
+   * @param code HTTP status code
+   * @param json Response body
+   * @throws IOException if the response could not be sent
+   */
+  private static void send(HttpExchange exchange, int code, String json)
+      throws IOException {
+    byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    exchange.sendResponseHeaders(code, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Send the download queue.
+   * 
+   * @param exchange Request to respond to
+   * @param code HTTP status code
+   * @throws IOException if the response could not be sent
+   */
+  private void sendQueue(HttpExchange exchange, int code)
+      throws IOException {
+    JsonWriter w = new JsonWriter();
+    queue.toJson(w);
+    send(exchange, code, w.getBuilder().toString());
+  }
+
+  /**
+   * Send the current status.
+   * 
+   * @param exchange Request to respond to
+   * @param code HTTP status code
+   * @throws IOException if the response could not be sent
+   */
+  private void sendStatus(HttpExchange exchange, int code)
+      throws IOException {
+    JsonWriter w = new JsonWriter();
+    status.toJson(w);
+    send(exchange, code, w.getBuilder().toString());
+  }
+
+  /**
+   * What the admin server can do with the download queue.
+   */
+  public interface QueueControl {
+
+    /**
+     * Cancel a queued file.
+     * 
+     * @param fileName File to cancel
+     * @return TRUE if it was queued
+     */
+    boolean cancel(String fileName);
+
+    /**
+     * Queue files.
+     * 
+     * @param fileNames Files to queue
+     * @param priority Name of the priority to queue them at
+     * @return Number of files queued
+     * @throws IllegalArgumentException if the priority or a file name is not
+     *           valid
+     */
+    int submit(List<String> fileNames, String priority);
+
+    /**
+     * Write the queue as a JSON object.
+     * 
+     * @param w Writer to write to
+     * @return <code>w</code>
+     */
+    JsonWriter toJson(JsonWriter w);
+  }
+}
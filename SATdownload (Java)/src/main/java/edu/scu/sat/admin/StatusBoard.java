@@ -0,0 +1,426 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.admin;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import edu.scu.sat.json.JsonWriter;
+
+/**
+ * <p>
+ * What the downloader is doing right now, for the {@link AdminServer}, and
+ * the controls operators can use on it: pausing downloads and asking for an
+ * immediate poll.
+ * </p>
+ * <p>
+ * The download path only records when a transfer starts and ends. The
+ * number of bytes transferred so far is read from the size of the file on
+ * disk when the status is requested, so watching a transfer costs it
+ * nothing.
+ * </p>
+ */
+public class StatusBoard {
+
+  /**
+   * Number of recent errors kept.
+   */
+  private static final int MAX_ERRORS = 20;
+
+  /**
+   * Last counter value saved for each organization.
+   */
+  private final Map<String, Integer> counters = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Date being downloaded.
+   */
+  private volatile String date;
+
+  /**
+   * Most recent errors, oldest first.
+   */
+  private final Deque<ErrorEntry> errors = new ArrayDeque<ErrorEntry>();
+
+  /**
+   * Transfers in progress, by file name.
+   */
+  private final Map<String, Transfer> inFlight = new ConcurrentHashMap<String, Transfer>();
+
+  /**
+   * Time of the next scheduled poll, in milliseconds since the epoch, or 0.
+   */
+  private volatile long nextPoll;
+
+  /**
+   * Whether downloads are paused.
+   */
+  private boolean paused;
+
+  /**
+   * Whether a poll has been requested and not started yet.
+   */
+  private boolean pollRequested;
+
+  /**
+   * Number of events waiting to be delivered to hooks, if known.
+   */
+  private volatile IntSupplier queueDepth;
+
+  /**
+   * Time the downloader started, in milliseconds since the epoch.
+   */
+  private final long started = System.currentTimeMillis();
+
+  /**
+   * What the downloader is doing: <code>idle</code>,
+   * <code>downloading</code> or <code>waiting</code>.
+   */
+  private volatile String state = "idle";
+
+  /**
+   * Whether the downloader is shutting down.
+   */
+  private boolean stopping;
+
+  /**
+   * Wait until downloads are not paused.
+   * 
+   * @return FALSE if the downloader is shutting down
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean awaitResumed() throws InterruptedException {
+    while (paused && !stopping)
+      wait();
+    return !stopping;
+  }
+
+  /**
+   * Wait for the next poll: until the interval is over or a poll is
+   * requested, whichever comes first, and then for as long as downloads are
+   * paused.
+   * 
+   * @param intervalMillis Time until the next scheduled poll
+   * @return FALSE if the downloader is shutting down
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean awaitPoll(long intervalMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + intervalMillis;
+    nextPoll = deadline;
+    state = "waiting";
+    try {
+      long now;
+      while (!pollRequested && !stopping
+          && (now = System.currentTimeMillis()) < deadline)
+        wait(deadline - now);
+      pollRequested = false;
+      nextPoll = 0;
+      return awaitResumed();
+    } finally {
+      nextPoll = 0;
+      state = "idle";
+    }
+  }
+
+  /**
+   * Record that a transfer has finished, successfully or not.
+   * 
+   * @param transfer Transfer returned by {@link #startTransfer}
+   */
+  public void finishTransfer(Transfer transfer) {
+    inFlight.remove(transfer.fileName, transfer);
+    if (inFlight.isEmpty())
+      state = "idle";
+  }
+
+  /**
+   * Check if downloads are paused.
+   * 
+   * @return TRUE if downloads are paused
+   */
+  public synchronized boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * Pause downloads. Transfers in progress are finished; no new ones are
+   * started until {@link #resume()}.
+   */
+  public synchronized void pause() {
+    paused = true;
+  }
+
+  /**
+   * Record an error.
+   * 
+   * @param fileName File the error is about, or <code>null</code>
+   * @param error Description of the error
+   */
+  public void recordError(String fileName, String error) {
+    ErrorEntry entry = new ErrorEntry(fileName, error);
+    synchronized (errors) {
+      if (errors.size() == MAX_ERRORS)
+        errors.removeFirst();
+      errors.addLast(entry);
+    }
+  }
+
+  /**
+   * Ask for a poll now instead of at the end of the interval.
+   */
+  public synchronized void requestPoll() {
+    pollRequested = true;
+    notifyAll();
+  }
+
+  /**
+   * Resume downloads after {@link #pause()}.
+   */
+  public synchronized void resume() {
+    paused = false;
+    notifyAll();
+  }
+
+  /**
+   * Record the last counter value saved for an organization.
+   * 
+   * @param orgID Organization
+   * @param counter Counter value
+   */
+  public void setCounter(String orgID, int counter) {
+    counters.put(orgID, counter);
+  }
+
+  /**
+   * Record the date being downloaded.
+   * 
+   * @param date Date in <code>YYYYMMDD</code> format
+   */
+  public void setDate(String date) {
+    this.date = date;
+  }
+
+  /**
+   * Set where the hook queue depth is read from.
+   * 
+   * @param queueDepth Source of the queue depth, or <code>null</code>
+   */
+  public void setQueueDepth(IntSupplier queueDepth) {
+    this.queueDepth = queueDepth;
+  }
+
+  /**
+   * Record that a transfer is starting.
+   * 
+   * @param fileName Name of the file
+   * @param target File being written
+   * @param expectedBytes Size reported by the service, or -1
+   * @return Transfer to pass to {@link #finishTransfer(Transfer)}
+   */
+  public Transfer startTransfer(String fileName, File target,
+      long expectedBytes) {
+    Transfer transfer = new Transfer(fileName, target, expectedBytes);
+    inFlight.put(fileName, transfer);
+    state = "downloading";
+    return transfer;
+  }
+
+  /**
+   * Wake up anything waiting for a poll or for downloads to resume, for
+   * shutdown.
+   */
+  public synchronized void stop() {
+    stopping = true;
+    notifyAll();
+  }
+
+  /**
+   * Write the current status as a JSON object.
+   * 
+   * @param w Writer to write to
+   * @return <code>w</code>
+   */
+  public JsonWriter toJson(JsonWriter w) {
+    long now = System.currentTimeMillis();
+    w.beginObject();
+    w.name("state").value(isPaused() ? "paused" : state);
+    w.name("uptimeMs").value(now - started);
+    if (date != null)
+      w.name("date").value(date);
+    w.name("counters").beginObject();
+    for (Map.Entry<String, Integer> e : new TreeMap<String, Integer>(counters)
+        .entrySet())
+      w.name(e.getKey()).value(e.getValue().longValue());
+    w.endObject();
+
+    w.name("inFlight").beginArray();
+    for (Transfer t : inFlight.values())
+      t.toJson(w);
+    w.endArray();
+
+    IntSupplier depth = queueDepth;
+    if (depth != null)
+      w.name("hookQueueDepth").value(depth.getAsInt());
+    if (nextPoll > 0)
+      w.name("nextPollMs").value(Math.max(0, nextPoll - now));
+
+    List<ErrorEntry> recent;
+    synchronized (errors) {
+      recent = new ArrayList<ErrorEntry>(errors);
+    }
+    w.name("lastErrors").beginArray();
+    for (int i = recent.size() - 1; i >= 0; --i) {
+      ErrorEntry e = recent.get(i);
+      w.beginObject();
+      w.name("time").value(e.time);
+      if (e.fileName != null)
+        w.name("file").value(e.fileName);
+      w.name("error").value(e.error == null ? "" : e.error);
+      w.endObject();
+    }
+    w.endArray();
+    return w.endObject();
+  }
+
+  /**
+   * An error kept for the status.
+   */
+  private static final class ErrorEntry {
+
+    /**
+     * Description of the error.
+     */
+    final String error;
+
+    /**
+     * File the error is about, or <code>null</code>.
+     */
+    final String fileName;
+
+    /**
+     * Time of the error, in milliseconds since the epoch.
+     */
+    final long time = System.currentTimeMillis();
+
+    /**
+     * Create a new ErrorEntry.
+     * 
+     * @param fileName File the error is about, or <code>null</code>
+     * @param error Description of the error
+     */
+    ErrorEntry(String fileName, String error) {
+      this.fileName = fileName;
+      this.error = error;
+    }
+  }
+
+  /**
+   * A transfer in progress.
+   */
+  public static final class Transfer {
+
+    /**
+     * Size reported by the service, or -1.
+     */
+    private final long expectedBytes;
+
+    /**
+     * Name of the file.
+     */
+    private final String fileName;
+
+    /**
+     * Time the transfer started, as {@link System#nanoTime()}.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * File being written.
+     */
+    private final File target;
+
+    /**
+     * Bytes written so far, or -1 to use the length of the file.
+     */
+    private final AtomicLong written = new AtomicLong(-1);
+
+    /**
+     * Create a new Transfer.
+     * 
+     * @param fileName Name of the file
+     * @param target File being written
+     * @param expectedBytes Size reported by the service, or -1
+     */
+    Transfer(String fileName, File target, long expectedBytes) {
+      this.fileName = fileName;
+      this.target = target;
+      this.expectedBytes = expectedBytes;
+    }
+
+    /**
+     * Set the number of bytes written so far, for a file that is not written
+     * from start to end (and so whose length says nothing about the
+     * progress).
+     * 
+     * @param bytes Bytes written, or -1 to go back to using the length of
+     *          the file
+     */
+    public void setWritten(long bytes) {
+      written.set(bytes);
+    }
+
+    /**
+     * Write this transfer as a JSON object.
+     * 
+     * @param w Writer to write to
+     */
+    void toJson(JsonWriter w) {
+      long elapsedMs = Math.max(1,
+          (System.nanoTime() - startNanos) / 1000000L);
+      long bytes = written.get();
+      if (bytes < 0)
+        bytes = target.length();
+      w.beginObject();
+      w.name("file").value(fileName);
+      w.name("bytes").value(bytes);
+      if (expectedBytes >= 0)
+        w.name("expectedBytes").value(expectedBytes);
+      w.name("elapsedMs").value(elapsedMs);
+      w.name("bytesPerSecond").value(bytes * 1000L / elapsedMs);
+      w.endObject();
+    }
+  }
+}
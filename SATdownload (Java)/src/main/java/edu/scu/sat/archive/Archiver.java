@@ -0,0 +1,277 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.scu.sat.delta.DeltaExtractor;
+import edu.scu.sat.disk.DiskFiles;
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+import edu.scu.sat.reader.RecordIndex;
+
+/**
+ * <p>
+ * Moves the score files of past dates out of an organization's download
+ * directory into one pack file per month (see {@link PackFile}), named
+ * <code>ORGID_YYYYMM.pack</code>, and finds them again afterwards.
+ * </p>
+ * <p>
+ * A file named <code>ORGID_YYYYMMDD_NNNNNN.EXT</code> is archived along with
+ * its <code>.delta</code> file, if any; its <code>.idx</code> file is
+ * deleted, since {@link edu.scu.sat.reader.ScoreFile} builds the index of a
+ * packed file as it reads it. The files are only deleted once the pack has
+ * been flushed to disk, and a file that changed while it was being packed
+ * is kept and packed again next time. Running the archiver again after a
+ * crash does not store a file twice.
+ * </p>
+ * <p>
+ * Counter files, the state directory, partial downloads and the
+ * directories of other organizations are never touched.
+ * </p>
+ */
+public class Archiver {
+
+  /**
+   * Directory the pack files are kept in.
+   */
+  private final File archiveDir;
+
+  /**
+   * Directory the files are downloaded to.
+   */
+  private final File dir;
+
+  /**
+   * Organization whose files are archived.
+   */
+  private final String orgID;
+
+  /**
+   * Names of the files that are archived. The first group is the year and
+   * month, the second the day.
+   */
+  private final Pattern pattern;
+
+  /**
+   * Create a new Archiver.
+   * 
+   * @param dir Directory the files are downloaded to
+   * @param archiveDir Directory to keep the pack files in
+   * @param orgID Organization whose files are archived
+   * @param fileExtension Extension of its score files, without the dot
+   */
+  public Archiver(File dir, File archiveDir, String orgID,
+      String fileExtension) {
+    this.dir = dir;
+    this.archiveDir = archiveDir;
+    this.orgID = orgID;
+    this.pattern = Pattern.compile(Pattern.quote(orgID)
+        + "_(\\d{6})(\\d{2})_\\d+\\." + Pattern.quote(fileExtension) + "(?:"
+        + Pattern.quote(DeltaExtractor.SUFFIX) + ")?");
+  }
+
+  /**
+   * Archive the files of every date before a given one.
+   * 
+   * @param before First date to leave alone, formatted
+   *          <code>YYYYMMDD</code>
+   * @return Number of files archived
+   * @throws IOException if a pack could not be written; files already
+   *           archived stay archived
+   */
+  public int archive(String before) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null)
+      throw new IOException("Could not list " + dir);
+    Map<String, List<File>> months = new TreeMap<String, List<File>>();
+    for (File file : files) {
+      Matcher m = pattern.matcher(file.getName());
+      if (!m.matches() || !file.isFile()
+          || (m.group(1) + m.group(2)).compareTo(before) >= 0)
+        continue;
+      List<File> month = months.get(m.group(1));
+      if (month == null) {
+        month = new ArrayList<File>();
+        months.put(m.group(1), month);
+      }
+      month.add(file);
+    }
+    if (months.isEmpty())
+      return 0;
+    if (!archiveDir.isDirectory() && !archiveDir.mkdirs())
+      throw new IOException("Could not create directory " + archiveDir);
+
+    int archived = 0;
+    for (Map.Entry<String, List<File>> month : months.entrySet()) {
+      List<File> list = month.getValue();
+      Collections.sort(list);
+      archived += archive(new File(archiveDir, orgID + "_" + month.getKey()
+          + PackFile.SUFFIX), list);
+    }
+    return archived;
+  }
+
+  /**
+   * Add files to a pack and delete them once it is on disk.
+   * 
+   * @param pack Pack file
+   * @param files Files to add
+   * @return Number of files archived
+   * @throws IOException if the pack could not be written
+   */
+  private int archive(File pack, List<File> files) throws IOException {
+    long start = System.nanoTime();
+    long[] lengths = new long[files.size()];
+    long[] modified = new long[files.size()];
+    long bytes = 0;
+    PackWriter writer = PackWriter.open(pack);
+    try {
+      for (int i = 0; i < files.size(); ++i) {
+        File file = files.get(i);
+        lengths[i] = file.length();
+        modified[i] = file.lastModified();
+        writer.add(file.getName(), file);
+        bytes += lengths[i];
+      }
+      writer.commit();
+    } finally {
+      writer.close();
+    }
+    DiskFiles.forceDirectory(archiveDir);
+
+    int archived = 0;
+    for (int i = 0; i < files.size(); ++i) {
+      File file = files.get(i);
+      // A file downloaded again meanwhile is packed again next time
+      if (file.length() != lengths[i] || file.lastModified() != modified[i]) {
+        Log.at(Level.WARN).file(file.getName()).phase("archive")
+            .log("Changed while being archived; kept " + file);
+        continue;
+      }
+      if (!file.delete()) {
+        Log.at(Level.WARN).file(file.getName()).phase("archive")
+            .log("Archived but could not delete " + file);
+        continue;
+      }
+      File index = RecordIndex.indexFileFor(file);
+      if (index.exists() && !index.delete())
+        Log.at(Level.WARN).file(file.getName()).phase("archive")
+            .log("Could not delete " + index);
+      archived++;
+    }
+    DiskFiles.forceDirectory(dir);
+    Log.at(Level.INFO).phase("archive").bytes(bytes)
+        .duration((System.nanoTime() - start) / 1000000L)
+        .log(archived + " file(s) archived in " + pack + " ("
+            + pack.length() + " bytes)");
+    return archived;
+  }
+
+  /**
+   * Check whether a file is held, either in the download directory or in a
+   * pack.
+   * 
+   * @param fileName Name of the file
+   * @return TRUE if it is
+   * @throws IOException if its pack could not be read
+   */
+  public boolean contains(String fileName) throws IOException {
+    if (new File(dir, fileName).isFile())
+      return true;
+    File pack = getPackFile(fileName);
+    if (pack == null || !pack.isFile())
+      return false;
+    PackFile packFile = PackFile.open(pack);
+    try {
+      return packFile.contains(fileName);
+    } finally {
+      packFile.close();
+    }
+  }
+
+  /**
+   * Get the pack file a file is archived in.
+   * 
+   * @param fileName Name of the file
+   * @return The pack file, which may not exist yet, or <code>null</code> if
+   *         the file is not one that is archived
+   */
+  public File getPackFile(String fileName) {
+    Matcher m = pattern.matcher(fileName);
+    return m.matches()
+        ? new File(archiveDir, orgID + "_" + m.group(1) + PackFile.SUFFIX)
+        : null;
+  }
+
+  /**
+   * Open a file for reading, from the download directory if it is still
+   * there or else from its pack.
+   * 
+   * @param fileName Name of the file
+   * @return Stream of the file's content
+   * @throws FileNotFoundException if the file is in neither place
+   * @throws IOException if the file could not be opened
+   */
+  public InputStream open(String fileName) throws IOException {
+    File file = new File(dir, fileName);
+    if (file.isFile())
+      return new FileInputStream(file);
+    File pack = getPackFile(fileName);
+    if (pack == null || !pack.isFile())
+      throw new FileNotFoundException(fileName + " is not in " + dir
+          + " or " + archiveDir);
+    final PackFile packFile = PackFile.open(pack);
+    try {
+      return new FilterInputStream(packFile.newInputStream(fileName)) {
+        //@Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            packFile.close();
+          }
+        }
+      };
+    } catch (IOException e) {
+      packFile.close();
+      throw e;
+    }
+  }
+}
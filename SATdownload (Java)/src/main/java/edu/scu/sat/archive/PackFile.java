@@ -0,0 +1,607 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ * Read-only view of a pack file written by {@link PackWriter}: many score
+ * files compressed one after the other, with an index at the end giving
+ * each file's name, offset, length and SHA-256 digest. Any file can be read
+ * on its own without unpacking the others.
+ * </p>
+ * <p>
+ * A pack file starts with the eight bytes <code>SATPACK1</code>. Each file
+ * is stored as raw DEFLATE data. Every time files are added, a new index
+ * listing all of them is written after them, followed by a trailer:
+ * </p>
+ * <pre>
+ *  index:   int count, then per file: UTF name, long offset,
+ *           long stored length, long length, 32 byte SHA-256
+ *  trailer: long index offset, int index length, int index CRC32,
+ *           long SATPACK1
+ * </pre>
+ * <p>
+ * Nothing already written is ever changed, so older indexes stay behind as
+ * dead bytes and the last valid trailer is the one that counts. If the last
+ * append was cut short, the file is searched backwards for the one before.
+ * Instances are thread-safe.
+ * </p>
+ */
+public class PackFile implements Closeable {
+
+  /**
+   * Size of a SHA-256 digest.
+   */
+  static final int DIGEST_SIZE = 32;
+
+  /**
+   * First eight bytes of every pack file and last eight of every trailer.
+   */
+  static final long MAGIC = 0x5341545041434b31L; // "SATPACK1"
+
+  /**
+   * Number of bytes read at a time when searching for a trailer.
+   */
+  private static final int SCAN_CHUNK = 1 << 20;
+
+  /**
+   * Suffix of a pack file.
+   */
+  public static final String SUFFIX = ".pack";
+
+  /**
+   * Size of a trailer.
+   */
+  static final int TRAILER_SIZE = 24;
+
+  /**
+   * The open file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * Files in the pack by name, in the order they were added.
+   */
+  private final Map<String, Entry> entries;
+
+  /**
+   * The pack file.
+   */
+  private final File file;
+
+  /**
+   * Create a new PackFile.
+   * 
+   * @param file The pack file
+   * @param channel The open file
+   * @param index Its last valid index
+   */
+  private PackFile(File file, FileChannel channel, Index index) {
+    this.file = file;
+    this.channel = channel;
+    this.entries = index.entries;
+  }
+
+  /**
+   * Open a pack file.
+   * 
+   * @param file Pack file
+   * @return The opened pack
+   * @throws IOException if the file could not be read or is not a pack
+   */
+  public static PackFile open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      Index index = readIndex(channel, channel.size());
+      if (index == null)
+        throw new IOException(file + " is not a pack file");
+      return new PackFile(file, channel, index);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Release the file. Streams obtained from it must not be used afterwards.
+   * 
+   * @throws IOException if the file could not be closed
+   */
+  //@Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Check whether the pack holds a file.
+   * 
+   * @param name File name
+   * @return TRUE if it does
+   */
+  public boolean contains(String name) {
+    return entries.containsKey(name);
+  }
+
+  /**
+   * Get one of the files in the pack.
+   * 
+   * @param name File name
+   * @return The file, or <code>null</code> if the pack does not hold it
+   */
+  public Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * Get the pack file.
+   * 
+   * @return The file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * List the files in the pack.
+   * 
+   * @return Files in the order they were added; a file added again is
+   *         listed where it was first added
+   */
+  public List<Entry> list() {
+    return Collections.unmodifiableList(
+        new ArrayList<Entry>(entries.values()));
+  }
+
+  /**
+   * Open one of the files in the pack for reading. The content is
+   * decompressed as it is read and is not checked against its digest; see
+   * {@link #read(String)}.
+   * 
+   * @param name File name
+   * @return Stream of the file's content
+   * @throws FileNotFoundException if the pack does not hold the file
+   */
+  public InputStream newInputStream(String name)
+      throws FileNotFoundException {
+    Entry entry = entries.get(name);
+    if (entry == null)
+      throw new FileNotFoundException(name + " is not in " + file);
+    final Inflater inflater = new Inflater(true);
+    return new InflaterInputStream(new RegionInputStream(channel,
+        entry.offset, entry.storedLength), inflater, 65536) {
+      //@Override
+      public void close() throws IOException {
+        super.close();
+        inflater.end();
+      }
+    };
+  }
+
+  /**
+   * Read the whole of one of the files in the pack and check it against its
+   * length and digest.
+   * 
+   * @param name File name
+   * @return Content of the file
+   * @throws FileNotFoundException if the pack does not hold the file
+   * @throws IOException if the file could not be read, is over 2 GB or is
+   *           corrupt
+   */
+  public byte[] read(String name) throws IOException {
+    Entry entry = entries.get(name);
+    if (entry == null)
+      throw new FileNotFoundException(name + " is not in " + file);
+    if (entry.length > Integer.MAX_VALUE)
+      throw new IOException(name + " is too large to read at once");
+    byte[] data = new byte[(int) entry.length];
+    InputStream in = newInputStream(name);
+    try {
+      new DataInputStream(in).readFully(data);
+      if (in.read() >= 0)
+        throw new IOException(name + " is longer than " + entry.length
+            + " bytes in " + file);
+    } catch (EOFException e) {
+      throw new IOException(name + " is shorter than " + entry.length
+          + " bytes in " + file);
+    } finally {
+      in.close();
+    }
+    MessageDigest md = newDigest();
+    if (!Arrays.equals(md.digest(data), entry.digest))
+      throw new IOException(name + " does not match its digest in " + file);
+    return data;
+  }
+
+  /**
+   * Read every file in the pack and check it against its length and digest.
+   * 
+   * @return Number of files checked
+   * @throws IOException if a file could not be read or is corrupt
+   */
+  public int verify() throws IOException {
+    MessageDigest md = newDigest();
+    byte[] buffer = new byte[65536];
+    for (Entry entry : entries.values()) {
+      InputStream in = newInputStream(entry.name);
+      long length = 0;
+      try {
+        for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+          md.update(buffer, 0, n);
+          length += n;
+        }
+      } finally {
+        in.close();
+      }
+      if (length != entry.length
+          || !Arrays.equals(md.digest(), entry.digest))
+        throw new IOException(entry.name + " is corrupt in " + file);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Create a SHA-256 digest.
+   * 
+   * @return The digest
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has to provide it
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Find the last valid index of a pack file.
+   * 
+   * @param channel The open file
+   * @param size Size of the file
+   * @return The index, with no files if none was ever written completely,
+   *         or <code>null</code> if the file is not a pack
+   * @throws IOException if the file could not be read
+   */
+  static Index readIndex(FileChannel channel, long size) throws IOException {
+    if (size < 8)
+      return null;
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    readFully(channel, buf, 0);
+    if (buf.getLong(0) != MAGIC)
+      return null;
+    Index index = readIndexEndingAt(channel, size);
+    if (index != null)
+      return index;
+
+    // The last append did not finish; look for the trailer before it
+    long hi = size - 9;
+    long lowest = 8 + TRAILER_SIZE - 8;
+    while (hi >= lowest) {
+      long lo = Math.max(lowest, hi - SCAN_CHUNK + 1);
+      buf = ByteBuffer.allocate((int) (hi - lo + 8));
+      readFully(channel, buf, lo);
+      for (long m = hi; m >= lo; --m) {
+        if (buf.getLong((int) (m - lo)) == MAGIC) {
+          index = readIndexEndingAt(channel, m + 8);
+          if (index != null)
+            return index;
+        }
+      }
+      hi = lo - 1;
+    }
+    return new Index(new LinkedHashMap<String, Entry>(), 8);
+  }
+
+  /**
+   * Read the index whose trailer ends at a given offset.
+   * 
+   * @param channel The open file
+   * @param end Offset just past the trailer
+   * @return The index, or <code>null</code> if there is no valid trailer
+   *         and index there
+   * @throws IOException if the file could not be read
+   */
+  private static Index readIndexEndingAt(FileChannel channel, long end)
+      throws IOException {
+    if (end < 8 + TRAILER_SIZE)
+      return null;
+    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+    readFully(channel, trailer, end - TRAILER_SIZE);
+    long indexOffset = trailer.getLong(0);
+    int indexLength = trailer.getInt(8);
+    int crc = trailer.getInt(12);
+    if (trailer.getLong(16) != MAGIC || indexOffset < 8 || indexLength < 4
+        || indexOffset + indexLength != end - TRAILER_SIZE)
+      return null;
+    ByteBuffer buf = ByteBuffer.allocate(indexLength);
+    readFully(channel, buf, indexOffset);
+    CRC32 check = new CRC32();
+    check.update(buf.array());
+    if ((int) check.getValue() != crc)
+      return null;
+
+    Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(buf.array()));
+    try {
+      int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        String name = in.readUTF();
+        long offset = in.readLong();
+        long storedLength = in.readLong();
+        long length = in.readLong();
+        byte[] digest = new byte[DIGEST_SIZE];
+        in.readFully(digest);
+        if (offset < 8 || storedLength < 0 || length < 0
+            || offset + storedLength > indexOffset)
+          return null;
+        entries.put(name, new Entry(name, offset, storedLength, length,
+            digest));
+      }
+    } catch (EOFException e) {
+      return null;
+    }
+    return new Index(entries, end);
+  }
+
+  /**
+   * Fill a buffer from a file.
+   * 
+   * @param channel The open file
+   * @param buf Buffer to fill
+   * @param position Offset to read from
+   * @throws IOException if the file could not be read or is too short
+   */
+  static void readFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position);
+      if (n < 0)
+        throw new EOFException("Pack file ends at " + position);
+      position += n;
+    }
+  }
+
+  /**
+   * One file in a pack.
+   */
+  public static final class Entry {
+
+    /**
+     * SHA-256 digest of the file's content.
+     */
+    final byte[] digest;
+
+    /**
+     * Length of the file's content.
+     */
+    final long length;
+
+    /**
+     * File name.
+     */
+    final String name;
+
+    /**
+     * Offset of the compressed content in the pack.
+     */
+    final long offset;
+
+    /**
+     * Length of the compressed content.
+     */
+    final long storedLength;
+
+    /**
+     * Create a new Entry.
+     * 
+     * @param name File name
+     * @param offset Offset of the compressed content in the pack
+     * @param storedLength Length of the compressed content
+     * @param length Length of the file's content
+     * @param digest SHA-256 digest of the file's content
+     */
+    Entry(String name, long offset, long storedLength, long length,
+        byte[] digest) {
+      this.name = name;
+      this.offset = offset;
+      this.storedLength = storedLength;
+      this.length = length;
+      this.digest = digest;
+    }
+
+    /**
+     * Get the SHA-256 digest of the file's content.
+     * 
+     * @return Digest in hex
+     */
+    public String getDigest() {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest)
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    }
+
+    /**
+     * Get the length of the file's content.
+     * 
+     * @return Length in bytes
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Get the file name.
+     * 
+     * @return The name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Get the offset of the compressed content in the pack.
+     * 
+     * @return The offset
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Get the length of the compressed content.
+     * 
+     * @return Length in bytes
+     */
+    public long getStoredLength() {
+      return storedLength;
+    }
+  }
+
+  /**
+   * Files listed by the last valid index of a pack.
+   */
+  static final class Index {
+
+    /**
+     * Offset just past the index's trailer, where the next append starts.
+     */
+    final long end;
+
+    /**
+     * Files by name, in the order they were added.
+     */
+    final Map<String, Entry> entries;
+
+    /**
+     * Create a new Index.
+     * 
+     * @param entries Files by name
+     * @param end Offset just past the trailer
+     */
+    Index(Map<String, Entry> entries, long end) {
+      this.entries = entries;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Stream of part of a file, read with positional reads so that several
+   * can share one channel. Like <code>java.util.zip.ZipFile</code>, it ends
+   * with one extra zero byte, which the inflater may need to finish raw
+   * DEFLATE data.
+   */
+  private static class RegionInputStream extends InputStream {
+
+    /**
+     * The open file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Offset just past the region.
+     */
+    private final long end;
+
+    /**
+     * TRUE once the extra zero byte has been read.
+     */
+    private boolean padded;
+
+    /**
+     * Offset of the next byte to read.
+     */
+    private long position;
+
+    /**
+     * Create a new RegionInputStream.
+     * 
+     * @param channel The open file
+     * @param offset Offset of the region
+     * @param length Length of the region
+     */
+    RegionInputStream(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    //@Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    //@Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (position >= end) {
+        if (padded)
+          return -1;
+        padded = true;
+        b[off] = 0;
+        return 1;
+      }
+      ByteBuffer buf = ByteBuffer.wrap(b, off,
+          (int) Math.min(len, end - position));
+      int n = channel.read(buf, position);
+      if (n < 0)
+        throw new EOFException("Pack file ends at " + position);
+      position += n;
+      return n;
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import edu.scu.sat.archive.PackFile.Entry;
+import edu.scu.sat.archive.PackFile.Index;
+
+/**
+ * <p>
+ * Appends files to a pack file (see {@link PackFile} for the format),
+ * creating it if needed. Added files only become part of the pack when
+ * {@link #commit()} writes a new index after them and flushes the pack to
+ * disk; until then, and after a crash, the pack still reads as it was.
+ * </p>
+ * <p>
+ * Adding a file under a name the pack already holds replaces it in the
+ * index, unless the content is the same, in which case nothing is written.
+ * The writer holds a lock on the pack file until it is closed, so only one
+ * process appends to a pack at a time. Instances are not thread-safe.
+ * </p>
+ */
+public class PackWriter implements Closeable {
+
+  /**
+   * Size of the buffers used to compress files.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The open file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * Offset just past the last trailer written.
+   */
+  private long committed;
+
+  /**
+   * Files in the pack by name, including any not yet committed.
+   */
+  private final Map<String, Entry> entries;
+
+  /**
+   * The pack file.
+   */
+  private final File file;
+
+  /**
+   * Lock held on the file.
+   */
+  private final FileLock lock;
+
+  /**
+   * Offset to add the next file at.
+   */
+  private long position;
+
+  /**
+   * Number of files added since the last commit.
+   */
+  private int uncommitted;
+
+  /**
+   * Create a new PackWriter.
+   * 
+   * @param file The pack file
+   * @param channel The open file
+   * @param lock Lock held on it
+   * @param index Its last valid index
+   */
+  private PackWriter(File file, FileChannel channel, FileLock lock,
+      Index index) {
+    this.file = file;
+    this.channel = channel;
+    this.lock = lock;
+    this.entries = new LinkedHashMap<String, Entry>(index.entries);
+    this.committed = index.end;
+    this.position = index.end;
+  }
+
+  /**
+   * Open a pack file to add files to, creating it if it does not exist.
+   * Whatever an interrupted append left after the last valid index is
+   * overwritten.
+   * 
+   * @param file Pack file
+   * @return The writer
+   * @throws IOException if the file could not be opened or locked, or is
+   *           not a pack
+   */
+  public static PackWriter open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null)
+        throw new IOException(file + " is being written by another process");
+      long size = channel.size();
+      if (size == 0) {
+        ByteBuffer magic = ByteBuffer.allocate(8);
+        magic.putLong(0, PackFile.MAGIC);
+        writeFully(channel, magic, 0);
+        channel.force(true);
+        size = 8;
+      }
+      Index index = PackFile.readIndex(channel, size);
+      if (index == null)
+        throw new IOException(file + " is not a pack file");
+      return new PackWriter(file, channel, lock, index);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Add a file to the pack.
+   * 
+   * @param name Name to store the file under
+   * @param source File to add
+   * @return The added entry, or the one already in the pack if it has the
+   *         same content
+   * @throws IOException if the file could not be read or the pack written
+   */
+  public Entry add(String name, File source) throws IOException {
+    InputStream in = new FileInputStream(source);
+    try {
+      return add(name, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Add the rest of a stream to the pack.
+   * 
+   * @param name Name to store the content under
+   * @param in Stream to read the content from
+   * @return The added entry, or the one already in the pack if it has the
+   *         same content
+   * @throws IOException if the stream could not be read or the pack
+   *           written
+   */
+  public Entry add(String name, InputStream in) throws IOException {
+    MessageDigest md = PackFile.newDigest();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    long length = 0;
+    long stored;
+    try {
+      // Closing the streams would close the channel, so they are flushed
+      channel.position(position);
+      OutputStream out = new BufferedOutputStream(
+          Channels.newOutputStream(channel), BUFFER_SIZE);
+      DeflaterOutputStream deflated = new DeflaterOutputStream(out,
+          deflater, BUFFER_SIZE);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+        md.update(buffer, 0, n);
+        deflated.write(buffer, 0, n);
+        length += n;
+      }
+      deflated.finish();
+      out.flush();
+      stored = channel.position() - position;
+    } finally {
+      deflater.end();
+    }
+
+    byte[] digest = md.digest();
+    Entry old = entries.get(name);
+    if (old != null && old.length == length
+        && Arrays.equals(old.digest, digest)) {
+      channel.truncate(position);
+      return old;
+    }
+    Entry entry = new Entry(name, position, stored, length, digest);
+    // A replaced file keeps its place in the listing
+    entries.put(name, entry);
+    position += stored;
+    uncommitted++;
+    return entry;
+  }
+
+  /**
+   * Write a new index after the files added since the last commit and flush
+   * the pack to disk. Does nothing if no file has been added.
+   * 
+   * @return TRUE if a new index was written
+   * @throws IOException if the pack could not be written
+   */
+  public boolean commit() throws IOException {
+    if (uncommitted == 0)
+      return false;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(entries.size());
+    for (Entry entry : entries.values()) {
+      out.writeUTF(entry.name);
+      out.writeLong(entry.offset);
+      out.writeLong(entry.storedLength);
+      out.writeLong(entry.length);
+      out.write(entry.digest);
+    }
+    out.close();
+    byte[] index = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(index);
+
+    ByteBuffer buf = ByteBuffer.allocate(index.length
+        + PackFile.TRAILER_SIZE);
+    buf.put(index);
+    buf.putLong(position);
+    buf.putInt(index.length);
+    buf.putInt((int) crc.getValue());
+    buf.putLong(PackFile.MAGIC);
+    buf.flip();
+    writeFully(channel, buf, position);
+    long end = position + buf.limit();
+    // Drop the content of a file that turned out to be unchanged
+    channel.truncate(end);
+    channel.force(true);
+    committed = end;
+    position = end;
+    uncommitted = 0;
+    return true;
+  }
+
+  /**
+   * Release the pack. Files added since the last commit are left out of it.
+   * 
+   * @throws IOException if the pack could not be closed
+   */
+  //@Override
+  public void close() throws IOException {
+    try {
+      if (channel.size() > committed)
+        channel.truncate(committed);
+      lock.release();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Get the pack file.
+   * 
+   * @return The file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Write a whole buffer to a file.
+   * 
+   * @param channel The open file
+   * @param buf Buffer to write
+   * @param position Offset to write at
+   * @throws IOException if the file could not be written
+   */
+  private static void writeFully(FileChannel channel, ByteBuffer buf,
+      long position) throws IOException {
+    while (buf.hasRemaining())
+      position += channel.write(buf, position);
+  }
+}
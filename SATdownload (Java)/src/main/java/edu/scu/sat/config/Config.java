@@ -0,0 +1,1461 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import edu.scu.sat.coord.LeaseManager;
+import edu.scu.sat.delta.DeltaExtractor;
+import edu.scu.sat.fault.FaultProfile;
+import edu.scu.sat.log.Level;
+import edu.scu.sat.transport.Transports;
+
+/**
+ * <p>
+ * Typed, validated contents of a config file. {@link #load(File)} checks
+ * every option at once and reports all the problems it finds, so a bad
+ * config file fails at startup with a clear message rather than part way
+ * through a run.
+ * </p>
+ * <p>
+ * A config file describes one organization (the top-level options) and
+ * optionally more, listed in <code>tenants</code>. Each tenant inherits the
+ * top-level options and may override any of them with
+ * <code>tenant.ORGID.OPTION</code>. For a description of the options,
+ * please refer to the sample <code>SATdownload.conf</code>.
+ * </p>
+ * <p>
+ * Config objects are immutable, so a reloaded config can be swapped in
+ * while downloads are running.
+ * </p>
+ */
+public final class Config {
+
+  /**
+   * Value of <code>fingerprintStore</code> selecting the memory-mapped store.
+   */
+  public static final String FINGERPRINT_STORE_MAPPED = "mapped";
+
+  /**
+   * Value of <code>fingerprintStore</code> selecting the in-memory store.
+   */
+  public static final String FINGERPRINT_STORE_MEMORY = "memory";
+
+  /**
+   * Value of <code>fsync</code> flushing files at the end of each batch.
+   */
+  public static final String FSYNC_BATCH = "batch";
+
+  /**
+   * Value of <code>fsync</code> flushing each file before it is renamed
+   * into place.
+   */
+  public static final String FSYNC_FILE = "file";
+
+  /**
+   * Value of <code>fsync</code> leaving flushing to the operating system.
+   */
+  public static final String FSYNC_NONE = "none";
+
+  /**
+   * Load and check a config file.
+   * 
+   * @param file Config file
+   * @return Config of the top-level organization; see {@link #getTenants()}
+   *         for the others
+   * @throws java.io.FileNotFoundException if the file does not exist
+   * @throws ConfigException if any option is missing or invalid
+   * @throws IOException if the file could not be read
+   */
+  public static Config load(File file) throws IOException {
+    Properties props = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    return parse(props, file.getPath());
+  }
+
+  /**
+   * Check options that have already been read.
+   * 
+   * @param props Options
+   * @param source Where the options came from, for error messages
+   * @return Config of the top-level organization
+   * @throws ConfigException if any option is missing or invalid
+   */
+  public static Config parse(Properties props, String source)
+      throws ConfigException {
+    List<String> problems = new ArrayList<String>();
+    Config primary = new Config(props, null, null, problems);
+
+    List<Config> tenants = new ArrayList<Config>();
+    tenants.add(primary);
+    Set<String> orgIDs = new HashSet<String>();
+    Set<String> counterFiles = new HashSet<String>();
+    Set<String> localFilePaths = new HashSet<String>();
+    orgIDs.add(primary.orgID);
+    counterFiles.add(primary.counterFile);
+    localFilePaths.add(primary.localFilePath);
+    String list = clean(props.getProperty("tenants"));
+    if (list != null) {
+      for (String id : list.split("[,\\s]+")) {
+        if (id.isEmpty())
+          continue;
+        if (!orgIDs.add(id)) {
+          problems.add("tenants: " + id + " is listed more than once");
+          continue;
+        }
+        Config tenant = new Config(props, id, primary, problems);
+        if (!counterFiles.add(tenant.counterFile))
+          problems.add("tenant." + id + ".counterFile: "
+              + tenant.counterFile + " is used by another tenant");
+        if (tenant.localFilePath != null
+            && !localFilePaths.add(tenant.localFilePath))
+          problems.add("tenant." + id + ".localFilePath: "
+              + tenant.localFilePath + " is used by another tenant");
+        tenants.add(tenant);
+      }
+    }
+    if (!problems.isEmpty())
+      throw new ConfigException(source, problems);
+    primary.tenants = Collections.unmodifiableList(tenants);
+    return primary;
+  }
+
+  /**
+   * Remove quotes and surrounding white space from a value.
+   * 
+   * @param value Value from the config file, or <code>null</code>
+   * @return Cleaned value, or <code>null</code> if it is missing or empty
+   */
+  private static String clean(String value) {
+    if (value == null)
+      return null;
+    value = value.replace("'", "").replace("\"", "").trim();
+    return value.isEmpty() ? null : value;
+  }
+
+  /**
+   * Address the admin server listens on.
+   */
+  private final String adminBind;
+
+  /**
+   * Port the admin server listens on, or 0 if it is off.
+   */
+  private final int adminPort;
+
+  /**
+   * Number of days after which a date's files are archived.
+   */
+  private final int archiveAfterDays;
+
+  /**
+   * Directory pack files of archived files are kept in.
+   */
+  private final String archiveDir;
+
+  /**
+   * Number of files to download at the same time in batch mode.
+   */
+  private final int concurrency;
+
+  /**
+   * Whether to coordinate with other hosts through lease files.
+   */
+  private final boolean coordination;
+
+  /**
+   * Counter file.
+   */
+  private final String counterFile;
+
+  /**
+   * Field delimiter of the score files.
+   */
+  private final char deltaDelimiter;
+
+  /**
+   * Number of header lines at the top of each score file.
+   */
+  private final int deltaHeaderLines;
+
+  /**
+   * Zero-based indexes of the fields identifying a record, or
+   * <code>null</code> if the delta stage is off.
+   */
+  private final int[] deltaKeyFields;
+
+  /**
+   * Whether to download consecutive files.
+   */
+  private final boolean downloadConsecutiveFiles;
+
+  /**
+   * Smallest file downloaded in segments, in bytes.
+   */
+  private final long downloadSegmentMinSize;
+
+  /**
+   * Number of segments a large file is downloaded in at the same time, or 1
+   * to download every file in one piece.
+   */
+  private final int downloadSegments;
+
+  /**
+   * Faults to inject into every request, or <code>null</code>.
+   */
+  private final String faultInjection;
+
+  /**
+   * File extension of the score files.
+   */
+  private final String fileExtension;
+
+  /**
+   * Number of digits in the file number field of the file name.
+   */
+  private final int fileNumPadding;
+
+  /**
+   * Kind of fingerprint store.
+   */
+  private final String fingerprintStore;
+
+  /**
+   * When downloaded files are flushed to disk.
+   */
+  private final String fsync;
+
+  /**
+   * Number of times a hook delivery is attempted.
+   */
+  private final int hookAttempts;
+
+  /**
+   * Command to run for each new file, or <code>null</code>.
+   */
+  private final String hookCommand;
+
+  /**
+   * Seconds the hook command may run before it is killed.
+   */
+  private final long hookCommandTimeoutSeconds;
+
+  /**
+   * Directory, file or named pipe to drop events into, or
+   * <code>null</code>.
+   */
+  private final String hookDrop;
+
+  /**
+   * Number of events each hook's queue can hold.
+   */
+  private final int hookQueueSize;
+
+  /**
+   * Delay before the first retry of a hook delivery, in seconds.
+   */
+  private final long hookRetryDelaySeconds;
+
+  /**
+   * URL to POST an event to for each new file, or <code>null</code>.
+   */
+  private final String hookUrl;
+
+  /**
+   * Whether the timings of each transfer are kept in the history log.
+   */
+  private final boolean history;
+
+  /**
+   * Number of days the history log is kept.
+   */
+  private final int historyRetentionDays;
+
+  /**
+   * Whether a record index is written next to each downloaded file.
+   */
+  private final boolean index;
+
+  /**
+   * Directory lease files are kept in.
+   */
+  private final String leaseDir;
+
+  /**
+   * Seconds without a heartbeat after which a lease may be taken over.
+   */
+  private final long leaseTtlSeconds;
+
+  /**
+   * Directory to download score files to, ending with a separator.
+   */
+  private final String localFilePath;
+
+  /**
+   * Log format: <code>text</code> or <code>json</code>.
+   */
+  private final String logFormat;
+
+  /**
+   * Lowest level of log messages written.
+   */
+  private final Level logLevel;
+
+  /**
+   * Free space to leave on the file system of the downloads, in bytes.
+   */
+  private final long minFreeSpace;
+
+  /**
+   * Name this host uses in lease files.
+   */
+  private final String nodeId;
+
+  /**
+   * Organization ID.
+   */
+  private final String orgID;
+
+  /**
+   * Password to login with.
+   */
+  private final String password;
+
+  /**
+   * Seconds between polls in daemon mode.
+   */
+  private final long pollIntervalSeconds;
+
+  /**
+   * Whether daemon mode learns when files are published and polls around
+   * those times.
+   */
+  private final boolean prefetch;
+
+  /**
+   * Longest wait between polls outside a publish window, in seconds.
+   */
+  private final long prefetchMaxIdleSeconds;
+
+  /**
+   * Wait between polls inside a publish window, in seconds.
+   */
+  private final long prefetchPollSeconds;
+
+  /**
+   * Seconds before a publish window that the login is refreshed.
+   */
+  private final long prefetchWarmupSeconds;
+
+  /**
+   * Minutes either side of a usual publish time that are polled often.
+   */
+  private final int prefetchWindowMinutes;
+
+  /**
+   * Whether downloads are preallocated at their expected size.
+   */
+  private final boolean preallocate;
+
+  /**
+   * Directory that files failing validation are moved to.
+   */
+  private final String quarantineDir;
+
+  /**
+   * Share of the download queue the organization gets.
+   */
+  private final int queueWeight;
+
+  /**
+   * Number of times a request is tried before giving up.
+   */
+  private final int requestAttempts;
+
+  /**
+   * Wait before the first retry of a request, in seconds.
+   */
+  private final double requestRetryDelaySeconds;
+
+  /**
+   * Highest rate of requests to the service, or 0 for no limit.
+   */
+  private final double requestsPerSecond;
+
+  /**
+   * Root URL of the scores download site.
+   */
+  private final String scoredwnldUrlRoot;
+
+  /**
+   * Directory for SATdownload's own state files.
+   */
+  private final String stateDir;
+
+  /**
+   * File to append traces to, or <code>null</code>.
+   */
+  private final String traceFile;
+
+  /**
+   * Share of traces exported at random, from 0 to 1.
+   */
+  private final double traceSampleRate;
+
+  /**
+   * Seconds after which a trace is always exported, or 0 for never.
+   */
+  private final long traceSlowSeconds;
+
+  /**
+   * OTLP/HTTP endpoint to send traces to, or <code>null</code>.
+   */
+  private final String traceUrl;
+
+  /**
+   * Name of the HTTP transport.
+   */
+  private final String transport;
+
+  /**
+   * Username to login with.
+   */
+  private final String username;
+
+  /**
+   * Whether downloaded files are validated.
+   */
+  private final boolean validate;
+
+  /**
+   * Number of bytes each validation task checks.
+   */
+  private final int validateChunkSize;
+
+  /**
+   * Number of fields every record must have, or 0 to use the number in
+   * the first record.
+   */
+  private final int validateFieldCount;
+
+  /**
+   * Number of threads that validate files, or 0 to use the common
+   * fork/join pool.
+   */
+  private final int validateParallelism;
+
+  /**
+   * Problems found while parsing. Only used during construction.
+   */
+  private final List<String> problems;
+
+  /**
+   * Options the config was parsed from. Kept so {@link #with(String, String)}
+   * can parse them again with one changed.
+   */
+  private final Properties props;
+
+  /**
+   * Org ID of the tenant being parsed, or <code>null</code> for the top
+   * level. Only used during construction.
+   */
+  private final String tenant;
+
+  /**
+   * Every organization in the file, starting with this one. Only set on the
+   * top-level config.
+   */
+  private List<Config> tenants;
+
+  /**
+   * Parse the options of one organization.
+   * 
+   * @param props Options
+   * @param tenant Org ID of a tenant, or <code>null</code> for the top level
+   * @param primary Top-level config when parsing a tenant, else
+   *          <code>null</code>
+   * @param problems List to add problems to
+   */
+  private Config(Properties props, String tenant, Config primary,
+      List<String> problems) {
+    this.props = props;
+    this.tenant = tenant;
+    this.problems = problems;
+
+    // Login and organization
+    scoredwnldUrlRoot = url("scoredwnldUrlRoot",
+        "https://scoresdownload.collegeboard.org", true);
+    username = required("username");
+    password = required("password");
+    orgID = tenant != null ? tenant : required("orgID");
+
+    // Files; each tenant needs its own directory and counter file, so these
+    // are not inherited
+    String path = tenant == null ? required("localFilePath")
+        : own("localFilePath", primary.localFilePath == null ? null
+            : primary.localFilePath + tenant);
+    localFilePath = path == null ? null
+        : path.endsWith(File.separator) ? path : path + File.separator;
+    counterFile = tenant == null ? string("counterFile", "SATdownload.counter")
+        : own("counterFile", primary.counterFile + "." + tenant);
+    String extension = string("fileExtension", "txt");
+    fileExtension = extension.startsWith(".") ? extension.substring(1)
+        : extension;
+    fileNumPadding = integer("fileNumPadding", 6, 1, 18);
+    downloadConsecutiveFiles = bool("downloadConsecutiveFiles", true);
+    downloadSegments = integer("downloadSegments", 4, 1, 32);
+    downloadSegmentMinSize = longInteger("downloadSegmentMinSize", 64 << 20,
+        1);
+
+    // Disk space and durability
+    minFreeSpace = longInteger("minFreeSpace", 0, 0);
+    preallocate = bool("preallocate", true);
+    fsync = choice("fsync", FSYNC_FILE, FSYNC_FILE, FSYNC_BATCH, FSYNC_NONE);
+    stateDir = string("stateDir", localFilePath + ".satdownload");
+
+    // Transport and logging
+    transport = choice("transport", Transports.JERSEY, Transports.JERSEY,
+        Transports.HTTPCLIENT);
+    requestsPerSecond = decimal("requestsPerSecond", 0);
+    requestAttempts = integer("requestAttempts", 3, 1, 100);
+    requestRetryDelaySeconds = decimal("requestRetryDelaySeconds", 1);
+    faultInjection = string("faultInjection", null);
+    if (faultInjection != null) {
+      try {
+        FaultProfile.parse(faultInjection);
+      } catch (IllegalArgumentException e) {
+        problem("faultInjection", e.getMessage());
+      }
+    }
+    String level = choice("logLevel", "INFO", "DEBUG", "INFO", "WARN",
+        "ERROR");
+    logLevel = level == null ? Level.INFO : Level.valueOf(level);
+    logFormat = choice("logFormat", "text", "text", "json");
+
+    // Tracing
+    traceFile = string("traceFile", null);
+    traceUrl = url("traceUrl", null, false);
+    traceSampleRate = decimal("traceSampleRate", 1);
+    if (traceSampleRate > 1)
+      problem("traceSampleRate", "must be between 0 and 1, not "
+          + traceSampleRate);
+    traceSlowSeconds = longInteger("traceSlowSeconds", 10, 0);
+
+    // Coordination and concurrency
+    coordination = bool("coordination", false);
+    leaseDir = string("leaseDir", localFilePath);
+    leaseTtlSeconds = longInteger("leaseTtlSeconds", 120, 1);
+    nodeId = string("nodeId", LeaseManager.defaultNodeId());
+    concurrency = integer("concurrency", 4, 1, 256);
+    queueWeight = integer("queueWeight", 1, 1, 1000);
+
+    // Delta stage
+    int[] keyFields = null;
+    String fields = string("deltaKeyFields", null);
+    if (fields != null) {
+      try {
+        keyFields = DeltaExtractor.parseFields(fields);
+      } catch (NumberFormatException e) {
+        problem("deltaKeyFields", "must be a list of field numbers, not "
+            + fields);
+      }
+    }
+    deltaKeyFields = keyFields;
+    String delimiter = string("deltaDelimiter", ",");
+    if (delimiter.length() != 1 || delimiter.charAt(0) > 0x7f)
+      problem("deltaDelimiter", "must be a single ASCII character");
+    deltaDelimiter = delimiter.charAt(0);
+    deltaHeaderLines = integer("deltaHeaderLines", 0, 0, Integer.MAX_VALUE);
+    fingerprintStore = choice("fingerprintStore", FINGERPRINT_STORE_MAPPED,
+        FINGERPRINT_STORE_MAPPED, FINGERPRINT_STORE_MEMORY);
+
+    // Validation stage
+    validate = bool("validate", true);
+    validateFieldCount = integer("validateFieldCount", 0, 0,
+        Integer.MAX_VALUE);
+    validateChunkSize = integer("validateChunkSize", 8 << 20, 4096,
+        Integer.MAX_VALUE);
+    validateParallelism = integer("validateParallelism", 0, 0, 256);
+    quarantineDir = string("quarantineDir",
+        new File(stateDir, "quarantine").getPath());
+
+    // Hooks
+    hookCommand = string("hookCommand", null);
+    hookCommandTimeoutSeconds = longInteger("hookCommandTimeoutSeconds", 60,
+        1);
+    hookUrl = url("hookUrl", null, false);
+    hookDrop = string("hookDrop", null);
+    hookQueueSize = integer("hookQueueSize", 100, 1, 1000000);
+    hookAttempts = integer("hookAttempts", 5, 1, 100);
+    hookRetryDelaySeconds = longInteger("hookRetryDelaySeconds", 2, 0);
+
+    // Transfer history
+    history = bool("history", true);
+    historyRetentionDays = integer("historyRetentionDays", 400, 1, 3650);
+
+    // Record index for readers
+    index = bool("index", true);
+
+    // Archive of past dates
+    archiveAfterDays = integer("archiveAfterDays", 30, 1, 3650);
+    archiveDir = string("archiveDir", localFilePath + "archive");
+
+    // Admin server and daemon mode
+    adminPort = integer("adminPort", 0, 0, 65535);
+    adminBind = string("adminBind", "127.0.0.1");
+    pollIntervalSeconds = longInteger("pollIntervalSeconds", 300, 1);
+
+    // Polling around the usual publish times
+    prefetch = bool("prefetch", true);
+    prefetchWindowMinutes = integer("prefetchWindowMinutes", 20, 1, 720);
+    prefetchPollSeconds = longInteger("prefetchPollSeconds", 30, 1);
+    prefetchWarmupSeconds = longInteger("prefetchWarmupSeconds", 60, 0);
+    prefetchMaxIdleSeconds = longInteger("prefetchMaxIdleSeconds", 1800, 1);
+  }
+
+  /**
+   * Get the address the admin server listens on.
+   * 
+   * @return the address
+   */
+  public String getAdminBind() {
+    return adminBind;
+  }
+
+  /**
+   * Get the port the admin server listens on.
+   * 
+   * @return the port, or 0 if the admin server is off
+   */
+  public int getAdminPort() {
+    return adminPort;
+  }
+
+  /**
+   * Get the number of days after which a date's files are archived.
+   * 
+   * @return Number of days
+   */
+  public int getArchiveAfterDays() {
+    return archiveAfterDays;
+  }
+
+  /**
+   * Get the directory pack files of archived files are kept in.
+   * 
+   * @return the directory
+   */
+  public String getArchiveDir() {
+    return archiveDir;
+  }
+
+  /**
+   * Get the number of files to download at the same time in batch mode.
+   * 
+   * @return the concurrency
+   */
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Get the counter file.
+   * 
+   * @return the path of the counter file
+   */
+  public String getCounterFile() {
+    return counterFile;
+  }
+
+  /**
+   * Get the field delimiter of the score files.
+   * 
+   * @return the delimiter
+   */
+  public char getDeltaDelimiter() {
+    return deltaDelimiter;
+  }
+
+  /**
+   * Get the number of header lines at the top of each score file.
+   * 
+   * @return the number of header lines
+   */
+  public int getDeltaHeaderLines() {
+    return deltaHeaderLines;
+  }
+
+  /**
+   * Get the zero-based indexes of the fields identifying a record.
+   * 
+   * @return the field indexes, or <code>null</code> if the delta stage is
+   *         off
+   */
+  public int[] getDeltaKeyFields() {
+    return deltaKeyFields == null ? null : deltaKeyFields.clone();
+  }
+
+  /**
+   * Get the size of the smallest file downloaded in segments.
+   * 
+   * @return the size in bytes
+   */
+  public long getDownloadSegmentMinSize() {
+    return downloadSegmentMinSize;
+  }
+
+  /**
+   * Get the number of segments a large file is downloaded in at the same
+   * time.
+   * 
+   * @return the number of segments, or 1 if files are downloaded in one
+   *         piece
+   */
+  public int getDownloadSegments() {
+    return downloadSegments;
+  }
+
+  /**
+   * Get the faults to inject into every request, for testing.
+   * 
+   * @return a fault profile (see {@link FaultProfile}), or <code>null</code>
+   *         for none
+   */
+  public String getFaultInjection() {
+    return faultInjection;
+  }
+
+  /**
+   * Get the file extension of the score files.
+   * 
+   * @return the file extension
+   */
+  public String getFileExtension() {
+    return fileExtension;
+  }
+
+  /**
+   * Get the number of digits in the file number field of the file name.
+   * 
+   * @return the number of digits
+   */
+  public int getFileNumPadding() {
+    return fileNumPadding;
+  }
+
+  /**
+   * Get the kind of fingerprint store.
+   * 
+   * @return {@link #FINGERPRINT_STORE_MAPPED} or
+   *         {@link #FINGERPRINT_STORE_MEMORY}
+   */
+  public String getFingerprintStore() {
+    return fingerprintStore;
+  }
+
+  /**
+   * Get when downloaded files are flushed to disk.
+   * 
+   * @return {@link #FSYNC_FILE}, {@link #FSYNC_BATCH} or {@link #FSYNC_NONE}
+   */
+  public String getFsync() {
+    return fsync;
+  }
+
+  /**
+   * Get the number of times a hook delivery is attempted.
+   * 
+   * @return the number of attempts
+   */
+  public int getHookAttempts() {
+    return hookAttempts;
+  }
+
+  /**
+   * Get the command to run for each new file.
+   * 
+   * @return the command, or <code>null</code>
+   */
+  public String getHookCommand() {
+    return hookCommand;
+  }
+
+  /**
+   * Get the number of seconds the hook command may run.
+   * 
+   * @return the timeout
+   */
+  public long getHookCommandTimeoutSeconds() {
+    return hookCommandTimeoutSeconds;
+  }
+
+  /**
+   * Get the directory, file or named pipe to drop events into.
+   * 
+   * @return the path, or <code>null</code>
+   */
+  public String getHookDrop() {
+    return hookDrop;
+  }
+
+  /**
+   * Get the number of events each hook's queue can hold.
+   * 
+   * @return the queue size
+   */
+  public int getHookQueueSize() {
+    return hookQueueSize;
+  }
+
+  /**
+   * Get the delay before the first retry of a hook delivery.
+   * 
+   * @return the delay in seconds
+   */
+  public long getHookRetryDelaySeconds() {
+    return hookRetryDelaySeconds;
+  }
+
+  /**
+   * Get the URL to POST an event to for each new file.
+   * 
+   * @return the URL, or <code>null</code>
+   */
+  public String getHookUrl() {
+    return hookUrl;
+  }
+
+  /**
+   * Get the number of days the history log is kept.
+   * 
+   * @return the number of days
+   */
+  public int getHistoryRetentionDays() {
+    return historyRetentionDays;
+  }
+
+  /**
+   * Get the directory lease files are kept in.
+   * 
+   * @return the directory
+   */
+  public String getLeaseDir() {
+    return leaseDir;
+  }
+
+  /**
+   * Get the number of seconds without a heartbeat after which a lease may
+   * be taken over.
+   * 
+   * @return the lease TTL
+   */
+  public long getLeaseTtlSeconds() {
+    return leaseTtlSeconds;
+  }
+
+  /**
+   * Get the directory to download score files to.
+   * 
+   * @return the directory, ending with a separator
+   */
+  public String getLocalFilePath() {
+    return localFilePath;
+  }
+
+  /**
+   * Get the log format.
+   * 
+   * @return <code>text</code> or <code>json</code>
+   */
+  public String getLogFormat() {
+    return logFormat;
+  }
+
+  /**
+   * Get the log level.
+   * 
+   * @return the log level
+   */
+  public Level getLogLevel() {
+    return logLevel;
+  }
+
+  /**
+   * Get the free space to leave on the file system of the downloads.
+   * 
+   * @return the free space in bytes
+   */
+  public long getMinFreeSpace() {
+    return minFreeSpace;
+  }
+
+  /**
+   * Get the name this host uses in lease files.
+   * 
+   * @return the node ID
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Get the organization ID.
+   * 
+   * @return the organization ID
+   */
+  public String getOrgID() {
+    return orgID;
+  }
+
+  /**
+   * Get the password to login with.
+   * 
+   * @return the password
+   */
+  public String getPassword() {
+    return password;
+  }
+
+  /**
+   * Get the number of seconds between polls in daemon mode.
+   * 
+   * @return the poll interval
+   */
+  public long getPollIntervalSeconds() {
+    return pollIntervalSeconds;
+  }
+
+  /**
+   * Get the longest wait between polls outside a publish window.
+   * 
+   * @return the wait in seconds
+   */
+  public long getPrefetchMaxIdleSeconds() {
+    return prefetchMaxIdleSeconds;
+  }
+
+  /**
+   * Get the wait between polls inside a publish window.
+   * 
+   * @return the wait in seconds
+   */
+  public long getPrefetchPollSeconds() {
+    return prefetchPollSeconds;
+  }
+
+  /**
+   * Get how long before a publish window the login is refreshed.
+   * 
+   * @return the time in seconds
+   */
+  public long getPrefetchWarmupSeconds() {
+    return prefetchWarmupSeconds;
+  }
+
+  /**
+   * Get how far either side of a usual publish time is polled often.
+   * 
+   * @return the margin in minutes
+   */
+  public int getPrefetchWindowMinutes() {
+    return prefetchWindowMinutes;
+  }
+
+  /**
+   * Get the directory that files failing validation are moved to.
+   * 
+   * @return the directory
+   */
+  public String getQuarantineDir() {
+    return quarantineDir;
+  }
+
+  /**
+   * Get the share of the download queue the organization gets.
+   * 
+   * @return the weight
+   */
+  public int getQueueWeight() {
+    return queueWeight;
+  }
+
+  /**
+   * Get the number of times a request is tried before giving up.
+   * 
+   * @return the number of attempts
+   */
+  public int getRequestAttempts() {
+    return requestAttempts;
+  }
+
+  /**
+   * Get the wait before the first retry of a request. The wait doubles for
+   * each retry after that.
+   * 
+   * @return the wait in seconds
+   */
+  public double getRequestRetryDelaySeconds() {
+    return requestRetryDelaySeconds;
+  }
+
+  /**
+   * Get the highest rate of requests to the service.
+   * 
+   * @return Requests per second, or 0 for no limit
+   */
+  public double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  /**
+   * Get the root URL of the scores download site.
+   * 
+   * @return the URL
+   */
+  public String getScoredwnldUrlRoot() {
+    return scoredwnldUrlRoot;
+  }
+
+  /**
+   * Get the directory for SATdownload's own state files.
+   * 
+   * @return the directory
+   */
+  public String getStateDir() {
+    return stateDir;
+  }
+
+  /**
+   * Get every organization in the config file.
+   * 
+   * @return Configs of the top-level organization followed by the tenants
+   */
+  public List<Config> getTenants() {
+    return tenants == null ? Collections.singletonList(this) : tenants;
+  }
+
+  /**
+   * Get the file traces are appended to.
+   * 
+   * @return the path, or <code>null</code> if traces are not written to a
+   *         file
+   */
+  public String getTraceFile() {
+    return traceFile;
+  }
+
+  /**
+   * Get the share of traces exported at random.
+   * 
+   * @return the rate, from 0 to 1
+   */
+  public double getTraceSampleRate() {
+    return traceSampleRate;
+  }
+
+  /**
+   * Get the time after which a trace is always exported.
+   * 
+   * @return the time in seconds, or 0 if slow traces are only exported when
+   *         sampled
+   */
+  public long getTraceSlowSeconds() {
+    return traceSlowSeconds;
+  }
+
+  /**
+   * Get the OTLP/HTTP endpoint traces are sent to.
+   * 
+   * @return the URL, or <code>null</code> if traces are not sent
+   */
+  public String getTraceUrl() {
+    return traceUrl;
+  }
+
+  /**
+   * Get the name of the HTTP transport.
+   * 
+   * @return the transport name (see {@link Transports})
+   */
+  public String getTransport() {
+    return transport;
+  }
+
+  /**
+   * Get the username to login with.
+   * 
+   * @return the username
+   */
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * Get the number of bytes each validation task checks.
+   * 
+   * @return the chunk size
+   */
+  public int getValidateChunkSize() {
+    return validateChunkSize;
+  }
+
+  /**
+   * Get the number of fields every record must have.
+   * 
+   * @return the number of fields, or 0 to use the number in the first record
+   */
+  public int getValidateFieldCount() {
+    return validateFieldCount;
+  }
+
+  /**
+   * Get the number of threads that validate files.
+   * 
+   * @return the number of threads, or 0 to use the common fork/join pool
+   */
+  public int getValidateParallelism() {
+    return validateParallelism;
+  }
+
+  /**
+   * Check if hosts coordinate through lease files.
+   * 
+   * @return TRUE if coordination is on
+   */
+  public boolean isCoordination() {
+    return coordination;
+  }
+
+  /**
+   * Check if consecutive files should be downloaded.
+   * 
+   * @return TRUE if consecutive files should be downloaded
+   */
+  public boolean isDownloadConsecutiveFiles() {
+    return downloadConsecutiveFiles;
+  }
+
+  /**
+   * Check if the timings of each transfer are kept in the history log.
+   * 
+   * @return TRUE if they are kept
+   */
+  public boolean isHistory() {
+    return history;
+  }
+
+  /**
+   * Check if a record index is written next to each downloaded file.
+   * 
+   * @return TRUE if indexes are written
+   */
+  public boolean isIndex() {
+    return index;
+  }
+
+  /**
+   * Check if daemon mode polls around the usual publish times.
+   * 
+   * @return TRUE if it does
+   */
+  public boolean isPrefetch() {
+    return prefetch;
+  }
+
+  /**
+   * Check if downloads are preallocated at their expected size.
+   * 
+   * @return TRUE if they are
+   */
+  public boolean isPreallocate() {
+    return preallocate;
+  }
+
+  /**
+   * Check if downloaded files are validated.
+   * 
+   * @return TRUE if files are validated
+   */
+  public boolean isValidate() {
+    return validate;
+  }
+
+  /**
+   * Make a copy of this config with one option changed, as if the config
+   * file had been edited and reloaded. A tenant's own copy of the option is
+   * changed.
+   * 
+   * @param key Option name
+   * @param value New value
+   * @return Config of the same organization with the option changed
+   * @throws ConfigException if the new value is not valid
+   */
+  public Config with(String key, String value) throws ConfigException {
+    Properties changed = new Properties();
+    changed.putAll(props);
+    changed.setProperty(tenant != null ? tenantKey(key) : key, value);
+    Config primary = parse(changed, key + "=" + value);
+    for (Config config : primary.getTenants())
+      if (config.orgID.equals(orgID))
+        return config;
+    return primary;
+  }
+
+  /**
+   * Read a true/false option.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @return Value of the option
+   */
+  private boolean bool(String key, boolean def) {
+    String value = raw(key);
+    if (value == null)
+      return def;
+    if (value.equalsIgnoreCase("true"))
+      return true;
+    if (!value.equalsIgnoreCase("false"))
+      problem(key, "must be true or false, not " + value);
+    return false;
+  }
+
+  /**
+   * Read an option that must be one of a set of values, ignoring case.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @param choices Allowed values
+   * @return Value of the option, as spelled in <code>choices</code>
+   */
+  private String choice(String key, String def, String... choices) {
+    String value = raw(key);
+    if (value == null)
+      return def;
+    for (String choice : choices) {
+      if (choice.equalsIgnoreCase(value))
+        return choice;
+    }
+    problem(key, "must be one of " + Arrays.toString(choices) + ", not "
+        + value);
+    return def;
+  }
+
+  /**
+   * Read a non-negative decimal option.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @return Value of the option
+   */
+  private double decimal(String key, double def) {
+    String value = raw(key);
+    if (value == null)
+      return def;
+    try {
+      double d = Double.parseDouble(value);
+      if (d >= 0 && !Double.isInfinite(d))
+        return d;
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    problem(key, "must be a number of at least 0, not " + value);
+    return def;
+  }
+
+  /**
+   * Read a whole-number option.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @param min Smallest allowed value
+   * @param max Largest allowed value
+   * @return Value of the option
+   */
+  private int integer(String key, int def, int min, int max) {
+    return (int) longInteger(key, def, min, max);
+  }
+
+  /**
+   * Read a whole-number option with no upper limit.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @param min Smallest allowed value
+   * @return Value of the option
+   */
+  private long longInteger(String key, long def, long min) {
+    return longInteger(key, def, min, Long.MAX_VALUE);
+  }
+
+  /**
+   * Read a whole-number option.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @param min Smallest allowed value
+   * @param max Largest allowed value
+   * @return Value of the option
+   */
+  private long longInteger(String key, long def, long min, long max) {
+    String value = raw(key);
+    if (value == null)
+      return def;
+    try {
+      long n = Long.parseLong(value);
+      if (n >= min && n <= max)
+        return n;
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    problem(key, "must be a whole number"
+        + (max == Long.MAX_VALUE || max == Integer.MAX_VALUE
+            ? " of at least " + min : " from " + min + " to " + max)
+        + ", not " + value);
+    return def;
+  }
+
+  /**
+   * Read a text option that tenants do not inherit.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @return Value of the option
+   */
+  private String own(String key, String def) {
+    String value = clean(
+        props.getProperty(tenant != null ? tenantKey(key) : key));
+    return value == null ? def : value;
+  }
+
+  /**
+   * Record a problem with an option.
+   * 
+   * @param key Option name
+   * @param message What is wrong with it
+   */
+  private void problem(String key, String message) {
+    // A tenant's inherited values have already been checked at the top level
+    if (tenant == null)
+      problems.add(key + ": " + message);
+    else if (props.getProperty(tenantKey(key)) != null)
+      problems.add(tenantKey(key) + ": " + message);
+  }
+
+  /**
+   * Read an option as written, preferring the tenant's own value.
+   * 
+   * @param key Option name
+   * @return Cleaned value, or <code>null</code> if it is not set
+   */
+  private String raw(String key) {
+    if (tenant != null) {
+      String value = clean(props.getProperty(tenantKey(key)));
+      if (value != null)
+        return value;
+    }
+    return clean(props.getProperty(key));
+  }
+
+  /**
+   * Read an option that must be set.
+   * 
+   * @param key Option name
+   * @return Value of the option, or <code>null</code> if it is missing
+   */
+  private String required(String key) {
+    String value = raw(key);
+    if (value == null)
+      problem(key, "is required");
+    return value;
+  }
+
+  /**
+   * Read a text option.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @return Value of the option
+   */
+  private String string(String key, String def) {
+    String value = raw(key);
+    return value == null ? def : value;
+  }
+
+  /**
+   * Get the name of a tenant's own copy of an option.
+   * 
+   * @param key Option name
+   * @return <code>tenant.ORGID.key</code>
+   */
+  private String tenantKey(String key) {
+    return "tenant." + tenant + "." + key;
+  }
+
+  /**
+   * Read an option that must be an http or https URL.
+   * 
+   * @param key Option name
+   * @param def Default value
+   * @param stripSlash TRUE to remove a trailing slash
+   * @return Value of the option
+   */
+  private String url(String key, String def, boolean stripSlash) {
+    String value = raw(key);
+    if (value == null)
+      return def;
+    try {
+      URI uri = new URI(value);
+      if (("http".equalsIgnoreCase(uri.getScheme())
+          || "https".equalsIgnoreCase(uri.getScheme()))
+          && uri.getHost() != null) {
+        return stripSlash && value.endsWith("/")
+            ? value.substring(0, value.length() - 1) : value;
+      }
+    } catch (URISyntaxException e) {
+      // Reported below
+    }
+    problem(key, "must be an http or https URL, not " + value);
+    return def;
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link Config#load(java.io.File)} when the config file has
+ * missing or invalid options. Every problem found is reported, not just the
+ * first one.
+ */
+public class ConfigException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Description of each problem.
+   */
+  private final List<String> problems;
+
+  /**
+   * Create a new ConfigException.
+   * 
+   * @param fileName Config file
+   * @param problems Description of each problem
+   */
+  public ConfigException(String fileName, List<String> problems) {
+    super(format(fileName, problems));
+    this.problems = Collections
+        .unmodifiableList(new ArrayList<String>(problems));
+  }
+
+  /**
+   * Build the message of the exception.
+   * 
+   * @param fileName Config file
+   * @param problems Description of each problem
+   * @return Message listing every problem on its own line
+   */
+  private static String format(String fileName, List<String> problems) {
+    StringBuilder msg = new StringBuilder();
+    msg.append(problems.size()).append(" problem(s) in config file ")
+        .append(fileName).append(':');
+    for (String problem : problems)
+      msg.append("\n  ").append(problem);
+    return msg.toString();
+  }
+
+  /**
+   * Get the problems found.
+   * 
+   * @return Description of each problem
+   */
+  public List<String> getProblems() {
+    return problems;
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.config;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Watches a config file and reloads it when it changes, so that tuning
+ * changes take effect without a restart.
+ * </p>
+ * <p>
+ * The directory holding the file is watched rather than the file itself, so
+ * editors that save by writing a new file and renaming it over the old one
+ * are noticed too. Changes are only acted on after the file has been quiet
+ * for a short while, so a half-written file is not loaded. A file with
+ * problems is reported and ignored; the previous config stays in effect.
+ * </p>
+ */
+public class ConfigWatcher implements Runnable {
+
+  /**
+   * Time the file must be unchanged before it is reloaded, in milliseconds.
+   */
+  private static final long QUIET_MILLIS = 500;
+
+  /**
+   * Config file.
+   */
+  private final File file;
+
+  /**
+   * Told about each valid new config.
+   */
+  private final Listener listener;
+
+  /**
+   * Thread running the watcher.
+   */
+  private final Thread thread;
+
+  /**
+   * Watch service for the file's directory.
+   */
+  private final WatchService watcher;
+
+  /**
+   * Start watching a config file.
+   * 
+   * @param file Config file
+   * @param listener Told about each valid new config
+   * @throws IOException if the directory could not be watched
+   */
+  public ConfigWatcher(File file, Listener listener) throws IOException {
+    this.file = file.getAbsoluteFile();
+    this.listener = listener;
+    this.watcher = FileSystems.getDefault().newWatchService();
+    this.file.getParentFile().toPath().register(watcher,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    this.thread = new Thread(this, "config-watcher");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Stop watching.
+   */
+  public void close() {
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      // Nothing useful can be done
+    }
+    thread.interrupt();
+  }
+
+  //@Override
+  public void run() {
+    Path name = file.toPath().getFileName();
+    try {
+      while (true) {
+        if (!isChanged(watcher.take(), name))
+          continue;
+        // Wait for the writer to finish
+        WatchKey key;
+        while ((key = watcher.poll(QUIET_MILLIS,
+            TimeUnit.MILLISECONDS)) != null)
+          isChanged(key, name);
+        reload();
+      }
+    } catch (InterruptedException e) {
+      // Stopped
+    } catch (ClosedWatchServiceException e) {
+      // Stopped
+    }
+  }
+
+  /**
+   * Check the events of a watch key for the config file and reset the key.
+   * 
+   * @param key Signalled key
+   * @param name Name of the config file
+   * @return TRUE if the config file was among the changed files
+   */
+  private boolean isChanged(WatchKey key, Path name) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (name.equals(event.context()))
+        changed = true;
+    }
+    key.reset();
+    return changed;
+  }
+
+  /**
+   * Load the config file and pass it on if it is valid.
+   */
+  private void reload() {
+    try {
+      Config config = Config.load(file);
+      Log.info("Reloading config file " + file);
+      listener.configChanged(config);
+    } catch (FileNotFoundException e) {
+      // Probably being replaced; the next event will bring it back
+    } catch (ConfigException e) {
+      Log.warn(e.getMessage() + "\nKeeping the previous config", null);
+    } catch (IOException e) {
+      Log.warn("Could not reload config file " + file + ": " + e.getMessage()
+          + "; keeping the previous config", e);
+    } catch (RuntimeException e) {
+      Log.error("Error applying config file " + file, e);
+    }
+  }
+
+  /**
+   * Told when the config file has changed.
+   */
+  public interface Listener {
+
+    /**
+     * Apply a new config.
+     * 
+     * @param config New config, already checked
+     */
+    void configChanged(Config config);
+  }
+}
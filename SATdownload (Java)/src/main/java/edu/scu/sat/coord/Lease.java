@@ -0,0 +1,143 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.coord;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+
+import edu.scu.sat.log.Log;
+
+/**
+ * A lease on one organization and date handed out by {@link LeaseManager}.
+ * Work covered by the lease, including writing the counter file, should
+ * only be done while {@link #isValid()} returns TRUE.
+ */
+public class Lease implements Runnable {
+
+  /**
+   * Lease file.
+   */
+  private final File file;
+
+  /**
+   * Heartbeat task; set by the manager once scheduled.
+   */
+  volatile ScheduledFuture<?> heartbeat;
+
+  /**
+   * Time of the last successful heartbeat.
+   */
+  private volatile long lastHeartbeat;
+
+  /**
+   * Set once the lease has been lost or released.
+   */
+  private volatile boolean lost;
+
+  /**
+   * Manager that handed the lease out.
+   */
+  private final LeaseManager manager;
+
+  /**
+   * Create a new Lease.
+   * 
+   * @param manager Manager that handed the lease out
+   * @param file Lease file
+   * @param acquired Time the lease was claimed
+   */
+  Lease(LeaseManager manager, File file, long acquired) {
+    this.manager = manager;
+    this.file = file;
+    this.lastHeartbeat = acquired;
+  }
+
+  /**
+   * Get the name of the lease file.
+   * 
+   * @return Name of the lease file
+   */
+  public String getName() {
+    return file.getName();
+  }
+
+  /**
+   * Check if the lease is still held. A lease is lost if another node took
+   * it over or if the heartbeat could not be written for longer than the
+   * TTL.
+   * 
+   * @return TRUE if the lease is still held
+   */
+  public boolean isValid() {
+    if (!lost && System.currentTimeMillis()
+        - lastHeartbeat >= manager.getTtlMillis()) {
+      Log.error("Lease " + getName() + " expired without a heartbeat", null);
+      lost = true;
+    }
+    return !lost;
+  }
+
+  /**
+   * Give the lease up so another node can claim it straight away.
+   */
+  public void release() {
+    if (heartbeat != null)
+      heartbeat.cancel(false);
+    if (lost)
+      return;
+    lost = true;
+    try {
+      manager.renew(file, true);
+      Log.info("Released lease " + getName());
+    } catch (IOException e) {
+      Log.warn("Could not release lease " + getName()
+          + "; it will expire on its own", e);
+    }
+  }
+
+  /**
+   * Renew the heartbeat. Called by the manager's scheduler.
+   */
+  //@Override
+  public void run() {
+    if (lost)
+      return;
+    try {
+      if (manager.renew(file, false)) {
+        lastHeartbeat = System.currentTimeMillis();
+      } else {
+        Log.error("Lease " + getName() + " was taken over by another node",
+            null);
+        lost = true;
+        heartbeat.cancel(false);
+      }
+    } catch (IOException e) {
+      Log.warn("Could not renew lease " + getName(), e);
+    }
+  }
+}
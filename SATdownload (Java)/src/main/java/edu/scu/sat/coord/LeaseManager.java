@@ -0,0 +1,279 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.coord;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Hands out leases on lock files in a shared directory so that several hosts
+ * pointed at the same <code>localFilePath</code> and counter file never work
+ * on the same files. A lease covers one organization and date, i.e. every
+ * file number for that day, and is held by exactly one node at a time.
+ * </p>
+ * <p>
+ * Each lease file holds the ID of the node that owns it and the time of its
+ * last heartbeat. All reads and writes of a lease file happen under an
+ * exclusive <code>FileChannel.lock</code>, so claiming a lease is atomic. The
+ * owner renews the heartbeat in the background; once a heartbeat is older
+ * than the lease TTL (for example because the owning host died) any other
+ * node may take the lease over.
+ * </p>
+ */
+public class LeaseManager {
+
+  /**
+   * Directory the lease files are kept in.
+   */
+  private final File leaseDir;
+
+  /**
+   * ID of this node.
+   */
+  private final String nodeId;
+
+  /**
+   * Thread that renews heartbeats.
+   */
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * How long a lease lasts without a heartbeat, in milliseconds.
+   */
+  private final long ttlMillis;
+
+  /**
+   * Create a new LeaseManager.
+   * 
+   * @param leaseDir Shared directory to keep lease files in
+   * @param nodeId Unique ID of this node
+   * @param ttlSeconds How long a lease lasts without a heartbeat
+   */
+  public LeaseManager(File leaseDir, String nodeId, long ttlSeconds) {
+    this.leaseDir = leaseDir;
+    this.nodeId = nodeId;
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.scheduler = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          //@Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Get a default node ID made of the host name and process ID.
+   * 
+   * @return Default node ID
+   */
+  public static String defaultNodeId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      host = "localhost";
+    }
+    return host + "-" + ProcessHandle.current().pid();
+  }
+
+  /**
+   * Try to claim the lease for an organization and date.
+   * 
+   * @param orgID Organization ID
+   * @param dateString Date (<code>YYYYMMDD</code>)
+   * @return The lease, or <code>null</code> if another live node holds it
+   * @throws IOException if the lease file could not be read or written
+   */
+  public Lease tryAcquire(String orgID, String dateString) throws IOException {
+    if (!leaseDir.isDirectory() && !leaseDir.mkdirs())
+      throw new IOException("Could not create lease directory " + leaseDir);
+
+    File file = new File(leaseDir, orgID + "_" + dateString + ".lease");
+    long now = System.currentTimeMillis();
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE);
+    try {
+      FileLock lock = channel.lock();
+      try {
+        LeaseRecord current = LeaseRecord.read(channel);
+        if (current != null && !current.node.equals(nodeId)
+            && now - current.heartbeat < ttlMillis) {
+          Log.info("Lease " + file.getName() + " is held by " + current.node
+              + " (last heartbeat " + (now - current.heartbeat) / 1000
+              + "s ago)");
+          return null;
+        }
+        if (current != null && !current.node.equals(nodeId))
+          Log.info("Taking over expired lease " + file.getName() + " from "
+              + current.node);
+        new LeaseRecord(nodeId, now).write(channel);
+      } finally {
+        lock.release();
+      }
+    } finally {
+      channel.close();
+    }
+
+    Lease lease = new Lease(this, file, now);
+    long period = Math.max(1000L, ttlMillis / 3);
+    lease.heartbeat = scheduler.scheduleWithFixedDelay(lease, period, period,
+        TimeUnit.MILLISECONDS);
+    Log.info("Acquired lease " + file.getName() + " as " + nodeId);
+    return lease;
+  }
+
+  /**
+   * Stop the heartbeat thread. Leases still held are left to expire.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Rewrite the heartbeat of a lease if this node still owns it.
+   * 
+   * @param file Lease file
+   * @param release TRUE to give the lease up instead of renewing it
+   * @return TRUE if this node still owned the lease
+   * @throws IOException if the lease file could not be read or written
+   */
+  boolean renew(File file, boolean release) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      FileLock lock = channel.lock();
+      try {
+        LeaseRecord current = LeaseRecord.read(channel);
+        if (current == null || !current.node.equals(nodeId))
+          return false;
+        if (release)
+          channel.truncate(0);
+        else
+          new LeaseRecord(nodeId, System.currentTimeMillis()).write(channel);
+        channel.force(true);
+        return true;
+      } finally {
+        lock.release();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Get the lease TTL.
+   * 
+   * @return TTL in milliseconds
+   */
+  long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * Contents of a lease file.
+   */
+  private static final class LeaseRecord {
+
+    /**
+     * Time of the last heartbeat in milliseconds since the epoch.
+     */
+    final long heartbeat;
+
+    /**
+     * ID of the owning node.
+     */
+    final String node;
+
+    LeaseRecord(String node, long heartbeat) {
+      this.node = node;
+      this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Read the lease file.
+     * 
+     * @param channel Open lease file
+     * @return Contents of the file or <code>null</code> if it is empty or
+     *         unreadable
+     * @throws IOException if the file could not be read
+     */
+    static LeaseRecord read(FileChannel channel) throws IOException {
+      long size = channel.size();
+      if (size == 0 || size > 4096)
+        return null;
+      ByteBuffer buf = ByteBuffer.allocate((int) size);
+      channel.read(buf, 0);
+      String node = null;
+      long heartbeat = -1;
+      for (String line : new String(buf.array(), 0, buf.position(),
+          StandardCharsets.UTF_8).split("\n")) {
+        if (line.startsWith("node="))
+          node = line.substring(5).trim();
+        else if (line.startsWith("heartbeat=")) {
+          try {
+            heartbeat = Long.parseLong(line.substring(10).trim());
+          } catch (NumberFormatException e) {
+            return null;
+          }
+        }
+      }
+      return node == null || heartbeat < 0 ? null
+          : new LeaseRecord(node, heartbeat);
+    }
+
+    /**
+     * Replace the contents of the lease file with this record.
+     * 
+     * @param channel Open lease file
+     * @throws IOException if the file could not be written
+     */
+    void write(FileChannel channel) throws IOException {
+      byte[] bytes = ("node=" + node + "\nheartbeat=" + heartbeat + "\n")
+          .getBytes(StandardCharsets.UTF_8);
+      channel.truncate(0);
+      channel.write(ByteBuffer.wrap(bytes), 0);
+      channel.force(true);
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+import edu.scu.sat.store.Hashing;
+import edu.scu.sat.store.LongLongMap;
+import edu.scu.sat.store.OffHeapLongLongMap;
+
+/**
+ * <p>
+ * Writes the records of a score file that are new or have changed since they
+ * were last seen to a sidecar <code>.delta</code> file next to it, so that
+ * downstream processing only has to look at what changed.
+ * </p>
+ * <p>
+ * A record is identified by a 64-bit hash of its key fields (for example the
+ * student ID and test date) and its content by a 64-bit hash of the whole
+ * line. The fingerprint store maps one to the other. Hashes are computed
+ * straight from the bytes of the file; no line is ever turned into a
+ * String.
+ * </p>
+ * <p>
+ * Fields are separated by a single-byte delimiter and may be enclosed in
+ * double quotes, in which case delimiters inside them are ignored.
+ * </p>
+ */
+public class DeltaExtractor {
+
+  /**
+   * Suffix of the sidecar file.
+   */
+  public static final String SUFFIX = ".delta";
+
+  /**
+   * Field delimiter.
+   */
+  private final byte delimiter;
+
+  /**
+   * Number of header lines at the top of each file. They are copied to the
+   * delta file and not fingerprinted.
+   */
+  private final int headerLines;
+
+  /**
+   * Zero-based indexes of the key fields, sorted.
+   */
+  private final int[] keyFields;
+
+  /**
+   * Record key hash to record content hash.
+   */
+  private final LongLongMap store;
+
+  /**
+   * Create a new DeltaExtractor.
+   * 
+   * @param store Fingerprint store to check and update
+   * @param keyFields Zero-based indexes of the fields that identify a record
+   * @param delimiter Field delimiter
+   * @param headerLines Number of header lines at the top of each file
+   */
+  public DeltaExtractor(LongLongMap store, int[] keyFields, char delimiter,
+      int headerLines) {
+    if (keyFields.length == 0)
+      throw new IllegalArgumentException("At least one key field is needed");
+    this.store = store;
+    this.keyFields = keyFields.clone();
+    Arrays.sort(this.keyFields);
+    this.delimiter = (byte) delimiter;
+    this.headerLines = headerLines;
+  }
+
+  /**
+   * Parse a comma-separated list of field indexes.
+   * 
+   * @param list List such as <code>0,3</code>
+   * @return Field indexes
+   * @throws NumberFormatException if an entry is not a non-negative number
+   */
+  public static int[] parseFields(String list) {
+    String[] parts = list.split(",");
+    int[] fields = new int[parts.length];
+    for (int i = 0; i < parts.length; ++i) {
+      fields[i] = Integer.parseInt(parts[i].trim());
+      if (fields[i] < 0)
+        throw new NumberFormatException("Negative field index: " + parts[i]);
+    }
+    return fields;
+  }
+
+  /**
+   * Get the sidecar file for a score file.
+   * 
+   * @param scoreFile Score file
+   * @return Delta file next to it
+   */
+  public static File deltaFileFor(File scoreFile) {
+    return new File(scoreFile.getPath() + SUFFIX);
+  }
+
+  /**
+   * Write the new and changed records of a score file to its delta file and
+   * remember them in the fingerprint store. Only one file is processed at a
+   * time.
+   * 
+   * @param scoreFile Downloaded score file
+   * @return Number of records written to the delta file
+   * @throws IOException if either file could not be read or written
+   */
+  public synchronized long process(File scoreFile) throws IOException {
+    long start = System.nanoTime();
+    File delta = deltaFileFor(scoreFile);
+    File tmp = new File(delta.getPath() + ".tmp");
+
+    long records = 0;
+    long added = 0;
+    long changed = 0;
+    // The store is only updated once the delta file is in place, so a file
+    // that fails halfway leaves it untouched even if it is persistent
+    OffHeapLongLongMap pending = new OffHeapLongLongMap(1024);
+    InputStream in = new BufferedInputStream(new FileInputStream(scoreFile),
+        65536);
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp),
+          65536);
+      try {
+        LineBuffer line = new LineBuffer();
+        int lineNum = 0;
+        while (line.readFrom(in)) {
+          if (lineNum++ < headerLines) {
+            line.writeTo(out);
+            continue;
+          }
+          if (line.isBlank())
+            continue;
+
+          records++;
+          long key = keyHash(line.bytes, line.contentLength);
+          long fingerprint = Hashing.hash(line.bytes, 0, line.contentLength);
+          if (fingerprint == LongLongMap.NO_VALUE)
+            fingerprint++;
+          long previous = pending.put(key, fingerprint);
+          if (previous == LongLongMap.NO_VALUE)
+            previous = store.get(key);
+          if (previous != fingerprint) {
+            if (previous == LongLongMap.NO_VALUE)
+              added++;
+            else
+              changed++;
+            line.writeTo(out);
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    Files.move(tmp.toPath(), delta.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    pending.forEach(new LongLongMap.EntryVisitor() {
+      //@Override
+      public void visit(long key, long value) {
+        store.put(key, value);
+      }
+    });
+    pending.close();
+    store.flush();
+
+    Log.at(Level.INFO).file(scoreFile.getName()).phase("delta")
+        .bytes(delta.length()).duration((System.nanoTime() - start) / 1000000L)
+        .log(records + " record(s): " + added + " new, " + changed
+            + " changed; delta written to " + delta);
+    return added + changed;
+  }
+
+  /**
+   * Hash the key fields of a record.
+   * 
+   * @param line Record
+   * @param length Length of the record without its line terminator
+   * @return Key hash
+   */
+  private long keyHash(byte[] line, int length) {
+    long h = Hashing.SEED;
+    int field = 0;
+    int next = 0;
+    boolean quoted = false;
+    for (int i = 0; i < length && next < keyFields.length; ++i) {
+      byte b = line[i];
+      if (b == '"') {
+        quoted = !quoted;
+      } else if (b == delimiter && !quoted) {
+        if (field == keyFields[next]) {
+          h = Hashing.add(h, delimiter);
+          next++;
+        }
+        field++;
+      } else if (field == keyFields[next]) {
+        h = Hashing.add(h, b);
+      }
+    }
+    return Hashing.finish(h);
+  }
+
+  /**
+   * Reusable buffer holding one line of a file, including its terminator.
+   */
+  private static final class LineBuffer {
+
+    /**
+     * Bytes of the line.
+     */
+    byte[] bytes = new byte[1024];
+
+    /**
+     * Length of the line without its terminator.
+     */
+    int contentLength;
+
+    /**
+     * Length of the line with its terminator.
+     */
+    int length;
+
+    /**
+     * Check if the line is empty or only whitespace.
+     * 
+     * @return TRUE if the line is blank
+     */
+    boolean isBlank() {
+      for (int i = 0; i < contentLength; ++i) {
+        if (bytes[i] != ' ' && bytes[i] != '\t')
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Read the next line.
+     * 
+     * @param in Stream to read
+     * @return FALSE at the end of the stream
+     * @throws IOException if the stream could not be read
+     */
+    boolean readFrom(InputStream in) throws IOException {
+      length = 0;
+      int b;
+      while ((b = in.read()) >= 0) {
+        if (length == bytes.length)
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        bytes[length++] = (byte) b;
+        if (b == '\n')
+          break;
+      }
+      contentLength = length;
+      while (contentLength > 0 && (bytes[contentLength - 1] == '\n'
+          || bytes[contentLength - 1] == '\r'))
+        contentLength--;
+      return length > 0;
+    }
+
+    /**
+     * Write the line, including its terminator.
+     * 
+     * @param out Stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, length);
+    }
+  }
+}
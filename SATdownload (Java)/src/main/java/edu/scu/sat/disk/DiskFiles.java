@@ -0,0 +1,99 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers to lay out downloaded files on disk and flush them to it.
+ */
+public final class DiskFiles {
+
+  /**
+   * Flush a directory, so that files just created or renamed in it survive
+   * a crash. Not every platform can open a directory (Windows cannot, and
+   * does not need to), so failures are ignored.
+   * 
+   * @param dir Directory to flush
+   */
+  public static void forceDirectory(File dir) {
+    try {
+      FileChannel channel = FileChannel.open(dir.toPath(),
+          StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // Not supported here
+    }
+  }
+
+  /**
+   * Flush the contents of a file to disk.
+   * 
+   * @param file File to flush
+   * @throws IOException if the file could not be flushed
+   */
+  public static void force(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.WRITE);
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Create a file of the expected size of a download, so the file system
+   * can give it contiguous space before it is written. The transports write
+   * over the file from the start and then cut it to the size actually
+   * received. Whether space is really set aside depends on the file system;
+   * many Unix file systems create a sparse file instead.
+   * 
+   * @param file File to create; any existing file is cut to the size
+   * @param size Expected size in bytes
+   * @throws IOException if the file could not be created
+   */
+  public static void preallocate(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private DiskFiles() {
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Admission control for downloads based on the free space of the file
+ * system they are written to. Before a transfer starts, its expected size is
+ * reserved on the file system; the transfer may start only if the usable
+ * space, less the space reserved by transfers already in progress and the
+ * file itself, stays at or above a floor. One gate is shared by everything
+ * that downloads, and each caller gives its own floor. Otherwise it waits
+ * for the other transfers to finish, and fails if there are none to wait
+ * for.
+ * </p>
+ * <p>
+ * The bytes a transfer has already written come out of the usable space, so
+ * a reservation only holds the part of the file not yet on disk: by default
+ * what its length does not cover yet, or, once the caller reports progress
+ * with {@link Reservation#setWritten(long)}, what has not been written yet.
+ * A preallocated file's length says nothing about what has been written, so
+ * its caller reports progress instead; where preallocating already takes
+ * the space, the check errs on the side of caution until the file is done.
+ * </p>
+ */
+public class FreeSpaceGate {
+
+  /**
+   * How often a waiting transfer checks the free space again, in
+   * milliseconds, in case other programs have freed some.
+   */
+  private static final long RECHECK_MILLIS = 10000;
+
+  /**
+   * Reservations held on each file system by transfers in progress.
+   */
+  private final Map<FileStore, List<Reservation>> reserved =
+      new HashMap<FileStore, List<Reservation>>();
+
+  /**
+   * Reserve space for a file, waiting for transfers in progress to finish if
+   * there is not enough.
+   * 
+   * @param file File that will be written
+   * @param name Name of the file, for messages
+   * @param bytes Expected size of the file, or -1 if it is not known
+   * @param floor Free space to leave on the file system, in bytes
+   * @return Reservation to release once the file has been written
+   * @throws InsufficientSpaceException if there is not enough space even
+   *           with no other transfers in progress
+   * @throws InterruptedIOException if interrupted while waiting
+   * @throws IOException if the free space could not be found out
+   */
+  public Reservation reserve(File file, String name, long bytes, long floor)
+      throws IOException {
+    FileStore store = Files.getFileStore(file.getAbsoluteFile()
+        .getParentFile().toPath());
+    long size = Math.max(0, bytes);
+    boolean logged = false;
+    synchronized (this) {
+      while (true) {
+        long held = held(store);
+        long usable = store.getUsableSpace();
+        if (usable - held - size >= floor) {
+          Reservation reservation = new Reservation(store, file, size);
+          List<Reservation> list = reserved.get(store);
+          if (list == null) {
+            list = new ArrayList<Reservation>();
+            reserved.put(store, list);
+          }
+          list.add(reservation);
+          return reservation;
+        }
+        if (!reserved.containsKey(store))
+          throw new InsufficientSpaceException(name + " needs " + size
+              + " bytes but " + store + " has " + usable
+              + " bytes free and must keep " + floor);
+        if (!logged) {
+          Log.info("Waiting for other transfers to finish before " + name
+              + " (" + size + " bytes) will fit on " + store);
+          logged = true;
+        }
+        try {
+          wait(RECHECK_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted waiting for free space");
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the bytes reserved on a file system and not yet on disk.
+   * 
+   * @param store File system
+   * @return Bytes reserved
+   */
+  private long held(FileStore store) {
+    long held = 0;
+    List<Reservation> list = reserved.get(store);
+    if (list != null)
+      for (Reservation reservation : list)
+        held += reservation.outstanding();
+    return held;
+  }
+
+  /**
+   * Give back reserved space.
+   * 
+   * @param reservation Reservation to give back
+   */
+  private synchronized void release(Reservation reservation) {
+    List<Reservation> list = reserved.get(reservation.store);
+    if (list != null && list.remove(reservation) && list.isEmpty())
+      reserved.remove(reservation.store);
+    notifyAll();
+  }
+
+  /**
+   * Space reserved for one file.
+   */
+  public final class Reservation {
+
+    /**
+     * Bytes reserved.
+     */
+    private final long bytes;
+
+    /**
+     * File being written.
+     */
+    private final File file;
+
+    /**
+     * File system the space is reserved on.
+     */
+    private final FileStore store;
+
+    /**
+     * Bytes written so far, or -1 to go by the length of the file.
+     */
+    private volatile long written = -1;
+
+    /**
+     * Create a new Reservation.
+     * 
+     * @param store File system the space is reserved on
+     * @param file File being written
+     * @param bytes Bytes reserved
+     */
+    Reservation(FileStore store, File file, long bytes) {
+      this.store = store;
+      this.file = file;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Get the bytes reserved and not yet on disk.
+     * 
+     * @return Bytes still to be written
+     */
+    public long outstanding() {
+      long done = written;
+      if (done < 0)
+        done = file.length();
+      return Math.max(0, bytes - done);
+    }
+
+    /**
+     * Give back the space. Releasing more than once has no effect.
+     */
+    public void release() {
+      FreeSpaceGate.this.release(this);
+    }
+
+    /**
+     * Set the bytes written so far. The space they take is already gone
+     * from the file system, so it is no longer held for the file.
+     * 
+     * @param written Bytes written, or -1 to go by the length of the file
+     */
+    public void setWritten(long written) {
+      this.written = written;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.fault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.scu.sat.transport.HttpStatusException;
+import edu.scu.sat.transport.Transport;
+
+/**
+ * <p>
+ * {@link Transport} that makes requests to another transport fail at random
+ * in the ways described by a {@link FaultProfile}, to see how the rest of
+ * the program copes. It is meant for a test server such as a local stub,
+ * never for CollegeBoard's site.
+ * </p>
+ * <p>
+ * A failed download is simulated by first downloading the file and then
+ * cutting it short and failing, so the local file is left in the state a
+ * real failure would leave it in. Asynchronous downloads are passed on
+ * untouched.
+ * </p>
+ */
+public class FaultInjectingTransport implements Transport {
+
+  /**
+   * Transport the requests are passed to.
+   */
+  private final Transport delegate;
+
+  /**
+   * Number of times each fault has been injected.
+   */
+  private final Map<String, AtomicInteger> injected =
+      new LinkedHashMap<String, AtomicInteger>();
+
+  /**
+   * Faults to inject.
+   */
+  private final FaultProfile profile;
+
+  /**
+   * Number of requests left in the current storm.
+   */
+  private int stormLeft;
+
+  /**
+   * Create a new FaultInjectingTransport.
+   * 
+   * @param delegate Transport to pass the requests to
+   * @param profile Faults to inject
+   */
+  public FaultInjectingTransport(Transport delegate, FaultProfile profile) {
+    this.delegate = delegate;
+    this.profile = profile;
+    for (String fault : FaultProfile.FAULTS)
+      injected.put(fault, new AtomicInteger());
+  }
+
+  //@Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    beforeRequest();
+    long bytes = delegate.download(url, target);
+    if (inject(FaultProfile.DISK_FULL)) {
+      cut(target, bytes / 2);
+      throw new IOException("No space left on device (injected)");
+    }
+    if (inject(FaultProfile.RESET)) {
+      cut(target, partOf(bytes));
+      throw new SocketException("Connection reset (injected)");
+    }
+    if (inject(FaultProfile.TRUNCATE)) {
+      bytes = partOf(bytes);
+      cut(target, bytes);
+    }
+    return bytes;
+  }
+
+  //@Override
+  public CompletableFuture<Long> downloadAsync(String url, File target) {
+    return delegate.downloadAsync(url, target);
+  }
+
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    beforeRequest();
+    long bytes = delegate.downloadRange(url, channel, first, last, total);
+    if (inject(FaultProfile.DISK_FULL))
+      throw new IOException("No space left on device (injected)");
+    if (inject(FaultProfile.RESET))
+      throw new SocketException("Connection reset (injected)");
+    // The bytes are in place, but the caller is told the body ended early
+    if (inject(FaultProfile.TRUNCATE))
+      return partOf(bytes);
+    return bytes;
+  }
+
+  /**
+   * Get the number of times each fault has been injected.
+   * 
+   * @return Count of each of {@link FaultProfile#FAULTS}
+   */
+  public Map<String, Integer> getInjected() {
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, AtomicInteger> e : injected.entrySet())
+      counts.put(e.getKey(), e.getValue().get());
+    return counts;
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    beforeRequest();
+    if (inject(FaultProfile.EXPIRED))
+      throw new HttpStatusException(401);
+    return delegate.getJson(url);
+  }
+
+  //@Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    beforeRequest();
+    return delegate.postJson(url, body);
+  }
+
+  /**
+   * Cut a local file short.
+   * 
+   * @param file File to cut
+   * @param length New length
+   * @throws IOException if the file could not be cut
+   */
+  private static void cut(File file, long length) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(length);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Pick how much of a body arrives before it is cut short.
+   * 
+   * @param bytes Size of the whole body
+   * @return Random length less than <code>bytes</code>, or 0
+   */
+  private static long partOf(long bytes) {
+    return bytes < 1 ? 0 : ThreadLocalRandom.current().nextLong(bytes);
+  }
+
+  /**
+   * Delay the request or fail it with an error status, if the profile says
+   * so.
+   * 
+   * @throws HttpStatusException during a storm
+   * @throws InterruptedIOException if interrupted while delayed
+   */
+  private void beforeRequest() throws InterruptedIOException {
+    if (inject(FaultProfile.SLOW)) {
+      try {
+        Thread.sleep(FaultProfile.SLOW_START_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during a slow start");
+      }
+    }
+    int left;
+    synchronized (this) {
+      if (stormLeft == 0 && inject(FaultProfile.STORM))
+        stormLeft = FaultProfile.STORM_LENGTH;
+      left = stormLeft;
+      if (stormLeft > 0)
+        stormLeft--;
+    }
+    if (left > 0)
+      throw new HttpStatusException(left % 2 == 0 ? 503 : 429);
+  }
+
+  /**
+   * Decide at random whether to inject a fault, and count it if so.
+   * 
+   * @param fault One of {@link FaultProfile#FAULTS}
+   * @return TRUE if the fault should be injected
+   */
+  private boolean inject(String fault) {
+    double probability = profile.getProbability(fault);
+    if (probability <= 0
+        || ThreadLocalRandom.current().nextDouble() >= probability)
+      return false;
+    injected.get(fault).incrementAndGet();
+    return true;
+  }
+}
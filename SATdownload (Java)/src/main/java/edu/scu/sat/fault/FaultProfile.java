@@ -0,0 +1,213 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.fault;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Which faults a {@link FaultInjectingTransport} injects, and how often.
+ * A profile is written as a comma-separated list of faults, each optionally
+ * followed by a colon and the probability (0 to 1) that a request gets it,
+ * such as <code>reset:0.1,storm:0.05</code>. The faults are:
+ * </p>
+ * <ul>
+ * <li><code>slow</code> - the request waits {@link #SLOW_START_MILLIS}
+ * before it is sent</li>
+ * <li><code>reset</code> - a download stops partway with a connection
+ * reset</li>
+ * <li><code>truncate</code> - a download ends early without an error</li>
+ * <li><code>expired</code> - a JSON GET (the file URL lookup) is refused
+ * with 401, as if the download token had expired</li>
+ * <li><code>storm</code> - the request and the next
+ * {@link #STORM_LENGTH}&nbsp;-&nbsp;1 are answered with 503 or 429</li>
+ * <li><code>diskfull</code> - a download stops partway because the disk is
+ * full</li>
+ * </ul>
+ * <p>
+ * The name of a built-in profile from {@link #PROFILES} may be used
+ * instead of a list.
+ * </p>
+ */
+public class FaultProfile {
+
+  /**
+   * Fault that stops a download partway because the disk is full.
+   */
+  public static final String DISK_FULL = "diskfull";
+
+  /**
+   * Fault that refuses a JSON GET with 401.
+   */
+  public static final String EXPIRED = "expired";
+
+  /**
+   * Fault that stops a download partway with a connection reset.
+   */
+  public static final String RESET = "reset";
+
+  /**
+   * Fault that delays a request.
+   */
+  public static final String SLOW = "slow";
+
+  /**
+   * Fault that answers a run of requests with 503 or 429.
+   */
+  public static final String STORM = "storm";
+
+  /**
+   * Fault that ends a download early without an error.
+   */
+  public static final String TRUNCATE = "truncate";
+
+  /**
+   * Every fault, in the order they are reported.
+   */
+  public static final String[] FAULTS = { SLOW, RESET, TRUNCATE, EXPIRED,
+      STORM, DISK_FULL };
+
+  /**
+   * Probability used for a fault listed without one.
+   */
+  public static final double DEFAULT_PROBABILITY = 0.2;
+
+  /**
+   * Built-in profiles by name, each as a list of faults.
+   */
+  public static final Map<String, String> PROFILES;
+
+  /**
+   * Time a slow request waits before it is sent, in milliseconds.
+   */
+  public static final long SLOW_START_MILLIS = 1500;
+
+  /**
+   * Number of requests in a storm.
+   */
+  public static final int STORM_LENGTH = 6;
+
+  static {
+    Map<String, String> profiles = new LinkedHashMap<String, String>();
+    profiles.put("slow-start", SLOW + ":0.5");
+    profiles.put("mid-stream-reset", RESET + ":0.3");
+    profiles.put("truncated-body", TRUNCATE + ":0.3");
+    profiles.put("expired-token", EXPIRED + ":0.4");
+    profiles.put("error-storm", STORM + ":0.1");
+    profiles.put("disk-full", DISK_FULL + ":0.3");
+    profiles.put("mixed", SLOW + ":0.1," + RESET + ":0.1," + TRUNCATE
+        + ":0.1," + EXPIRED + ":0.1," + STORM + ":0.03," + DISK_FULL
+        + ":0.05");
+    PROFILES = Collections.unmodifiableMap(profiles);
+  }
+
+  /**
+   * Probability of each fault that is injected.
+   */
+  private final Map<String, Double> probabilities;
+
+  /**
+   * Create a new FaultProfile.
+   * 
+   * @param probabilities Probability of each fault that is injected
+   */
+  private FaultProfile(Map<String, Double> probabilities) {
+    this.probabilities = probabilities;
+  }
+
+  /**
+   * Read a profile.
+   * 
+   * @param spec Name of a built-in profile, or a list of faults such as
+   *          <code>reset:0.1,storm:0.05</code>
+   * @return Profile
+   * @throws IllegalArgumentException if a fault or probability is not valid
+   */
+  public static FaultProfile parse(String spec) {
+    String list = PROFILES.containsKey(spec) ? PROFILES.get(spec) : spec;
+    Map<String, Double> probabilities = new LinkedHashMap<String, Double>();
+    for (String item : list.split(",")) {
+      item = item.trim();
+      if (item.isEmpty())
+        continue;
+      int colon = item.indexOf(':');
+      String name = colon < 0 ? item : item.substring(0, colon).trim();
+      boolean known = false;
+      for (String fault : FAULTS)
+        known |= fault.equals(name);
+      if (!known)
+        throw new IllegalArgumentException("unknown fault " + name
+            + "; must be one of " + String.join(", ", FAULTS)
+            + " or a profile from " + PROFILES.keySet());
+      double probability = DEFAULT_PROBABILITY;
+      if (colon >= 0) {
+        String value = item.substring(colon + 1).trim();
+        try {
+          probability = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+          probability = -1;
+        }
+        if (!(probability >= 0 && probability <= 1))
+          throw new IllegalArgumentException("probability of " + name
+              + " must be between 0 and 1, not " + value);
+      }
+      probabilities.put(name, probability);
+    }
+    if (probabilities.isEmpty())
+      throw new IllegalArgumentException("no faults listed");
+    return new FaultProfile(probabilities);
+  }
+
+  /**
+   * Get the probability that a request gets a fault.
+   * 
+   * @param fault One of {@link #FAULTS}
+   * @return Probability from 0 to 1
+   */
+  public double getProbability(String fault) {
+    Double probability = probabilities.get(fault);
+    return probability == null ? 0 : probability;
+  }
+
+  /**
+   * Get the profile as a list of faults.
+   * 
+   * @return List such as <code>reset:0.1,storm:0.05</code>
+   */
+  //@Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    for (Map.Entry<String, Double> e : probabilities.entrySet()) {
+      if (s.length() > 0)
+        s.append(',');
+      s.append(e.getKey()).append(':').append(e.getValue());
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,286 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.fault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.scu.sat.json.JsonWriter;
+
+/**
+ * <p>
+ * Stand-in for CollegeBoard's score download service that serves a fixed
+ * set of files from memory on the loopback address, so the fault suite
+ * never talks to the real site or needs real credentials:
+ * </p>
+ * <ul>
+ * <li><code>POST /pascoredwnld/login</code> returns a token for any user
+ * name and password;</li>
+ * <li><code>GET /pascoredwnld/file?tok=TOKEN&amp;filename=NAME</code>
+ * returns the URL and size of a file, 404 for a file it does not have and
+ * 401 for a wrong token;</li>
+ * <li><code>GET /files/NAME</code> downloads a file, or the part of it
+ * asked for in a <code>Range</code> header.</li>
+ * </ul>
+ */
+public class StubServer {
+
+  /**
+   * Password to log in with. Any password is accepted.
+   */
+  public static final String PASSWORD = "fault-suite";
+
+  /**
+   * Token handed out on login.
+   */
+  private static final String TOKEN = "fault-suite-token";
+
+  /**
+   * User name to log in with. Any user name is accepted.
+   */
+  public static final String USERNAME = "fault-suite";
+
+  /**
+   * Threads handling requests.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Content of each file served, by name.
+   */
+  private final Map<String, byte[]> files;
+
+  /**
+   * Underlying server.
+   */
+  private final HttpServer server;
+
+  /**
+   * Create and start a new StubServer on a free port of the loopback
+   * address.
+   * 
+   * @param files Content of each file to serve, by name
+   * @throws IOException if the server could not listen
+   */
+  public StubServer(Map<String, byte[]> files) throws IOException {
+    this.files = new LinkedHashMap<String, byte[]>(files);
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      //@Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "stub-server");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext("/pascoredwnld/login", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST"))
+          send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        else
+          send(exchange, 200, new JsonWriter().beginObject().name("token")
+              .value(TOKEN).endObject().toString());
+      }
+    });
+    server.createContext("/pascoredwnld/file", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        handleFileInfo(exchange);
+      }
+    });
+    server.createContext("/files/", new HttpHandler() {
+      //@Override
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        handleDownload(exchange);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Read and discard a request body.
+   * 
+   * @param in Request body
+   * @throws IOException if the body could not be read
+   */
+  private static void drain(InputStream in) throws IOException {
+    byte[] buf = new byte[512];
+    while (in.read(buf) >= 0) {
+      // Discard
+    }
+    in.close();
+  }
+
+  /**
+   * Get the address to use as <code>scoredwnldUrlRoot</code>.
+   * 
+   * @return URL of the server, without a trailing slash
+   */
+  public String getUrlRoot() {
+    InetSocketAddress address = server.getAddress();
+    String host = address.getAddress().getHostAddress();
+    if (host.indexOf(':') >= 0)
+      host = "[" + host + "]";
+    return "http://" + host + ":" + address.getPort();
+  }
+
+  /**
+   * Send a file, or the range of it asked for.
+   * 
+   * @param exchange Request
+   * @throws IOException if the response could not be sent
+   */
+  private void handleDownload(HttpExchange exchange) throws IOException {
+    String name = exchange.getRequestURI().getPath()
+        .substring("/files/".length());
+    byte[] data = files.get(name);
+    if (data == null) {
+      send(exchange, 404, "{\"error\":\"Not found\"}");
+      return;
+    }
+    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+    int first = 0;
+    int last = data.length - 1;
+    int status = 200;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null && range.startsWith("bytes=")
+        && range.indexOf(',') < 0) {
+      String[] bounds = range.substring("bytes=".length()).split("-", 2);
+      try {
+        first = Integer.parseInt(bounds[0].trim());
+        if (bounds.length > 1 && !bounds[1].trim().isEmpty())
+          last = Math.min(last, Integer.parseInt(bounds[1].trim()));
+      } catch (NumberFormatException e) {
+        first = data.length;
+      }
+      if (first > last) {
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes */" + data.length);
+        send(exchange, 416, "{\"error\":\"Range not satisfiable\"}");
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Range",
+          "bytes " + first + "-" + last + "/" + data.length);
+      status = 206;
+    }
+    exchange.getResponseHeaders().set("Content-Type",
+        "application/octet-stream");
+    boolean head = exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+    exchange.sendResponseHeaders(status, head ? -1 : last - first + 1);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      if (!head)
+        out.write(data, first, last - first + 1);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Send the URL and size of a file.
+   * 
+   * @param exchange Request
+   * @throws IOException if the response could not be sent
+   */
+  private void handleFileInfo(HttpExchange exchange) throws IOException {
+    String token = null;
+    String name = null;
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq < 0)
+          continue;
+        String value = URLDecoder.decode(pair.substring(eq + 1),
+            StandardCharsets.UTF_8);
+        if (pair.startsWith("tok="))
+          token = value;
+        else if (pair.startsWith("filename="))
+          name = value;
+      }
+    }
+    if (!TOKEN.equals(token)) {
+      send(exchange, 401, "{\"error\":\"Invalid token\"}");
+    } else if (name == null || !files.containsKey(name)) {
+      send(exchange, 404, "{\"error\":\"Not found\"}");
+    } else {
+      send(exchange, 200, new JsonWriter().beginObject().name("fileName")
+          .value(name).name("fileSize")
+          .value(String.valueOf(files.get(name).length)).name("fileUrl")
+          .value(getUrlRoot() + "/files/" + name).endObject().toString());
+    }
+  }
+
+  /**
+   * Send a JSON response.
+   * 
+   * @param exchange Request to respond to
+   * @param code HTTP status code
+   * @param json Response body
+   * @throws IOException if the response could not be sent
+   */
+  private static void send(HttpExchange exchange, int code, String json)
+      throws IOException {
+    byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Stop the server.
+   */
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
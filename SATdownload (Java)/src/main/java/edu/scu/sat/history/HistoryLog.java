@@ -0,0 +1,322 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Rolling log of {@link HistoryRecord}s, kept across runs so that transfers
+ * can be compared from one week or season to the next.
+ * </p>
+ * <p>
+ * Records are appended to one file per month, named
+ * <code>YYYYMM.history</code>, which starts with an 8-byte magic number
+ * followed by fixed-size records. A year of files takes a few megabytes.
+ * Files whose month ended more than the retention period ago are deleted
+ * when a new month is started. A record cut short by a crash is ignored
+ * when the file is read and dropped when it is next opened for writing.
+ * </p>
+ * <p>
+ * Each record is written with a single append, so several processes may
+ * share the directory. Instances are thread-safe.
+ * </p>
+ */
+public class HistoryLog implements Closeable {
+
+  /**
+   * Extension of the history files.
+   */
+  private static final String EXTENSION = ".history";
+
+  /**
+   * Size of the file header.
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * Magic number at the start of each file.
+   */
+  private static final long MAGIC = 0x5341544853543031L; // "SATHST01"
+
+  /**
+   * Format of the month in file names.
+   */
+  private static final String MONTH_FORMAT = "yyyyMM";
+
+  /**
+   * Directory the files are kept in.
+   */
+  private final File dir;
+
+  /**
+   * Open file of the current month, or <code>null</code>.
+   */
+  private FileChannel file;
+
+  /**
+   * Month of the open file.
+   */
+  private String month;
+
+  /**
+   * Number of days a month's file is kept after the month has ended.
+   */
+  private volatile int retentionDays;
+
+  /**
+   * Create a new HistoryLog. No file is opened until the first record is
+   * added.
+   * 
+   * @param dir Directory to keep the files in
+   * @param retentionDays Number of days to keep a month's file after the
+   *          month has ended
+   */
+  public HistoryLog(File dir, int retentionDays) {
+    this.dir = dir;
+    this.retentionDays = retentionDays;
+  }
+
+  /**
+   * Add a record.
+   * 
+   * @param record Record to add
+   * @throws IOException if the record could not be written
+   */
+  public synchronized void append(HistoryRecord record) throws IOException {
+    String recordMonth = new SimpleDateFormat(MONTH_FORMAT)
+        .format(new Date(record.getTime()));
+    if (file == null || !recordMonth.equals(month)) {
+      close();
+      file = open(recordMonth);
+      month = recordMonth;
+      prune();
+    }
+    ByteBuffer buf = ByteBuffer.allocate(HistoryRecord.SIZE);
+    record.write(buf);
+    buf.flip();
+    while (buf.hasRemaining())
+      file.write(buf);
+  }
+
+  //@Override
+  public synchronized void close() throws IOException {
+    if (file != null) {
+      file.close();
+      file = null;
+    }
+  }
+
+  /**
+   * Get the directory the files are kept in.
+   * 
+   * @return the directory
+   */
+  public File getDir() {
+    return dir;
+  }
+
+  /**
+   * Read the records of transfers started since a given time, oldest first.
+   * Files that cannot be read are skipped with a warning.
+   * 
+   * @param since Earliest start time, in milliseconds since the epoch
+   * @return Records
+   */
+  public List<HistoryRecord> read(long since) {
+    String first = new SimpleDateFormat(MONTH_FORMAT).format(new Date(since));
+    List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+    for (File f : listFiles()) {
+      if (monthOf(f).compareTo(first) < 0)
+        continue;
+      try {
+        readFile(f, since, records);
+      } catch (IOException e) {
+        Log.warn("Could not read history file " + f + ": " + e.getMessage(),
+            null);
+      }
+    }
+    Collections.sort(records, new Comparator<HistoryRecord>() {
+      //@Override
+      public int compare(HistoryRecord a, HistoryRecord b) {
+        return Long.compare(a.getTime(), b.getTime());
+      }
+    });
+    return records;
+  }
+
+  /**
+   * Change the retention period. Takes effect the next time a month is
+   * started.
+   * 
+   * @param retentionDays Number of days to keep a month's file after the
+   *          month has ended
+   */
+  public void setRetentionDays(int retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
+  /**
+   * List the history files, oldest month first.
+   * 
+   * @return History files
+   */
+  private File[] listFiles() {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return new File[0];
+    List<File> history = new ArrayList<File>();
+    for (File f : files) {
+      if (f.getName().matches("\\d{6}\\" + EXTENSION))
+        history.add(f);
+    }
+    File[] sorted = history.toArray(new File[history.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Get the month a history file is for.
+   * 
+   * @param f History file
+   * @return Month as <code>YYYYMM</code>
+   */
+  private String monthOf(File f) {
+    return f.getName().substring(0, MONTH_FORMAT.length());
+  }
+
+  /**
+   * Open the file of a month for appending, writing the header if it is
+   * new or was cut short.
+   * 
+   * @param m Month as <code>YYYYMM</code>
+   * @return Open file
+   * @throws IOException if the file could not be opened
+   */
+  private FileChannel open(String m) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Could not create history directory " + dir);
+    FileChannel channel = FileChannel.open(
+        new File(dir, m + EXTENSION).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    try {
+      // Another process may be creating the same file
+      FileLock lock = channel.lock();
+      try {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+          // New, or cut off inside the header by a crash
+          if (size > 0)
+            channel.truncate(0);
+          ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+          header.putLong(MAGIC).flip();
+          while (header.hasRemaining())
+            channel.write(header);
+        } else if (size > HEADER_SIZE
+            && (size - HEADER_SIZE) % HistoryRecord.SIZE != 0) {
+          // Drop a record cut short by a crash so the next ones line up
+          channel.truncate(size - (size - HEADER_SIZE) % HistoryRecord.SIZE);
+        }
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Delete the files of months that ended more than the retention period
+   * ago.
+   */
+  private void prune() {
+    Calendar cal = Calendar.getInstance();
+    cal.add(Calendar.DAY_OF_MONTH, -retentionDays);
+    // A month's file is kept until the whole month is out of the period
+    cal.add(Calendar.MONTH, -1);
+    String oldest = new SimpleDateFormat(MONTH_FORMAT).format(cal.getTime());
+    for (File f : listFiles()) {
+      if (monthOf(f).compareTo(oldest) <= 0) {
+        if (f.delete())
+          Log.info("Deleted old history file " + f);
+        else
+          Log.warn("Could not delete old history file " + f, null);
+      }
+    }
+  }
+
+  /**
+   * Read the records of one file.
+   * 
+   * @param f History file
+   * @param since Earliest start time to keep
+   * @param records List to add the records to
+   * @throws IOException if the file could not be read or is not a history
+   *           file
+   */
+  private void readFile(File f, long since, List<HistoryRecord> records)
+      throws IOException {
+    FileChannel channel = FileChannel.open(f.toPath(),
+        StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < HEADER_SIZE)
+        return;
+      // Whole records only; the last one may have been cut short
+      long length = HEADER_SIZE
+          + (size - HEADER_SIZE) / HistoryRecord.SIZE * HistoryRecord.SIZE;
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (buf.getLong() != MAGIC)
+        throw new IOException("not a history file");
+      while (buf.remaining() >= HistoryRecord.SIZE) {
+        HistoryRecord record = HistoryRecord.read(buf);
+        if (record.getTime() >= since)
+          records.add(record);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
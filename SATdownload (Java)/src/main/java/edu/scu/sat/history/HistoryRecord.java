@@ -0,0 +1,233 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Timings of one file transfer, as kept in the {@link HistoryLog}.
+ * </p>
+ * <p>
+ * Each record takes {@link #SIZE} bytes: the start time, the number of bytes
+ * transferred, the resolve and transfer times, the organization ID and a
+ * flags byte, followed by padding.
+ * </p>
+ */
+public final class HistoryRecord {
+
+  /**
+   * Flag set if the transfer probably reused an open connection.
+   */
+  private static final int FLAG_REUSED = 2;
+
+  /**
+   * Flag set if the transfer succeeded.
+   */
+  private static final int FLAG_SUCCESS = 1;
+
+  /**
+   * Size of a record in bytes.
+   */
+  public static final int SIZE = 32;
+
+  /**
+   * Read a record.
+   * 
+   * @param buf Buffer positioned at the start of a record; its position is
+   *          moved past it
+   * @return Record
+   */
+  static HistoryRecord read(ByteBuffer buf) {
+    long time = buf.getLong();
+    long bytes = buf.getLong();
+    int resolveMs = buf.getInt();
+    int transferMs = buf.getInt();
+    int orgID = buf.getInt();
+    int flags = buf.get();
+    buf.position(buf.position() + 3);
+    return new HistoryRecord(time, orgID, resolveMs, transferMs, bytes,
+        (flags & FLAG_REUSED) != 0, (flags & FLAG_SUCCESS) != 0);
+  }
+
+  /**
+   * Clamp a time to the range of an <code>int</code>.
+   * 
+   * @param millis Time in milliseconds, or -1
+   * @return Time that fits in an <code>int</code>
+   */
+  private static int toInt(long millis) {
+    return (int) Math.max(-1, Math.min(Integer.MAX_VALUE, millis));
+  }
+
+  /**
+   * Number of bytes transferred.
+   */
+  private final long bytes;
+
+  /**
+   * Organization ID, or 0 if it is not a number.
+   */
+  private final int orgID;
+
+  /**
+   * Time taken to look up the download URL in milliseconds, or -1.
+   */
+  private final int resolveMs;
+
+  /**
+   * Whether the transfer probably reused an open connection.
+   */
+  private final boolean reused;
+
+  /**
+   * Whether the transfer succeeded.
+   */
+  private final boolean success;
+
+  /**
+   * When the transfer started, in milliseconds since the epoch.
+   */
+  private final long time;
+
+  /**
+   * Time taken to transfer the file in milliseconds.
+   */
+  private final int transferMs;
+
+  /**
+   * Create a new HistoryRecord.
+   * 
+   * @param time When the transfer started, in milliseconds since the epoch
+   * @param orgID Organization ID, or 0 if it is not a number
+   * @param resolveMs Time taken to look up the download URL in
+   *          milliseconds, or -1
+   * @param transferMs Time taken to transfer the file in milliseconds
+   * @param bytes Number of bytes transferred
+   * @param reused Whether the transfer probably reused an open connection
+   * @param success Whether the transfer succeeded
+   */
+  public HistoryRecord(long time, int orgID, long resolveMs, long transferMs,
+      long bytes, boolean reused, boolean success) {
+    this.time = time;
+    this.orgID = orgID;
+    this.resolveMs = toInt(resolveMs);
+    this.transferMs = toInt(transferMs);
+    this.bytes = Math.max(0, bytes);
+    this.reused = reused;
+    this.success = success;
+  }
+
+  /**
+   * Get the number of bytes transferred
+   * 
+   * @return the bytes
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Get the organization ID
+   * 
+   * @return the orgID, or 0 if it is not a number
+   */
+  public int getOrgID() {
+    return orgID;
+  }
+
+  /**
+   * Get the time taken to look up the download URL
+   * 
+   * @return the resolveMs, or -1 if it is not known
+   */
+  public int getResolveMs() {
+    return resolveMs;
+  }
+
+  /**
+   * Get the transfer rate
+   * 
+   * @return Bytes per second, or -1 if it cannot be worked out
+   */
+  public double getThroughput() {
+    if (!success || transferMs < 0)
+      return -1;
+    return bytes * 1000.0 / Math.max(1, transferMs);
+  }
+
+  /**
+   * Get when the transfer started
+   * 
+   * @return the time, in milliseconds since the epoch
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Get the time taken to transfer the file
+   * 
+   * @return the transferMs
+   */
+  public int getTransferMs() {
+    return transferMs;
+  }
+
+  /**
+   * Check if the transfer probably reused an open connection
+   * 
+   * @return TRUE if it probably did
+   */
+  public boolean isReused() {
+    return reused;
+  }
+
+  /**
+   * Check if the transfer succeeded
+   * 
+   * @return TRUE if it succeeded
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  /**
+   * Write this record.
+   * 
+   * @param buf Buffer with at least {@link #SIZE} bytes remaining
+   */
+  void write(ByteBuffer buf) {
+    buf.putLong(time);
+    buf.putLong(bytes);
+    buf.putInt(resolveMs);
+    buf.putInt(transferMs);
+    buf.putInt(orgID);
+    buf.put((byte) ((success ? FLAG_SUCCESS : 0) | (reused ? FLAG_REUSED : 0)));
+    buf.put(new byte[3]);
+  }
+}
@@ -0,0 +1,306 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.history;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * <p>
+ * Summary of the transfers in the {@link HistoryLog} over a number of days:
+ * percentiles of the resolve time, transfer time and throughput, a table of
+ * medians per day (or per week for long periods) and a trend worked out by
+ * least squares over those medians.
+ * </p>
+ * <p>
+ * The trend is given as the percentage change per week relative to the
+ * average, so a slow decline in throughput or a slow rise in resolve times
+ * shows up long before it causes a missed deadline.
+ * </p>
+ */
+public class HistoryReport {
+
+  /**
+   * Periods longer than this many days are reported by week.
+   */
+  private static final int DAILY_MAX_DAYS = 31;
+
+  /**
+   * Milliseconds in a day.
+   */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /**
+   * Change per week, in percent, beyond which a trend is called out.
+   */
+  private static final double TREND_WARNING_PERCENT = 5;
+
+  /**
+   * Get the start of the period covering the last few days, to read the
+   * records with.
+   * 
+   * @param days Number of days, including today
+   * @return Midnight at the start of the first day, in milliseconds since
+   *         the epoch
+   */
+  public static long startOf(int days) {
+    Calendar cal = Calendar.getInstance();
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    cal.add(Calendar.DAY_OF_MONTH, 1 - days);
+    return cal.getTimeInMillis();
+  }
+
+  /**
+   * Get a percentile of some values using the nearest-rank method.
+   * 
+   * @param sorted Values in ascending order
+   * @param p Percentile, from 0 to 100
+   * @return Value, or NaN if there are none
+   */
+  static double percentile(double[] sorted, double p) {
+    if (sorted.length == 0)
+      return Double.NaN;
+    int rank = (int) Math.ceil(p / 100 * sorted.length);
+    return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+  }
+
+  /**
+   * Work out the slope of a line fitted by least squares, as a percentage
+   * of the average value per week.
+   * 
+   * @param x Day of each point
+   * @param y Value of each point; NaN values are left out
+   * @return Percentage change per week, or NaN if there are fewer than two
+   *         points
+   */
+  static double trend(double[] x, double[] y) {
+    int n = 0;
+    double sx = 0, sy = 0;
+    for (int i = 0; i < x.length; ++i) {
+      if (!Double.isNaN(y[i])) {
+        ++n;
+        sx += x[i];
+        sy += y[i];
+      }
+    }
+    if (n < 2 || sy == 0)
+      return Double.NaN;
+    double mx = sx / n, my = sy / n, sxx = 0, sxy = 0;
+    for (int i = 0; i < x.length; ++i) {
+      if (!Double.isNaN(y[i])) {
+        sxx += (x[i] - mx) * (x[i] - mx);
+        sxy += (x[i] - mx) * (y[i] - my);
+      }
+    }
+    if (sxx == 0)
+      return Double.NaN;
+    return sxy / sxx * 7 / my * 100;
+  }
+
+  /**
+   * Format a value, or a dash if it is not known.
+   * 
+   * @param value Value
+   * @return Formatted value
+   */
+  private static String format(double value) {
+    return Double.isNaN(value) ? "-" : String.format("%.0f", value);
+  }
+
+  /**
+   * Format a trend.
+   * 
+   * @param percent Percentage change per week
+   * @return Formatted trend
+   */
+  private static String formatTrend(double percent) {
+    return Double.isNaN(percent) ? "not enough data"
+        : String.format("%+.1f%% per week", percent);
+  }
+
+  /**
+   * Sort the values of a list.
+   * 
+   * @param values Values
+   * @return Sorted array
+   */
+  private static double[] sorted(List<Double> values) {
+    double[] a = new double[values.size()];
+    for (int i = 0; i < a.length; ++i)
+      a[i] = values.get(i);
+    Arrays.sort(a);
+    return a;
+  }
+
+  /**
+   * Number of days in each row of the table.
+   */
+  private final int bucketDays;
+
+  /**
+   * Number of days covered.
+   */
+  private final int days;
+
+  /**
+   * Start of the period, in milliseconds since the epoch.
+   */
+  private final long from;
+
+  /**
+   * Records in the period, oldest first.
+   */
+  private final List<HistoryRecord> records;
+
+  /**
+   * Create a new HistoryReport.
+   * 
+   * @param records Records in the period, oldest first
+   * @param days Number of days covered
+   * @param from Start of the period (midnight of its first day), in
+   *          milliseconds since the epoch
+   */
+  public HistoryReport(List<HistoryRecord> records, int days, long from) {
+    this.records = records;
+    this.days = days;
+    this.from = from;
+    this.bucketDays = days > DAILY_MAX_DAYS ? 7 : 1;
+  }
+
+  /**
+   * Write the report.
+   * 
+   * @param out Stream to write to
+   */
+  public void print(PrintStream out) {
+    int failed = 0, reused = 0, transfers = 0;
+    List<Double> resolve = new ArrayList<Double>();
+    List<Double> transfer = new ArrayList<Double>();
+    List<Double> throughput = new ArrayList<Double>();
+    for (HistoryRecord r : records) {
+      ++transfers;
+      if (!r.isSuccess()) {
+        ++failed;
+        continue;
+      }
+      if (r.isReused())
+        ++reused;
+      if (r.getResolveMs() >= 0)
+        resolve.add((double) r.getResolveMs());
+      transfer.add((double) r.getTransferMs());
+      throughput.add(r.getThroughput() / 1024);
+    }
+
+    out.println("Transfers in the last " + days + " day(s): " + transfers
+        + " (" + failed + " failed)");
+    if (transfers == failed) {
+      out.println("No completed transfers to report.");
+      return;
+    }
+    out.println();
+    out.println(String.format("%-20s%10s%10s%10s", "", "p50", "p90", "p99"));
+    printPercentiles(out, "Resolve (ms)", sorted(resolve));
+    printPercentiles(out, "Transfer (ms)", sorted(transfer));
+    printPercentiles(out, "Throughput (KB/s)", sorted(throughput));
+    out.println(String.format("Connections reused: %.0f%%",
+        100.0 * reused / (transfers - failed)));
+
+    // Medians per row
+    int rows = (days + bucketDays - 1) / bucketDays;
+    double[] x = new double[rows];
+    double[] resolveMedian = new double[rows];
+    double[] throughputMedian = new double[rows];
+    out.println();
+    out.println(String.format("%-12s%8s%14s%14s%16s%8s",
+        bucketDays == 1 ? "Day" : "Week of", "Files", "Resolve p50",
+        "Transfer p50", "KB/s p50", "Reused"));
+    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+    for (int row = 0; row < rows; ++row) {
+      long start = from + row * bucketDays * DAY_MILLIS;
+      long end = start + bucketDays * DAY_MILLIS;
+      List<Double> rowResolve = new ArrayList<Double>();
+      List<Double> rowTransfer = new ArrayList<Double>();
+      List<Double> rowThroughput = new ArrayList<Double>();
+      int rowReused = 0;
+      for (HistoryRecord r : records) {
+        if (r.getTime() < start || r.getTime() >= end || !r.isSuccess())
+          continue;
+        if (r.isReused())
+          ++rowReused;
+        if (r.getResolveMs() >= 0)
+          rowResolve.add((double) r.getResolveMs());
+        rowTransfer.add((double) r.getTransferMs());
+        rowThroughput.add(r.getThroughput() / 1024);
+      }
+      x[row] = row * bucketDays + bucketDays / 2.0;
+      resolveMedian[row] = percentile(sorted(rowResolve), 50);
+      throughputMedian[row] = percentile(sorted(rowThroughput), 50);
+      if (rowTransfer.isEmpty())
+        continue;
+      out.println(String.format("%-12s%8d%14s%14s%16s%7.0f%%",
+          df.format(new Date(start)), rowTransfer.size(),
+          format(resolveMedian[row]),
+          format(percentile(sorted(rowTransfer), 50)),
+          format(throughputMedian[row]),
+          100.0 * rowReused / rowTransfer.size()));
+    }
+
+    double throughputTrend = trend(x, throughputMedian);
+    double resolveTrend = trend(x, resolveMedian);
+    out.println();
+    out.println("Trend of the " + (bucketDays == 1 ? "daily" : "weekly")
+        + " medians:");
+    out.println("  Throughput    " + formatTrend(throughputTrend));
+    out.println("  Resolve time  " + formatTrend(resolveTrend));
+    if (throughputTrend < -TREND_WARNING_PERCENT)
+      out.println("WARNING: throughput is falling");
+    if (resolveTrend > TREND_WARNING_PERCENT)
+      out.println("WARNING: resolve times are rising");
+  }
+
+  /**
+   * Write one row of percentiles.
+   * 
+   * @param out Stream to write to
+   * @param label Row label
+   * @param sorted Values in ascending order
+   */
+  private void printPercentiles(PrintStream out, String label,
+      double[] sorted) {
+    out.println(String.format("%-20s%10s%10s%10s", label,
+        format(percentile(sorted, 50)), format(percentile(sorted, 90)),
+        format(percentile(sorted, 99))));
+  }
+}
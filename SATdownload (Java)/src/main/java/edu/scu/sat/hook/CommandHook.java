@@ -0,0 +1,119 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a local command for each new file. <code>{file}</code> and
+ * <code>{path}</code> in the arguments are replaced by the name and path of
+ * the file; the details are also passed in the <code>SAT_FILE</code>,
+ * <code>SAT_PATH</code>, <code>SAT_BYTES</code>, <code>SAT_RECORDS</code>
+ * and <code>SAT_DELTA</code> environment variables and as a JSON object on
+ * standard input. A non-zero exit status counts as a failure.
+ */
+public class CommandHook implements Hook {
+
+  /**
+   * Command and its arguments.
+   */
+  private final List<String> command;
+
+  /**
+   * Seconds the command may run before it is killed.
+   */
+  private final long timeoutSeconds;
+
+  /**
+   * Create a new CommandHook.
+   * 
+   * @param commandLine Command and its arguments, separated by whitespace
+   * @param timeoutSeconds Seconds the command may run before it is killed
+   */
+  public CommandHook(String commandLine, long timeoutSeconds) {
+    this.command = new ArrayList<String>();
+    for (String arg : commandLine.trim().split("\\s+"))
+      command.add(arg);
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  //@Override
+  public void close() {
+    // Nothing to release
+  }
+
+  //@Override
+  public void deliver(FileEvent event) throws IOException {
+    List<String> args = new ArrayList<String>(command.size());
+    for (String arg : command) {
+      args.add(arg.replace("{file}", event.getFileName()).replace("{path}",
+          event.getLocalPath()));
+    }
+    ProcessBuilder builder = new ProcessBuilder(args);
+    builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    Map<String, String> env = builder.environment();
+    env.put("SAT_FILE", event.getFileName());
+    env.put("SAT_PATH", event.getLocalPath());
+    env.put("SAT_BYTES", Long.toString(event.getBytes()));
+    env.put("SAT_RECORDS", Long.toString(event.getRecords()));
+    env.put("SAT_DELTA", event.getDeltaPath() == null ? ""
+        : event.getDeltaPath());
+
+    Process process = builder.start();
+    try {
+      try {
+        process.getOutputStream()
+            .write((event.toJson() + "\n").getBytes("UTF-8"));
+        process.getOutputStream().close();
+      } catch (IOException e) {
+        // The command does not read its input
+      }
+      if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS))
+        throw new IOException(
+            "Command did not finish within " + timeoutSeconds + " seconds");
+      if (process.exitValue() != 0)
+        throw new IOException(
+            "Command exited with status " + process.exitValue());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for the command");
+    } finally {
+      if (process.isAlive())
+        process.destroyForcibly();
+    }
+  }
+
+  //@Override
+  public String getName() {
+    return "command " + command.get(0);
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Drops each new file's event where another program can pick it up.
+ * <ul>
+ * <li>If the target is a directory, the event is written to a new
+ * <code>.json</code> file in it (a queue directory). The file is written
+ * under a temporary name and then renamed, so readers never see part of
+ * one.</li>
+ * <li>Otherwise the event is appended to the target as one line. The target
+ * is kept open between events, so a reader of a named pipe does not see the
+ * end of its input after each one. Opening a named pipe waits until a reader
+ * opens it.</li>
+ * </ul>
+ */
+public class DropHook implements Hook {
+
+  /**
+   * Directory, file or named pipe to drop events into.
+   */
+  private final File target;
+
+  /**
+   * Open target file or named pipe, or <code>null</code>.
+   */
+  private OutputStream out;
+
+  /**
+   * Create a new DropHook.
+   * 
+   * @param target Directory, file or named pipe to drop events into
+   */
+  public DropHook(File target) {
+    this.target = target;
+  }
+
+  //@Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  //@Override
+  public void deliver(FileEvent event) throws IOException {
+    byte[] line = (event.toJson() + "\n").getBytes("UTF-8");
+    if (target.isDirectory()) {
+      String name = event.getTime() + "-" + event.getFileName() + ".json";
+      File tmp = new File(target, "." + name + ".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(line);
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), new File(target, name).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } else {
+      if (out == null)
+        out = new FileOutputStream(target, true);
+      try {
+        // One write, so lines from different events never interleave
+        out.write(line);
+        out.flush();
+      } catch (IOException e) {
+        // Reopen on the next attempt, e.g. after a pipe reader went away
+        try {
+          close();
+        } catch (IOException ignored) {
+          // Already failing
+        }
+        throw e;
+      }
+    }
+  }
+
+  //@Override
+  public String getName() {
+    return "drop " + target;
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import edu.scu.sat.json.JsonWriter;
+
+/**
+ * A score file that has been downloaded and verified, as passed to the
+ * {@link Hook}s.
+ */
+public class FileEvent {
+
+  /**
+   * Size of the file in bytes.
+   */
+  private final long bytes;
+
+  /**
+   * Path of the delta file, or <code>null</code> if none was written.
+   */
+  private final String deltaPath;
+
+  /**
+   * Name of the score file.
+   */
+  private final String fileName;
+
+  /**
+   * Path of the downloaded file.
+   */
+  private final String localPath;
+
+  /**
+   * Number of records in the file, or -1 if it was not counted.
+   */
+  private final long records;
+
+  /**
+   * Time the file was accepted, in milliseconds since the epoch.
+   */
+  private final long time;
+
+  /**
+   * Create a new FileEvent.
+   * 
+   * @param fileName Name of the score file
+   * @param localPath Path of the downloaded file
+   * @param bytes Size of the file in bytes
+   * @param records Number of records in the file, or -1 if it was not
+   *          counted
+   * @param deltaPath Path of the delta file, or <code>null</code>
+   */
+  public FileEvent(String fileName, String localPath, long bytes,
+      long records, String deltaPath) {
+    this.fileName = fileName;
+    this.localPath = localPath;
+    this.bytes = bytes;
+    this.records = records;
+    this.deltaPath = deltaPath;
+    this.time = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the size of the file.
+   * 
+   * @return Size in bytes
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Get the path of the delta file.
+   * 
+   * @return the path, or <code>null</code> if no delta file was written
+   */
+  public String getDeltaPath() {
+    return deltaPath;
+  }
+
+  /**
+   * Get the name of the score file.
+   * 
+   * @return the file name
+   */
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * Get the path of the downloaded file.
+   * 
+   * @return the path
+   */
+  public String getLocalPath() {
+    return localPath;
+  }
+
+  /**
+   * Get the number of records in the file.
+   * 
+   * @return the number of records, or -1 if it was not counted
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  /**
+   * Get the time the file was accepted.
+   * 
+   * @return Milliseconds since the epoch
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Get this event as a JSON object on one line.
+   * 
+   * @return JSON text
+   */
+  public String toJson() {
+    JsonWriter w = new JsonWriter();
+    w.beginObject();
+    w.name("event").value("downloaded");
+    w.name("file").value(fileName);
+    w.name("path").value(localPath);
+    w.name("bytes").value(bytes);
+    if (records >= 0)
+      w.name("records").value(records);
+    if (deltaPath != null)
+      w.name("delta").value(deltaPath);
+    w.name("time").value(time);
+    w.endObject();
+    return w.getBuilder().toString();
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Something to tell when a new score file has been downloaded. Hooks are
+ * called from the {@link HookDispatcher}'s thread, never from the download
+ * loop, and are retried if they throw. The dispatcher closes each hook when
+ * it shuts down.
+ */
+public interface Hook extends Closeable {
+
+  /**
+   * Deliver an event.
+   * 
+   * @param event Event to deliver
+   * @throws IOException if the event could not be delivered
+   */
+  void deliver(FileEvent event) throws IOException;
+
+  /**
+   * Get a short description of this hook for log messages.
+   * 
+   * @return Description
+   */
+  String getName();
+}
@@ -0,0 +1,232 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Delivers {@link FileEvent}s to {@link Hook}s in the background so that a
+ * slow or unreachable consumer never holds up the downloads.
+ * </p>
+ * <p>
+ * Each hook has its own thread and its own bounded queue, so one failing
+ * hook does not delay the others. A delivery that fails is retried with an
+ * exponentially growing delay. When a hook's queue is full, new events for
+ * it are dropped with a warning rather than blocking the caller.
+ * </p>
+ */
+public class HookDispatcher {
+
+  /**
+   * Number of times a delivery is attempted.
+   */
+  private final int attempts;
+
+  /**
+   * Delay before the first retry, in milliseconds.
+   */
+  private final long retryDelayMillis;
+
+  /**
+   * Whether the workers still wait for new events.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * One worker per hook.
+   */
+  private final List<Worker> workers = new ArrayList<Worker>();
+
+  /**
+   * Create a new HookDispatcher and start its threads.
+   * 
+   * @param hooks Hooks to deliver to
+   * @param capacity Number of events each hook's queue can hold
+   * @param attempts Number of times a delivery is attempted
+   * @param retryDelayMillis Delay before the first retry, in milliseconds
+   */
+  public HookDispatcher(List<Hook> hooks, int capacity, int attempts,
+      long retryDelayMillis) {
+    this.attempts = Math.max(1, attempts);
+    this.retryDelayMillis = retryDelayMillis;
+    for (Hook hook : hooks) {
+      Worker worker = new Worker(hook, capacity);
+      workers.add(worker);
+      worker.thread.start();
+    }
+  }
+
+  /**
+   * Queue an event for every hook. Never blocks.
+   * 
+   * @param event Event to deliver
+   * @return FALSE if the event had to be dropped for at least one hook
+   */
+  public boolean fire(FileEvent event) {
+    boolean queued = true;
+    for (Worker worker : workers) {
+      if (!running || !worker.queue.offer(event)) {
+        Log.at(Level.WARN).file(event.getFileName()).phase("hook")
+            .log("Dropped event for " + worker.hook.getName()
+                + "; its queue is full");
+        queued = false;
+      }
+    }
+    return queued;
+  }
+
+  /**
+   * Get the number of events waiting to be delivered.
+   * 
+   * @return Number of queued events, over all hooks
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Worker worker : workers)
+      depth += worker.queue.size();
+    return depth;
+  }
+
+  /**
+   * Stop accepting events and give the queued ones time to be delivered.
+   * 
+   * @param timeoutMillis Longest time to wait, in milliseconds
+   */
+  public void shutdown(long timeoutMillis) {
+    running = false;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Worker worker : workers) {
+      try {
+        worker.thread
+            .join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (worker.thread.isAlive()) {
+        worker.thread.interrupt();
+        Log.warn(worker.queue.size() + " event(s) for "
+            + worker.hook.getName() + " were not delivered", null);
+      }
+    }
+  }
+
+  /**
+   * Delivers the events queued for one hook.
+   */
+  private final class Worker implements Runnable {
+
+    /**
+     * Hook to deliver to.
+     */
+    final Hook hook;
+
+    /**
+     * Events waiting to be delivered.
+     */
+    final BlockingQueue<FileEvent> queue;
+
+    /**
+     * Thread running this worker.
+     */
+    final Thread thread;
+
+    /**
+     * Create a new Worker.
+     * 
+     * @param hook Hook to deliver to
+     * @param capacity Number of events the queue can hold
+     */
+    Worker(Hook hook, int capacity) {
+      this.hook = hook;
+      this.queue = new ArrayBlockingQueue<FileEvent>(capacity);
+      this.thread = new Thread(this, "hook-" + hook.getName());
+      this.thread.setDaemon(true);
+    }
+
+    //@Override
+    public void run() {
+      try {
+        while (running || !queue.isEmpty()) {
+          FileEvent event = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (event != null)
+            deliver(event);
+        }
+      } catch (InterruptedException e) {
+        // Shutting down
+      } finally {
+        try {
+          hook.close();
+        } catch (IOException e) {
+          Log.warn("Error closing " + hook.getName() + ": " + e.getMessage(),
+              e);
+        }
+      }
+    }
+
+    /**
+     * Deliver one event, retrying if it fails.
+     * 
+     * @param event Event to deliver
+     * @throws InterruptedException if interrupted while waiting to retry
+     */
+    private void deliver(FileEvent event) throws InterruptedException {
+      long delay = retryDelayMillis;
+      for (int attempt = 1;; ++attempt) {
+        long start = System.nanoTime();
+        try {
+          hook.deliver(event);
+          Log.at(Level.DEBUG).file(event.getFileName()).phase("hook")
+              .attempt(attempt)
+              .duration((System.nanoTime() - start) / 1000000L)
+              .log("Delivered to " + hook.getName());
+          return;
+        } catch (Exception e) {
+          if (attempt >= attempts) {
+            Log.at(Level.ERROR).file(event.getFileName()).phase("hook")
+                .attempt(attempt).error(e).log("Giving up delivering to "
+                    + hook.getName() + ": " + e.getMessage());
+            return;
+          }
+          Log.at(Level.WARN).file(event.getFileName()).phase("hook")
+              .attempt(attempt).log("Could not deliver to " + hook.getName()
+                  + ": " + e.getMessage() + "; retrying in " + delay + " ms");
+        }
+        Thread.sleep(delay);
+        delay *= 2;
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.hook;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * POSTs each new file's event as JSON to a URL. Any 2xx response counts as
+ * delivered.
+ * <p>
+ * The hook has an HTTP client of its own rather than the download
+ * transport: certificates and host names are checked as usual, and the
+ * request is not retried, rate limited or subjected to injected faults by
+ * the download stack (the {@link HookDispatcher} does its own retries).
+ * </p>
+ */
+public class WebhookHook implements Hook {
+
+  /**
+   * Number of seconds to wait to connect and then for a response.
+   */
+  private static final long TIMEOUT_SECONDS = 60;
+
+  /**
+   * Client to send the request with.
+   */
+  private final HttpClient client;
+
+  /**
+   * URL to POST to.
+   */
+  private final URI url;
+
+  /**
+   * Create a new WebhookHook.
+   * 
+   * @param url URL to POST to
+   */
+  public WebhookHook(String url) {
+    this.url = URI.create(url);
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+        .followRedirects(HttpClient.Redirect.NORMAL).build();
+  }
+
+  //@Override
+  public void close() {
+    // The client's threads stop once it is unreachable
+  }
+
+  //@Override
+  public void deliver(FileEvent event) throws IOException {
+    HttpRequest request = HttpRequest.newBuilder(url)
+        .timeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(event.toJson())).build();
+    HttpResponse<Void> response;
+    try {
+      response = client.send(request, HttpResponse.BodyHandlers.discarding());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Request interrupted: " + url);
+    }
+    if (response.statusCode() / 100 != 2)
+      throw new IOException("HTTP status " + response.statusCode());
+  }
+
+  //@Override
+  public String getName() {
+    return "webhook " + url;
+  }
+}
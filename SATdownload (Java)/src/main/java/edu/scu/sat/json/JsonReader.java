@@ -0,0 +1,409 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Minimal streaming JSON reader for the small responses returned by the
+ * PAScoresDwnld web service. Rather than building the whole response as a
+ * string and then a map, it decodes UTF-8 straight from the response stream
+ * into a reusable buffer and only creates strings for the fields it is asked
+ * for. Every other value, including nested objects and arrays, is skipped.
+ * </p>
+ * <p>
+ * Only the top level of the document must be an object. The rest of the
+ * stream is always read to the end so that keep-alive connections can be
+ * reused.
+ * </p>
+ */
+public final class JsonReader {
+
+  /**
+   * Size of the read buffer.
+   */
+  private static final int BUFFER_SIZE = 512;
+
+  /**
+   * Read the named fields from the top-level object of a JSON document.
+   * Strings are returned unescaped; numbers, <code>true</code> and
+   * <code>false</code> are returned as they appear in the document. Fields
+   * that are missing, <code>null</code>, objects or arrays are returned as
+   * <code>null</code>.
+   * 
+   * @param in JSON document. It is not closed.
+   * @param names Names of the fields to read
+   * @return Values of the fields in the same order as <code>names</code>
+   * @throws IOException if the stream could not be read or is not valid JSON
+   */
+  public static String[] readFields(InputStream in, String... names)
+      throws IOException {
+    return new JsonReader(in).readObjectFields(names);
+  }
+
+  /**
+   * Read buffer.
+   */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  /**
+   * Stream being read.
+   */
+  private final InputStream in;
+
+  /**
+   * Number of valid bytes in {@link #buffer}.
+   */
+  private int limit;
+
+  /**
+   * Position of the next unread byte in {@link #buffer}.
+   */
+  private int pos;
+
+  /**
+   * Scratch space strings are decoded into.
+   */
+  private final StringBuilder text = new StringBuilder(64);
+
+  /**
+   * Create a new JsonReader.
+   * 
+   * @param in JSON document
+   */
+  public JsonReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Read the named fields from the top-level object. See
+   * {@link #readFields(InputStream, String...)}.
+   * 
+   * @param names Names of the fields to read
+   * @return Values of the fields in the same order as <code>names</code>
+   * @throws IOException if the stream could not be read or is not valid JSON
+   */
+  public String[] readObjectFields(String... names) throws IOException {
+    String[] values = new String[names.length];
+    expect('{');
+    int c = nextNonSpace();
+    if (c != '}') {
+      while (true) {
+        if (c != '"')
+          throw error("Expected field name");
+        readString();
+        int index = indexOf(names, text);
+        expect(':');
+        if (index >= 0)
+          values[index] = readScalar();
+        else
+          skipValue(nextNonSpace());
+
+        c = nextNonSpace();
+        if (c == '}')
+          break;
+        if (c != ',')
+          throw error("Expected ',' or '}'");
+        c = nextNonSpace();
+      }
+    }
+
+    // Drain whatever follows so the connection can go back to the pool
+    while (fill())
+      pos = limit;
+    return values;
+  }
+
+  /**
+   * Build an exception that says where parsing went wrong.
+   * 
+   * @param message Description of the problem
+   * @return Exception to throw
+   */
+  private JsonException error(String message) {
+    return new JsonException(message + " in JSON response");
+  }
+
+  /**
+   * Read the next non-whitespace character and make sure it is the one
+   * expected.
+   * 
+   * @param expected Expected character
+   * @throws IOException if the stream could not be read or the character is
+   *           different
+   */
+  private void expect(char expected) throws IOException {
+    if (nextNonSpace() != expected)
+      throw error("Expected '" + expected + "'");
+  }
+
+  /**
+   * Refill the buffer if it is empty.
+   * 
+   * @return TRUE if there is at least one unread byte<br>
+   *         FALSE at the end of the stream
+   * @throws IOException if the stream could not be read
+   */
+  private boolean fill() throws IOException {
+    if (pos < limit)
+      return true;
+    limit = in.read(buffer, 0, buffer.length);
+    pos = 0;
+    if (limit <= 0) {
+      limit = 0;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Find the position of a name in an array without creating a string.
+   * 
+   * @param names Names to search
+   * @param name Name to find
+   * @return Index of <code>name</code> or -1 if it is not in
+   *         <code>names</code>
+   */
+  private static int indexOf(String[] names, CharSequence name) {
+    for (int i = 0; i < names.length; ++i) {
+      if (names[i].contentEquals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Read the next byte.
+   * 
+   * @return Next byte (0-255)
+   * @throws IOException if the stream could not be read or has ended
+   */
+  private int next() throws IOException {
+    if (!fill())
+      throw error("Unexpected end of input");
+    return buffer[pos++] & 0xff;
+  }
+
+  /**
+   * Read the next byte that is not whitespace.
+   * 
+   * @return Next non-whitespace byte
+   * @throws IOException if the stream could not be read or has ended
+   */
+  private int nextNonSpace() throws IOException {
+    int c;
+    do {
+      c = next();
+    } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+    return c;
+  }
+
+  /**
+   * Look at the next byte without consuming it.
+   * 
+   * @return Next byte or -1 at the end of the stream
+   * @throws IOException if the stream could not be read
+   */
+  private int peek() throws IOException {
+    return fill() ? buffer[pos] & 0xff : -1;
+  }
+
+  /**
+   * Read a value that was asked for.
+   * 
+   * @return String or literal value, or <code>null</code> for
+   *         <code>null</code>, objects and arrays
+   * @throws IOException if the stream could not be read or is not valid JSON
+   */
+  private String readScalar() throws IOException {
+    int c = nextNonSpace();
+    if (c == '"') {
+      readString();
+      return text.toString();
+    }
+    if (c == '{' || c == '[') {
+      skipValue(c);
+      return null;
+    }
+    text.setLength(0);
+    text.append((char) c);
+    readLiteral();
+    String literal = text.toString();
+    return "null".equals(literal) ? null : literal;
+  }
+
+  /**
+   * Read the rest of a number, <code>true</code>, <code>false</code> or
+   * <code>null</code> into {@link #text}.
+   * 
+   * @throws IOException if the stream could not be read
+   */
+  private void readLiteral() throws IOException {
+    int c = peek();
+    while (c != -1 && c != ',' && c != '}' && c != ']' && c != ' '
+        && c != '\t' && c != '\n' && c != '\r') {
+      text.append((char) c);
+      pos++;
+      c = peek();
+    }
+  }
+
+  /**
+   * Read a string (after its opening quote) into {@link #text}, decoding
+   * UTF-8 and escape sequences.
+   * 
+   * @throws IOException if the stream could not be read or is not valid JSON
+   */
+  private void readString() throws IOException {
+    text.setLength(0);
+    while (true) {
+      int c = next();
+      if (c == '"')
+        return;
+      if (c == '\\') {
+        c = next();
+        switch (c) {
+        case 'b':
+          text.append('\b');
+          break;
+        case 'f':
+          text.append('\f');
+          break;
+        case 'n':
+          text.append('\n');
+          break;
+        case 'r':
+          text.append('\r');
+          break;
+        case 't':
+          text.append('\t');
+          break;
+        case 'u':
+          int code = 0;
+          for (int i = 0; i < 4; ++i)
+            code = (code << 4) | hexValue(next());
+          text.append((char) code);
+          break;
+        case '"':
+        case '\\':
+        case '/':
+          text.append((char) c);
+          break;
+        default:
+          throw error("Invalid escape sequence");
+        }
+      } else if (c < 0x80) {
+        text.append((char) c);
+      } else if ((c & 0xe0) == 0xc0) {
+        text.append((char) (((c & 0x1f) << 6) | continuation()));
+      } else if ((c & 0xf0) == 0xe0) {
+        int high = ((c & 0x0f) << 12) | (continuation() << 6);
+        text.append((char) (high | continuation()));
+      } else if ((c & 0xf8) == 0xf0) {
+        int high = ((c & 0x07) << 18) | (continuation() << 12);
+        int mid = high | (continuation() << 6);
+        text.appendCodePoint(mid | continuation());
+      } else {
+        throw error("Invalid UTF-8");
+      }
+    }
+  }
+
+  /**
+   * Read a UTF-8 continuation byte.
+   * 
+   * @return Low six bits of the byte
+   * @throws IOException if the stream could not be read or is not valid UTF-8
+   */
+  private int continuation() throws IOException {
+    int c = next();
+    if ((c & 0xc0) != 0x80)
+      throw error("Invalid UTF-8");
+    return c & 0x3f;
+  }
+
+  /**
+   * Convert a hexadecimal digit to its value.
+   * 
+   * @param c Hexadecimal digit
+   * @return Value of the digit
+   * @throws JsonException if it is not a hexadecimal digit
+   */
+  private int hexValue(int c) throws JsonException {
+    if (c >= '0' && c <= '9')
+      return c - '0';
+    if (c >= 'a' && c <= 'f')
+      return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F')
+      return c - 'A' + 10;
+    throw error("Invalid unicode escape");
+  }
+
+  /**
+   * Skip a value that was not asked for without decoding it.
+   * 
+   * @param first First byte of the value
+   * @throws IOException if the stream could not be read or is not valid JSON
+   */
+  private void skipValue(int first) throws IOException {
+    if (first == '"') {
+      skipString();
+    } else if (first == '{' || first == '[') {
+      int depth = 1;
+      while (depth > 0) {
+        int c = next();
+        if (c == '"')
+          skipString();
+        else if (c == '{' || c == '[')
+          depth++;
+        else if (c == '}' || c == ']')
+          depth--;
+      }
+    } else {
+      int c = peek();
+      while (c != -1 && c != ',' && c != '}' && c != ']') {
+        pos++;
+        c = peek();
+      }
+    }
+  }
+
+  /**
+   * Skip the rest of a string (after its opening quote).
+   * 
+   * @throws IOException if the stream could not be read or has ended
+   */
+  private void skipString() throws IOException {
+    int c;
+    while ((c = next()) != '"') {
+      if (c == '\\')
+        next();
+    }
+  }
+}
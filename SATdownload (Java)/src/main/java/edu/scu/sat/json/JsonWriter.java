@@ -0,0 +1,335 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.json;
+
+/**
+ * <p>
+ * Minimal JSON writer that appends directly to a <code>StringBuilder</code>.
+ * Strings are always escaped, so user-supplied values such as credentials
+ * cannot break out of the document.
+ * </p>
+ * 
+ * <pre>
+ * String body = new JsonWriter().beginObject().name("username").value(user)
+ *     .name("password").value(password).endObject().toString();
+ * </pre>
+ */
+public final class JsonWriter {
+
+  /**
+   * Hexadecimal digits used for <code>\\u</code> escapes.
+   */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Maximum nesting depth of objects and arrays.
+   */
+  private static final int MAX_DEPTH = 63;
+
+  /**
+   * Append a string to a builder as a quoted and escaped JSON string.
+   * 
+   * @param sb Builder to append to
+   * @param str String to append. <code>null</code> is written as
+   *          <code>null</code>.
+   * @return <code>sb</code>
+   */
+  public static StringBuilder appendString(StringBuilder sb, CharSequence str) {
+    if (str == null)
+      return sb.append("null");
+
+    // Most values need no escaping at all, so copy them in one go
+    int n = str.length();
+    int start = 0;
+    while (start < n && !needsEscape(str.charAt(start)))
+      start++;
+    sb.append('"').append(str, 0, start);
+    for (int i = start; i < n; ++i) {
+      char c = str.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      case '\b':
+        sb.append("\\b");
+        break;
+      case '\f':
+        sb.append("\\f");
+        break;
+      default:
+        if (needsEscape(c)) {
+          sb.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+              .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    return sb.append('"');
+  }
+
+  /**
+   * Check if a character must be written as an escape sequence.
+   * 
+   * @param c Character to check
+   * @return TRUE if the character must be escaped
+   */
+  private static boolean needsEscape(char c) {
+    return c < 0x20 || c == '"' || c == '\\' || c == 0x2028 || c == 0x2029;
+  }
+
+  /**
+   * Number of objects and arrays currently open.
+   */
+  private int depth;
+
+  /**
+   * Bit <i>n</i> is set while the next value at depth <i>n</i> is the first
+   * one (and so does not need a comma).
+   */
+  private long first = 1L;
+
+  /**
+   * Whether the last thing written was a field name.
+   */
+  private boolean afterName;
+
+  /**
+   * Builder being written to.
+   */
+  private final StringBuilder sb;
+
+  /**
+   * Create a new JsonWriter with its own builder.
+   */
+  public JsonWriter() {
+    this(new StringBuilder(128));
+  }
+
+  /**
+   * Create a new JsonWriter that appends to an existing builder.
+   * 
+   * @param sb Builder to append to
+   */
+  public JsonWriter(StringBuilder sb) {
+    this.sb = sb;
+  }
+
+  /**
+   * Start an array.
+   * 
+   * @return this writer
+   */
+  public JsonWriter beginArray() {
+    return open('[');
+  }
+
+  /**
+   * Start an object.
+   * 
+   * @return this writer
+   */
+  public JsonWriter beginObject() {
+    return open('{');
+  }
+
+  /**
+   * End the current array.
+   * 
+   * @return this writer
+   */
+  public JsonWriter endArray() {
+    return close(']');
+  }
+
+  /**
+   * End the current object.
+   * 
+   * @return this writer
+   */
+  public JsonWriter endObject() {
+    return close('}');
+  }
+
+  /**
+   * Get the builder being written to.
+   * 
+   * @return the builder
+   */
+  public StringBuilder getBuilder() {
+    return sb;
+  }
+
+  /**
+   * Write the name of the next field of the current object.
+   * 
+   * @param name Field name
+   * @return this writer
+   */
+  public JsonWriter name(String name) {
+    separate();
+    appendString(sb, name).append(':');
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Write <code>null</code>.
+   * 
+   * @return this writer
+   */
+  public JsonWriter nullValue() {
+    separate();
+    sb.append("null");
+    return this;
+  }
+
+  /**
+   * Reset the writer and its builder so it can be reused.
+   * 
+   * @return this writer
+   */
+  public JsonWriter reset() {
+    sb.setLength(0);
+    depth = 0;
+    first = 1L;
+    afterName = false;
+    return this;
+  }
+
+  //@Override
+  public String toString() {
+    return sb.toString();
+  }
+
+  /**
+   * Write a boolean value.
+   * 
+   * @param value Value to write
+   * @return this writer
+   */
+  public JsonWriter value(boolean value) {
+    separate();
+    sb.append(value);
+    return this;
+  }
+
+  /**
+   * Write a string value.
+   * 
+   * @param value Value to write. May be <code>null</code>.
+   * @return this writer
+   */
+  public JsonWriter value(CharSequence value) {
+    separate();
+    appendString(sb, value);
+    return this;
+  }
+
+  /**
+   * Write a floating point value. Values that JSON cannot represent (NaN and
+   * infinity) are written as <code>null</code>.
+   * 
+   * @param value Value to write
+   * @return this writer
+   */
+  public JsonWriter value(double value) {
+    separate();
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      sb.append("null");
+    else
+      sb.append(value);
+    return this;
+  }
+
+  /**
+   * Write an integer value.
+   * 
+   * @param value Value to write
+   * @return this writer
+   */
+  public JsonWriter value(long value) {
+    separate();
+    sb.append(value);
+    return this;
+  }
+
+  /**
+   * Close the current object or array.
+   * 
+   * @param c Closing character
+   * @return this writer
+   */
+  private JsonWriter close(char c) {
+    if (depth == 0)
+      throw new IllegalStateException("Nothing to close");
+    depth--;
+    sb.append(c);
+    return this;
+  }
+
+  /**
+   * Open an object or array.
+   * 
+   * @param c Opening character
+   * @return this writer
+   */
+  private JsonWriter open(char c) {
+    if (depth == MAX_DEPTH)
+      throw new IllegalStateException("JSON nested too deeply");
+    separate();
+    sb.append(c);
+    first |= 1L << ++depth;
+    return this;
+  }
+
+  /**
+   * Write a comma if the next value is not the first at this depth.
+   */
+  private void separate() {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    long bit = 1L << depth;
+    if ((first & bit) == 0)
+      sb.append(',');
+    first &= ~bit;
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.log;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Writes log events from a single background thread so that callers never
+ * contend for the output stream. Events are handed over through a bounded,
+ * array-backed ring buffer; the writer thread drains everything that is
+ * waiting, formats it into one block and writes that block with a single
+ * call.
+ * </p>
+ * <p>
+ * When the buffer is full, callers wait for space rather than lose messages.
+ * After {@link #close()} (or if the writer thread dies) events are written
+ * synchronously. Callers queue events under a shared lock that is taken
+ * exclusively to stop the writer, so no event can be queued after the last
+ * drain and the output keeps the order events were queued in.
+ * </p>
+ */
+final class AsyncAppender {
+
+  /**
+   * Most events formatted into one write.
+   */
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * Batch being formatted. Only touched by the writer thread.
+   */
+  private final List<LogEvent> batch = new ArrayList<LogEvent>(BATCH_SIZE);
+
+  /**
+   * Formatter used by the writer thread.
+   */
+  private final LogFormatter formatter;
+
+  /**
+   * Held shared while an event is queued and exclusively while the appender
+   * stops accepting events.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Output buffer used by the writer thread.
+   */
+  private final StringBuilder out = new StringBuilder(8192);
+
+  /**
+   * Ring buffer of events waiting to be written.
+   */
+  private final BlockingQueue<LogEvent> queue;
+
+  /**
+   * Whether the appender still accepts events for the writer thread.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Stream to write to.
+   */
+  private final PrintStream stream;
+
+  /**
+   * Formatter used when writing synchronously.
+   */
+  private final LogFormatter syncFormatter;
+
+  /**
+   * Background writer thread.
+   */
+  private final Thread writer;
+
+  /**
+   * Create and start a new AsyncAppender.
+   * 
+   * @param stream Stream to write to
+   * @param json TRUE to write JSON, FALSE to write text
+   * @param capacity Number of events the ring buffer can hold
+   */
+  AsyncAppender(PrintStream stream, boolean json, int capacity) {
+    this.stream = stream;
+    this.formatter = new LogFormatter(json);
+    this.syncFormatter = new LogFormatter(json);
+    this.queue = new ArrayBlockingQueue<LogEvent>(capacity);
+    this.writer = new Thread(new Runnable() {
+      //@Override
+      public void run() {
+        drainLoop();
+      }
+    }, "log-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Queue an event for writing.
+   * 
+   * @param event Event to write
+   */
+  void append(LogEvent event) {
+    Lock accept = lock.readLock();
+    accept.lock();
+    try {
+      if (running) {
+        queue.put(event);
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      accept.unlock();
+    }
+    // Let the writer finish what was queued first, so that this event does
+    // not overtake an earlier one from the same caller
+    if (writer.isAlive() && Thread.currentThread() != writer) {
+      try {
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    writeNow(event);
+  }
+
+  /**
+   * Stop accepting events, write everything still queued and stop the writer
+   * thread.
+   */
+  void close() {
+    // The writer is still draining, so callers waiting for space get it
+    Lock stop = lock.writeLock();
+    stop.lock();
+    try {
+      running = false;
+    } finally {
+      stop.unlock();
+    }
+    writer.interrupt();
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // A writer that is still busy writes the rest itself; writing it here
+    // as well would mix up the order
+    if (!writer.isAlive()) {
+      LogEvent event;
+      while ((event = queue.poll()) != null)
+        writeNow(event);
+    }
+    stream.flush();
+  }
+
+  /**
+   * Body of the writer thread.
+   */
+  private void drainLoop() {
+    try {
+      while (running) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          break;
+        }
+        writeBatch();
+      }
+    } finally {
+      // Callers waiting for space hold the lock shared, so keep draining
+      // until they are done
+      Lock stop = lock.writeLock();
+      while (!stop.tryLock()) {
+        writeBatch();
+        Thread.yield();
+      }
+      try {
+        running = false;
+      } finally {
+        stop.unlock();
+      }
+      writeBatch();
+    }
+  }
+
+  /**
+   * Format and write the current batch plus whatever else is waiting.
+   */
+  private void writeBatch() {
+    do {
+      queue.drainTo(batch, BATCH_SIZE - batch.size());
+      if (batch.isEmpty())
+        return;
+      out.setLength(0);
+      for (int i = 0, n = batch.size(); i < n; ++i)
+        formatter.format(batch.get(i), out);
+      batch.clear();
+      stream.print(out);
+      stream.flush();
+    } while (!queue.isEmpty());
+    if (out.capacity() > 1 << 20)
+      out.trimToSize();
+  }
+
+  /**
+   * Write a single event from the calling thread.
+   * 
+   * @param event Event to write
+   */
+  private void writeNow(LogEvent event) {
+    synchronized (syncFormatter) {
+      StringBuilder line = new StringBuilder(128);
+      syncFormatter.format(event, line);
+      stream.print(line);
+      stream.flush();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.log;
+
+/**
+ * Severity of a log message. Messages below the configured level are dropped
+ * before they are formatted or queued.
+ */
+public enum Level {
+  /**
+   * Detailed diagnostic messages
+   */
+  DEBUG,
+  /**
+   * Normal progress messages (default)
+   */
+  INFO,
+  /**
+   * Something went wrong but the program carried on
+   */
+  WARN,
+  /**
+   * Something failed
+   */
+  ERROR;
+
+  /**
+   * Check if a message at this level passes a threshold.
+   * 
+   * @param threshold Lowest level being logged
+   * @return TRUE if a message at this level should be logged
+   */
+  public boolean isEnabled(Level threshold) {
+    return this.compareTo(threshold) >= 0;
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.log;
+
+/**
+ * <p>
+ * Logging facade used throughout SATdownload. Messages are written to
+ * <code>System.out</code> by a background thread (see {@link AsyncAppender})
+ * so that parallel downloads never block on the console.
+ * </p>
+ * <p>
+ * The level and format are set from the config file with
+ * {@link #configure(Level, String)}:
+ * </p>
+ * <ul>
+ * <li><code>logLevel</code> - DEBUG, INFO (default), WARN or ERROR</li>
+ * <li><code>logFormat</code> - text (default) or json</li>
+ * </ul>
+ * <p>
+ * Everything still queued is written when the JVM exits.
+ * </p>
+ */
+public final class Log {
+
+  /**
+   * Number of events the ring buffer can hold.
+   */
+  private static final int CAPACITY = 8192;
+
+  /**
+   * Current appender.
+   */
+  private static volatile AsyncAppender appender;
+
+  /**
+   * Whether the current appender writes JSON. Only read and written while
+   * holding the class lock.
+   */
+  private static boolean json;
+
+  /**
+   * Lowest level being logged.
+   */
+  private static volatile Level threshold = Level.INFO;
+
+  static {
+    appender = new AsyncAppender(System.out, false, CAPACITY);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      //@Override
+      public void run() {
+        shutdown();
+      }
+    }, "log-shutdown"));
+  }
+
+  /**
+   * Start a log event.
+   * 
+   * @param level Level of the event
+   * @return New event, or a no-op event if the level is disabled
+   */
+  public static LogEvent at(Level level) {
+    if (!level.isEnabled(threshold))
+      return LogEvent.DISABLED;
+    return new LogEvent(level);
+  }
+
+  /**
+   * Set the level and output format. The appender is only replaced when the
+   * format changes; the old one writes everything queued, and everything
+   * logged while it closes, before the new one takes over.
+   * 
+   * @param level Lowest level to log
+   * @param format <code>text</code> or <code>json</code>
+   * @throws IllegalArgumentException if the format is unknown
+   */
+  public static synchronized void configure(Level level, String format) {
+    boolean toJson;
+    if ("json".equalsIgnoreCase(format))
+      toJson = true;
+    else if ("text".equalsIgnoreCase(format))
+      toJson = false;
+    else
+      throw new IllegalArgumentException("Unknown log format: " + format);
+
+    threshold = level;
+    if (toJson == json)
+      return;
+    appender.close();
+    appender = new AsyncAppender(System.out, toJson, CAPACITY);
+    json = toJson;
+  }
+
+  /**
+   * Log a debug message.
+   * 
+   * @param msg Message to log
+   */
+  public static void debug(String msg) {
+    at(Level.DEBUG).log(msg);
+  }
+
+  /**
+   * Log an error message.
+   * 
+   * @param msg Message to log
+   * @param error Cause of the error, or <code>null</code>
+   */
+  public static void error(String msg, Throwable error) {
+    at(Level.ERROR).error(error).log(msg);
+  }
+
+  /**
+   * Log an informational message.
+   * 
+   * @param msg Message to log
+   */
+  public static void info(String msg) {
+    at(Level.INFO).log(msg);
+  }
+
+  /**
+   * Check if messages at a level are being logged.
+   * 
+   * @param level Level to check
+   * @return TRUE if messages at this level are logged
+   */
+  public static boolean isEnabled(Level level) {
+    return level.isEnabled(threshold);
+  }
+
+  /**
+   * Write everything that is queued and switch to synchronous logging.
+   */
+  public static synchronized void shutdown() {
+    appender.close();
+  }
+
+  /**
+   * Log a warning message.
+   * 
+   * @param msg Message to log
+   * @param error Cause of the warning, or <code>null</code>
+   */
+  public static void warn(String msg, Throwable error) {
+    at(Level.WARN).error(error).log(msg);
+  }
+
+  /**
+   * Hand an event to the current appender.
+   * 
+   * @param event Event to write
+   */
+  static void append(LogEvent event) {
+    appender.append(event);
+  }
+
+  private Log() {
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.log;
+
+/**
+ * <p>
+ * A single log message and its structured fields. Events are created with
+ * {@link Log#at(Level)}, filled in with the field methods and handed to the
+ * appender with {@link #log(String)}:
+ * </p>
+ * 
+ * <pre>
+ * Log.at(Level.INFO).file(fileName).phase("download").bytes(size)
+ *     .duration(millis).log("file downloaded");
+ * </pre>
+ * <p>
+ * Numeric fields that were not set are left out of the output.
+ * </p>
+ */
+public final class LogEvent {
+
+  /**
+   * Value of a numeric field that has not been set.
+   */
+  static final long UNSET = Long.MIN_VALUE;
+
+  /**
+   * Shared event returned when the level is disabled. Every method on it is a
+   * no-op.
+   */
+  static final LogEvent DISABLED = new LogEvent(null);
+
+  /**
+   * Attempt number.
+   */
+  int attempt = -1;
+
+  /**
+   * Bytes transferred.
+   */
+  long bytes = UNSET;
+
+  /**
+   * Duration in milliseconds.
+   */
+  long durationMs = UNSET;
+
+  /**
+   * Error attached to the message.
+   */
+  Throwable error;
+
+  /**
+   * Name of the score file the message is about.
+   */
+  String file;
+
+  /**
+   * Level of the message.
+   */
+  final Level level;
+
+  /**
+   * Message text.
+   */
+  String message;
+
+  /**
+   * Processing phase, e.g. <code>login</code> or <code>download</code>.
+   */
+  String phase;
+
+  /**
+   * Name of the thread that created the event.
+   */
+  final String thread;
+
+  /**
+   * Time the event was created, in milliseconds since the epoch.
+   */
+  final long timestamp;
+
+  /**
+   * Create a new event.
+   * 
+   * @param level Level of the message, or <code>null</code> for
+   *          {@link #DISABLED}
+   */
+  LogEvent(Level level) {
+    this.level = level;
+    if (level == null) {
+      this.thread = null;
+      this.timestamp = 0;
+    } else {
+      this.thread = Thread.currentThread().getName();
+      this.timestamp = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Set the attempt number.
+   * 
+   * @param attempt Attempt number (starting at 1)
+   * @return this event
+   */
+  public LogEvent attempt(int attempt) {
+    if (this != DISABLED)
+      this.attempt = attempt;
+    return this;
+  }
+
+  /**
+   * Set the number of bytes transferred.
+   * 
+   * @param bytes Number of bytes
+   * @return this event
+   */
+  public LogEvent bytes(long bytes) {
+    if (this != DISABLED)
+      this.bytes = bytes;
+    return this;
+  }
+
+  /**
+   * Set the duration.
+   * 
+   * @param durationMs Duration in milliseconds
+   * @return this event
+   */
+  public LogEvent duration(long durationMs) {
+    if (this != DISABLED)
+      this.durationMs = durationMs;
+    return this;
+  }
+
+  /**
+   * Attach an error. Its stack trace is included in the output.
+   * 
+   * @param error Error to attach
+   * @return this event
+   */
+  public LogEvent error(Throwable error) {
+    if (this != DISABLED)
+      this.error = error;
+    return this;
+  }
+
+  /**
+   * Set the score file the message is about.
+   * 
+   * @param file File name
+   * @return this event
+   */
+  public LogEvent file(String file) {
+    if (this != DISABLED)
+      this.file = file;
+    return this;
+  }
+
+  /**
+   * Check if this event will be written.
+   * 
+   * @return FALSE if the level of this event is disabled
+   */
+  public boolean isEnabled() {
+    return this != DISABLED;
+  }
+
+  /**
+   * Hand the event to the appender. The event must not be used afterwards.
+   * 
+   * @param message Message text
+   */
+  public void log(String message) {
+    if (this != DISABLED) {
+      this.message = message;
+      Log.append(this);
+    }
+  }
+
+  /**
+   * Set the processing phase.
+   * 
+   * @param phase Phase, e.g. <code>login</code> or <code>download</code>
+   * @return this event
+   */
+  public LogEvent phase(String phase) {
+    if (this != DISABLED)
+      this.phase = phase;
+    return this;
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import edu.scu.sat.json.JsonWriter;
+
+/**
+ * <p>
+ * Turns {@link LogEvent}s into lines of text. Two formats are supported:
+ * </p>
+ * <ul>
+ * <li><code>text</code> - <code>yyyy-MM-dd HH:mm:ss: message</code> followed
+ * by any fields as <code>key=value</code> pairs (default)</li>
+ * <li><code>json</code> - one JSON object per line for log pipelines</li>
+ * </ul>
+ * <p>
+ * Timestamps only change once per second (or millisecond for JSON), so the
+ * formatted value is cached. A formatter is not thread-safe; the appender
+ * gives each thread that formats its own.
+ * </p>
+ */
+final class LogFormatter {
+
+  /**
+   * Format of the timestamp on text lines.
+   */
+  private static final DateTimeFormatter TEXT_TIME = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+  /**
+   * Whether to write JSON instead of text.
+   */
+  private final boolean json;
+
+  /**
+   * Second the cached text timestamp is for.
+   */
+  private long cachedSecond = Long.MIN_VALUE;
+
+  /**
+   * Cached text timestamp.
+   */
+  private String cachedTime;
+
+  /**
+   * Writer reused for JSON lines.
+   */
+  private final JsonWriter jsonWriter = new JsonWriter(new StringBuilder(256));
+
+  /**
+   * Create a new LogFormatter.
+   * 
+   * @param json TRUE to write JSON, FALSE to write text
+   */
+  LogFormatter(boolean json) {
+    this.json = json;
+  }
+
+  /**
+   * Append an event, and a line separator, to a builder.
+   * 
+   * @param event Event to format
+   * @param out Builder to append to
+   */
+  void format(LogEvent event, StringBuilder out) {
+    if (json)
+      formatJson(event, out);
+    else
+      formatText(event, out);
+    out.append(System.lineSeparator());
+  }
+
+  /**
+   * Append an event as a JSON object.
+   * 
+   * @param event Event to format
+   * @param out Builder to append to
+   */
+  private void formatJson(LogEvent event, StringBuilder out) {
+    JsonWriter w = jsonWriter.reset();
+    w.beginObject();
+    w.name("ts").value(Instant.ofEpochMilli(event.timestamp).toString());
+    w.name("level").value(event.level.name());
+    w.name("thread").value(event.thread);
+    w.name("msg").value(event.message);
+    if (event.file != null)
+      w.name("file").value(event.file);
+    if (event.phase != null)
+      w.name("phase").value(event.phase);
+    if (event.bytes != LogEvent.UNSET)
+      w.name("bytes").value(event.bytes);
+    if (event.durationMs != LogEvent.UNSET)
+      w.name("durationMs").value(event.durationMs);
+    if (event.attempt >= 0)
+      w.name("attempt").value(event.attempt);
+    if (event.error != null) {
+      w.name("error").value(String.valueOf(event.error));
+      w.name("stack").value(stackTrace(event.error));
+    }
+    w.endObject();
+    out.append(w.getBuilder());
+  }
+
+  /**
+   * Append an event as a text line.
+   * 
+   * @param event Event to format
+   * @param out Builder to append to
+   */
+  private void formatText(LogEvent event, StringBuilder out) {
+    long second = Math.floorDiv(event.timestamp, 1000L);
+    if (second != cachedSecond) {
+      cachedTime = TEXT_TIME.format(Instant.ofEpochSecond(second));
+      cachedSecond = second;
+    }
+    out.append(cachedTime).append(": ");
+    if (event.level == Level.WARN || event.level == Level.ERROR)
+      out.append(event.level.name()).append(": ");
+    out.append(event.message);
+
+    int start = out.length();
+    if (event.file != null)
+      textField(out, start, "file").append(event.file);
+    if (event.phase != null)
+      textField(out, start, "phase").append(event.phase);
+    if (event.bytes != LogEvent.UNSET)
+      textField(out, start, "bytes").append(event.bytes);
+    if (event.durationMs != LogEvent.UNSET)
+      textField(out, start, "durationMs").append(event.durationMs);
+    if (event.attempt >= 0)
+      textField(out, start, "attempt").append(event.attempt);
+    if (out.length() > start)
+      out.append(']');
+
+    if (event.error != null)
+      out.append(System.lineSeparator()).append(stackTrace(event.error).trim());
+  }
+
+  /**
+   * Render a stack trace.
+   * 
+   * @param error Error to render
+   * @return Stack trace
+   */
+  private static String stackTrace(Throwable error) {
+    StringWriter sw = new StringWriter();
+    error.printStackTrace(new PrintWriter(sw));
+    return sw.toString();
+  }
+
+  /**
+   * Start a <code>key=value</code> pair on a text line.
+   * 
+   * @param out Builder to append to
+   * @param start Length of the line before any fields were added
+   * @param name Field name
+   * @return <code>out</code>
+   */
+  private static StringBuilder textField(StringBuilder out, int start,
+      String name) {
+    out.append(out.length() == start ? " [" : ", ");
+    return out.append(name).append('=');
+  }
+}
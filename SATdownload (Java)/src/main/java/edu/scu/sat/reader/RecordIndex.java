@@ -0,0 +1,343 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Sparse index of the records of a score file, kept in a sidecar
+ * <code>.idx</code> file next to it so that {@link ScoreFile} can jump to a
+ * record by number without scanning the file.
+ * </p>
+ * <p>
+ * Only the offset of every {@link #STRIDE}th record is stored; a lookup
+ * starts at the nearest one and skips forward over at most
+ * <code>STRIDE - 1</code> lines. An 800,000 record file needs a 100 KB
+ * index.
+ * </p>
+ * <p>
+ * A record is a line that is not a header line and is not blank, as for the
+ * validation and delta stages. The index records the length of the file it
+ * was built from and is ignored if the file has changed since.
+ * </p>
+ */
+public class RecordIndex {
+
+  /**
+   * Size of the fixed part of the index file.
+   */
+  private static final int HEADER_SIZE = 36;
+
+  /**
+   * First eight bytes of every index file.
+   */
+  private static final long MAGIC = 0x5341544944583031L; // "SATIDX01"
+
+  /**
+   * Number of records between two stored offsets.
+   */
+  public static final int STRIDE = 64;
+
+  /**
+   * Suffix of the sidecar file.
+   */
+  public static final String SUFFIX = ".idx";
+
+  /**
+   * Length of the score file the index was built from.
+   */
+  private final long fileLength;
+
+  /**
+   * Number of header lines that were skipped.
+   */
+  private final int headerLines;
+
+  /**
+   * Offset of record <code>i * STRIDE</code> at position <code>i</code>.
+   */
+  private final long[] offsets;
+
+  /**
+   * Number of records in the file.
+   */
+  private final long recordCount;
+
+  /**
+   * Create a new RecordIndex.
+   * 
+   * @param fileLength Length of the score file
+   * @param headerLines Number of header lines that were skipped
+   * @param recordCount Number of records in the file
+   * @param offsets Offsets of every {@link #STRIDE}th record
+   */
+  private RecordIndex(long fileLength, int headerLines, long recordCount,
+      long[] offsets) {
+    this.fileLength = fileLength;
+    this.headerLines = headerLines;
+    this.recordCount = recordCount;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Build the index of a score file by scanning it.
+   * 
+   * @param scoreFile Score file
+   * @param headerLines Number of header lines at the top of the file
+   * @return Index of the file
+   * @throws IOException if the file could not be read or is over 2 GB
+   */
+  public static RecordIndex build(File scoreFile, int headerLines)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(scoreFile, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException(scoreFile + " is too large to index");
+      return scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, length),
+          headerLines);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Get the sidecar file for a score file.
+   * 
+   * @param scoreFile Score file
+   * @return Index file next to it
+   */
+  public static File indexFileFor(File scoreFile) {
+    return new File(scoreFile.getPath() + SUFFIX);
+  }
+
+  /**
+   * Load the index of a score file from its sidecar file.
+   * 
+   * @param scoreFile Score file
+   * @param headerLines Number of header lines at the top of the file
+   * @return Index, or <code>null</code> if there is none or it does not
+   *         match the file as it is now
+   */
+  public static RecordIndex load(File scoreFile, int headerLines) {
+    File file = indexFileFor(scoreFile);
+    if (!file.isFile())
+      return null;
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        if (in.readLong() != MAGIC)
+          throw new IOException("not an index file");
+        long fileLength = in.readLong();
+        long recordCount = in.readLong();
+        int lines = in.readInt();
+        int stride = in.readInt();
+        int count = in.readInt();
+        if (fileLength != scoreFile.length() || lines != headerLines)
+          return null;
+        if (stride != STRIDE || recordCount < 0
+            || count != blocks(recordCount))
+          throw new IOException("bad header");
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; ++i)
+          offsets[i] = in.readLong();
+        return new RecordIndex(fileLength, headerLines, recordCount,
+            offsets);
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      Log.at(Level.WARN).file(scoreFile.getName()).phase("index")
+          .log("Ignoring truncated index " + file);
+    } catch (IOException e) {
+      Log.at(Level.WARN).file(scoreFile.getName()).phase("index")
+          .log("Ignoring index " + file + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Build the index of a score file and write it to its sidecar file.
+   * 
+   * @param scoreFile Score file
+   * @param headerLines Number of header lines at the top of the file
+   * @return Number of records in the file
+   * @throws IOException if either file could not be read or written
+   */
+  public static long write(File scoreFile, int headerLines)
+      throws IOException {
+    long start = System.nanoTime();
+    RecordIndex index = build(scoreFile, headerLines);
+    File file = indexFileFor(scoreFile);
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp), 65536));
+    try {
+      out.writeLong(MAGIC);
+      out.writeLong(index.fileLength);
+      out.writeLong(index.recordCount);
+      out.writeInt(headerLines);
+      out.writeInt(STRIDE);
+      out.writeInt(index.offsets.length);
+      for (long offset : index.offsets)
+        out.writeLong(offset);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+
+    Log.at(Level.DEBUG).file(scoreFile.getName()).phase("index")
+        .bytes(HEADER_SIZE + 8L * index.offsets.length)
+        .duration((System.nanoTime() - start) / 1000000L)
+        .log(index.recordCount + " record(s) indexed in " + file);
+    return index.recordCount;
+  }
+
+  /**
+   * Get the number of stored offsets needed for a number of records.
+   * 
+   * @param records Number of records
+   * @return Number of offsets
+   */
+  private static int blocks(long records) {
+    return (int) ((records + STRIDE - 1) / STRIDE);
+  }
+
+  /**
+   * Check if a line is empty or only whitespace.
+   * 
+   * @param buf File contents
+   * @param start Offset of the line
+   * @param end Offset of its terminator, or the end of the file
+   * @return TRUE if the line is blank
+   */
+  static boolean isBlank(ByteBuffer buf, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      byte b = buf.get(i);
+      if (b != ' ' && b != '\t' && b != '\r')
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Build the index of a mapped score file.
+   * 
+   * @param buf File contents
+   * @param headerLines Number of header lines at the top of the file
+   * @return Index of the file
+   */
+  static RecordIndex scan(ByteBuffer buf, int headerLines) {
+    int limit = buf.limit();
+    long[] offsets = new long[16];
+    long records = 0;
+    int lines = 0;
+    int start = 0;
+    while (start < limit) {
+      int end = start;
+      while (end < limit && buf.get(end) != '\n')
+        end++;
+      if (lines++ >= headerLines && !isBlank(buf, start, end)) {
+        if (records % STRIDE == 0) {
+          int block = (int) (records / STRIDE);
+          if (block == offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          offsets[block] = start;
+        }
+        records++;
+      }
+      start = end + 1;
+    }
+    return new RecordIndex(limit, headerLines, records,
+        Arrays.copyOf(offsets, blocks(records)));
+  }
+
+  /**
+   * Get the length of the score file the index was built from.
+   * 
+   * @return Length in bytes
+   */
+  public long getFileLength() {
+    return fileLength;
+  }
+
+  /**
+   * Get the number of records in the file.
+   * 
+   * @return Number of records
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Find the offset of a record.
+   * 
+   * @param buf File contents
+   * @param number Zero-based record number
+   * @return Offset of the first byte of the record
+   * @throws IndexOutOfBoundsException if there is no such record
+   */
+  int offsetOf(ByteBuffer buf, long number) {
+    if (number < 0 || number >= recordCount)
+      throw new IndexOutOfBoundsException("Record " + number + " of "
+          + recordCount);
+    int offset = (int) offsets[(int) (number / STRIDE)];
+    int limit = buf.limit();
+    for (long skip = number % STRIDE; skip > 0;) {
+      int end = offset;
+      while (buf.get(end) != '\n')
+        end++;
+      offset = end + 1;
+      end = offset;
+      while (end < limit && buf.get(end) != '\n')
+        end++;
+      if (!isBlank(buf, offset, end))
+        skip--;
+    }
+    return offset;
+  }
+}
@@ -0,0 +1,325 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import edu.scu.sat.archive.PackFile;
+
+/**
+ * <p>
+ * Read-only view of a downloaded score file for programs that consume the
+ * files after SATdownload has fetched them. The file is memory-mapped, so
+ * opening it costs nothing up front and records are read straight from the
+ * page cache.
+ * </p>
+ * <p>
+ * Records can be read in order with {@link #forEach}, which allocates
+ * nothing per record, or by number with {@link #get}. Random access uses the
+ * <code>.idx</code> file written next to each score file when it was
+ * downloaded (see {@link RecordIndex}); if there is none, or the file has
+ * changed since, the index is built on the first lookup.
+ * </p>
+ * <p>
+ * A file that has been archived can be opened from its pack file (see
+ * {@link edu.scu.sat.archive.Archiver}); it is decompressed into memory and
+ * its index is built on the first lookup.
+ * </p>
+ * 
+ * <pre>
+ * ScoreFile scores = ScoreFile.open(file, ',', 0);
+ * try {
+ *   ScoreRecord record = scores.get(1000);
+ *   long id = record.getLong(0);
+ *   String name = record.getString(1);
+ * } finally {
+ *   scores.close();
+ * }
+ * </pre>
+ * <p>
+ * A ScoreFile may be shared between threads. Files over 2 GB are not
+ * supported.
+ * </p>
+ */
+public class ScoreFile implements Closeable {
+
+  /**
+   * Contents of the file, or <code>null</code> once it is closed.
+   */
+  private volatile ByteBuffer buffer;
+
+  /**
+   * Field delimiter.
+   */
+  private final byte delimiter;
+
+  /**
+   * The score file.
+   */
+  private final File file;
+
+  /**
+   * Number of header lines at the top of the file.
+   */
+  private final int headerLines;
+
+  /**
+   * Record index, or <code>null</code> until it is needed.
+   */
+  private RecordIndex index;
+
+  /**
+   * Create a new ScoreFile.
+   * 
+   * @param file The score file
+   * @param buffer Contents of the file
+   * @param delimiter Field delimiter
+   * @param headerLines Number of header lines at the top of the file
+   */
+  private ScoreFile(File file, ByteBuffer buffer, char delimiter,
+      int headerLines) {
+    this.file = file;
+    this.buffer = buffer;
+    this.delimiter = (byte) delimiter;
+    this.headerLines = headerLines;
+  }
+
+  /**
+   * Open a score file.
+   * 
+   * @param file Score file
+   * @param delimiter Field delimiter, normally <code>,</code>
+   * @param headerLines Number of header lines at the top of the file
+   * @return The opened file
+   * @throws IOException if the file could not be mapped or is over 2 GB
+   */
+  public static ScoreFile open(File file, char delimiter, int headerLines)
+      throws IOException {
+    if (delimiter > 0x7f)
+      throw new IllegalArgumentException("Delimiter must be ASCII");
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException(file + " is too large to map");
+      // The mapping stays valid after the channel is closed
+      return new ScoreFile(file, channel.map(FileChannel.MapMode.READ_ONLY,
+          0, length), delimiter, headerLines);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Open a score file held in a pack. The file is checked against its
+   * digest and read into memory.
+   * 
+   * @param pack Pack holding the file
+   * @param name Name of the file in the pack
+   * @param delimiter Field delimiter, normally <code>,</code>
+   * @param headerLines Number of header lines at the top of the file
+   * @return The opened file
+   * @throws java.io.FileNotFoundException if the pack does not hold the
+   *           file
+   * @throws IOException if the file could not be read, is corrupt or is
+   *           over 2 GB
+   */
+  public static ScoreFile open(PackFile pack, String name, char delimiter,
+      int headerLines) throws IOException {
+    if (delimiter > 0x7f)
+      throw new IllegalArgumentException("Delimiter must be ASCII");
+    return new ScoreFile(new File(pack.getFile(), name),
+        ByteBuffer.wrap(pack.read(name)).asReadOnlyBuffer(), delimiter,
+        headerLines);
+  }
+
+  /**
+   * Release the file. Records and buffers obtained from it must not be used
+   * afterwards; the mapping itself goes away once they are all unreachable.
+   */
+  //@Override
+  public void close() {
+    buffer = null;
+  }
+
+  /**
+   * Visit every record in order. The record passed to the visitor is reused
+   * for the next one, so it must not be kept; call {@link #get} for a record
+   * that can be.
+   * 
+   * @param visitor Visitor to call for each record
+   */
+  public void forEach(RecordVisitor visitor) {
+    ByteBuffer buf = getBuffer();
+    ScoreRecord record = new ScoreRecord(buf, delimiter);
+    int limit = buf.limit();
+    long number = 0;
+    int lines = 0;
+    int start = 0;
+    while (start < limit) {
+      int end = start;
+      while (end < limit && buf.get(end) != '\n')
+        end++;
+      if (lines++ >= headerLines && !RecordIndex.isBlank(buf, start, end))
+        visitor.visit(record.set(number++, start, contentEnd(buf, start,
+            end)));
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Get a record by number.
+   * 
+   * @param number Zero-based record number, not counting header lines or
+   *        blank lines
+   * @return The record
+   * @throws IndexOutOfBoundsException if there is no such record
+   */
+  public ScoreRecord get(long number) {
+    ByteBuffer buf = getBuffer();
+    int start = getIndex(buf).offsetOf(buf, number);
+    int end = start;
+    int limit = buf.limit();
+    while (end < limit && buf.get(end) != '\n')
+      end++;
+    return new ScoreRecord(buf, delimiter).set(number, start,
+        contentEnd(buf, start, end));
+  }
+
+  /**
+   * Get the score file.
+   * 
+   * @return The file; for a file opened from a pack, the path of the pack
+   *         followed by the name of the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Get one of the header lines.
+   * 
+   * @param line Zero-based header line number
+   * @return The line without its terminator, or <code>null</code> if the
+   *         file is shorter
+   * @throws IndexOutOfBoundsException if the line is not a header line
+   */
+  public String getHeaderLine(int line) {
+    if (line < 0 || line >= headerLines)
+      throw new IndexOutOfBoundsException("Header line " + line + " of "
+          + headerLines);
+    ByteBuffer buf = getBuffer();
+    int limit = buf.limit();
+    int start = 0;
+    for (int i = 0; i < line; ++i) {
+      while (start < limit && buf.get(start) != '\n')
+        start++;
+      start++;
+    }
+    if (start >= limit)
+      return null;
+    int end = start;
+    while (end < limit && buf.get(end) != '\n')
+      end++;
+    byte[] bytes = new byte[contentEnd(buf, start, end) - start];
+    for (int i = 0; i < bytes.length; ++i)
+      bytes[i] = buf.get(start + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the number of records in the file, not counting header lines or
+   * blank lines.
+   * 
+   * @return Number of records
+   */
+  public long getRecordCount() {
+    ByteBuffer buf = getBuffer();
+    return getIndex(buf).getRecordCount();
+  }
+
+  /**
+   * Get the offset just past the content of a line, before any carriage
+   * return.
+   * 
+   * @param buf File contents
+   * @param start Offset of the line
+   * @param end Offset of its line feed, or the end of the file
+   * @return Offset just past its last byte
+   */
+  private static int contentEnd(ByteBuffer buf, int start, int end) {
+    return end > start && buf.get(end - 1) == '\r' ? end - 1 : end;
+  }
+
+  /**
+   * Get the contents of the file.
+   * 
+   * @return Contents of the file
+   * @throws IllegalStateException if the file has been closed
+   */
+  private ByteBuffer getBuffer() {
+    ByteBuffer buf = buffer;
+    if (buf == null)
+      throw new IllegalStateException(file + " has been closed");
+    return buf;
+  }
+
+  /**
+   * Get the record index, loading or building it if needed.
+   * 
+   * @param buf File contents
+   * @return Record index
+   */
+  private synchronized RecordIndex getIndex(ByteBuffer buf) {
+    if (index == null) {
+      index = RecordIndex.load(file, headerLines);
+      if (index == null || index.getFileLength() != buf.limit())
+        index = RecordIndex.scan(buf, headerLines);
+    }
+    return index;
+  }
+
+  /**
+   * Receives the records of a file from {@link ScoreFile#forEach}.
+   */
+  public interface RecordVisitor {
+
+    /**
+     * Visit one record.
+     * 
+     * @param record The record; only valid until this method returns
+     */
+    void visit(ScoreRecord record);
+  }
+}
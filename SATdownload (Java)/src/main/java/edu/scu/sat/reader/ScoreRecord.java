@@ -0,0 +1,305 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * One record of a {@link ScoreFile}. It holds only the bounds of the record
+ * within the mapped file: nothing is copied or decoded until a field is
+ * asked for, and the field boundaries are found on the first such call.
+ * </p>
+ * <p>
+ * Fields are numbered from zero. A field may be enclosed in double quotes, in
+ * which case delimiters inside it are ignored and <code>""</code> stands for
+ * one quote, as for the validation and delta stages.
+ * </p>
+ * <p>
+ * A record is not thread-safe, although any number of records of the same
+ * file may be used on different threads.
+ * </p>
+ */
+public class ScoreRecord {
+
+  /**
+   * Contents of the whole file.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * Field delimiter.
+   */
+  private final byte delimiter;
+
+  /**
+   * Offset just past the last byte of the record, not counting its line
+   * terminator.
+   */
+  private int end;
+
+  /**
+   * Number of fields, or -1 if the record has not been split yet.
+   */
+  private int fieldCount = -1;
+
+  /**
+   * Offset of each field, followed by the offset just past the delimiter
+   * after the last one.
+   */
+  private int[] fieldStarts = new int[16];
+
+  /**
+   * Zero-based number of the record within the file.
+   */
+  private long number;
+
+  /**
+   * Offset of the first byte of the record.
+   */
+  private int start;
+
+  /**
+   * Create a new ScoreRecord.
+   * 
+   * @param buffer Contents of the whole file
+   * @param delimiter Field delimiter
+   */
+  ScoreRecord(ByteBuffer buffer, byte delimiter) {
+    this.buffer = buffer;
+    this.delimiter = delimiter;
+  }
+
+  /**
+   * Get the bytes of the whole record, without its line terminator. The
+   * buffer shares the mapped file; nothing is copied.
+   * 
+   * @return Read-only view of the record
+   */
+  public ByteBuffer getBytes() {
+    return slice(start, end);
+  }
+
+  /**
+   * Get the bytes of a field as they are in the file, including any quotes.
+   * The buffer shares the mapped file; nothing is copied.
+   * 
+   * @param field Zero-based field index
+   * @return Read-only view of the field
+   * @throws IndexOutOfBoundsException if the record has fewer fields
+   */
+  public ByteBuffer getBytes(int field) {
+    checkField(field);
+    return slice(fieldStarts[field], fieldStarts[field + 1] - 1);
+  }
+
+  /**
+   * Get the number of fields in the record.
+   * 
+   * @return Number of fields
+   */
+  public int getFieldCount() {
+    split();
+    return fieldCount;
+  }
+
+  /**
+   * Parse a field as a whole number without creating a String. Surrounding
+   * quotes and spaces are ignored.
+   * 
+   * @param field Zero-based field index
+   * @return Value of the field
+   * @throws IndexOutOfBoundsException if the record has fewer fields
+   * @throws NumberFormatException if the field is not a whole number
+   */
+  public long getLong(int field) {
+    checkField(field);
+    int from = fieldStarts[field];
+    int to = fieldStarts[field + 1] - 1;
+    while (from < to && isPadding(buffer.get(from)))
+      from++;
+    while (to > from && isPadding(buffer.get(to - 1)))
+      to--;
+    boolean negative = from < to && buffer.get(from) == '-';
+    int i = negative || (from < to && buffer.get(from) == '+')
+        ? from + 1 : from;
+    if (i == to)
+      throw badNumber(field);
+    long value = 0;
+    for (; i < to; ++i) {
+      int digit = buffer.get(i) - '0';
+      if (digit < 0 || digit > 9)
+        throw badNumber(field);
+      // Accumulate negatively so that Long.MIN_VALUE can be read
+      if (value < (Long.MIN_VALUE + digit) / 10)
+        throw badNumber(field);
+      value = value * 10 - digit;
+    }
+    if (!negative) {
+      if (value == Long.MIN_VALUE)
+        throw badNumber(field);
+      value = -value;
+    }
+    return value;
+  }
+
+  /**
+   * Get the zero-based number of the record within the file, not counting
+   * header lines or blank lines.
+   * 
+   * @return Record number
+   */
+  public long getNumber() {
+    return number;
+  }
+
+  /**
+   * Decode a field. Enclosing quotes are removed and <code>""</code> inside
+   * them becomes one quote.
+   * 
+   * @param field Zero-based field index
+   * @return Value of the field
+   * @throws IndexOutOfBoundsException if the record has fewer fields
+   */
+  public String getString(int field) {
+    checkField(field);
+    int from = fieldStarts[field];
+    int to = fieldStarts[field + 1] - 1;
+    byte[] bytes = new byte[to - from];
+    int length = 0;
+    for (int i = from; i < to; ++i) {
+      byte b = buffer.get(i);
+      if (b == '"') {
+        // A doubled quote inside a quoted field is a literal quote
+        if (i + 1 < to && buffer.get(i + 1) == '"' && i > from) {
+          bytes[length++] = b;
+          i++;
+        }
+        continue;
+      }
+      bytes[length++] = b;
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Point this record at another part of the file.
+   * 
+   * @param number Zero-based record number
+   * @param start Offset of the first byte of the record
+   * @param end Offset just past its last byte, not counting the line
+   *        terminator
+   * @return This record
+   */
+  ScoreRecord set(long number, int start, int end) {
+    this.number = number;
+    this.start = start;
+    this.end = end;
+    this.fieldCount = -1;
+    return this;
+  }
+
+  //@Override
+  public String toString() {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; ++i)
+      bytes[i] = buffer.get(start + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Create the exception for a field that is not a whole number.
+   * 
+   * @param field Zero-based field index
+   * @return Exception to throw
+   */
+  private NumberFormatException badNumber(int field) {
+    return new NumberFormatException("Field " + field + " of record "
+        + number + " is not a whole number: " + getString(field));
+  }
+
+  /**
+   * Split the record if needed and check that a field exists.
+   * 
+   * @param field Zero-based field index
+   * @throws IndexOutOfBoundsException if the record has fewer fields
+   */
+  private void checkField(int field) {
+    split();
+    if (field < 0 || field >= fieldCount)
+      throw new IndexOutOfBoundsException("Field " + field + " of record "
+          + number + ", which has " + fieldCount);
+  }
+
+  /**
+   * Check if a byte may surround a number.
+   * 
+   * @param b Byte to check
+   * @return TRUE for quotes, spaces and tabs
+   */
+  private static boolean isPadding(byte b) {
+    return b == '"' || b == ' ' || b == '\t';
+  }
+
+  /**
+   * Get a read-only view of part of the file.
+   * 
+   * @param from Offset of the first byte
+   * @param to Offset just past the last byte
+   * @return View of the bytes
+   */
+  private ByteBuffer slice(int from, int to) {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(to).position(from);
+    return view.slice();
+  }
+
+  /**
+   * Find the field boundaries, unless that has already been done.
+   */
+  private void split() {
+    if (fieldCount >= 0)
+      return;
+    int count = 0;
+    fieldStarts[0] = start;
+    boolean quoted = false;
+    for (int i = start; i < end; ++i) {
+      byte b = buffer.get(i);
+      if (b == '"') {
+        quoted = !quoted;
+      } else if (b == delimiter && !quoted) {
+        if (++count + 1 >= fieldStarts.length)
+          fieldStarts = Arrays.copyOf(fieldStarts, fieldStarts.length * 2);
+        fieldStarts[count] = i + 1;
+      }
+    }
+    fieldStarts[count + 1] = end + 1;
+    fieldCount = count + 1;
+  }
+}
@@ -0,0 +1,298 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.schedule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * Publish windows of an organization, learned from its
+ * {@link PublishManifest}. Publish times of day that lie within a margin of
+ * each other form a cluster, and a window runs from the earliest time of a
+ * cluster to its latest, plus or minus the margin. Only a cluster with files
+ * published on at least {@link #MIN_DAYS} different days becomes a window,
+ * so a file that was published once at an odd hour does not keep the daemon
+ * polling then every day for weeks. Times of day are local, so a file
+ * published at 6:00 every morning keeps its window across a change to or
+ * from daylight saving time.
+ * </p>
+ * <p>
+ * In daemon mode SATdownload polls often inside a window and backs off
+ * outside them. Instances are immutable.
+ * </p>
+ */
+public class PollPlanner {
+
+  /**
+   * Milliseconds in a day.
+   */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /**
+   * Number of days of publish times to learn from.
+   */
+  public static final int LEARN_DAYS = 28;
+
+  /**
+   * Fewest days with a published file before the windows are trusted, and
+   * fewest days a cluster of publish times must have been seen on to become
+   * a window.
+   */
+  public static final int MIN_DAYS = 3;
+
+  /**
+   * End of each window, in milliseconds since local midnight; may be past
+   * the end of the day.
+   */
+  private final long[] ends;
+
+  /**
+   * Start of each window, in milliseconds since local midnight, sorted; may
+   * be before the start of the day.
+   */
+  private final long[] starts;
+
+  /**
+   * Create a new PollPlanner.
+   * 
+   * @param publishTimes Publish times, in milliseconds since the epoch
+   * @param margin Milliseconds either side of a publish time that are part
+   *          of its window
+   */
+  public PollPlanner(long[] publishTimes, long margin) {
+    margin = Math.min(margin, DAY_MILLIS / 2);
+    int n = publishTimes.length;
+    long[][] seen = new long[n][];
+    for (int i = 0; i < n; ++i)
+      seen[i] = new long[] { timeOfDay(publishTimes[i]),
+          localDay(publishTimes[i]) };
+    Arrays.sort(seen, new Comparator<long[]>() {
+      //@Override
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+
+    // A cluster starts after each gap wider than the margin; if there is
+    // none across midnight, the last cluster of the day runs on into the
+    // first
+    int first = 0;
+    for (int i = 1; i < n; ++i) {
+      if (seen[i][0] - seen[i - 1][0] > margin) {
+        first = i;
+        break;
+      }
+    }
+    if (n > 0 && first == 0
+        && seen[0][0] + DAY_MILLIS - seen[n - 1][0] <= margin)
+      first = -1;
+
+    List<long[]> windows = new ArrayList<long[]>();
+    if (first < 0) {
+      // All times run together around the clock
+      if (countDays(seen, 0, n) >= MIN_DAYS)
+        windows.add(new long[] { 0, DAY_MILLIS });
+    } else if (n > 0) {
+      int start = first;
+      for (int k = 1; k <= n; ++k) {
+        int i = (first + k) % n;
+        long gap = (seen[i][0] - seen[(i + n - 1) % n][0] + DAY_MILLIS)
+            % DAY_MILLIS;
+        if (k < n && gap <= margin)
+          continue;
+        int end = (i + n - 1) % n;
+        long[] window = new long[] { seen[start][0] - margin,
+            seen[end][0] + margin };
+        if (window[1] < window[0] + 2 * margin)
+          window[1] += DAY_MILLIS;
+        if (countDays(seen, start, (end - start + n) % n + 1) >= MIN_DAYS)
+          windows.add(window);
+        start = i;
+      }
+    }
+    Collections.sort(windows, new Comparator<long[]>() {
+      //@Override
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+    starts = new long[windows.size()];
+    ends = new long[windows.size()];
+    for (int i = 0; i < starts.length; ++i) {
+      starts[i] = windows.get(i)[0];
+      ends[i] = windows.get(i)[1];
+    }
+  }
+
+  /**
+   * Learn the publish windows of an organization from the last
+   * {@link #LEARN_DAYS} days of its manifest.
+   * 
+   * @param manifest Manifest of the organization
+   * @param now Current time, in milliseconds since the epoch
+   * @param margin Milliseconds either side of a publish time that are part
+   *          of its window
+   * @return Windows, or <code>null</code> if files were published on fewer
+   *         than {@link #MIN_DAYS} days or at no time of day on as many
+   */
+  public static PollPlanner learn(PublishManifest manifest, long now,
+      long margin) {
+    long since = now - LEARN_DAYS * DAY_MILLIS;
+    if (manifest.getDays(since) < MIN_DAYS)
+      return null;
+    PollPlanner planner = new PollPlanner(manifest.getTimes(since), margin);
+    return planner.starts.length == 0 ? null : planner;
+  }
+
+  /**
+   * Count the different days in a run of sorted publish times.
+   * 
+   * @param seen Times of day and days, sorted by time of day
+   * @param from Index of the first time of the run
+   * @param count Number of times in the run, wrapping around to the start
+   * @return Number of different days
+   */
+  private static int countDays(long[][] seen, int from, int count) {
+    Set<Long> days = new HashSet<Long>();
+    for (int k = 0; k < count; ++k)
+      days.add(seen[(from + k) % seen.length][1]);
+    return days.size();
+  }
+
+  /**
+   * Get the local day of a time.
+   * 
+   * @param time Time, in milliseconds since the epoch
+   * @return Days since the epoch, counted from local midnight
+   */
+  private static long localDay(long time) {
+    long local = time + TimeZone.getDefault().getOffset(time);
+    return Math.floorDiv(local, DAY_MILLIS);
+  }
+
+  /**
+   * Get the time of day of a time.
+   * 
+   * @param time Time, in milliseconds since the epoch
+   * @return Milliseconds since local midnight
+   */
+  private static long timeOfDay(long time) {
+    long local = time + TimeZone.getDefault().getOffset(time);
+    return ((local % DAY_MILLIS) + DAY_MILLIS) % DAY_MILLIS;
+  }
+
+  /**
+   * Check if a time is inside a window.
+   * 
+   * @param time Time, in milliseconds since the epoch
+   * @return TRUE if it is inside one of the windows
+   */
+  public boolean isInWindow(long time) {
+    long t = timeOfDay(time);
+    for (int i = 0; i < starts.length; ++i) {
+      for (long day = -DAY_MILLIS; day <= DAY_MILLIS; day += DAY_MILLIS) {
+        if (t + day >= starts[i] && t + day <= ends[i])
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the start of the next window.
+   * 
+   * @param time Time, in milliseconds since the epoch
+   * @return Start of the next window, or <code>time</code> itself if it is
+   *         inside one
+   */
+  public long nextWindowStart(long time) {
+    if (isInWindow(time))
+      return time;
+    long t = timeOfDay(time);
+    long wait = DAY_MILLIS;
+    for (long start : starts)
+      wait = Math.min(wait, ((start - t) % DAY_MILLIS + DAY_MILLIS)
+          % DAY_MILLIS);
+    return time + wait;
+  }
+
+  /**
+   * List the windows, such as <code>05:40-06:25, 13:50-14:10</code>.
+   */
+  //@Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    long start = -1;
+    long end = -1;
+    for (int i = 0; i < starts.length; ++i) {
+      if (i > 0 && starts[i] <= end) {
+        end = Math.max(end, ends[i]);
+        continue;
+      }
+      if (i > 0)
+        appendWindow(sb, start, end);
+      start = starts[i];
+      end = ends[i];
+    }
+    if (starts.length > 0)
+      appendWindow(sb, start, end);
+    return sb.toString();
+  }
+
+  /**
+   * Add a window to a list.
+   * 
+   * @param sb List to add to
+   * @param start Start of the window, in milliseconds since midnight
+   * @param end End of the window, in milliseconds since midnight
+   */
+  private static void appendWindow(StringBuilder sb, long start, long end) {
+    if (sb.length() > 0)
+      sb.append(", ");
+    appendTime(sb, start);
+    sb.append('-');
+    appendTime(sb, end);
+  }
+
+  /**
+   * Add a time of day to a list.
+   * 
+   * @param sb List to add to
+   * @param time Milliseconds since midnight; may be outside the day
+   */
+  private static void appendTime(StringBuilder sb, long time) {
+    long minutes = ((time % DAY_MILLIS + DAY_MILLIS) % DAY_MILLIS) / 60000;
+    sb.append(String.format("%02d:%02d", minutes / 60, minutes % 60));
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.schedule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Record of when each score file of an organization was first found on the
+ * service, kept across runs so that {@link PollPlanner} can learn when files
+ * are usually published.
+ * </p>
+ * <p>
+ * The manifest is a text file with one line per file:
+ * <code>YYYYMMDD COUNTER MILLIS</code>, where <code>MILLIS</code> is the
+ * estimated publish time. Entries older than {@link #KEEP_DAYS} days are
+ * dropped when the manifest is opened. Instances are thread-safe.
+ * </p>
+ */
+public class PublishManifest {
+
+  /**
+   * Number of days entries are kept.
+   */
+  public static final int KEEP_DAYS = 90;
+
+  /**
+   * Milliseconds in a day.
+   */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /**
+   * Entries, oldest first.
+   */
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  /**
+   * The manifest file.
+   */
+  private final File file;
+
+  /**
+   * Open the manifest of an organization, creating it if needed. A line that
+   * cannot be read is dropped with a warning.
+   * 
+   * @param file Manifest file
+   * @throws IOException if the file could not be read or rewritten
+   */
+  public PublishManifest(File file) throws IOException {
+    this.file = file;
+    if (!file.isFile())
+      return;
+    long cutoff = System.currentTimeMillis() - KEEP_DAYS * DAY_MILLIS;
+    boolean dropped = false;
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Entry entry = Entry.parse(line);
+        if (entry == null) {
+          Log.at(Level.WARN).phase("prefetch")
+              .log("Ignoring bad line in " + file + ": " + line);
+          dropped = true;
+        } else if (entry.time < cutoff) {
+          dropped = true;
+        } else {
+          entries.add(entry);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (dropped)
+      rewrite();
+  }
+
+  /**
+   * Record when a file was published, unless it already has been.
+   * 
+   * @param dateString Date of the file, as <code>YYYYMMDD</code>
+   * @param counter Number of the file
+   * @param time Estimated publish time, in milliseconds since the epoch
+   * @return TRUE if it was recorded
+   * @throws IOException if the manifest could not be written
+   */
+  public synchronized boolean add(String dateString, int counter, long time)
+      throws IOException {
+    for (Entry entry : entries) {
+      if (entry.counter == counter && entry.dateString.equals(dateString))
+        return false;
+    }
+    Entry entry = new Entry(dateString, counter, time);
+    File dir = file.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Could not create directory " + dir);
+    // One write per line, so that a crash leaves at most one partial line
+    OutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write((entry + "\n").getBytes(StandardCharsets.UTF_8));
+    } finally {
+      out.close();
+    }
+    entries.add(entry);
+    return true;
+  }
+
+  /**
+   * Get the number of different dates files were published on since some
+   * time.
+   * 
+   * @param since Earliest time to count, in milliseconds since the epoch
+   * @return Number of dates
+   */
+  public synchronized int getDays(long since) {
+    List<String> dates = new ArrayList<String>();
+    for (Entry entry : entries) {
+      if (entry.time >= since && !dates.contains(entry.dateString))
+        dates.add(entry.dateString);
+    }
+    return dates.size();
+  }
+
+  /**
+   * Get the estimated publish times since some time.
+   * 
+   * @param since Earliest time to return, in milliseconds since the epoch
+   * @return Publish times, oldest first
+   */
+  public synchronized long[] getTimes(long since) {
+    long[] times = new long[entries.size()];
+    int count = 0;
+    for (Entry entry : entries) {
+      if (entry.time >= since)
+        times[count++] = entry.time;
+    }
+    long[] result = new long[count];
+    System.arraycopy(times, 0, result, 0, count);
+    return result;
+  }
+
+  /**
+   * Write the entries that are kept back to the file.
+   * 
+   * @throws IOException if the file could not be written
+   */
+  private void rewrite() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    StringBuilder sb = new StringBuilder();
+    for (Entry entry : entries)
+      sb.append(entry).append('\n');
+    Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * One line of the manifest.
+   */
+  private static final class Entry {
+
+    /**
+     * Number of the file.
+     */
+    final int counter;
+
+    /**
+     * Date of the file, as <code>YYYYMMDD</code>.
+     */
+    final String dateString;
+
+    /**
+     * Estimated publish time, in milliseconds since the epoch.
+     */
+    final long time;
+
+    /**
+     * Create a new Entry.
+     * 
+     * @param dateString Date of the file
+     * @param counter Number of the file
+     * @param time Estimated publish time
+     */
+    Entry(String dateString, int counter, long time) {
+      this.dateString = dateString;
+      this.counter = counter;
+      this.time = time;
+    }
+
+    /**
+     * Read an entry from a line of the manifest.
+     * 
+     * @param line Line to read
+     * @return Entry, or <code>null</code> if the line is not valid
+     */
+    static Entry parse(String line) {
+      String[] parts = line.trim().split(" ");
+      if (parts.length != 3 || !parts[0].matches("\\d{8}"))
+        return null;
+      try {
+        return new Entry(parts[0], Integer.parseInt(parts[1]),
+            Long.parseLong(parts[2]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    //@Override
+    public String toString() {
+      return dateString + " " + counter + " " + time;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+/**
+ * Hash functions for record keys and fingerprints. Both are 64-bit FNV-1a
+ * followed by the MurmurHash3 finalizer, which is cheap to compute one byte
+ * at a time while a record is being scanned and spreads well enough for
+ * open-addressed tables.
+ */
+public final class Hashing {
+
+  /**
+   * FNV-1a offset basis; the starting value of a hash.
+   */
+  public static final long SEED = 0xcbf29ce484222325L;
+
+  /**
+   * FNV-1a prime.
+   */
+  private static final long PRIME = 0x100000001b3L;
+
+  /**
+   * Mix one byte into a running hash.
+   * 
+   * @param hash Running hash (start with {@link #SEED})
+   * @param b Byte to add
+   * @return New running hash
+   */
+  public static long add(long hash, byte b) {
+    return (hash ^ (b & 0xff)) * PRIME;
+  }
+
+  /**
+   * Hash a range of bytes.
+   * 
+   * @param bytes Bytes to hash
+   * @param off Offset of the first byte
+   * @param len Number of bytes
+   * @return Finished hash
+   */
+  public static long hash(byte[] bytes, int off, int len) {
+    long h = SEED;
+    for (int i = off, end = off + len; i < end; ++i)
+      h = (h ^ (bytes[i] & 0xff)) * PRIME;
+    return finish(h);
+  }
+
+  /**
+   * Finish a running hash so that every input bit affects every output bit.
+   * 
+   * @param hash Running hash
+   * @return Finished hash
+   */
+  public static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private Hashing() {
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Map from <code>long</code> keys to <code>long</code> values that stores
+ * its entries outside the Java heap. Every key is allowed, including 0.
+ */
+public interface LongLongMap extends Closeable {
+
+  /**
+   * Value returned by {@link #get(long)} and {@link #put(long, long)} when a
+   * key is not present.
+   */
+  long NO_VALUE = Long.MIN_VALUE;
+
+  /**
+   * Write any buffered changes to durable storage. Maps that only live in
+   * memory may do nothing.
+   * 
+   * @throws IOException if the changes could not be written
+   */
+  void flush() throws IOException;
+
+  /**
+   * Visit every entry, in no particular order. The map may not be changed
+   * while it is being visited.
+   * 
+   * @param visitor Visitor to call for each entry
+   */
+  void forEach(EntryVisitor visitor);
+
+  /**
+   * Look up a key.
+   * 
+   * @param key Key to look up
+   * @return Value of the key, or {@link #NO_VALUE} if it is not present
+   */
+  long get(long key);
+
+  /**
+   * Add or replace an entry. {@link #NO_VALUE} may not be stored.
+   * 
+   * @param key Key to store
+   * @param value Value to store
+   * @return Previous value of the key, or {@link #NO_VALUE} if it was not
+   *         present
+   */
+  long put(long key, long value);
+
+  /**
+   * Get the number of entries.
+   * 
+   * @return Number of entries
+   */
+  long size();
+
+  /**
+   * Receives the entries of a map from {@link LongLongMap#forEach}.
+   */
+  interface EntryVisitor {
+
+    /**
+     * Visit one entry.
+     * 
+     * @param key Key of the entry
+     * @param value Value of the entry
+     */
+    void visit(long key, long value);
+  }
+}
@@ -0,0 +1,582 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * {@link LongLongMap} kept in a memory-mapped file, for stores that must last
+ * a whole admissions season. The table lives in the operating system's page
+ * cache rather than the Java heap, so the heap stays flat no matter how many
+ * entries are added, and changes are persisted simply by being written.
+ * </p>
+ * <p>
+ * The file is a 64-byte header followed by an open-addressed table of
+ * 16-byte slots (key then value) using linear probing. It is mapped in 1 GB
+ * segments so tables larger than 2 GB work.
+ * </p>
+ * <p>
+ * When the table is 70% full it is rebuilt at double the size in a new
+ * file, the next generation: <code>FILE.1</code>, <code>FILE.2</code> and so
+ * on after <code>FILE</code> itself. A file's magic number is only written
+ * once all of its entries are on disk, and the newest file with one is the
+ * table. A file is never replaced while it is mapped (which Windows does
+ * not allow); older generations are deleted as soon as the platform lets
+ * them go, or else the next time the table is opened.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class MappedLongLongMap implements LongLongMap {
+
+  /**
+   * Marks an empty slot. Key 0 is stored as {@link #ZERO_KEY_ALIAS}.
+   */
+  private static final long EMPTY = 0L;
+
+  /**
+   * Size of the file header.
+   */
+  private static final int HEADER_SIZE = 64;
+
+  /**
+   * Fraction of slots that may be used before the table grows.
+   */
+  private static final double LOAD_FACTOR = 0.7;
+
+  /**
+   * Magic number at the start of the file.
+   */
+  private static final long MAGIC = 0x5341544d50303031L; // "SATMP001"
+
+  /**
+   * Offsets of the header fields.
+   */
+  private static final int OFF_MAGIC = 0, OFF_CAPACITY = 8, OFF_SIZE = 16,
+      OFF_ALIAS = 24;
+
+  /**
+   * log2 of the size of each mapped segment.
+   */
+  private static final int SEGMENT_BITS = 30;
+
+  /**
+   * Size of each mapped segment.
+   */
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+  /**
+   * Bytes per slot (key and value).
+   */
+  private static final int SLOT_SIZE = 16;
+
+  /**
+   * Key 0 is stored under this key instead, and this key is stored in the
+   * header.
+   */
+  private static final long ZERO_KEY_ALIAS = 0x9e3779b97f4a7c15L;
+
+  /**
+   * Open a table, creating it if the file does not exist.
+   * 
+   * @param file Backing file
+   * @param expectedSize Number of entries to make room for when creating
+   * @return Open table
+   * @throws IOException if the file could not be opened or is not a table
+   */
+  public static MappedLongLongMap open(File file, long expectedSize)
+      throws IOException {
+    long generation = currentGeneration(file);
+    if (generation < 0) {
+      generation = 0;
+      create(file, capacityFor(expectedSize), true);
+    }
+    MappedLongLongMap map = new MappedLongLongMap(file, generation, true);
+    map.deleteOtherGenerations();
+    return map;
+  }
+
+  /**
+   * Create a table holding a copy of every entry of another one. The copy
+   * only takes the place of any existing table once it is complete, so a
+   * crash part way through leaves the file as it was.
+   * 
+   * @param file Backing file
+   * @param source Entries to copy
+   * @return Open table
+   * @throws IOException if the table could not be written
+   */
+  public static MappedLongLongMap copyOf(File file, LongLongMap source)
+      throws IOException {
+    long generation = currentGeneration(file) + 1;
+    create(generationFile(file, generation), capacityFor(source.size()),
+        false);
+    final MappedLongLongMap map = new MappedLongLongMap(file, generation,
+        false);
+    source.forEach(new EntryVisitor() {
+      //@Override
+      public void visit(long key, long value) {
+        map.put(key, value);
+      }
+    });
+    map.commit();
+    map.deleteOtherGenerations();
+    return map;
+  }
+
+  /**
+   * Check whether a table has been created.
+   * 
+   * @param file Backing file
+   * @return TRUE if a complete table exists under this name
+   */
+  public static boolean exists(File file) {
+    return currentGeneration(file) >= 0;
+  }
+
+  /**
+   * Get the number of slots for a number of entries.
+   * 
+   * @param expectedSize Number of entries to make room for
+   * @return Number of slots (a power of two)
+   */
+  private static long capacityFor(long expectedSize) {
+    long cap = 1024;
+    while (cap * LOAD_FACTOR < expectedSize)
+      cap <<= 1;
+    return cap;
+  }
+
+  /**
+   * Create an empty table file.
+   * 
+   * @param file File to create
+   * @param capacity Number of slots (a power of two)
+   * @param complete TRUE to write the magic number, FALSE to leave it for
+   *          {@link #commit()} once the table is filled
+   * @throws IOException if the file could not be created
+   */
+  private static void create(File file, long capacity, boolean complete)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      // The slots are never written here; the file is sparse and reads as
+      // zeros, i.e. empty slots
+      raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+      MappedByteBuffer header = raf.getChannel()
+          .map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.nativeOrder());
+      header.putLong(OFF_CAPACITY, capacity);
+      header.putLong(OFF_SIZE, 0);
+      header.putLong(OFF_ALIAS, NO_VALUE);
+      header.putLong(OFF_MAGIC, complete ? MAGIC : 0);
+      header.force();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Find the newest complete generation of a table.
+   * 
+   * @param file Backing file
+   * @return Generation, or -1 if there is none
+   */
+  private static long currentGeneration(File file) {
+    long current = isComplete(file) ? 0 : -1;
+    for (File f : listGenerations(file)) {
+      long generation = generationOf(file, f);
+      if (generation > current && isComplete(f))
+        current = generation;
+    }
+    return current;
+  }
+
+  /**
+   * Get the file holding one generation of a table.
+   * 
+   * @param file Backing file
+   * @param generation Generation
+   * @return <code>file</code> for generation 0, else
+   *         <code>file.GENERATION</code>
+   */
+  private static File generationFile(File file, long generation) {
+    return generation == 0 ? file
+        : new File(file.getPath() + "." + generation);
+  }
+
+  /**
+   * Get the generation a file holds.
+   * 
+   * @param file Backing file
+   * @param f File listed by {@link #listGenerations(File)}
+   * @return Generation
+   */
+  private static long generationOf(File file, File f) {
+    return f.getName().equals(file.getName()) ? 0
+        : Long.parseLong(f.getName().substring(file.getName().length() + 1));
+  }
+
+  /**
+   * Check whether a table file is complete.
+   * 
+   * @param file Table file
+   * @return TRUE if it exists and has its magic number
+   */
+  private static boolean isComplete(File file) {
+    if (!file.isFile() || file.length() < HEADER_SIZE)
+      return false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        ByteBuffer magic = ByteBuffer.allocate(8)
+            .order(ByteOrder.nativeOrder());
+        while (magic.hasRemaining())
+          if (raf.getChannel().read(magic, magic.position()) < 0)
+            return false;
+        return magic.getLong(0) == MAGIC;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * List the files of every generation of a table, complete or not.
+   * 
+   * @param file Backing file
+   * @return Files that exist
+   */
+  private static List<File> listGenerations(File file) {
+    List<File> found = new ArrayList<File>();
+    if (file.exists())
+      found.add(file);
+    File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+    if (files == null)
+      return found;
+    String prefix = file.getName() + ".";
+    for (File f : files) {
+      String name = f.getName();
+      if (name.startsWith(prefix) && name.length() > prefix.length()
+          && name.length() - prefix.length() < 19
+          && name.substring(prefix.length()).matches("[0-9]+"))
+        found.add(new File(file.getParentFile(), name));
+    }
+    return found;
+  }
+
+  /**
+   * Number of slots (a power of two).
+   */
+  private long capacity;
+
+  /**
+   * Backing file; later generations are named after it.
+   */
+  private final File file;
+
+  /**
+   * Generation of the table that is mapped.
+   */
+  private long generation;
+
+  /**
+   * Mapped header.
+   */
+  private MappedByteBuffer header;
+
+  /**
+   * Mapped segments of the file.
+   */
+  private MappedByteBuffer[] segments;
+
+  /**
+   * Number of entries.
+   */
+  private long size;
+
+  /**
+   * Map one generation of a table.
+   * 
+   * @param file Backing file
+   * @param generation Generation to map
+   * @param complete FALSE if the file has no magic number yet
+   * @throws IOException if the file could not be mapped or is not a table
+   */
+  private MappedLongLongMap(File file, long generation, boolean complete)
+      throws IOException {
+    this.file = file;
+    this.generation = generation;
+    map(generationFile(file, generation), complete);
+  }
+
+  //@Override
+  public void close() {
+    if (segments != null) {
+      flush();
+      segments = null;
+      header = null;
+    }
+  }
+
+  //@Override
+  public void flush() {
+    if (segments == null)
+      return;
+    header.putLong(OFF_SIZE, size);
+    for (MappedByteBuffer segment : segments)
+      segment.force();
+    header.force();
+  }
+
+  //@Override
+  public void forEach(EntryVisitor visitor) {
+    long alias = header.getLong(OFF_ALIAS);
+    if (alias != NO_VALUE)
+      visitor.visit(ZERO_KEY_ALIAS, alias);
+    for (long i = 0; i < capacity; ++i) {
+      long key = getKey(i);
+      if (key != EMPTY)
+        visitor.visit(key == ZERO_KEY_ALIAS ? 0L : key, getValue(i));
+    }
+  }
+
+  //@Override
+  public long get(long key) {
+    if (key == ZERO_KEY_ALIAS)
+      return header.getLong(OFF_ALIAS);
+    if (key == EMPTY)
+      key = ZERO_KEY_ALIAS;
+    long mask = capacity - 1;
+    for (long i = Hashing.finish(key) & mask;; i = (i + 1) & mask) {
+      long k = getKey(i);
+      if (k == key)
+        return getValue(i);
+      if (k == EMPTY)
+        return NO_VALUE;
+    }
+  }
+
+  /**
+   * Get the backing file. Later generations of the table are kept next to
+   * it, named after it.
+   * 
+   * @return the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  //@Override
+  public long put(long key, long value) {
+    if (value == NO_VALUE)
+      throw new IllegalArgumentException("NO_VALUE cannot be stored");
+    if (key == ZERO_KEY_ALIAS) {
+      long old = header.getLong(OFF_ALIAS);
+      header.putLong(OFF_ALIAS, value);
+      if (old == NO_VALUE)
+        setSize(size + 1);
+      return old;
+    }
+    if (key == EMPTY)
+      key = ZERO_KEY_ALIAS;
+    if (size + 1 > capacity * LOAD_FACTOR)
+      grow();
+
+    long mask = capacity - 1;
+    for (long i = Hashing.finish(key) & mask;; i = (i + 1) & mask) {
+      long k = getKey(i);
+      if (k == key) {
+        long old = getValue(i);
+        setSlot(i, key, value);
+        return old;
+      }
+      if (k == EMPTY) {
+        setSlot(i, key, value);
+        setSize(size + 1);
+        return NO_VALUE;
+      }
+    }
+  }
+
+  //@Override
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Read the key in a slot.
+   * 
+   * @param slot Slot number
+   * @return Key, or {@link #EMPTY}
+   */
+  private long getKey(long slot) {
+    long pos = HEADER_SIZE + slot * SLOT_SIZE;
+    return segments[(int) (pos >>> SEGMENT_BITS)]
+        .getLong((int) (pos & (SEGMENT_SIZE - 1)));
+  }
+
+  /**
+   * Read the value in a slot.
+   * 
+   * @param slot Slot number
+   * @return Value
+   */
+  private long getValue(long slot) {
+    long pos = HEADER_SIZE + slot * SLOT_SIZE + 8;
+    return segments[(int) (pos >>> SEGMENT_BITS)]
+        .getLong((int) (pos & (SEGMENT_SIZE - 1)));
+  }
+
+  /**
+   * Write the magic number of a filled table, making it the current
+   * generation.
+   */
+  private void commit() {
+    flush();
+    header.putLong(OFF_MAGIC, MAGIC);
+    header.force();
+  }
+
+  /**
+   * Delete the files of every other generation of the table. A file that
+   * cannot be deleted yet, such as one still mapped on Windows, is left for
+   * the next time.
+   */
+  private void deleteOtherGenerations() {
+    for (File f : listGenerations(file)) {
+      if (generationOf(file, f) != generation)
+        f.delete();
+    }
+  }
+
+  /**
+   * Rebuild the table at double the size as the next generation and switch
+   * to it. The old file stays mapped until its buffers are collected, so it
+   * is deleted rather than replaced.
+   */
+  private void grow() {
+    try {
+      long next = generation + 1;
+      create(generationFile(file, next), capacity << 1, false);
+      final MappedLongLongMap bigger = new MappedLongLongMap(file, next,
+          false);
+      forEach(new EntryVisitor() {
+        //@Override
+        public void visit(long key, long value) {
+          bigger.put(key, value);
+        }
+      });
+      bigger.commit();
+      header = bigger.header;
+      segments = bigger.segments;
+      capacity = bigger.capacity;
+      size = bigger.size;
+      generation = next;
+      deleteOtherGenerations();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not grow " + file, e);
+    }
+  }
+
+  /**
+   * Map a table file and read its header.
+   * 
+   * @param file Table file
+   * @param complete FALSE if the file has no magic number yet
+   * @throws IOException if the file could not be mapped or is not a table
+   */
+  private void map(File file, boolean complete) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      if (length < HEADER_SIZE)
+        throw new IOException(file + " is not a fingerprint table");
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.nativeOrder());
+      if (complete && header.getLong(OFF_MAGIC) != MAGIC)
+        throw new IOException(file + " is not a fingerprint table");
+      capacity = header.getLong(OFF_CAPACITY);
+      size = header.getLong(OFF_SIZE);
+      if (Long.bitCount(capacity) != 1
+          || length != HEADER_SIZE + capacity * SLOT_SIZE)
+        throw new IOException(file + " is damaged");
+
+      int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+      segments = new MappedByteBuffer[count];
+      for (int i = 0; i < count; ++i) {
+        long start = (long) i << SEGMENT_BITS;
+        segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+            Math.min(SEGMENT_SIZE, length - start));
+        segments[i].order(ByteOrder.nativeOrder());
+      }
+    } finally {
+      // The mappings stay valid after the channel is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Record the number of entries.
+   * 
+   * @param size New number of entries
+   */
+  private void setSize(long size) {
+    this.size = size;
+    header.putLong(OFF_SIZE, size);
+  }
+
+  /**
+   * Write a slot. The value is written before the key so a reader never
+   * sees a key without its value.
+   * 
+   * @param slot Slot number
+   * @param key Key
+   * @param value Value
+   */
+  private void setSlot(long slot, long key, long value) {
+    long pos = HEADER_SIZE + slot * SLOT_SIZE;
+    MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+    int off = (int) (pos & (SEGMENT_SIZE - 1));
+    segment.putLong(off + 8, value);
+    segment.putLong(off, key);
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * {@link LongLongMap} kept in a direct <code>ByteBuffer</code>, so millions
+ * of entries cost 16 bytes each and no Java objects at all. Entries are
+ * stored in an open-addressed table with linear probing that doubles when it
+ * is 70% full.
+ * </p>
+ * <p>
+ * The table can be saved to and loaded from a file with
+ * {@link #save(File)} and {@link #load(File)}. A table opened with
+ * {@link #open(File, int)} saves itself back to its file on
+ * {@link #flush()}.
+ * </p>
+ */
+public class OffHeapLongLongMap implements LongLongMap {
+
+  /**
+   * Marks an empty slot. Key 0 is stored as {@link #ZERO_KEY_ALIAS}.
+   */
+  private static final long EMPTY = 0L;
+
+  /**
+   * Magic number at the start of a saved table.
+   */
+  private static final long MAGIC = 0x5341544650303031L; // "SATFP001"
+
+  /**
+   * Size of the header of a saved table.
+   */
+  private static final int HEADER_SIZE = 24;
+
+  /**
+   * Fraction of slots that may be used before the table grows.
+   */
+  private static final double LOAD_FACTOR = 0.7;
+
+  /**
+   * Bytes per slot (key and value).
+   */
+  private static final int SLOT_SIZE = 16;
+
+  /**
+   * Key 0 is stored under this key instead, and this key is stored in a
+   * separate field.
+   */
+  private static final long ZERO_KEY_ALIAS = 0x9e3779b97f4a7c15L;
+
+  /**
+   * Load a table saved with {@link #save(File)}.
+   * 
+   * @param file File to load
+   * @return Loaded table
+   * @throws IOException if the file could not be read or is not a saved
+   *           table
+   */
+  public static OffHeapLongLongMap load(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+          .order(ByteOrder.nativeOrder());
+      readFully(channel, header, 0);
+      header.flip();
+      if (header.getLong() != MAGIC)
+        throw new IOException(file + " is not a fingerprint table");
+      int capacity = (int) header.getLong();
+      long aliasValue = header.getLong();
+      if (Integer.bitCount(capacity) != 1
+          || channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE)
+        throw new IOException(file + " is damaged");
+
+      // The saved capacity is a slot count, not an expected size
+      OffHeapLongLongMap map = new OffHeapLongLongMap();
+      map.allocate(capacity);
+      readFully(channel, map.table, HEADER_SIZE);
+      map.aliasValue = aliasValue;
+      map.size = aliasValue == NO_VALUE ? 0 : 1;
+      for (int i = 0; i < capacity; ++i) {
+        if (map.table.getLong(i * SLOT_SIZE) != EMPTY)
+          map.size++;
+      }
+      return map;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Load a table from a file, or create an empty one if the file does not
+   * exist yet. {@link #flush()} saves the table back to the same file.
+   * 
+   * @param file File to load from and save to
+   * @param expectedSize Number of entries to make room for if the file does
+   *          not exist
+   * @return Table bound to <code>file</code>
+   * @throws IOException if the file exists but could not be loaded
+   */
+  public static OffHeapLongLongMap open(File file, int expectedSize)
+      throws IOException {
+    OffHeapLongLongMap map = file.exists() ? load(file)
+        : new OffHeapLongLongMap(expectedSize);
+    map.file = file;
+    return map;
+  }
+
+  /**
+   * Fill a buffer from a channel.
+   * 
+   * @param channel Channel to read
+   * @param buf Buffer to fill
+   * @param position Position in the channel to start at
+   * @throws IOException if the channel ends early
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buf,
+      long position) throws IOException {
+    buf.clear();
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position + buf.position());
+      if (n < 0)
+        throw new IOException("Unexpected end of file");
+    }
+  }
+
+  /**
+   * Value stored for {@link #ZERO_KEY_ALIAS} itself.
+   */
+  private long aliasValue = NO_VALUE;
+
+  /**
+   * File {@link #flush()} saves to, if any.
+   */
+  private File file;
+
+  /**
+   * Number of slots (a power of two).
+   */
+  private int capacity;
+
+  /**
+   * Number of entries.
+   */
+  private long size;
+
+  /**
+   * Slots: key then value, both in native byte order.
+   */
+  private ByteBuffer table;
+
+  /**
+   * Create a table with no slots; {@link #allocate(int)} must be called.
+   */
+  private OffHeapLongLongMap() {
+  }
+
+  /**
+   * Create an empty table.
+   * 
+   * @param expectedSize Number of entries to make room for up front
+   */
+  public OffHeapLongLongMap(int expectedSize) {
+    int cap = 16;
+    while (cap * LOAD_FACTOR < expectedSize)
+      cap <<= 1;
+    allocate(cap);
+  }
+
+  //@Override
+  public void close() {
+    table = null;
+  }
+
+  //@Override
+  public void flush() throws IOException {
+    if (file != null)
+      save(file);
+  }
+
+  //@Override
+  public void forEach(EntryVisitor visitor) {
+    if (aliasValue != NO_VALUE)
+      visitor.visit(ZERO_KEY_ALIAS, aliasValue);
+    for (int i = 0; i < capacity; ++i) {
+      long key = table.getLong(i * SLOT_SIZE);
+      if (key != EMPTY)
+        visitor.visit(key == ZERO_KEY_ALIAS ? 0L : key,
+            table.getLong(i * SLOT_SIZE + 8));
+    }
+  }
+
+  //@Override
+  public long get(long key) {
+    if (key == ZERO_KEY_ALIAS)
+      return aliasValue;
+    if (key == EMPTY)
+      key = ZERO_KEY_ALIAS;
+    int mask = capacity - 1;
+    for (int i = index(key, mask);; i = (i + 1) & mask) {
+      long k = table.getLong(i * SLOT_SIZE);
+      if (k == key)
+        return table.getLong(i * SLOT_SIZE + 8);
+      if (k == EMPTY)
+        return NO_VALUE;
+    }
+  }
+
+  //@Override
+  public long put(long key, long value) {
+    if (value == NO_VALUE)
+      throw new IllegalArgumentException("NO_VALUE cannot be stored");
+    if (key == ZERO_KEY_ALIAS) {
+      long old = aliasValue;
+      aliasValue = value;
+      if (old == NO_VALUE)
+        size++;
+      return old;
+    }
+    if (key == EMPTY)
+      key = ZERO_KEY_ALIAS;
+    if (size + 1 > capacity * LOAD_FACTOR)
+      grow();
+
+    int mask = capacity - 1;
+    for (int i = index(key, mask);; i = (i + 1) & mask) {
+      int slot = i * SLOT_SIZE;
+      long k = table.getLong(slot);
+      if (k == key) {
+        long old = table.getLong(slot + 8);
+        table.putLong(slot + 8, value);
+        return old;
+      }
+      if (k == EMPTY) {
+        table.putLong(slot, key);
+        table.putLong(slot + 8, value);
+        size++;
+        return NO_VALUE;
+      }
+    }
+  }
+
+  /**
+   * Save the table so it can be loaded with {@link #load(File)}. The file is
+   * replaced atomically.
+   * 
+   * @param file File to write
+   * @throws IOException if the file could not be written
+   */
+  public void save(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    FileChannel channel = FileChannel.open(tmp.toPath(),
+        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+          .order(ByteOrder.nativeOrder());
+      header.putLong(MAGIC).putLong(capacity).putLong(aliasValue).flip();
+      channel.write(header, 0);
+      ByteBuffer body = table.duplicate();
+      body.clear();
+      long position = HEADER_SIZE;
+      while (body.hasRemaining())
+        position += channel.write(body, position);
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  //@Override
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Allocate an empty table.
+   * 
+   * @param cap Number of slots (a power of two)
+   */
+  private void allocate(int cap) {
+    if (cap > (Integer.MAX_VALUE / SLOT_SIZE))
+      throw new IllegalStateException("Fingerprint table is full");
+    capacity = cap;
+    table = ByteBuffer.allocateDirect(cap * SLOT_SIZE)
+        .order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Double the number of slots and rehash every entry.
+   */
+  private void grow() {
+    ByteBuffer old = table;
+    int oldCapacity = capacity;
+    allocate(capacity << 1);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldCapacity; ++i) {
+      long key = old.getLong(i * SLOT_SIZE);
+      if (key == EMPTY)
+        continue;
+      int j = index(key, mask);
+      while (table.getLong(j * SLOT_SIZE) != EMPTY)
+        j = (j + 1) & mask;
+      table.putLong(j * SLOT_SIZE, key);
+      table.putLong(j * SLOT_SIZE + 8, old.getLong(i * SLOT_SIZE + 8));
+    }
+  }
+
+  /**
+   * Get the home slot of a key.
+   * 
+   * @param key Key (already remapped away from {@link #EMPTY})
+   * @param mask <code>capacity - 1</code>
+   * @return Home slot
+   */
+  private static int index(long key, int mask) {
+    return (int) Hashing.finish(key) & mask;
+  }
+}
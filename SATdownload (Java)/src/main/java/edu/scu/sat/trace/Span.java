@@ -0,0 +1,449 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.trace;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * One timed step of a download, such as the login, the request for the file
+ * URL or the transfer itself. Spans nest: each one started while another is
+ * current on the same thread becomes its child, and together they make up
+ * the trace of one file. Work handed to another thread carries on the trace
+ * by starting its spans from a parent captured beforehand.
+ * </p>
+ * <p>
+ * When tracing is off, or a span is started with no trace in progress or in
+ * a trace that was not sampled, {@link #NONE} is returned, which records
+ * nothing, so instrumented code costs next to nothing.
+ * </p>
+ */
+public class Span {
+
+  /**
+   * Span kind of a step inside the program.
+   */
+  public static final int KIND_INTERNAL = 1;
+
+  /**
+   * Span kind of a request to another server.
+   */
+  public static final int KIND_CLIENT = 3;
+
+  /**
+   * Span that records nothing.
+   */
+  public static final Span NONE = new Span(null, null, null, KIND_INTERNAL);
+
+  /**
+   * Span current on each thread.
+   */
+  private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+  /**
+   * Difference between the epoch time and {@link System#nanoTime()}, in
+   * nanoseconds.
+   */
+  private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis()
+      * 1000000L - System.nanoTime();
+
+  /**
+   * Get the span current on this thread.
+   * 
+   * @return Current span, or {@link #NONE}
+   */
+  public static Span current() {
+    Span span = CURRENT.get();
+    return span == null ? NONE : span;
+  }
+
+  /**
+   * Make up a random ID.
+   * 
+   * @param bytes Length of the ID in bytes
+   * @return ID in lower-case hex
+   */
+  static String newId(int bytes) {
+    StringBuilder id = new StringBuilder(bytes * 2);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (id.length() < bytes * 2) {
+      String hex = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+      id.append(hex, 0, Math.min(hex.length(), bytes * 2 - id.length()));
+    }
+    return id.toString();
+  }
+
+  /**
+   * Get the current time.
+   * 
+   * @return Nanoseconds since the epoch
+   */
+  static long now() {
+    return EPOCH_OFFSET_NANOS + System.nanoTime();
+  }
+
+  /**
+   * Start a new trace and make its root span current.
+   * 
+   * @param tracer Tracer to hand the trace to once it ends
+   * @param name Name of the root span
+   * @param sampled TRUE to record the spans of every step, FALSE to record
+   *          the root span only
+   * @return Root span
+   */
+  static Span root(Tracer tracer, String name, boolean sampled) {
+    Span span = new Span(new Trace(tracer, sampled), null, name,
+        KIND_INTERNAL);
+    span.makeCurrent();
+    return span;
+  }
+
+  /**
+   * Attributes, in the order they were set.
+   */
+  private Map<String, Object> attributes;
+
+  /**
+   * End time in nanoseconds since the epoch, or 0 while running.
+   */
+  private long endNanos;
+
+  /**
+   * Error message, or <code>null</code> if the step did not fail.
+   */
+  private String error;
+
+  /**
+   * Events as pairs of name and time.
+   */
+  private List<Object[]> events;
+
+  /**
+   * Kind of span.
+   */
+  private final int kind;
+
+  /**
+   * Name of the step.
+   */
+  private final String name;
+
+  /**
+   * ID of the parent span, or <code>null</code> for the root.
+   */
+  private final String parentId;
+
+  /**
+   * Span that was current on the starting thread before this one.
+   */
+  private Span previous;
+
+  /**
+   * ID of this span.
+   */
+  private final String spanId;
+
+  /**
+   * Start time in nanoseconds since the epoch.
+   */
+  private final long startNanos;
+
+  /**
+   * Trace this span belongs to, or <code>null</code> for {@link #NONE}.
+   */
+  private final Trace trace;
+
+  /**
+   * Create a new Span.
+   * 
+   * @param trace Trace the span belongs to
+   * @param parentId ID of the parent span
+   * @param name Name of the step
+   * @param kind Kind of span
+   */
+  private Span(Trace trace, String parentId, String name, int kind) {
+    this.trace = trace;
+    this.parentId = parentId;
+    this.name = name;
+    this.kind = kind;
+    this.spanId = trace == null ? null : newId(8);
+    this.startNanos = trace == null ? 0 : now();
+  }
+
+  /**
+   * Set an attribute.
+   * 
+   * @param key Attribute name
+   * @param value Attribute value
+   * @return this span
+   */
+  public Span attribute(String key, boolean value) {
+    return put(key, Boolean.valueOf(value));
+  }
+
+  /**
+   * Set an attribute.
+   * 
+   * @param key Attribute name
+   * @param value Attribute value
+   * @return this span
+   */
+  public Span attribute(String key, long value) {
+    return put(key, Long.valueOf(value));
+  }
+
+  /**
+   * Set an attribute.
+   * 
+   * @param key Attribute name
+   * @param value Attribute value; <code>null</code> is ignored
+   * @return this span
+   */
+  public Span attribute(String key, String value) {
+    return value == null ? this : put(key, value);
+  }
+
+  /**
+   * End this span. If it is current on this thread, the span that was
+   * current before it is again. Ending the root span ends the trace; spans
+   * ended after that are dropped.
+   */
+  public void end() {
+    if (trace == null)
+      return;
+    synchronized (this) {
+      if (endNanos != 0)
+        return;
+      endNanos = now();
+    }
+    if (CURRENT.get() == this) {
+      if (previous == null)
+        CURRENT.remove();
+      else
+        CURRENT.set(previous);
+    }
+    trace.ended(this);
+  }
+
+  /**
+   * Mark this span as failed.
+   * 
+   * @param message What went wrong
+   * @return this span
+   */
+  public synchronized Span error(String message) {
+    if (trace != null)
+      error = message == null ? "Error" : message;
+    return this;
+  }
+
+  /**
+   * Record that something happened now, such as the first byte of a
+   * response arriving.
+   * 
+   * @param eventName Name of the event
+   * @return this span
+   */
+  public Span event(String eventName) {
+    if (trace == null)
+      return this;
+    long time = now();
+    synchronized (this) {
+      if (events == null)
+        events = new ArrayList<Object[]>(2);
+      events.add(new Object[] { eventName, Long.valueOf(time) });
+    }
+    return this;
+  }
+
+  /**
+   * Check whether this span records anything.
+   * 
+   * @return FALSE for {@link #NONE}
+   */
+  public boolean isRecording() {
+    return trace != null;
+  }
+
+  /**
+   * Start a child span for a step inside the program and make it current on
+   * this thread.
+   * 
+   * @param childName Name of the step
+   * @return Child span, or {@link #NONE} if this span records nothing
+   */
+  public Span startChild(String childName) {
+    return startChild(childName, KIND_INTERNAL);
+  }
+
+  /**
+   * Start a child span for a request to another server and make it current
+   * on this thread.
+   * 
+   * @param childName Name of the request
+   * @return Child span, or {@link #NONE} if this span records nothing
+   */
+  public Span startClient(String childName) {
+    return startChild(childName, KIND_CLIENT);
+  }
+
+  /**
+   * Get the attributes.
+   * 
+   * @return Copy of the attributes, in the order they were set
+   */
+  synchronized Map<String, Object> getAttributes() {
+    return attributes == null ? new LinkedHashMap<String, Object>()
+        : new LinkedHashMap<String, Object>(attributes);
+  }
+
+  /**
+   * Get the end time.
+   * 
+   * @return Nanoseconds since the epoch
+   */
+  synchronized long getEndNanos() {
+    return endNanos;
+  }
+
+  /**
+   * Get the error message.
+   * 
+   * @return Error message, or <code>null</code> if the step did not fail
+   */
+  synchronized String getError() {
+    return error;
+  }
+
+  /**
+   * Get the events.
+   * 
+   * @return Copy of the events as pairs of name and time
+   */
+  synchronized List<Object[]> getEvents() {
+    return events == null ? new ArrayList<Object[]>()
+        : new ArrayList<Object[]>(events);
+  }
+
+  /**
+   * Get the kind of span.
+   * 
+   * @return {@link #KIND_INTERNAL} or {@link #KIND_CLIENT}
+   */
+  int getKind() {
+    return kind;
+  }
+
+  /**
+   * Get the name of the step.
+   * 
+   * @return the name
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Get the ID of the parent span.
+   * 
+   * @return the ID, or <code>null</code> for the root
+   */
+  String getParentId() {
+    return parentId;
+  }
+
+  /**
+   * Get the ID of this span.
+   * 
+   * @return the ID
+   */
+  String getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * Get the start time.
+   * 
+   * @return Nanoseconds since the epoch
+   */
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * Get the trace this span belongs to.
+   * 
+   * @return the trace
+   */
+  Trace getTrace() {
+    return trace;
+  }
+
+  /**
+   * Make this span current on this thread.
+   */
+  private void makeCurrent() {
+    previous = CURRENT.get();
+    CURRENT.set(this);
+  }
+
+  /**
+   * Set an attribute.
+   * 
+   * @param key Attribute name
+   * @param value Attribute value
+   * @return this span
+   */
+  private synchronized Span put(String key, Object value) {
+    if (trace != null) {
+      if (attributes == null)
+        attributes = new LinkedHashMap<String, Object>();
+      attributes.put(key, value);
+    }
+    return this;
+  }
+
+  /**
+   * Start a child span and make it current on this thread.
+   * 
+   * @param childName Name of the step
+   * @param childKind Kind of span
+   * @return Child span, or {@link #NONE} if this span records nothing or
+   *         its trace was not sampled
+   */
+  private Span startChild(String childName, int childKind) {
+    if (trace == null || !trace.isSampled())
+      return NONE;
+    Span child = new Span(trace, spanId, childName, childKind);
+    child.makeCurrent();
+    return child;
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The spans of one file's download, collected as they end.
+ */
+final class Trace {
+
+  /**
+   * Spans that have ended, in the order they ended.
+   */
+  private final List<Span> spans = new ArrayList<Span>();
+
+  /**
+   * Whether the root span has ended.
+   */
+  private boolean ended;
+
+  /**
+   * ID of the trace.
+   */
+  private final String traceId = Span.newId(16);
+
+  /**
+   * Whether the trace was picked to record the spans of every step.
+   */
+  private final boolean sampled;
+
+  /**
+   * Tracer to hand the trace to once it ends.
+   */
+  private final Tracer tracer;
+
+  /**
+   * Create a new Trace.
+   * 
+   * @param tracer Tracer to hand the trace to once it ends
+   * @param sampled TRUE to record the spans of every step, FALSE to record
+   *          the root span only
+   */
+  Trace(Tracer tracer, boolean sampled) {
+    this.tracer = tracer;
+    this.sampled = sampled;
+  }
+
+  /**
+   * Get the ID of the trace.
+   * 
+   * @return ID in lower-case hex
+   */
+  String getTraceId() {
+    return traceId;
+  }
+
+  /**
+   * Check whether the trace records the spans of every step.
+   * 
+   * @return FALSE if only the root span is recorded
+   */
+  boolean isSampled() {
+    return sampled;
+  }
+
+  /**
+   * Record that a span has ended. When it is the root, the trace is handed
+   * to the tracer.
+   * 
+   * @param span Span that has ended
+   */
+  void ended(Span span) {
+    List<Span> all;
+    synchronized (this) {
+      if (ended)
+        return;
+      spans.add(span);
+      if (span.getParentId() != null)
+        return;
+      ended = true;
+      all = new ArrayList<Span>(spans);
+    }
+    tracer.finish(span, all);
+  }
+}
@@ -0,0 +1,318 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.scu.sat.json.JsonWriter;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Writes traces as OpenTelemetry OTLP/JSON, to a file (one export request
+ * per line, as read by the OpenTelemetry Collector's
+ * <code>otlpjsonfile</code> receiver), to a collector's
+ * <code>/v1/traces</code> endpoint over HTTP, or both.
+ * </p>
+ * <p>
+ * Traces are queued and written in batches by a background thread, so a
+ * slow collector never holds up the downloads. When the queue is full, new
+ * traces are dropped.
+ * </p>
+ */
+public class TraceExporter {
+
+  /**
+   * Name of the service in the exported traces.
+   */
+  private static final String SERVICE_NAME = "SATdownload";
+
+  /**
+   * Largest number of traces written in one batch.
+   */
+  private static final int BATCH_SIZE = 100;
+
+  /**
+   * How long to wait for the collector, in seconds.
+   */
+  private static final long TIMEOUT_SECONDS = 10;
+
+  /**
+   * HTTP client for the collector, or <code>null</code>.
+   */
+  private final HttpClient client;
+
+  /**
+   * Number of traces dropped since the last warning.
+   */
+  private int dropped;
+
+  /**
+   * File to append the traces to, or <code>null</code>.
+   */
+  private final File file;
+
+  /**
+   * Traces waiting to be written, as pairs of trace ID and spans.
+   */
+  private final BlockingQueue<Object[]> queue;
+
+  /**
+   * Whether the thread still waits for new traces.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Thread writing the traces.
+   */
+  private final Thread thread;
+
+  /**
+   * Collector endpoint to post the traces to, or <code>null</code>.
+   */
+  private final URI url;
+
+  /**
+   * Create a new TraceExporter and start its thread.
+   * 
+   * @param file File to append the traces to, or <code>null</code>
+   * @param url Collector endpoint to post the traces to, such as
+   *          <code>http://localhost:4318/v1/traces</code>, or
+   *          <code>null</code>
+   * @param capacity Number of traces the queue can hold
+   */
+  public TraceExporter(File file, String url, int capacity) {
+    this.file = file;
+    this.url = url == null ? null : URI.create(url);
+    this.client = url == null ? null
+        : HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(TIMEOUT_SECONDS)).build();
+    this.queue = new ArrayBlockingQueue<Object[]>(capacity);
+    this.thread = new Thread(new Runnable() {
+      //@Override
+      public void run() {
+        drain();
+      }
+    }, "trace-export");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Write traces as an OTLP/JSON export request.
+   * 
+   * @param traces Traces as pairs of trace ID and spans
+   * @return JSON text on one line
+   */
+  @SuppressWarnings("unchecked")
+  static String toJson(List<Object[]> traces) {
+    JsonWriter w = new JsonWriter();
+    w.beginObject().name("resourceSpans").beginArray().beginObject();
+    w.name("resource").beginObject().name("attributes").beginArray();
+    attribute(w, "service.name", SERVICE_NAME);
+    w.endArray().endObject();
+    w.name("scopeSpans").beginArray().beginObject();
+    w.name("scope").beginObject().name("name").value("edu.scu.sat")
+        .endObject();
+    w.name("spans").beginArray();
+    for (Object[] trace : traces) {
+      for (Span span : (List<Span>) trace[1])
+        span(w, (String) trace[0], span);
+    }
+    w.endArray().endObject().endArray();
+    w.endObject().endArray().endObject();
+    return w.getBuilder().toString();
+  }
+
+  /**
+   * Write an attribute as an OTLP key and value.
+   * 
+   * @param w Writer to write to
+   * @param key Attribute name
+   * @param value Attribute value
+   */
+  private static void attribute(JsonWriter w, String key, Object value) {
+    w.beginObject().name("key").value(key).name("value").beginObject();
+    // 64-bit integers are strings in OTLP/JSON
+    if (value instanceof Long)
+      w.name("intValue").value(value.toString());
+    else if (value instanceof Boolean)
+      w.name("boolValue").value(((Boolean) value).booleanValue());
+    else
+      w.name("stringValue").value(String.valueOf(value));
+    w.endObject().endObject();
+  }
+
+  /**
+   * Write a span as an OTLP span.
+   * 
+   * @param w Writer to write to
+   * @param traceId ID of the trace
+   * @param span Span to write
+   */
+  private static void span(JsonWriter w, String traceId, Span span) {
+    w.beginObject();
+    w.name("traceId").value(traceId);
+    w.name("spanId").value(span.getSpanId());
+    if (span.getParentId() != null)
+      w.name("parentSpanId").value(span.getParentId());
+    w.name("name").value(span.getName());
+    w.name("kind").value(span.getKind());
+    w.name("startTimeUnixNano").value(Long.toString(span.getStartNanos()));
+    w.name("endTimeUnixNano").value(Long.toString(span.getEndNanos()));
+    Map<String, Object> attributes = span.getAttributes();
+    if (!attributes.isEmpty()) {
+      w.name("attributes").beginArray();
+      for (Map.Entry<String, Object> e : attributes.entrySet())
+        attribute(w, e.getKey(), e.getValue());
+      w.endArray();
+    }
+    List<Object[]> events = span.getEvents();
+    if (!events.isEmpty()) {
+      w.name("events").beginArray();
+      for (Object[] event : events) {
+        w.beginObject().name("timeUnixNano").value(event[1].toString())
+            .name("name").value((String) event[0]).endObject();
+      }
+      w.endArray();
+    }
+    if (span.getError() != null) {
+      // STATUS_CODE_ERROR
+      w.name("status").beginObject().name("code").value(2).name("message")
+          .value(span.getError()).endObject();
+    }
+    w.endObject();
+  }
+
+  /**
+   * Queue a trace to be written. Never blocks.
+   * 
+   * @param traceId ID of the trace
+   * @param spans Spans of the trace
+   */
+  public void export(String traceId, List<Span> spans) {
+    if (running && queue.offer(new Object[] { traceId, spans }))
+      return;
+    synchronized (this) {
+      // Warn once per hundred, so a stuck collector does not flood the log
+      if (dropped++ % 100 == 0)
+        Log.warn("Trace export queue is full; dropping traces", null);
+    }
+  }
+
+  /**
+   * Stop accepting traces and give the queued ones time to be written.
+   * 
+   * @param timeoutMillis Longest time to wait, in milliseconds
+   */
+  public void shutdown(long timeoutMillis) {
+    running = false;
+    try {
+      thread.join(Math.max(1, timeoutMillis));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      thread.interrupt();
+      Log.warn(queue.size() + " trace(s) were not exported", null);
+    }
+  }
+
+  /**
+   * Write queued traces in batches until shut down.
+   */
+  private void drain() {
+    List<Object[]> batch = new ArrayList<Object[]>();
+    try {
+      while (running || !queue.isEmpty()) {
+        Object[] trace = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (trace == null)
+          continue;
+        batch.add(trace);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        write(toJson(batch));
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // Shutting down
+    }
+  }
+
+  /**
+   * Write one export request to the file and the collector.
+   * 
+   * @param json Export request
+   * @throws InterruptedException if interrupted while posting
+   */
+  private void write(String json) throws InterruptedException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    if (file != null) {
+      try {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+          out.write(bytes);
+          out.write('\n');
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        Log.warn("Could not write traces to " + file + ": " + e.getMessage(),
+            null);
+      }
+    }
+    if (url != null) {
+      try {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(url)
+            .timeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(bytes)).build(),
+            HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() / 100 != 2)
+          Log.warn("Trace collector at " + url + " answered "
+              + response.statusCode(), null);
+      } catch (IOException e) {
+        Log.warn("Could not send traces to " + url + ": " + e.getMessage(),
+            null);
+      }
+    }
+  }
+}
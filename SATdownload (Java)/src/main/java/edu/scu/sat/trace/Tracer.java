@@ -0,0 +1,120 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.trace;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Starts traces and decides which ones are worth keeping. Each trace is
+ * picked at random when it starts, with the sample rate as the probability,
+ * and only a picked trace records the spans of its steps and requests. The
+ * others record their root span alone, which costs next to nothing, so the
+ * many quick polls that find nothing in daemon mode stay cheap.
+ * </p>
+ * <p>
+ * A picked trace is exported whatever happens. One that was not picked is
+ * still exported, as its root span alone, if that span failed or took at
+ * least the slow threshold, so every file that had a problem shows up with
+ * its error and total time.
+ * </p>
+ * <p>
+ * Kept traces are handed to a {@link TraceExporter}, which writes them in
+ * the background.
+ * </p>
+ */
+public class Tracer {
+
+  /**
+   * Exporter for the traces that are kept.
+   */
+  private final TraceExporter exporter;
+
+  /**
+   * Share of traces kept at random, from 0 to 1.
+   */
+  private final double sampleRate;
+
+  /**
+   * Shortest trace that is always kept, in nanoseconds, or 0 to keep slow
+   * traces only if they are sampled.
+   */
+  private final long slowNanos;
+
+  /**
+   * Create a new Tracer.
+   * 
+   * @param exporter Exporter for the traces that are kept
+   * @param sampleRate Share of traces kept at random, from 0 to 1
+   * @param slowMillis Shortest trace that is always kept, in milliseconds, or
+   *          0 for none
+   */
+  public Tracer(TraceExporter exporter, double sampleRate, long slowMillis) {
+    this.exporter = exporter;
+    this.sampleRate = sampleRate;
+    this.slowNanos = slowMillis * 1000000L;
+  }
+
+  /**
+   * Stop exporting, giving the traces already kept time to be written.
+   * 
+   * @param timeoutMillis Longest time to wait, in milliseconds
+   */
+  public void close(long timeoutMillis) {
+    exporter.shutdown(timeoutMillis);
+  }
+
+  /**
+   * Start a span and make it current on this thread. It is a child of the
+   * current span if there is one, and the root of a new trace if not.
+   * 
+   * @param name Name of the step
+   * @return New span
+   */
+  public Span start(String name) {
+    Span current = Span.current();
+    if (current.isRecording())
+      return current.startChild(name);
+    return Span.root(this, name, sampleRate > 0
+        && ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  /**
+   * Decide whether to keep a trace that has ended, and export it if so.
+   * 
+   * @param root Root span
+   * @param spans Every span of the trace that has ended
+   */
+  void finish(Span root, List<Span> spans) {
+    boolean keep = root.getTrace().isSampled() || root.getError() != null
+        || (slowNanos > 0
+            && root.getEndNanos() - root.getStartNanos() >= slowNanos);
+    if (keep)
+      exporter.export(root.getTrace().getTraceId(), spans);
+  }
+}
@@ -0,0 +1,326 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.scu.sat.trace.Span;
+
+/**
+ * <p>
+ * {@link Transport} built on the JDK's <code>java.net.http.HttpClient</code>.
+ * A single client is shared by every request, which lets HTTP/2 servers
+ * multiplex concurrent requests over one connection. Downloads are streamed
+ * straight to disk with <code>BodySubscribers.ofFile</code>.
+ * </p>
+ * <p>
+ * To match the Jersey transport (and CollegeBoard's sample code), this
+ * transport trusts any certificate and host name. Only its own client is
+ * affected; other HttpClients in the JVM still verify both.
+ * </p>
+ */
+public class HttpClientTransport implements Transport {
+
+  /**
+   * How long to wait for a connection to be established.
+   */
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+  /**
+   * HttpClient shared by every request.
+   */
+  private final HttpClient client;
+
+  /**
+   * Create a new HttpClientTransport.
+   */
+  public HttpClientTransport() {
+    this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(CONNECT_TIMEOUT)
+        .sslContext(Transports.getSslContextAcceptsAnyHost()).build();
+  }
+
+  //@Override
+  public void close() {
+    // HttpClient has no close() before Java 21; idle connections are
+    // released by its own (daemon) selector thread.
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    try {
+      return downloadAsync(url, target).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download interrupted: " + url);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  //@Override
+  public CompletableFuture<Long> downloadAsync(String url, File target) {
+    final Path path = target.toPath();
+    final AtomicLong received = new AtomicLong();
+    // The handler runs on the client's threads, so take the span now
+    final Span span = Span.current();
+    HttpRequest request = newRequest(url, "application/octet-stream").GET()
+        .build();
+
+    // Only stream the body to the file when the request succeeded so an
+    // error page never overwrites an existing file. The file is written
+    // over rather than truncated first, so space the caller set aside for
+    // it is kept, and cut to the size received afterwards.
+    BodyHandler<Path> handler = responseInfo -> {
+      span.event("first_byte");
+      if (responseInfo.statusCode() == 200)
+        return new CountingSubscriber(BodySubscribers.ofFile(path,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE), received,
+            span);
+      return BodySubscribers.replacing(null);
+    };
+
+    return client.sendAsync(request, handler).thenApply(response -> {
+      checkStatus(response);
+      try {
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.WRITE);
+        try {
+          channel.truncate(received.get());
+        } finally {
+          channel.close();
+        }
+        return received.get();
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Range requests are sent over HTTP/1.1 so that ranges downloaded at the
+   * same time each get a connection of their own instead of sharing one
+   * HTTP/2 connection.
+   * </p>
+   */
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    HttpRequest request = newRequest(url, "application/octet-stream")
+        .version(HttpClient.Version.HTTP_1_1)
+        .header("Range", "bytes=" + first + "-" + last).GET().build();
+    HttpResponse<InputStream> response;
+    try {
+      response = client.send(request, BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download interrupted: " + url);
+    }
+    Span span = Span.current().event("first_byte");
+    InputStream in = response.body();
+    try {
+      Transports.checkRange(response.statusCode(),
+          response.headers().firstValue("Content-Range").orElse(null), first,
+          last, total);
+      long bytes = Transports.copyRange(in, channel, first, last - first + 1);
+      span.event("last_byte");
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    return send(newRequest(url, "application/json").GET().build());
+  }
+
+  //@Override
+  public String getName() {
+    return Transports.HTTPCLIENT;
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    return send(newRequest(url, "application/json")
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body)).build());
+  }
+
+  /**
+   * Make sure the response has a status of 200.
+   * 
+   * @param response Response to check
+   * @throws HttpStatusException if the status is anything other than 200
+   */
+  private static void checkStatus(HttpResponse<?> response) {
+    if (response.statusCode() != 200)
+      throw new HttpStatusException(response.statusCode());
+  }
+
+  /**
+   * Start building a request.
+   * 
+   * @param url URL to request
+   * @param accept Media type to accept
+   * @return Request builder
+   */
+  private static HttpRequest.Builder newRequest(String url, String accept) {
+    return HttpRequest.newBuilder(URI.create(url)).header("Accept", accept);
+  }
+
+  /**
+   * Send a request and return the body as a stream.
+   * 
+   * @param request Request to send
+   * @return Response body
+   * @throws IOException if the request could not be completed
+   */
+  private InputStream send(HttpRequest request) throws IOException {
+    HttpResponse<InputStream> response;
+    try {
+      response = client.send(request, BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Request interrupted: " + request.uri());
+    }
+    Span.current().event("first_byte");
+    if (response.statusCode() != 200) {
+      response.body().close();
+      throw new HttpStatusException(response.statusCode());
+    }
+    return response.body();
+  }
+
+  /**
+   * Turn the cause of a failed future back into the exception the synchronous
+   * methods are declared to throw.
+   * 
+   * @param cause Cause of the failure
+   * @return IOException to throw
+   */
+  private static IOException unwrap(Throwable cause) {
+    if (cause instanceof CompletionException && cause.getCause() != null)
+      cause = cause.getCause();
+    if (cause instanceof RuntimeException)
+      throw (RuntimeException) cause;
+    if (cause instanceof IOException)
+      return (IOException) cause;
+    return new IOException(cause);
+  }
+
+  /**
+   * Body subscriber that counts the bytes passed on to another and records
+   * when the last one arrived.
+   */
+  private static final class CountingSubscriber
+      implements BodySubscriber<Path> {
+
+    /**
+     * Bytes received so far.
+     */
+    private final AtomicLong count;
+
+    /**
+     * Subscriber the body is passed on to.
+     */
+    private final BodySubscriber<Path> delegate;
+
+    /**
+     * Span of the request.
+     */
+    private final Span span;
+
+    /**
+     * Create a new CountingSubscriber.
+     * 
+     * @param delegate Subscriber to pass the body on to
+     * @param count Counter to add the bytes received to
+     * @param span Span of the request
+     */
+    CountingSubscriber(BodySubscriber<Path> delegate, AtomicLong count,
+        Span span) {
+      this.delegate = delegate;
+      this.count = count;
+      this.span = span;
+    }
+
+    //@Override
+    public CompletionStage<Path> getBody() {
+      return delegate.getBody();
+    }
+
+    //@Override
+    public void onComplete() {
+      span.event("last_byte");
+      delegate.onComplete();
+    }
+
+    //@Override
+    public void onError(Throwable throwable) {
+      delegate.onError(throwable);
+    }
+
+    //@Override
+    public void onNext(List<ByteBuffer> items) {
+      for (ByteBuffer item : items)
+        count.addAndGet(item.remaining());
+      delegate.onNext(items);
+    }
+
+    //@Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      delegate.onSubscribe(subscription);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.client.urlconnection.HTTPSProperties;
+
+import edu.scu.sat.trace.Span;
+
+/**
+ * <p>
+ * {@link Transport} built on the Jersey 1.x client used by CollegeBoard's
+ * sample code. Unlike the sample, the client is created once and reused for
+ * every request.
+ * </p>
+ * <p>
+ * Jersey 1.x has no <code>CompletableFuture</code> support, so
+ * {@link #downloadAsync(String, File)} runs the blocking download on a
+ * private thread pool.
+ * </p>
+ */
+public class JerseyTransport implements Transport {
+
+  /**
+   * Size of the buffer used to copy the response body to disk.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Threads used by {@link #downloadAsync(String, File)}.
+   */
+  private ExecutorService asyncExecutor;
+
+  /**
+   * Jersey client shared by every request.
+   */
+  private final Client client;
+
+  /**
+   * Create a new JerseyTransport.
+   */
+  public JerseyTransport() {
+    this.client = getClient();
+  }
+
+  //@Override
+  public synchronized void close() {
+    if (asyncExecutor != null)
+      asyncExecutor.shutdown();
+    client.destroy();
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    ClientResponse response = get(url, "application/octet-stream");
+    InputStream inputStream = response.getEntityInputStream();
+    try {
+      // Write over the file rather than truncating it first, so space the
+      // caller set aside for it is kept
+      RandomAccessFile out = new RandomAccessFile(target, "rw");
+      try {
+        long total = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int size = inputStream.read(buffer);
+        while (size > 0) {
+          out.write(buffer, 0, size);
+          total += size;
+          size = inputStream.read(buffer);
+        }
+        Span.current().event("last_byte");
+        out.setLength(total);
+        return total;
+      } finally {
+        out.close();
+      }
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  //@Override
+  public CompletableFuture<Long> downloadAsync(final String url,
+      final File target) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return download(url, target);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, getAsyncExecutor());
+  }
+
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    ClientResponse response;
+    try {
+      response = client.resource(url).accept("application/octet-stream")
+          .header("Range", "bytes=" + first + "-" + last)
+          .get(ClientResponse.class);
+    } catch (ClientHandlerException e) {
+      throw toIOException(e);
+    }
+    Span span = Span.current().event("first_byte");
+    try {
+      Transports.checkRange(response.getStatus(),
+          response.getHeaders().getFirst("Content-Range"), first, last,
+          total);
+      long bytes = Transports.copyRange(response.getEntityInputStream(),
+          channel, first, last - first + 1);
+      span.event("last_byte");
+      return bytes;
+    } catch (ClientHandlerException e) {
+      throw toIOException(e);
+    } finally {
+      response.close();
+    }
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    return get(url, "application/json").getEntityInputStream();
+  }
+
+  //@Override
+  public String getName() {
+    return Transports.JERSEY;
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    try {
+      ClientResponse response = client.resource(url).accept("application/json")
+          .type("application/json").post(ClientResponse.class, body);
+      Span.current().event("first_byte");
+      return checkStatus(response).getEntityInputStream();
+    } catch (ClientHandlerException e) {
+      throw toIOException(e);
+    }
+  }
+
+  /**
+   * Make sure the response has a status of 200.
+   * 
+   * @param response Response to check
+   * @return <code>response</code>
+   * @throws HttpStatusException if the status is anything other than 200
+   */
+  private ClientResponse checkStatus(ClientResponse response) {
+    if (response.getStatus() != 200) {
+      response.close();
+      throw new HttpStatusException(response.getStatus());
+    }
+    return response;
+  }
+
+  /**
+   * Issue a GET request.
+   * 
+   * @param url URL to request
+   * @param accept Media type to accept
+   * @return Response with a status of 200
+   * @throws IOException if the request could not be completed
+   */
+  private ClientResponse get(String url, String accept) throws IOException {
+    try {
+      ClientResponse response =
+          client.resource(url).accept(accept).get(ClientResponse.class);
+      Span.current().event("first_byte");
+      return checkStatus(response);
+    } catch (ClientHandlerException e) {
+      throw toIOException(e);
+    }
+  }
+
+  /**
+   * Get the thread pool used for asynchronous downloads, creating it if
+   * needed.
+   * 
+   * @return Thread pool for asynchronous downloads
+   */
+  private synchronized ExecutorService getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        //@Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "jersey-download");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return asyncExecutor;
+  }
+
+  /**
+   * <p>
+   * Create the JerseyClient to be used when downloading a file. This has not
+   * been modified from the original version.
+   * </p>
+   * <p>
+   * For more information, please see: <a href=
+   * "https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-portal-help#features">
+   * https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-
+   * portal-help#features</a>
+   * </p>
+   * <p>
+   * Original code can be accessed at: <a href=
+   * "https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip">
+   * https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip
+   * </a>
+   * </p>
+   * 
+   * @author CollegeBoard
+   * @return Configured JerseyClient
+   */
+  protected Client getClient() {
+    Client jerseyClient = null;
+    ClientConfig jerseyClientConfig = new DefaultClientConfig();
+    jerseyClientConfig.getProperties().put(
+        HTTPSProperties.PROPERTY_HTTPS_PROPERTIES,
+        new HTTPSProperties(Transports.getHostnameVerifierAcceptsAll(),
+            Transports.getSslContextAcceptsBadCerts()));
+
+    jerseyClient = Client.create(jerseyClientConfig);
+
+    return jerseyClient;
+  }
+
+  /**
+   * Unwrap the IOException Jersey hides inside a ClientHandlerException.
+   * 
+   * @param e Exception thrown by Jersey
+   * @return IOException describing the failure
+   */
+  private static IOException toIOException(ClientHandlerException e) {
+    if (e.getCause() instanceof IOException)
+      return (IOException) e.getCause();
+    return new IOException(e.getMessage(), e);
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link Transport#downloadRange} when the server does not send
+ * back exactly the range of the file that was asked for, so the file has to
+ * be downloaded in one piece instead.
+ */
+public class RangeNotSupportedException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * HTTP status code returned by the server.
+   */
+  private final int status;
+
+  /**
+   * Create a new RangeNotSupportedException.
+   * 
+   * @param status HTTP status code returned by the server
+   * @param message What was wrong with the response
+   */
+  public RangeNotSupportedException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  /**
+   * Get the HTTP status code returned by the server. A status of 200 means
+   * the server ignores range requests altogether.
+   * 
+   * @return the status
+   */
+  public int getStatus() {
+    return status;
+  }
+}
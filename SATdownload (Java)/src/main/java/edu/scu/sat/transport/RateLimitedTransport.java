@@ -0,0 +1,176 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ * {@link Transport} that spaces out the requests it passes to another
+ * transport so that no more than a set number are started per second. One
+ * instance is shared by everything that talks to the service, so the limit
+ * holds across all organizations and threads.
+ * </p>
+ * <p>
+ * The rate can be changed at any time, for example when the config file is
+ * reloaded. A rate of 0 turns the limit off.
+ * </p>
+ */
+public class RateLimitedTransport implements Transport {
+
+  /**
+   * Transport the requests are passed to.
+   */
+  private final Transport delegate;
+
+  /**
+   * Earliest time the next request may start, as {@link System#nanoTime()}.
+   */
+  private long nextStart = System.nanoTime();
+
+  /**
+   * Time between requests in nanoseconds, or 0 for no limit.
+   */
+  private long spacingNanos;
+
+  /**
+   * Create a new RateLimitedTransport.
+   * 
+   * @param delegate Transport to pass the requests to
+   * @param requestsPerSecond Highest rate of requests, or 0 for no limit
+   */
+  public RateLimitedTransport(Transport delegate, double requestsPerSecond) {
+    this.delegate = delegate;
+    setRequestsPerSecond(requestsPerSecond);
+  }
+
+  //@Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    acquire();
+    return delegate.download(url, target);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The caller waits for its turn before the download is started.
+   * </p>
+   */
+  //@Override
+  public CompletableFuture<Long> downloadAsync(String url, File target) {
+    try {
+      acquire();
+    } catch (IOException e) {
+      CompletableFuture<Long> failed = new CompletableFuture<Long>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return delegate.downloadAsync(url, target);
+  }
+
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    acquire();
+    return delegate.downloadRange(url, channel, first, last, total);
+  }
+
+  /**
+   * Get the transport the requests are passed to.
+   * 
+   * @return the transport
+   */
+  public Transport getDelegate() {
+    return delegate;
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    acquire();
+    return delegate.getJson(url);
+  }
+
+  //@Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    acquire();
+    return delegate.postJson(url, body);
+  }
+
+  /**
+   * Change the highest rate of requests.
+   * 
+   * @param requestsPerSecond Requests per second, or 0 for no limit
+   */
+  public synchronized void setRequestsPerSecond(double requestsPerSecond) {
+    if (requestsPerSecond < 0 || Double.isNaN(requestsPerSecond))
+      throw new IllegalArgumentException(
+          "Invalid request rate: " + requestsPerSecond);
+    spacingNanos = requestsPerSecond == 0 ? 0
+        : (long) (1000000000L / requestsPerSecond);
+  }
+
+  /**
+   * Wait until the next request may start.
+   * 
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  private void acquire() throws InterruptedIOException {
+    long wait;
+    synchronized (this) {
+      if (spacingNanos == 0)
+        return;
+      long now = System.nanoTime();
+      long start = Math.max(now, nextStart);
+      nextStart = start + spacingNanos;
+      wait = start - now;
+    }
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted waiting to send a request");
+      }
+    }
+  }
+}
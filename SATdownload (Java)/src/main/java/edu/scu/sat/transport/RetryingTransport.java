@@ -0,0 +1,241 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import edu.scu.sat.trace.Span;
+
+/**
+ * <p>
+ * {@link Transport} that tries a request again when it fails in a way that
+ * may go away on its own: a dropped or reset connection, a timeout, or a
+ * status of 408, 429 or 5xx. Other failures, such as 404 (which is how the
+ * service says a file is not there yet) or a refused token, are passed on at
+ * once.
+ * </p>
+ * <p>
+ * The wait before each retry doubles, starting from the configured delay and
+ * up to {@link #MAX_DELAY_MILLIS}, and is picked at random between half and
+ * all of that so that clients failing together do not retry together. The
+ * policy can be changed at any time, for example when the config file is
+ * reloaded.
+ * </p>
+ */
+public class RetryingTransport implements Transport {
+
+  /**
+   * Longest wait before a retry, in milliseconds.
+   */
+  private static final long MAX_DELAY_MILLIS = 30000;
+
+  /**
+   * A request to pass to the delegate.
+   * 
+   * @param <T> Type of the result
+   */
+  private interface Request<T> {
+
+    /**
+     * Send the request.
+     * 
+     * @return Result of the request
+     * @throws IOException if the request failed
+     */
+    T send() throws IOException;
+  }
+
+  /**
+   * Number of times a request is tried before giving up.
+   */
+  private volatile int attempts;
+
+  /**
+   * Transport the requests are passed to.
+   */
+  private final Transport delegate;
+
+  /**
+   * Wait before the first retry, in milliseconds.
+   */
+  private volatile long delayMillis;
+
+  /**
+   * Create a new RetryingTransport.
+   * 
+   * @param delegate Transport to pass the requests to
+   * @param attempts Number of times a request is tried, at least 1
+   * @param delayMillis Wait before the first retry, in milliseconds
+   */
+  public RetryingTransport(Transport delegate, int attempts,
+      long delayMillis) {
+    this.delegate = delegate;
+    setPolicy(attempts, delayMillis);
+  }
+
+  /**
+   * Check whether a failed request is worth trying again.
+   * 
+   * @param e What went wrong
+   * @return TRUE if the failure may go away on its own
+   */
+  public static boolean isRetryable(Throwable e) {
+    if (e instanceof HttpStatusException) {
+      int status = ((HttpStatusException) e).getStatus();
+      return status == 408 || status == 429 || status / 100 == 5;
+    }
+    // The server cannot send ranges, the local file is gone, or the caller
+    // gave up; none of these change by asking again
+    if (e instanceof RangeNotSupportedException
+        || e instanceof FileNotFoundException
+        || e instanceof ClosedChannelException)
+      return false;
+    if (e instanceof InterruptedIOException)
+      return e instanceof SocketTimeoutException;
+    return e instanceof IOException;
+  }
+
+  //@Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  //@Override
+  public long download(final String url, final File target)
+      throws IOException {
+    return send(new Request<Long>() {
+      //@Override
+      public Long send() throws IOException {
+        return delegate.download(url, target);
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Asynchronous downloads are not retried.
+   * </p>
+   */
+  //@Override
+  public CompletableFuture<Long> downloadAsync(String url, File target) {
+    return delegate.downloadAsync(url, target);
+  }
+
+  //@Override
+  public long downloadRange(final String url, final FileChannel channel,
+      final long first, final long last, final long total)
+      throws IOException {
+    return send(new Request<Long>() {
+      //@Override
+      public Long send() throws IOException {
+        return delegate.downloadRange(url, channel, first, last, total);
+      }
+    });
+  }
+
+  //@Override
+  public InputStream getJson(final String url) throws IOException {
+    return send(new Request<InputStream>() {
+      //@Override
+      public InputStream send() throws IOException {
+        return delegate.getJson(url);
+      }
+    });
+  }
+
+  //@Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  //@Override
+  public InputStream postJson(final String url, final String body)
+      throws IOException {
+    return send(new Request<InputStream>() {
+      //@Override
+      public InputStream send() throws IOException {
+        return delegate.postJson(url, body);
+      }
+    });
+  }
+
+  /**
+   * Change the retry policy. Requests already waiting to be retried keep
+   * the old one.
+   * 
+   * @param attempts Number of times a request is tried, at least 1
+   * @param delayMillis Wait before the first retry, in milliseconds
+   */
+  public void setPolicy(int attempts, long delayMillis) {
+    this.attempts = Math.max(1, attempts);
+    this.delayMillis = Math.max(0, delayMillis);
+  }
+
+  /**
+   * Send a request, trying again after a transient failure.
+   * 
+   * @param request Request to send
+   * @param <T> Type of the result
+   * @return Result of the request
+   * @throws IOException the failure of the last attempt
+   */
+  private <T> T send(Request<T> request) throws IOException {
+    int tries = attempts;
+    long delay = delayMillis;
+    for (int attempt = 1;; attempt++) {
+      try {
+        return request.send();
+      } catch (IOException e) {
+        if (attempt >= tries || !isRetryable(e))
+          throw e;
+      } catch (HttpStatusException e) {
+        if (attempt >= tries || !isRetryable(e))
+          throw e;
+      }
+      Span.current().event("retry");
+      long wait = attempt > 16 ? MAX_DELAY_MILLIS
+          : Math.min(MAX_DELAY_MILLIS, delay << (attempt - 1));
+      try {
+        Thread.sleep(wait / 2
+            + ThreadLocalRandom.current().nextLong(wait / 2 + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to retry");
+      }
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import edu.scu.sat.trace.Span;
+
+/**
+ * <p>
+ * Downloads a large file over several connections at once. The file is
+ * split into parts of at most {@link #PART_SIZE} bytes and a number of
+ * workers (the segments) take turns fetching the next part with a range
+ * request and writing it into place in the preallocated local file, so a
+ * slow connection only holds up the part it is on.
+ * </p>
+ * <p>
+ * When the server sends the whole file instead of a range, or a file of a
+ * different size than expected, a {@link RangeNotSupportedException} is
+ * thrown and the caller should download the file in one piece. Servers that
+ * ignore range requests are remembered, see {@link #isRangeSupported}.
+ * </p>
+ * <p>
+ * A part that fails is not tried again here; give it a
+ * {@link RetryingTransport} for that.
+ * </p>
+ */
+public class SegmentedDownloader {
+
+  /**
+   * Largest number of bytes fetched by one range request.
+   */
+  public static final long PART_SIZE = 8 << 20;
+
+  /**
+   * Threads fetching parts, shared by every download.
+   */
+  private final ExecutorService executor = Executors
+      .newCachedThreadPool(new ThreadFactory() {
+        //@Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "segment-download");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * Origins of servers that ignore range requests.
+   */
+  private final Set<String> noRanges = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Transport the range requests are sent with.
+   */
+  private final Transport transport;
+
+  /**
+   * Create a new SegmentedDownloader.
+   * 
+   * @param transport Transport to send the range requests with
+   */
+  public SegmentedDownloader(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Stop the threads once the downloads in progress have finished.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Download a file in parts. Any existing file is overwritten.
+   * 
+   * @param url URL of the file to download
+   * @param target Local file to write to
+   * @param size Size of the file
+   * @param segments Number of parts to fetch at the same time
+   * @param progress Told the number of bytes written so far after each part,
+   *          or <code>null</code>
+   * @return Number of bytes written to <code>target</code>
+   * @throws RangeNotSupportedException if the server does not support range
+   *           requests or has a file of a different size
+   * @throws HttpStatusException if the server responds with an error
+   * @throws IOException if the file could not be downloaded or written
+   */
+  public long download(final String url, File target, final long size,
+      int segments, final LongConsumer progress) throws IOException {
+    final int parts = (int) Math.max(Math.min(segments, size),
+        (size + PART_SIZE - 1) / PART_SIZE);
+    final long partSize = (size + parts - 1) / parts;
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicLong written = new AtomicLong();
+    // The parts are fetched on other threads; their spans hang off this one
+    final Span parent = Span.current();
+    RandomAccessFile file = new RandomAccessFile(target, "rw");
+    try {
+      // Every byte is written by one of the parts, so an existing file (or
+      // one preallocated by the caller) only needs to be the right size
+      file.setLength(size);
+      final FileChannel channel = file.getChannel();
+      List<Future<Void>> workers = new ArrayList<Future<Void>>();
+      for (int i = 0; i < Math.min(segments, parts); i++) {
+        workers.add(executor.submit(new Callable<Void>() {
+          //@Override
+          public Void call() throws IOException {
+            for (int part = next.getAndIncrement(); part < parts; part = next
+                .getAndIncrement()) {
+              long first = part * partSize;
+              long last = Math.min(size, first + partSize) - 1;
+              Span span = parent.startChild("part").attribute("part", part)
+                  .attribute("first", first).attribute("last", last);
+              long bytes;
+              try {
+                bytes = transport.downloadRange(url, channel, first, last,
+                    size);
+              } catch (IOException e) {
+                span.error(e.getMessage());
+                throw e;
+              } finally {
+                span.end();
+              }
+              long total = written.addAndGet(bytes);
+              if (progress != null)
+                progress.accept(total);
+            }
+            return null;
+          }
+        }));
+      }
+      await(workers, next, parts);
+
+      long length = channel.size();
+      if (written.get() != size || length != size)
+        throw new IOException("Assembled " + written.get() + " bytes into a "
+            + length + "-byte file, expected " + size);
+      return size;
+    } catch (RangeNotSupportedException e) {
+      if (e.getStatus() == 200)
+        noRanges.add(Transports.origin(url));
+      throw e;
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Check whether the server a URL points at is still thought to support
+   * range requests.
+   * 
+   * @param url URL of a file
+   * @return FALSE if the server has sent a whole file in answer to a range
+   *         request before
+   */
+  public boolean isRangeSupported(String url) {
+    return !noRanges.contains(Transports.origin(url));
+  }
+
+  /**
+   * Wait for every worker to finish. When one fails, the others stop after
+   * the part they are on.
+   * 
+   * @param workers Workers to wait for
+   * @param next Number of the next part, set past the last to stop the
+   *          workers
+   * @param parts Number of parts
+   * @throws IOException the first failure of a worker
+   */
+  private static void await(List<Future<Void>> workers, AtomicInteger next,
+      int parts) throws IOException {
+    Throwable failure = null;
+    for (Future<Void> worker : workers) {
+      try {
+        worker.get();
+      } catch (ExecutionException e) {
+        next.set(parts);
+        if (failure == null)
+          failure = e.getCause();
+      } catch (InterruptedException e) {
+        next.set(parts);
+        for (Future<Void> w : workers)
+          w.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Download interrupted");
+      }
+    }
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure != null)
+      throw new IOException(failure);
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+import edu.scu.sat.trace.Span;
+
+/**
+ * <p>
+ * {@link Transport} that records a client span for every request it passes
+ * to a {@link TrackingTransport}, as a child of the span current on the
+ * calling thread. Requests made with no trace in progress are passed on
+ * untouched.
+ * </p>
+ * <p>
+ * Neither HTTP client reports how long it took to look up the host,
+ * connect or finish the TLS handshake, so the span marks whether the
+ * connection was probably reused. On a new connection the time to the
+ * <code>first_byte</code> event recorded by the transports covers all of
+ * those as well as the server's wait. Nothing extra is sent or looked up to
+ * time them, so tracing never slows a request down.
+ * </p>
+ */
+public class TracingTransport implements Transport {
+
+  /**
+   * Transport the requests are passed to.
+   */
+  private final TrackingTransport delegate;
+
+  /**
+   * Create a new TracingTransport.
+   * 
+   * @param delegate Transport to pass the requests to
+   */
+  public TracingTransport(TrackingTransport delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Get a URL without its query string, which may hold a token or a
+   * signature.
+   * 
+   * @param url URL of a request
+   * @return URL without its query string
+   */
+  private static String withoutQuery(String url) {
+    int query = url.indexOf('?');
+    return query < 0 ? url : url.substring(0, query);
+  }
+
+  //@Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    Span span = start("GET", url);
+    try {
+      long bytes = delegate.download(url, target);
+      span.attribute("http.response.status_code", 200);
+      span.attribute("http.response.body.size", bytes);
+      return bytes;
+    } catch (IOException e) {
+      throw failed(span, e);
+    } catch (RuntimeException e) {
+      throw failed(span, e);
+    } finally {
+      span.end();
+    }
+  }
+
+  //@Override
+  public CompletableFuture<Long> downloadAsync(String url, File target) {
+    return delegate.downloadAsync(url, target);
+  }
+
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    Span span = start("GET", url);
+    try {
+      span.attribute("http.request.header.range",
+          "bytes=" + first + "-" + last);
+      long bytes = delegate.downloadRange(url, channel, first, last, total);
+      span.attribute("http.response.status_code", 206);
+      span.attribute("http.response.body.size", bytes);
+      return bytes;
+    } catch (IOException e) {
+      throw failed(span, e);
+    } catch (RuntimeException e) {
+      throw failed(span, e);
+    } finally {
+      span.end();
+    }
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    Span span = start("GET", url);
+    try {
+      InputStream in = delegate.getJson(url);
+      span.attribute("http.response.status_code", 200);
+      return in;
+    } catch (IOException e) {
+      throw failed(span, e);
+    } catch (RuntimeException e) {
+      throw failed(span, e);
+    } finally {
+      span.end();
+    }
+  }
+
+  //@Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    Span span = start("POST", url);
+    try {
+      InputStream in = delegate.postJson(url, body);
+      span.attribute("http.response.status_code", 200);
+      return in;
+    } catch (IOException e) {
+      throw failed(span, e);
+    } catch (RuntimeException e) {
+      throw failed(span, e);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Record a failed request on its span.
+   * 
+   * @param span Span of the request
+   * @param e What went wrong
+   * @param <T> Type of exception
+   * @return <code>e</code>, to be thrown
+   */
+  private static <T extends Exception> T failed(Span span, T e) {
+    if (e instanceof HttpStatusException)
+      span.attribute("http.response.status_code",
+          ((HttpStatusException) e).getStatus());
+    span.attribute("error.type", e.getClass().getName());
+    span.error(e.getMessage());
+    return e;
+  }
+
+  /**
+   * Start the span of a request.
+   * 
+   * @param method HTTP method
+   * @param url URL of the request
+   * @return Span of the request, or {@link Span#NONE} if no trace is in
+   *         progress
+   */
+  private Span start(String method, String url) {
+    Span span = Span.current().startClient(method);
+    if (!span.isRecording())
+      return span;
+    boolean warm = delegate.isWarm(url);
+    span.attribute("http.request.method", method);
+    span.attribute("url.full", withoutQuery(url));
+    String host = URI.create(url).getHost();
+    span.attribute("server.address", host);
+    span.attribute("connection.reused", warm);
+    return span;
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>
+ * {@link Transport} that remembers when each host was last talked to, so
+ * callers can tell whether a request probably reused a pooled connection or
+ * had to open a new one.
+ * </p>
+ * <p>
+ * Neither HTTP client says whether it reused a connection, so this is an
+ * estimate: a connection counts as reused if an earlier request to the same
+ * host finished less than the client's keep-alive time ago. That matches how
+ * both clients keep idle connections, but the server may still have closed
+ * the connection sooner.
+ * </p>
+ */
+public class TrackingTransport implements Transport {
+
+  /**
+   * Time the built-in HTTP client keeps an idle connection open, in
+   * milliseconds.
+   */
+  private static final long HTTPCLIENT_KEEP_ALIVE_MILLIS = 1200000;
+
+  /**
+   * Time the Jersey client (through <code>HttpURLConnection</code>) keeps
+   * an idle connection open, in milliseconds.
+   */
+  private static final long JERSEY_KEEP_ALIVE_MILLIS = 5000;
+
+  /**
+   * Transport the requests are passed to.
+   */
+  private final Transport delegate;
+
+  /**
+   * Time an idle connection is kept open by the delegate, in milliseconds.
+   */
+  private final long keepAliveMillis;
+
+  /**
+   * When a request to each origin last finished, as
+   * {@link System#nanoTime()}.
+   */
+  private final ConcurrentMap<String, Long> lastUsed =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Create a new TrackingTransport.
+   * 
+   * @param delegate Transport to pass the requests to
+   */
+  public TrackingTransport(Transport delegate) {
+    this.delegate = delegate;
+    this.keepAliveMillis = Transports.HTTPCLIENT.equals(delegate.getName())
+        ? HTTPCLIENT_KEEP_ALIVE_MILLIS : JERSEY_KEEP_ALIVE_MILLIS;
+  }
+
+  //@Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  //@Override
+  public long download(String url, File target) throws IOException {
+    try {
+      return delegate.download(url, target);
+    } finally {
+      used(url);
+    }
+  }
+
+  //@Override
+  public CompletableFuture<Long> downloadAsync(final String url,
+      File target) {
+    return delegate.downloadAsync(url, target)
+        .whenComplete(new BiConsumer<Long, Throwable>() {
+          //@Override
+          public void accept(Long bytes, Throwable error) {
+            used(url);
+          }
+        });
+  }
+
+  //@Override
+  public long downloadRange(String url, FileChannel channel, long first,
+      long last, long total) throws IOException {
+    try {
+      return delegate.downloadRange(url, channel, first, last, total);
+    } finally {
+      used(url);
+    }
+  }
+
+  //@Override
+  public InputStream getJson(String url) throws IOException {
+    try {
+      return delegate.getJson(url);
+    } finally {
+      used(url);
+    }
+  }
+
+  //@Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  /**
+   * Check whether a request to a URL would probably reuse an open
+   * connection.
+   * 
+   * @param url URL about to be requested
+   * @return TRUE if a request to the same host finished recently enough
+   *         that its connection is probably still open
+   */
+  public boolean isWarm(String url) {
+    Long last = lastUsed.get(Transports.origin(url));
+    return last != null
+        && (System.nanoTime() - last) / 1000000L < keepAliveMillis;
+  }
+
+  //@Override
+  public InputStream postJson(String url, String body) throws IOException {
+    try {
+      return delegate.postJson(url, body);
+    } finally {
+      used(url);
+    }
+  }
+
+  /**
+   * Record that a request to a URL has finished.
+   * 
+   * @param url URL that was requested
+   */
+  private void used(String url) {
+    lastUsed.put(Transports.origin(url), System.nanoTime());
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ * HTTP transport used to talk to CollegeBoard's PAScoresDwnld web service.
+ * SATdownload only needs three kinds of calls (a JSON POST for the login, a
+ * JSON GET for the file URL and a binary GET for the file itself, whole or
+ * in ranges), so this interface is kept to exactly those.
+ * </p>
+ * <p>
+ * Implementations are expected to be created once and reused for every call
+ * so that connections (and the TLS sessions behind them) stay warm.
+ * Implementations must be safe to use from multiple threads.
+ * </p>
+ * 
+ * @see Transports
+ */
+public interface Transport extends Closeable {
+
+  /**
+   * Download a file to the local file system.
+   * 
+   * @param url URL of the file to download
+   * @param target Local file to write to. Any existing file is written over
+   *          from the start and then cut to the size of the download, so
+   *          space set aside for it beforehand is kept.
+   * @return Number of bytes written to <code>target</code>
+   * @throws HttpStatusException if the server does not respond with 200
+   * @throws IOException if the file could not be downloaded or written
+   */
+  long download(String url, File target) throws IOException;
+
+  /**
+   * Download a file to the local file system without blocking the caller.
+   * 
+   * @param url URL of the file to download
+   * @param target Local file to write to. Any existing file is written over
+   *          from the start and then cut to the size of the download.
+   * @return Future completed with the number of bytes written to
+   *         <code>target</code>
+   */
+  CompletableFuture<Long> downloadAsync(String url, File target);
+
+  /**
+   * Download one byte range of a file into place in a local file. Several
+   * ranges of the same file may be downloaded into the same channel at
+   * once.
+   * 
+   * @param url URL of the file to download
+   * @param channel Local file to write to, at the same offsets as in the
+   *          file being downloaded
+   * @param first Offset of the first byte to download
+   * @param last Offset of the last byte to download
+   * @param total Expected size of the whole file
+   * @return Number of bytes written to <code>channel</code>
+   * @throws RangeNotSupportedException if the server does not send exactly
+   *           that range of a file of that size
+   * @throws HttpStatusException if the server responds with an error
+   * @throws IOException if the range could not be downloaded or written
+   */
+  long downloadRange(String url, FileChannel channel, long first, long last,
+      long total) throws IOException;
+
+  /**
+   * Issue a GET request that accepts <code>application/json</code>.
+   * 
+   * @param url URL to request
+   * @return Response body. The caller must close it.
+   * @throws HttpStatusException if the server does not respond with 200
+   * @throws IOException if the request could not be completed
+   */
+  InputStream getJson(String url) throws IOException;
+
+  /**
+   * Get the name this transport is selected by in the config file.
+   * 
+   * @return Transport name
+   */
+  String getName();
+
+  /**
+   * Issue a POST request with a JSON body that accepts
+   * <code>application/json</code>.
+   * 
+   * @param url URL to post to
+   * @param body JSON request body
+   * @return Response body. The caller must close it.
+   * @throws HttpStatusException if the server does not respond with 200
+   * @throws IOException if the request could not be completed
+   */
+  InputStream postJson(String url, String body) throws IOException;
+}
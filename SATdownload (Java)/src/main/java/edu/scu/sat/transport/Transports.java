@@ -0,0 +1,302 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * <p>
+ * Factory for the available {@link Transport} implementations. The transport
+ * is selected with the <code>transport</code> option in the config file:
+ * </p>
+ * <ul>
+ * <li><code>jersey</code> - Jersey 1.x client, as used by CollegeBoard's
+ * sample code (default)</li>
+ * <li><code>httpclient</code> - the JDK's <code>java.net.http.HttpClient</code>
+ * with HTTP/2 and asynchronous downloads</li>
+ * </ul>
+ */
+public final class Transports {
+
+  /**
+   * Name of the Jersey transport.
+   */
+  public static final String JERSEY = "jersey";
+
+  /**
+   * Name of the JDK HttpClient transport.
+   */
+  public static final String HTTPCLIENT = "httpclient";
+
+  /**
+   * Size of the buffer used to copy a range to disk.
+   */
+  private static final int RANGE_BUFFER_SIZE = 65536;
+
+  /**
+   * Make sure the response to a range request holds exactly the range asked
+   * for.
+   * 
+   * @param status HTTP status code of the response
+   * @param contentRange <code>Content-Range</code> header of the response, or
+   *          <code>null</code>
+   * @param first Offset of the first byte asked for
+   * @param last Offset of the last byte asked for
+   * @param total Expected size of the whole file
+   * @throws RangeNotSupportedException if the server sent the whole file or
+   *           a different range, or has a file of a different size
+   * @throws HttpStatusException if the server responds with an error
+   */
+  static void checkRange(int status, String contentRange, long first,
+      long last, long total) throws RangeNotSupportedException {
+    if (status == 200)
+      throw new RangeNotSupportedException(status,
+          "Server does not support range requests");
+    if (status == 416)
+      throw new RangeNotSupportedException(status,
+          "Server has fewer than " + total + " bytes");
+    if (status != 206)
+      throw new HttpStatusException(status);
+    String expected = "bytes " + first + "-" + last + "/" + total;
+    if (contentRange == null || !contentRange.trim().equals(expected))
+      throw new RangeNotSupportedException(status, "Server sent range "
+          + contentRange + " instead of " + expected);
+  }
+
+  /**
+   * Copy a range of a file from a response body into place in a local file.
+   * Positional writes are used, so several ranges can be copied into the same
+   * channel at once.
+   * 
+   * @param in Response body
+   * @param channel Local file
+   * @param position Offset of the range in the file
+   * @param length Length of the range
+   * @return <code>length</code>
+   * @throws EOFException if the body ends before the end of the range
+   * @throws IOException if the body could not be read or the file written
+   */
+  static long copyRange(InputStream in, FileChannel channel, long position,
+      long length) throws IOException {
+    byte[] buffer = new byte[RANGE_BUFFER_SIZE];
+    long done = 0;
+    while (done < length) {
+      int size = in.read(buffer, 0,
+          (int) Math.min(buffer.length, length - done));
+      if (size < 0)
+        throw new EOFException("Range at " + position + " ended after "
+            + done + " of " + length + " bytes");
+      ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, size);
+      while (bytes.hasRemaining())
+        channel.write(bytes, position + done + bytes.position());
+      done += size;
+    }
+    return done;
+  }
+
+  /**
+   * Create a new transport.
+   * 
+   * @param name Name of the transport (see {@link Transports})
+   * @return New transport
+   * @throws IllegalArgumentException if the name is unknown
+   */
+  public static Transport create(String name) {
+    if (JERSEY.equalsIgnoreCase(name))
+      return new JerseyTransport();
+    else if (HTTPCLIENT.equalsIgnoreCase(name))
+      return new HttpClientTransport();
+    else
+      throw new IllegalArgumentException("Unknown transport: " + name);
+  }
+
+  /**
+   * Get the scheme, host and port a URL connects to.
+   * 
+   * @param url URL
+   * @return <code>scheme://host:port</code>, or the URL itself if it cannot
+   *         be parsed
+   */
+  static String origin(String url) {
+    try {
+      URI uri = URI.create(url);
+      return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    } catch (IllegalArgumentException e) {
+      return url;
+    }
+  }
+
+  /**
+   * Get a hostname verifier that accepts any host name.
+   * 
+   * @return Hostname verifier that accepts any host name
+   */
+  static HostnameVerifier getHostnameVerifierAcceptsAll() {
+    return new HostnameVerifier() {
+      //@Override
+      public boolean verify(String hostname, SSLSession sslSession) {
+        return true;
+      }
+    };
+  }
+
+  /**
+   * <p>
+   * Create a SSLContext with a TrustManager that will accept all certificates.
+   * This method has not been modified from the original published by
+   * CollegeBoard.
+   * </p>
+   * <p>
+   * For more information, please see: <a href=
+   * "https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-portal-help#features">
+   * https://collegereadiness.collegeboard.org/educators/higher-ed/reporting-
+   * portal-help#features</a>
+   * </p>
+   * <p>
+   * Original code can be accessed at: <a href=
+   * "https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip">
+   * https://collegereadiness.collegeboard.org/zip/pascoredwnld-java-sample.zip
+   * </a>
+   * </p>
+   * 
+   * @see SSLContext
+   * @author CollegeBoard
+   * @return SSLContext that will trust any certificate
+   */
+  static SSLContext getSslContextAcceptsBadCerts() {
+    SSLContext sslContext = null;
+    try {
+      sslContext = SSLContext.getInstance("SSL");
+
+      // set up a TrustManager that trusts everything
+      sslContext.init(null, new TrustManager[] { new X509TrustManager() {
+        X509Certificate[] certificates = null;
+
+        //@Override
+        public void checkClientTrusted(X509Certificate[] certs, String authType)// NOPMD
+        {
+        }
+
+        //@Override
+        public void checkServerTrusted(X509Certificate[] certs, String authType)// NOPMD
+        {
+        }
+
+        //@Override
+        public X509Certificate[] getAcceptedIssuers() {
+          return certificates;
+        }
+
+      } }, new SecureRandom());
+    } catch (Exception ex) {
+      throw new RuntimeException("Problem getting ssl context", ex); // NOPMD
+    }
+
+    return sslContext;
+  }
+
+  /**
+   * <p>
+   * Create a SSLContext that trusts any certificate for any host name, like
+   * {@link #getSslContextAcceptsBadCerts()} together with
+   * {@link #getHostnameVerifierAcceptsAll()}, for clients such as the JDK's
+   * HttpClient that take no hostname verifier.
+   * </p>
+   * <p>
+   * The JDK checks the host name inside the trust manager when it is an
+   * <code>X509ExtendedTrustManager</code>, so one that accepts everything
+   * skips the check for connections made with this context only, rather
+   * than for every client in the JVM.
+   * </p>
+   * 
+   * @return SSLContext that will trust any certificate and host name
+   */
+  static SSLContext getSslContextAcceptsAnyHost() {
+    try {
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, new TrustManager[] {
+          new X509ExtendedTrustManager() {
+            //@Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                String authType) {
+            }
+
+            //@Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                String authType, Socket socket) {
+            }
+
+            //@Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                String authType, SSLEngine engine) {
+            }
+
+            //@Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                String authType) {
+            }
+
+            //@Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                String authType, Socket socket) {
+            }
+
+            //@Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                String authType, SSLEngine engine) {
+            }
+
+            //@Override
+            public X509Certificate[] getAcceptedIssuers() {
+              return new X509Certificate[0];
+            }
+          } }, new SecureRandom());
+      return sslContext;
+    } catch (Exception ex) {
+      throw new RuntimeException("Problem getting ssl context", ex); // NOPMD
+    }
+  }
+
+  private Transports() {
+  }
+}
@@ -0,0 +1,507 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.validate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import edu.scu.sat.log.Level;
+import edu.scu.sat.log.Log;
+
+/**
+ * <p>
+ * Checks that a downloaded score file is complete and well formed before it
+ * is accepted:
+ * </p>
+ * <ul>
+ * <li>its size matches the size reported by the service;</li>
+ * <li>it is valid UTF-8 and contains no NUL bytes;</li>
+ * <li>every record has the same number of fields and no unterminated
+ * quote.</li>
+ * </ul>
+ * <p>
+ * The last record need not end with a line terminator: files the service
+ * publishes that way have always been accepted, and a truncated transfer is
+ * caught by the size check.
+ * </p>
+ * <p>
+ * The file is memory-mapped and split into chunks that start and end on line
+ * boundaries, which are checked in parallel on a fork/join pool. Records are
+ * one per line, fields are separated by a single-byte delimiter and may be
+ * enclosed in double quotes, as for
+ * {@link edu.scu.sat.delta.DeltaExtractor}.
+ * </p>
+ */
+public class FileValidator {
+
+  /**
+   * Default number of bytes checked by each task.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+  /**
+   * Size of the buffer used to look for line boundaries.
+   */
+  private static final int SCAN_BUFFER_SIZE = 8192;
+
+  /**
+   * Find the next line terminator.
+   * 
+   * @param channel File to search
+   * @param from Position to start at
+   * @param size Size of the file
+   * @return Position of the next <code>\n</code>, or -1 if there is none
+   * @throws IOException if the file could not be read
+   */
+  private static long nextLineEnd(FileChannel channel, long from, long size)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    long pos = from;
+    while (pos < size) {
+      buf.clear();
+      int n = channel.read(buf, pos);
+      if (n <= 0)
+        break;
+      for (int i = 0; i < n; ++i) {
+        if (buf.get(i) == '\n')
+          return pos + i;
+      }
+      pos += n;
+    }
+    return -1;
+  }
+
+  /**
+   * Number of bytes checked by each task.
+   */
+  private final int chunkSize;
+
+  /**
+   * Field delimiter.
+   */
+  private final byte delimiter;
+
+  /**
+   * Number of fields every record must have, or 0 to use the number in the
+   * first record.
+   */
+  private final int fieldCount;
+
+  /**
+   * Number of header lines at the top of each file. They are checked for
+   * encoding but not for their number of fields.
+   */
+  private final int headerLines;
+
+  /**
+   * Pool the chunks are checked on.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Create a new FileValidator.
+   * 
+   * @param pool Pool to check chunks on
+   * @param delimiter Field delimiter
+   * @param headerLines Number of header lines at the top of each file
+   * @param fieldCount Number of fields every record must have, or 0 to use
+   *          the number in the first record
+   * @param chunkSize Number of bytes checked by each task
+   */
+  public FileValidator(ForkJoinPool pool, char delimiter, int headerLines,
+      int fieldCount, int chunkSize) {
+    if (chunkSize <= 0)
+      throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+    this.pool = pool;
+    this.delimiter = (byte) delimiter;
+    this.headerLines = headerLines;
+    this.fieldCount = fieldCount;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Check a score file.
+   * 
+   * @param file File to check
+   * @param expectedSize Size reported by the service, or -1 if unknown
+   * @return Number of records in the file
+   * @throws ValidationException if the file is truncated or malformed
+   * @throws IOException if the file could not be read
+   */
+  public long validate(File file, long expectedSize) throws IOException {
+    long start = System.nanoTime();
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (expectedSize >= 0 && size != expectedSize)
+        throw new ValidationException("File is " + size
+            + " bytes but the service reported " + expectedSize, 0);
+      if (size == 0)
+        throw new ValidationException("File is empty", 0);
+
+      // Skip the header lines and find the field count if it is not given
+      long dataStart = 0;
+      for (int i = 0; i < headerLines && dataStart < size; ++i) {
+        long end = nextLineEnd(channel, dataStart, size);
+        dataStart = end < 0 ? size : end + 1;
+      }
+      int fields = fieldCount;
+      for (long pos = dataStart; fields <= 0 && pos < size;) {
+        long end = nextLineEnd(channel, pos, size);
+        if (end < 0)
+          end = size - 1;
+        Chunk first = new Chunk(channel, pos, end + 1, 0, 0);
+        fields = first.countFirstRecord();
+        pos = end + 1;
+      }
+
+      // Split the rest into chunks that end on line boundaries
+      List<Long> bounds = new ArrayList<Long>();
+      bounds.add(0L);
+      long pos = dataStart;
+      while (size - pos > chunkSize) {
+        long end = nextLineEnd(channel, pos + chunkSize - 1, size);
+        if (end < 0 || end == size - 1)
+          break;
+        pos = end + 1;
+        bounds.add(pos);
+      }
+      bounds.add(size);
+
+      Chunk[] chunks = new Chunk[bounds.size() - 1];
+      for (int i = 0; i < chunks.length; ++i) {
+        chunks[i] = new Chunk(channel, bounds.get(i), bounds.get(i + 1),
+            i == 0 ? headerLines : 0, fields);
+      }
+      Result result = pool.invoke(new Checker(chunks, 0, chunks.length));
+      if (result.problem != null)
+        throw new ValidationException(result.problem, result.problemLine);
+
+      Log.at(Level.INFO).file(file.getName()).phase("validate").bytes(size)
+          .duration((System.nanoTime() - start) / 1000000L)
+          .log(result.records + " record(s) of " + fields
+              + " field(s) checked in " + chunks.length + " chunk(s)");
+      return result.records;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Outcome of checking one or more consecutive chunks.
+   */
+  private static final class Result {
+
+    /**
+     * Number of lines checked, including header and blank lines.
+     */
+    long lines;
+
+    /**
+     * Description of the first problem found, or <code>null</code>.
+     */
+    String problem;
+
+    /**
+     * One-based line number of the first problem, counted from the start of
+     * the chunks checked.
+     */
+    long problemLine;
+
+    /**
+     * Number of records checked.
+     */
+    long records;
+
+    /**
+     * Combine with the result of the chunks that follow.
+     * 
+     * @param next Result of the following chunks
+     * @return Combined result
+     */
+    Result then(Result next) {
+      if (problem == null && next.problem != null) {
+        problem = next.problem;
+        problemLine = lines + next.problemLine;
+      }
+      lines += next.lines;
+      records += next.records;
+      return this;
+    }
+  }
+
+  /**
+   * One line-aligned part of a file.
+   */
+  private final class Chunk {
+
+    /**
+     * File the chunk is part of.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Position after the end of the chunk.
+     */
+    private final long end;
+
+    /**
+     * Number of fields every record must have.
+     */
+    private final int fields;
+
+    /**
+     * Number of header lines at the start of the chunk.
+     */
+    private final int skipLines;
+
+    /**
+     * Position of the start of the chunk.
+     */
+    private final long start;
+
+    /**
+     * Create a new Chunk.
+     * 
+     * @param channel File the chunk is part of
+     * @param start Position of the start of the chunk
+     * @param end Position after the end of the chunk
+     * @param skipLines Number of header lines at the start of the chunk
+     * @param fields Number of fields every record must have
+     */
+    Chunk(FileChannel channel, long start, long end, int skipLines,
+        int fields) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.skipLines = skipLines;
+      this.fields = fields;
+    }
+
+    /**
+     * Check every line of the chunk.
+     * 
+     * @return Outcome of the check
+     * @throws IOException if the chunk could not be mapped
+     */
+    Result check() throws IOException {
+      Result result = new Result();
+      if (end - start > Integer.MAX_VALUE) {
+        result.problem = "Line is too long";
+        result.problemLine = 1;
+        return result;
+      }
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          end - start);
+      int limit = buf.limit();
+      int count = 1;
+      int continuation = 0;
+      // Range of the next continuation byte; narrower after some lead
+      // bytes, which rules out overlong forms, surrogates and code points
+      // above U+10FFFF
+      int low = 0x80;
+      int high = 0xbf;
+      boolean quoted = false;
+      boolean blank = true;
+      for (int i = 0; i < limit; ++i) {
+        int b = buf.get(i) & 0xff;
+        String problem = null;
+        if (continuation > 0) {
+          if (b < low || b > high)
+            problem = "Invalid UTF-8 sequence";
+          continuation--;
+          low = 0x80;
+          high = 0xbf;
+        } else if (b >= 0x80) {
+          if (b >= 0xc2 && b <= 0xdf) {
+            continuation = 1;
+          } else if ((b & 0xf0) == 0xe0) {
+            continuation = 2;
+            if (b == 0xe0)
+              low = 0xa0;
+            else if (b == 0xed)
+              high = 0x9f;
+          } else if (b >= 0xf0 && b <= 0xf4) {
+            continuation = 3;
+            if (b == 0xf0)
+              low = 0x90;
+            else if (b == 0xf4)
+              high = 0x8f;
+          } else
+            problem = "Invalid UTF-8 byte 0x" + Integer.toHexString(b);
+          blank = false;
+        } else if (b == 0) {
+          problem = "NUL byte; the file may be damaged";
+        } else if (b == '\n') {
+          result.lines++;
+          if (result.lines > skipLines && !blank) {
+            result.records++;
+            problem = checkRecord(count, quoted);
+          }
+          count = 1;
+          quoted = false;
+          blank = true;
+          if (problem != null) {
+            result.problem = problem;
+            result.problemLine = result.lines;
+            return result;
+          }
+          continue;
+        } else if (b == '"') {
+          quoted = !quoted;
+          blank = false;
+        } else if (b == delimiter && !quoted) {
+          count++;
+          blank = false;
+        } else if (b != ' ' && b != '\t' && b != '\r') {
+          blank = false;
+        }
+        if (problem != null) {
+          result.problem = problem;
+          result.problemLine = result.lines + 1;
+          return result;
+        }
+      }
+
+      // Only the last chunk of a file can end without a line terminator
+      String problem = continuation > 0 ? "Invalid UTF-8 sequence" : null;
+      if (problem == null && !blank && result.lines + 1 > skipLines) {
+        result.records++;
+        problem = checkRecord(count, quoted);
+      }
+      if (problem != null) {
+        result.problem = problem;
+        result.problemLine = result.lines + 1;
+      }
+      return result;
+    }
+
+    /**
+     * Check the end of a record.
+     * 
+     * @param count Number of fields in the record
+     * @param quoted TRUE if a quote is still open
+     * @return Problem found, or <code>null</code> if there is none
+     */
+    private String checkRecord(int count, boolean quoted) {
+      if (quoted)
+        return "Unterminated quote";
+      if (count != fields)
+        return "Record has " + count + " field(s) instead of " + fields;
+      return null;
+    }
+
+    /**
+     * Count the fields of the record at the start of the chunk.
+     * 
+     * @return Number of fields, or 0 if the line is blank
+     * @throws IOException if the chunk could not be mapped
+     */
+    int countFirstRecord() throws IOException {
+      if (end - start > Integer.MAX_VALUE)
+        throw new ValidationException("Line is too long", 0);
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          end - start);
+      int count = 1;
+      boolean quoted = false;
+      boolean blank = true;
+      for (int i = 0; i < buf.limit() && buf.get(i) != '\n'; ++i) {
+        byte b = buf.get(i);
+        if (b == '"')
+          quoted = !quoted;
+        else if (b == delimiter && !quoted)
+          count++;
+        if (b != ' ' && b != '\t' && b != '\r')
+          blank = false;
+      }
+      return blank ? 0 : count;
+    }
+  }
+
+  /**
+   * Checks a range of chunks, splitting it in two until only one is left.
+   */
+  private static final class Checker extends RecursiveTask<Result> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Chunks of the file.
+     */
+    private final Chunk[] chunks;
+
+    /**
+     * Index after the last chunk to check.
+     */
+    private final int hi;
+
+    /**
+     * Index of the first chunk to check.
+     */
+    private final int lo;
+
+    /**
+     * Create a new Checker.
+     * 
+     * @param chunks Chunks of the file
+     * @param lo Index of the first chunk to check
+     * @param hi Index after the last chunk to check
+     */
+    Checker(Chunk[] chunks, int lo, int hi) {
+      this.chunks = chunks;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    //@Override
+    protected Result compute() {
+      if (hi - lo == 1) {
+        try {
+          return chunks[lo].check();
+        } catch (IOException e) {
+          Result result = new Result();
+          result.problem = "Could not read file: " + e.getMessage();
+          return result;
+        }
+      }
+      int mid = (lo + hi) >>> 1;
+      Checker left = new Checker(chunks, lo, mid);
+      left.fork();
+      Result right = new Checker(chunks, mid, hi).compute();
+      return left.join().then(right);
+    }
+  }
+}
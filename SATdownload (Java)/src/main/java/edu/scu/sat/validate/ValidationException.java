@@ -0,0 +1,64 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.validate;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link FileValidator} when a score file is truncated or
+ * malformed.
+ */
+public class ValidationException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * One-based line number of the problem, or 0 if it is not about a line.
+   */
+  private final long line;
+
+  /**
+   * Create a new ValidationException.
+   * 
+   * @param message Description of the problem
+   * @param line One-based line number of the problem, or 0 if it is not
+   *          about a line
+   */
+  public ValidationException(String message, long line) {
+    super(line > 0 ? "Line " + line + ": " + message : message);
+    this.line = line;
+  }
+
+  /**
+   * Get the line the problem was found on.
+   * 
+   * @return One-based line number, or 0 if the problem is not about a line
+   */
+  public long getLine() {
+    return line;
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scu.sat.DownloadQueue.Priority;
+import edu.scu.sat.DownloadQueue.Task;
+
+/**
+ * Order, deduplication, cancelling and persistence of {@link DownloadQueue}.
+ */
+public class DownloadQueueTest {
+
+  /**
+   * Directory for the queue files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Organizations get files in proportion to their weights, and a higher
+   * priority always goes first.
+   */
+  @Test
+  public void sharesByWeightWithinAPriority() throws IOException {
+    DownloadQueue queue = new DownloadQueue(null);
+    queue.addOrganization("111", 2);
+    queue.addOrganization("222", 1);
+    for (int i = 1; i <= 6; i++) {
+      queue.submit(null, "111_20261019_00000" + i + ".txt",
+          Priority.BACKFILL);
+      queue.submit(null, "222_20261019_00000" + i + ".txt",
+          Priority.BACKFILL);
+    }
+    queue.submit(null, "222_20261019_000009.txt", Priority.LIVE);
+
+    assertEquals("222_20261019_000009.txt",
+        queue.poll(Priority.BACKFILL).getFileName());
+    int first = 0;
+    for (int i = 0; i < 6; i++) {
+      Task task = queue.poll(Priority.BACKFILL);
+      if (task.getOrgID().equals("111"))
+        first++;
+    }
+    assertEquals(4, first);
+    assertEquals(6, queue.getQueued());
+    assertEquals(7, queue.getRunning());
+  }
+
+  /**
+   * Files of one organization start in the order they were queued, and
+   * lower priorities are only handed out when asked for.
+   */
+  @Test
+  public void keepsQueueOrder() throws IOException {
+    DownloadQueue queue = new DownloadQueue(null);
+    queue.addOrganization("111", 1);
+    queue.submitAll(null, Arrays.asList("111_20261019_000003.txt",
+        "111_20261019_000001.txt"), Priority.REISSUE);
+    queue.submit(null, "111_20261019_000002.txt", Priority.BACKFILL);
+
+    assertEquals("111_20261019_000003.txt",
+        queue.poll(Priority.REISSUE).getFileName());
+    assertEquals("111_20261019_000001.txt",
+        queue.poll(Priority.REISSUE).getFileName());
+    assertNull(queue.poll(Priority.REISSUE));
+    assertEquals("111_20261019_000002.txt",
+        queue.poll(Priority.BACKFILL).getFileName());
+  }
+
+  /**
+   * Queueing a file twice gives the same task, and queueing it at a higher
+   * priority moves it up ahead of files queued before it.
+   */
+  @Test
+  public void movesADuplicateUp() throws IOException {
+    DownloadQueue queue = new DownloadQueue(null);
+    queue.addOrganization("111", 1);
+    queue.submit(null, "111_20261019_000001.txt", Priority.REISSUE);
+    Task task = queue.submit(null, "111_20261019_000002.txt",
+        Priority.BACKFILL);
+
+    assertSame(task, queue.submit(null, "111_20261019_000002.txt",
+        Priority.BACKFILL));
+    assertSame(task, queue.submit(null, "111_20261019_000002.txt",
+        Priority.LIVE));
+    assertEquals(Priority.LIVE, task.getPriority());
+    assertEquals(2, queue.getQueued());
+    assertSame(task, queue.poll(Priority.BACKFILL));
+
+    // A running file is not queued again, nor moved down
+    assertSame(task, queue.submit(null, "111_20261019_000002.txt",
+        Priority.BACKFILL));
+    assertEquals(Priority.LIVE, task.getPriority());
+    assertEquals(1, queue.getQueued());
+  }
+
+  /**
+   * A cancelled file never starts and its waiters are told why.
+   */
+  @Test
+  public void cancelsAQueuedFile() throws Exception {
+    DownloadQueue queue = new DownloadQueue(null);
+    queue.addOrganization("111", 1);
+    Task task = queue.submit(null, "111_20261019_000001.txt",
+        Priority.REISSUE);
+
+    assertTrue(queue.cancel(null, "111_20261019_000001.txt"));
+    assertFalse(queue.cancel(null, "111_20261019_000001.txt"));
+    assertEquals("Cancelled", task.await().getError());
+    assertNull(queue.poll(Priority.BACKFILL));
+  }
+
+  /**
+   * Re-issued and backfill files, queued or running, are read back by the
+   * next run; live and finished files are not.
+   */
+  @Test
+  public void reloadsTheSavedQueue() throws IOException {
+    File file = new File(folder.getRoot(), "download.queue");
+    DownloadQueue queue = new DownloadQueue(file);
+    queue.addOrganization("111", 1);
+    queue.submit(null, "111_20261019_000001.txt", Priority.LIVE);
+    queue.submit(null, "111_20261019_000002.txt", Priority.REISSUE);
+    queue.submit(null, "111_20261019_000003.txt", Priority.BACKFILL);
+    queue.submit(null, "111_20261019_000004.txt", Priority.BACKFILL);
+    queue.poll(Priority.BACKFILL);
+    queue.poll(Priority.BACKFILL);
+    Task done = queue.poll(Priority.BACKFILL);
+    assertEquals("111_20261019_000003.txt", done.getFileName());
+    queue.done(done, new DownloadResult(done.getFileName()));
+
+    DownloadQueue reloaded = new DownloadQueue(file);
+    reloaded.addOrganization("111", 1);
+    assertEquals(2, reloaded.getQueued());
+    Task task = reloaded.poll(Priority.BACKFILL);
+    assertEquals("111_20261019_000002.txt", task.getFileName());
+    assertEquals(Priority.REISSUE, task.getPriority());
+    assertEquals("111_20261019_000004.txt",
+        reloaded.poll(Priority.BACKFILL).getFileName());
+  }
+
+  /**
+   * Names that are not a plain file name are refused, and none of a list
+   * with one is queued; such lines in the saved queue are skipped.
+   */
+  @Test
+  public void rejectsPaths() throws IOException {
+    DownloadQueue queue = new DownloadQueue(null);
+    queue.addOrganization("111", 1);
+    for (String name : new String[] { "", "../111_20261019_000001.txt",
+        "111/..", "dir/111_20261019_000001.txt", "dir\\111.txt",
+        "111_20261019_000001.txt ", "111 20261019.txt", "..", "a..b" }) {
+      try {
+        queue.submitAll(null, Arrays.asList("111_20261019_000001.txt",
+            name), Priority.REISSUE);
+        fail("Accepted " + name);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+    assertEquals(0, queue.getQueued());
+
+    File file = new File(folder.getRoot(), "download.queue");
+    Files.write(file.toPath(), ("reissue 111 ../../etc/passwd\n"
+        + "reissue 111 111_20261019_000001.txt\n")
+        .getBytes(StandardCharsets.UTF_8));
+    assertEquals(1, new DownloadQueue(file).getQueued());
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scu.sat.config.Config;
+
+/**
+ * {@link FaultSuite} run against its stub server.
+ */
+public class FaultSuiteTest {
+
+  /**
+   * Directory for the config file, downloads and state.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Write a config file with only the options that must be set.
+   * 
+   * @param extra More options, one per line
+   * @return Config file
+   * @throws IOException if the file could not be written
+   */
+  private File writeConfig(String extra) throws IOException {
+    File file = folder.newFile("SATdownload.conf");
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write("scoredwnldUrlRoot=https://scores.example.org\n"
+          + "username=user\npassword=secret\norgID=123\n"
+          + "localFilePath=" + folder.newFolder("files").getPath() + "/\n"
+          + "counterFile=" + new File(folder.getRoot(), "counter").getPath()
+          + "\nstateDir=" + folder.newFolder("state").getPath() + "\n"
+          + extra);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Every profile passes with delta extraction off, the default, and the
+   * work directory is gone afterwards.
+   */
+  @Test
+  public void passesAgainstTheStub() throws IOException {
+    File file = writeConfig("");
+    Config config = Config.load(file);
+    FaultSuite suite = new FaultSuite(file, config, "20261019", 1, 2000,
+        true);
+    assertEquals(SATdownload.ExitStatus.SUCCESS.getCode(), suite.run());
+    assertFalse(new File(config.getStateDir(), "fault-suite").exists());
+  }
+
+  /**
+   * The server in the config file is only used if it is on this host.
+   */
+  @Test(expected = IOException.class)
+  public void refusesARemoteServer() throws IOException {
+    File file = writeConfig("");
+    new FaultSuite(file, Config.load(file), "20261019", 1, 2000, false);
+  }
+
+  /**
+   * Loopback addresses and localhost are local; anything else is not.
+   */
+  @Test
+  public void recognizesLocalUrls() {
+    assertTrue(FaultSuite.isLocal("http://localhost:8080"));
+    assertTrue(FaultSuite.isLocal("http://LOCALHOST"));
+    assertTrue(FaultSuite.isLocal("http://127.0.0.1:18080/root"));
+    assertTrue(FaultSuite.isLocal("https://127.1.2.3"));
+    assertTrue(FaultSuite.isLocal("http://[::1]:8080"));
+    assertFalse(FaultSuite.isLocal("https://scores.example.org"));
+    assertFalse(FaultSuite.isLocal("http://localhost.example.org"));
+    assertFalse(FaultSuite.isLocal("http://127.0.0.1.example.org"));
+    assertFalse(FaultSuite.isLocal("http://10.0.0.1"));
+    assertFalse(FaultSuite.isLocal("not a url"));
+    assertFalse(FaultSuite.isLocal(null));
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Files moved into packs by {@link Archiver} and found again.
+ */
+public class ArchiverTest {
+
+  /**
+   * Directory for the downloads and the archive.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Archive directory.
+   */
+  private File archiveDir;
+
+  /**
+   * Download directory.
+   */
+  private File dir;
+
+  /**
+   * Read a stream to the end and close it.
+   * 
+   * @param in Stream to read
+   * @return Its content
+   * @throws IOException if the stream could not be read
+   */
+  private static byte[] readAll(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+        out.write(buffer, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Create the directories.
+   */
+  @Before
+  public void setUp() throws IOException {
+    dir = folder.newFolder("files");
+    archiveDir = new File(folder.getRoot(), "archive");
+  }
+
+  /**
+   * Write a file to the download directory.
+   * 
+   * @param name File name
+   * @return Its content
+   * @throws IOException if the file could not be written
+   */
+  private byte[] write(String name) throws IOException {
+    byte[] content = ("1,Student," + name + "\n")
+        .getBytes(StandardCharsets.UTF_8);
+    Files.write(new File(dir, name).toPath(), content);
+    return content;
+  }
+
+  /**
+   * Files of earlier dates and their deltas go into one pack per month and
+   * can still be found and read; the rest stay where they are.
+   */
+  @Test
+  public void findsFilesInBothPlaces() throws IOException {
+    byte[] august = write("123_20260831_000001.txt");
+    byte[] september = write("123_20260901_000002.txt");
+    byte[] delta = write("123_20260901_000002.txt.delta");
+    byte[] today = write("123_20261019_000001.txt");
+    write("456_20260901_000001.txt");
+    write("SATdownload.counter");
+
+    Archiver archiver = new Archiver(dir, archiveDir, "123", "txt");
+    assertEquals(3, archiver.archive("20261001"));
+    assertTrue(new File(archiveDir, "123_202608.pack").isFile());
+    assertTrue(new File(archiveDir, "123_202609.pack").isFile());
+    assertFalse(new File(dir, "123_20260901_000002.txt").exists());
+    assertTrue(new File(dir, "456_20260901_000001.txt").exists());
+    assertTrue(new File(dir, "SATdownload.counter").exists());
+
+    for (String name : new String[] { "123_20260831_000001.txt",
+        "123_20260901_000002.txt", "123_20260901_000002.txt.delta",
+        "123_20261019_000001.txt" })
+      assertTrue(name, archiver.contains(name));
+    assertFalse(archiver.contains("123_20260901_000003.txt"));
+    assertFalse(archiver.contains("123_20251019_000001.txt"));
+    assertFalse(archiver.contains("notes.txt"));
+    assertNull(archiver.getPackFile("notes.txt"));
+
+    assertArrayEquals(august,
+        readAll(archiver.open("123_20260831_000001.txt")));
+    assertArrayEquals(september,
+        readAll(archiver.open("123_20260901_000002.txt")));
+    assertArrayEquals(delta,
+        readAll(archiver.open("123_20260901_000002.txt.delta")));
+    assertArrayEquals(today,
+        readAll(archiver.open("123_20261019_000001.txt")));
+  }
+
+  /**
+   * Archiving again stores nothing twice, and a file in neither place
+   * cannot be opened.
+   */
+  @Test
+  public void archivesOnce() throws IOException {
+    write("123_20260901_000001.txt");
+    Archiver archiver = new Archiver(dir, archiveDir, "123", "txt");
+    assertEquals(1, archiver.archive("20261001"));
+    File pack = new File(archiveDir, "123_202609.pack");
+    long size = pack.length();
+
+    // The same file downloaded again is deleted without being stored again
+    write("123_20260901_000001.txt");
+    assertEquals(1, archiver.archive("20261001"));
+    assertEquals(size, pack.length());
+    assertEquals(0, archiver.archive("20261001"));
+
+    try {
+      archiver.open("123_20260901_000009.txt").close();
+      throw new AssertionError("Opened a missing file");
+    } catch (FileNotFoundException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scu.sat.archive.PackFile.Entry;
+
+/**
+ * Writing, reading and recovering pack files with {@link PackWriter} and
+ * {@link PackFile}.
+ */
+public class PackFileTest {
+
+  /**
+   * Directory for the packs.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Make the content of a test file.
+   * 
+   * @param n Number of the file
+   * @return Content: <code>n</code> hundred records
+   */
+  private static byte[] content(int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100 * n; i++)
+      sb.append(i).append(",Student ").append(i).append(',').append(n)
+          .append('\n');
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Add test files to a pack and commit them.
+   * 
+   * @param pack Pack file
+   * @param first Number of the first file
+   * @param count Number of files
+   * @throws IOException if the pack could not be written
+   */
+  private static void addFiles(File pack, int first, int count)
+      throws IOException {
+    PackWriter writer = PackWriter.open(pack);
+    try {
+      for (int n = first; n < first + count; n++)
+        writer.add("file" + n, new ByteArrayInputStream(content(n)));
+      assertTrue(writer.commit());
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Files added over several commits read back as they were, in the order
+   * they were added, and pass verification.
+   */
+  @Test
+  public void roundTrip() throws IOException {
+    File pack = new File(folder.getRoot(), "123_202609.pack");
+    addFiles(pack, 1, 40);
+    addFiles(pack, 41, 23);
+
+    PackFile packFile = PackFile.open(pack);
+    try {
+      assertEquals(63, packFile.verify());
+      List<Entry> entries = packFile.list();
+      for (int n = 1; n <= 63; n++) {
+        assertEquals("file" + n, entries.get(n - 1).getName());
+        assertArrayEquals(content(n), packFile.read("file" + n));
+        assertEquals(content(n).length,
+            packFile.getEntry("file" + n).getLength());
+      }
+      assertFalse(packFile.contains("file64"));
+      assertNull(packFile.getEntry("file64"));
+    } finally {
+      packFile.close();
+    }
+  }
+
+  /**
+   * A pack whose last append was cut off reads as it was before that
+   * append, and can be appended to again.
+   */
+  @Test
+  public void fallsBackToThePreviousTrailer() throws IOException {
+    File pack = new File(folder.getRoot(), "123_202609.pack");
+    addFiles(pack, 1, 3);
+    long before = pack.length();
+    addFiles(pack, 4, 2);
+    List<Long> cuts = new ArrayList<Long>();
+    cuts.add(pack.length() - 1);
+    cuts.add(pack.length() - PackFile.TRAILER_SIZE);
+    cuts.add(before + 10);
+    for (long cut : cuts) {
+      File copy = folder.newFile("cut" + cut + ".pack");
+      Files.copy(pack.toPath(), copy.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      RandomAccessFile raf = new RandomAccessFile(copy, "rw");
+      try {
+        raf.setLength(cut);
+      } finally {
+        raf.close();
+      }
+
+      PackFile packFile = PackFile.open(copy);
+      try {
+        assertEquals(3, packFile.verify());
+        assertFalse(packFile.contains("file4"));
+      } finally {
+        packFile.close();
+      }
+
+      addFiles(copy, 6, 1);
+      packFile = PackFile.open(copy);
+      try {
+        assertEquals(4, packFile.verify());
+        assertArrayEquals(content(6), packFile.read("file6"));
+      } finally {
+        packFile.close();
+      }
+    }
+  }
+
+  /**
+   * Adding a file with the content it already has in the pack writes
+   * nothing; changed content replaces it.
+   */
+  @Test
+  public void skipsAnUnchangedFile() throws IOException {
+    File pack = new File(folder.getRoot(), "123_202609.pack");
+    addFiles(pack, 1, 2);
+    long size = pack.length();
+
+    PackWriter writer = PackWriter.open(pack);
+    Entry entry;
+    try {
+      entry = writer.add("file1", new ByteArrayInputStream(content(1)));
+      assertFalse(writer.commit());
+    } finally {
+      writer.close();
+    }
+    assertEquals(size, pack.length());
+
+    writer = PackWriter.open(pack);
+    try {
+      assertEquals(entry.getOffset(), writer.add("file1",
+          new ByteArrayInputStream(content(1))).getOffset());
+      assertNotNull(writer.add("file2", new ByteArrayInputStream(
+          content(3))));
+      assertTrue(writer.commit());
+    } finally {
+      writer.close();
+    }
+    PackFile packFile = PackFile.open(pack);
+    try {
+      assertEquals(2, packFile.verify());
+      assertEquals(entry.getOffset(), packFile.getEntry("file1").getOffset());
+      assertArrayEquals(content(3), packFile.read("file2"));
+    } finally {
+      packFile.close();
+    }
+  }
+}
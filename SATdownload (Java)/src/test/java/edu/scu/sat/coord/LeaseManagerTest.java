@@ -0,0 +1,140 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.coord;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Two {@link LeaseManager}s sharing a lease directory, as two hosts would.
+ */
+public class LeaseManagerTest {
+
+  /**
+   * Lease TTL used by the tests, in seconds. Heartbeats are written every
+   * second.
+   */
+  private static final long TTL_SECONDS = 2;
+
+  /**
+   * Directory for the lease files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * First node.
+   */
+  private LeaseManager first;
+
+  /**
+   * Second node.
+   */
+  private LeaseManager second;
+
+  /**
+   * Start both nodes.
+   */
+  @Before
+  public void setUp() {
+    File leaseDir = new File(folder.getRoot(), "leases");
+    first = new LeaseManager(leaseDir, "host-a-1", TTL_SECONDS);
+    second = new LeaseManager(leaseDir, "host-b-2", TTL_SECONDS);
+  }
+
+  /**
+   * Stop both nodes.
+   */
+  @After
+  public void tearDown() {
+    first.shutdown();
+    second.shutdown();
+  }
+
+  /**
+   * While the owner's heartbeat is fresh, nobody else gets the lease, even
+   * after the TTL has passed since it was claimed. Once the owner stops
+   * and the TTL passes, the other node takes it over and the owner finds
+   * out it lost it.
+   */
+  @Test
+  public void takesOverOnlyAnExpiredLease() throws Exception {
+    Lease lease = first.tryAcquire("123", "20261019");
+    assertNotNull(lease);
+    assertNull(second.tryAcquire("123", "20261019"));
+
+    Thread.sleep(TTL_SECONDS * 1000 + 1000);
+    assertNull(second.tryAcquire("123", "20261019"));
+    assertTrue(lease.isValid());
+
+    // The first host dies: its heartbeats stop
+    first.shutdown();
+    Thread.sleep(TTL_SECONDS * 1000 + 500);
+    Lease taken = second.tryAcquire("123", "20261019");
+    assertNotNull(taken);
+    assertTrue(taken.isValid());
+    assertFalse(lease.isValid());
+    lease.run();
+    assertFalse(lease.isValid());
+    assertNull(first.tryAcquire("123", "20261019"));
+    taken.release();
+  }
+
+  /**
+   * Each organization and date is a lease of its own, the owner may claim
+   * its own lease again, and a released lease is free straight away.
+   */
+  @Test
+  public void handsEachRangeToOneNode() throws IOException {
+    Lease today = first.tryAcquire("123", "20261019");
+    Lease otherOrg = second.tryAcquire("456", "20261019");
+    Lease otherDay = second.tryAcquire("123", "20261018");
+    assertNotNull(today);
+    assertNotNull(otherOrg);
+    assertNotNull(otherDay);
+    assertNull(second.tryAcquire("123", "20261019"));
+    assertNull(first.tryAcquire("456", "20261019"));
+    assertNotNull(first.tryAcquire("123", "20261019"));
+
+    today.release();
+    assertFalse(today.isValid());
+    Lease taken = second.tryAcquire("123", "20261019");
+    assertNotNull(taken);
+    assertNull(first.tryAcquire("123", "20261019"));
+  }
+}
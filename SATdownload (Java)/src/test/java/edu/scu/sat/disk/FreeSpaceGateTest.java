@@ -0,0 +1,103 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.disk;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Space held by {@link FreeSpaceGate} reservations while files are written.
+ */
+public class FreeSpaceGateTest {
+
+  /**
+   * Bytes in a megabyte.
+   */
+  private static final long MB = 1 << 20;
+
+  /**
+   * Directory for the files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Bytes on disk and bytes reported written no longer count as reserved.
+   * 
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void holdsOnlyWhatIsNotWrittenYet() throws IOException {
+    File file = new File(folder.getRoot(), "a.part");
+    FreeSpaceGate.Reservation reservation = new FreeSpaceGate().reserve(file,
+        "a", 1000, 0);
+    assertEquals(1000, reservation.outstanding());
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[400]);
+    } finally {
+      out.close();
+    }
+    assertEquals(600, reservation.outstanding());
+    reservation.setWritten(0);
+    assertEquals(1000, reservation.outstanding());
+    reservation.setWritten(1200);
+    assertEquals(0, reservation.outstanding());
+    reservation.release();
+    reservation.release();
+  }
+
+  /**
+   * A file that would only fit if the bytes another transfer has written
+   * were not counted twice is admitted at once.
+   * 
+   * @throws IOException if the test fails
+   */
+  @Test(timeout = 5000)
+  public void admitsWhatFitsBesideAWrittenFile() throws IOException {
+    FreeSpaceGate gate = new FreeSpaceGate();
+    File dir = folder.getRoot();
+    long usable = Files.getFileStore(dir.toPath()).getUsableSpace();
+    long floor = usable - 150 * MB;
+    FreeSpaceGate.Reservation first = gate.reserve(new File(dir, "a.part"),
+        "a", 100 * MB, floor);
+    first.setWritten(100 * MB);
+    FreeSpaceGate.Reservation second = gate.reserve(new File(dir, "b.part"),
+        "b", 100 * MB, floor);
+    assertEquals(100 * MB, second.outstanding());
+    second.release();
+    first.release();
+  }
+}
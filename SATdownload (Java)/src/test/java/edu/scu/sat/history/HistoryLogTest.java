@@ -0,0 +1,141 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.history;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recovery of {@link HistoryLog} files cut short by a crash.
+ */
+public class HistoryLogTest {
+
+  /**
+   * Directory for the history files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Make a record of a successful transfer.
+   * 
+   * @param time Start time, in milliseconds since the epoch
+   * @return The record
+   */
+  private static HistoryRecord record(long time) {
+    return new HistoryRecord(time, 123, 40, 900, 1 << 20, true, true);
+  }
+
+  /**
+   * Cut a file down to a given size.
+   * 
+   * @param file File
+   * @param size New size
+   * @throws IOException if the file could not be changed
+   */
+  private static void truncate(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Get the file that records started at a given time go to.
+   * 
+   * @param dir History directory
+   * @param time Time, in milliseconds since the epoch
+   * @return The file
+   */
+  private static File fileFor(File dir, long time) {
+    return new File(dir,
+        new SimpleDateFormat("yyyyMM").format(new Date(time)) + ".history");
+  }
+
+  /**
+   * A record cut short is skipped when reading and dropped before the
+   * next one is written, so the records after it line up.
+   */
+  @Test
+  public void skipsATruncatedRecord() throws IOException {
+    File dir = folder.getRoot();
+    long now = System.currentTimeMillis();
+    HistoryLog log = new HistoryLog(dir, 400);
+    log.append(record(now - 2000));
+    log.append(record(now - 1000));
+    log.close();
+    File file = fileFor(dir, now);
+    truncate(file, file.length() - 5);
+
+    List<HistoryRecord> records = log.read(0);
+    assertEquals(1, records.size());
+    assertEquals(now - 2000, records.get(0).getTime());
+
+    log.append(record(now));
+    log.close();
+    records = log.read(0);
+    assertEquals(2, records.size());
+    assertEquals(now, records.get(1).getTime());
+    assertEquals(900, records.get(1).getTransferMs());
+  }
+
+  /**
+   * A file cut off inside its header is started again rather than
+   * appended to.
+   */
+  @Test
+  public void rewritesATruncatedHeader() throws IOException {
+    File dir = folder.getRoot();
+    long now = System.currentTimeMillis();
+    File file = fileFor(dir, now);
+    for (int size = 1; size < 8; size++) {
+      HistoryLog log = new HistoryLog(dir, 400);
+      log.append(record(now));
+      log.close();
+      truncate(file, size);
+
+      log.append(record(now + size));
+      log.close();
+      List<HistoryRecord> records = log.read(0);
+      assertEquals(1, records.size());
+      assertEquals(now + size, records.get(0).getTime());
+      assertEquals(8 + HistoryRecord.SIZE, file.length());
+    }
+  }
+}
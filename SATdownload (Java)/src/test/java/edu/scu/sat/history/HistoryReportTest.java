@@ -0,0 +1,89 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Statistics worked out by {@link HistoryReport}.
+ */
+public class HistoryReportTest {
+
+  /**
+   * Percentiles use the nearest rank, so they are always one of the
+   * values.
+   */
+  @Test
+  public void percentileUsesTheNearestRank() {
+    double[] values = { 10, 20, 30, 40, 50, 60, 70, 80, 90, 100 };
+    assertEquals(10, HistoryReport.percentile(values, 0), 0);
+    assertEquals(10, HistoryReport.percentile(values, 10), 0);
+    assertEquals(50, HistoryReport.percentile(values, 50), 0);
+    assertEquals(60, HistoryReport.percentile(values, 51), 0);
+    assertEquals(90, HistoryReport.percentile(values, 90), 0);
+    assertEquals(100, HistoryReport.percentile(values, 95), 0);
+    assertEquals(100, HistoryReport.percentile(values, 100), 0);
+    assertEquals(7, HistoryReport.percentile(new double[] { 7 }, 99), 0);
+    assertTrue(Double.isNaN(HistoryReport.percentile(new double[0], 50)));
+  }
+
+  /**
+   * The trend is the least-squares slope per week as a percentage of the
+   * average, leaving out days with no value.
+   */
+  @Test
+  public void trendIsTheWeeklyChangeOfTheAverage() {
+    // One unit a day around an average of 10: 70% a week
+    assertEquals(70, HistoryReport.trend(new double[] { 0, 1, 2, 3, 4 },
+        new double[] { 8, 9, 10, 11, 12 }), 1e-9);
+    assertEquals(-70, HistoryReport.trend(new double[] { 0, 1, 2, 3, 4 },
+        new double[] { 12, 11, 10, 9, 8 }), 1e-9);
+    assertEquals(0, HistoryReport.trend(new double[] { 0, 1, 2 },
+        new double[] { 5, 5, 5 }), 1e-9);
+    assertEquals(70, HistoryReport.trend(new double[] { 0, 1, 2, 3, 4 },
+        new double[] { 8, Double.NaN, 10, Double.NaN, 12 }), 1e-9);
+  }
+
+  /**
+   * Fewer than two points, points all on one day or an average of zero
+   * give no trend.
+   */
+  @Test
+  public void trendNeedsTwoDays() {
+    assertTrue(Double.isNaN(HistoryReport.trend(new double[] { 0 },
+        new double[] { 5 })));
+    assertTrue(Double.isNaN(HistoryReport.trend(new double[] { 0, 1 },
+        new double[] { 5, Double.NaN })));
+    assertTrue(Double.isNaN(HistoryReport.trend(new double[] { 3, 3 },
+        new double[] { 5, 6 })));
+    assertTrue(Double.isNaN(HistoryReport.trend(new double[] { 0, 1 },
+        new double[] { 0, 0 })));
+  }
+}
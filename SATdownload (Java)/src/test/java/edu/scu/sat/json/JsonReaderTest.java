@@ -0,0 +1,178 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.json;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Fields read by {@link JsonReader}.
+ */
+public class JsonReaderTest {
+
+  /**
+   * Read fields from a document.
+   * 
+   * @param bytes Document
+   * @param names Names of the fields
+   * @return Values of the fields
+   * @throws IOException if the document is not valid
+   */
+  private static String[] read(byte[] bytes, String... names)
+      throws IOException {
+    return JsonReader.readFields(new ByteArrayInputStream(bytes), names);
+  }
+
+  /**
+   * Read fields from a document.
+   * 
+   * @param json Document
+   * @param names Names of the fields
+   * @return Values of the fields
+   * @throws IOException if the document is not valid
+   */
+  private static String[] read(String json, String... names)
+      throws IOException {
+    return read(json.getBytes(StandardCharsets.UTF_8), names);
+  }
+
+  /**
+   * Make sure a document is rejected.
+   * 
+   * @param json Document
+   */
+  private static void assertInvalid(byte[] json) {
+    try {
+      read(json, "token");
+      fail("Accepted " + new String(json, StandardCharsets.ISO_8859_1));
+    } catch (JsonException e) {
+      // Expected
+    } catch (IOException e) {
+      fail("Not a JsonException: " + e);
+    }
+  }
+
+  /**
+   * Make sure a document is rejected.
+   * 
+   * @param json Document
+   */
+  private static void assertInvalid(String json) {
+    assertInvalid(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Fields are returned in the order asked for, whatever the order in the
+   * document, and literals are returned as written.
+   */
+  @Test
+  public void readsFieldsInOrder() throws IOException {
+    assertArrayEquals(new String[] { "http://x/y", "123", null, "true" },
+        read(" {\"fileSize\": 123 ,\"fileUrl\":\"http:\\/\\/x\\/y\","
+            + "\"ok\":true}\n", "fileUrl", "fileSize", "missing", "ok"));
+    assertArrayEquals(new String[] { null }, read("{}", "token"));
+  }
+
+  /**
+   * <code>\\u</code> escapes, including surrogate pairs, and the short
+   * escapes are decoded.
+   */
+  @Test
+  public void decodesEscapes() throws IOException {
+    assertEquals("\u00e9\u2028\ud83d\ude00",
+        read("{\"t\":\"\\u00e9\\u2028\\uD83D\\ude00\"}", "t")[0]);
+    assertEquals("\"\\/\b\f\n\r\t",
+        read("{\"t\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\"}", "t")[0]);
+  }
+
+  /**
+   * Two, three and four byte UTF-8 sequences are decoded, also when they
+   * cross the end of the read buffer.
+   */
+  @Test
+  public void decodesUtf8() throws IOException {
+    String value = "caf\u00e9 \u4e2d\u6587 \ud83d\ude00";
+    assertEquals(value, read("{\"t\":\"" + value + "\"}", "t")[0]);
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 509; i++)
+      padding.append(' ');
+    assertEquals(value, read("{" + padding + "\"t\":\"" + value + "\"}",
+        "t")[0]);
+  }
+
+  /**
+   * Objects and arrays, including ones holding brackets inside strings, are
+   * skipped whether or not they were asked for.
+   */
+  @Test
+  public void skipsNestedValues() throws IOException {
+    String json = "{\"a\":{\"b\":[1,{\"c\":\"}]\\\"\"}],\"d\":null},"
+        + "\"e\":[[],{}],\"token\":\"tok\",\"f\":{\"token\":\"inner\"}}";
+    assertArrayEquals(new String[] { "tok", null, null },
+        read(json, "token", "a", "e"));
+  }
+
+  /**
+   * A field that is <code>null</code> reads as <code>null</code>, not as
+   * the text "null".
+   */
+  @Test
+  public void readsNullAsNull() throws IOException {
+    assertNull(read("{\"token\":null}", "token")[0]);
+    assertNull(read("{\"token\" : null }", "token")[0]);
+  }
+
+  /**
+   * Documents that are not an object, are cut short or hold bad escapes or
+   * bad UTF-8 raise a JsonException.
+   */
+  @Test
+  public void rejectsMalformedInput() {
+    assertInvalid("");
+    assertInvalid("[\"token\"]");
+    assertInvalid("{\"token\":\"abc");
+    assertInvalid("{\"token\":\"abc\"");
+    assertInvalid("{\"token\" \"abc\"}");
+    assertInvalid("{\"token\":\"abc\" \"x\":1}");
+    assertInvalid("{token:\"abc\"}");
+    assertInvalid("{\"token\":\"\\x\"}");
+    assertInvalid("{\"token\":\"\\u12g4\"}");
+    assertInvalid("{\"a\":{\"b\":[1,2}");
+    assertInvalid(new byte[] { '{', '"', 't', 'o', 'k', 'e', 'n', '"', ':',
+        '"', (byte) 0xff, '"', '}' });
+    assertInvalid(new byte[] { '{', '"', 't', 'o', 'k', 'e', 'n', '"', ':',
+        '"', (byte) 0xc3, 'a', '"', '}' });
+  }
+}
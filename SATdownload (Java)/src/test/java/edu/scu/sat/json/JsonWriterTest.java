@@ -0,0 +1,98 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.json;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Escaping and structure of the JSON written by {@link JsonWriter}.
+ */
+public class JsonWriterTest {
+
+  /**
+   * Write one string value.
+   * 
+   * @param value Value to write
+   * @return JSON string, with its quotes
+   */
+  private static String string(String value) {
+    return JsonWriter.appendString(new StringBuilder(), value).toString();
+  }
+
+  /**
+   * Quotes and backslashes, as found in passwords, are escaped.
+   */
+  @Test
+  public void escapesQuotesAndBackslashes() {
+    assertEquals("\"pa\\\"ss\\\\wo/rd\"", string("pa\"ss\\wo/rd"));
+    assertEquals("\"\\\\\\\"\"", string("\\\""));
+    assertEquals("\"plain\"", string("plain"));
+    assertEquals("\"\"", string(""));
+    assertEquals("null", string(null));
+  }
+
+  /**
+   * Control characters get their short escape if they have one, else a
+   * <code>\\u</code> escape.
+   */
+  @Test
+  public void escapesControlCharacters() {
+    assertEquals("\"\\n\\r\\t\\b\\f\"", string("\n\r\t\b\f"));
+    assertEquals("\"a\\u0000b\\u001fc\\u0001\"",
+        string("a\u0000b\u001fc\u0001"));
+    assertEquals("\"\u007f\"", string("\u007f"));
+  }
+
+  /**
+   * The line and paragraph separators, which end a line in JavaScript, are
+   * escaped; other non-ASCII characters are written as they are.
+   */
+  @Test
+  public void escapesLineSeparators() {
+    assertEquals("\"a\\u2028b\\u2029c\"", string("a\u2028b\u2029c"));
+    assertEquals("\"\u00e9\u4e2d\ud83d\ude00\"",
+        string("\u00e9\u4e2d\ud83d\ude00"));
+  }
+
+  /**
+   * Commas and colons go between fields and values, including in nested
+   * objects and arrays.
+   */
+  @Test
+  public void writesNestedStructures() {
+    JsonWriter w = new JsonWriter();
+    w.beginObject().name("username").value("u\"1").name("n").value(3)
+        .name("list").beginArray().value(true).nullValue().beginObject()
+        .endObject().value(1.5).value(Double.NaN).endArray().name("x")
+        .value((CharSequence) null).endObject();
+    assertEquals("{\"username\":\"u\\\"1\",\"n\":3,\"list\":[true,null,{},"
+        + "1.5,null],\"x\":null}", w.toString());
+    assertEquals("[]", w.reset().beginArray().endArray().toString());
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Publish windows learned by {@link PollPlanner}.
+ */
+public class PollPlannerTest {
+
+  /**
+   * Fifteen minutes, the margin used by the tests.
+   */
+  private static final long MARGIN = 15 * 60000L;
+
+  /**
+   * Directory for the manifests.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Get a local time some days ago.
+   * 
+   * @param daysAgo Number of days before today; negative for days after
+   * @param hour Hour of the day
+   * @param minute Minute of the hour
+   * @return Milliseconds since the epoch
+   */
+  private static long at(int daysAgo, int hour, int minute) {
+    Calendar cal = Calendar.getInstance();
+    cal.add(Calendar.DAY_OF_MONTH, -daysAgo);
+    cal.set(Calendar.HOUR_OF_DAY, hour);
+    cal.set(Calendar.MINUTE, minute);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal.getTimeInMillis();
+  }
+
+  /**
+   * Times that drift a little from day to day form one window, and a time
+   * seen on a single day forms none.
+   */
+  @Test
+  public void oneOffTimeIgnored() {
+    PollPlanner planner = new PollPlanner(new long[] { at(5, 6, 0),
+        at(4, 6, 10), at(3, 5, 55), at(2, 6, 5), at(2, 14, 0) }, MARGIN);
+    assertEquals("05:40-06:25", planner.toString());
+    assertTrue(planner.isInWindow(at(0, 6, 20)));
+    assertFalse(planner.isInWindow(at(0, 14, 0)));
+    assertEquals(at(-1, 5, 40), planner.nextWindowStart(at(0, 14, 0)));
+  }
+
+  /**
+   * A cluster of times around midnight makes one window across it.
+   */
+  @Test
+  public void windowAcrossMidnight() {
+    PollPlanner planner = new PollPlanner(new long[] { at(5, 23, 55),
+        at(3, 0, 5), at(2, 23, 50) }, MARGIN);
+    assertEquals("23:35-00:20", planner.toString());
+    assertTrue(planner.isInWindow(at(0, 0, 10)));
+    assertTrue(planner.isInWindow(at(0, 23, 40)));
+    assertFalse(planner.isInWindow(at(0, 12, 0)));
+  }
+
+  /**
+   * Nothing is learned when no time of day has been seen on enough days.
+   * 
+   * @throws IOException if the manifest could not be written
+   */
+  @Test
+  public void scatteredTimesLearnNothing() throws IOException {
+    PublishManifest manifest = new PublishManifest(
+        new File(folder.getRoot(), "123.published"));
+    manifest.add("20261001", 1, at(5, 6, 0));
+    manifest.add("20261002", 1, at(4, 10, 0));
+    manifest.add("20261003", 1, at(3, 14, 0));
+    manifest.add("20261004", 1, at(2, 18, 0));
+    assertNull(PollPlanner.learn(manifest, at(0, 12, 0), MARGIN));
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Growth and reopening of {@link MappedLongLongMap}.
+ */
+public class MappedLongLongMapTest {
+
+  /**
+   * Directory for the table files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * A table that grows while open reopens with every entry, and the
+   * generations it grew out of are gone.
+   * 
+   * @throws IOException if the table could not be opened
+   */
+  @Test
+  public void grownTableReopens() throws IOException {
+    File file = new File(folder.getRoot(), "fingerprints.fpmap");
+    assertFalse(MappedLongLongMap.exists(file));
+    MappedLongLongMap map = MappedLongLongMap.open(file, 0);
+    // Enough entries to grow the table a few times
+    for (long key = 1; key <= 5000; ++key)
+      map.put(key * 0x9e3779b97f4a7c15L, key);
+    map.put(0L, -1L);
+    map.close();
+    map.flush();
+    assertTrue(MappedLongLongMap.exists(file));
+
+    map = MappedLongLongMap.open(file, 0);
+    assertEquals(5001, map.size());
+    for (long key = 1; key <= 5000; ++key)
+      assertEquals(key, map.get(key * 0x9e3779b97f4a7c15L));
+    assertEquals(-1L, map.get(0L));
+    assertEquals(LongLongMap.NO_VALUE, map.get(5001L));
+    map.close();
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  /**
+   * A generation left without its magic number by a crash is ignored and
+   * cleared away.
+   * 
+   * @throws IOException if the table could not be opened
+   */
+  @Test
+  public void incompleteGenerationIgnored() throws IOException {
+    File file = new File(folder.getRoot(), "fingerprints.fpmap");
+    MappedLongLongMap map = MappedLongLongMap.open(file, 0);
+    map.put(1L, 2L);
+    map.close();
+    File partial = new File(file.getPath() + ".1");
+    assertTrue(partial.createNewFile());
+
+    map = MappedLongLongMap.open(file, 0);
+    assertEquals(1, map.size());
+    assertEquals(2L, map.get(1L));
+    map.close();
+    assertFalse(partial.exists());
+  }
+
+  /**
+   * A copy of another table holds all of its entries.
+   * 
+   * @throws IOException if the table could not be written
+   */
+  @Test
+  public void copyHoldsEveryEntry() throws IOException {
+    OffHeapLongLongMap source = new OffHeapLongLongMap(10);
+    for (long key = 1; key <= 3000; ++key)
+      source.put(key, -key);
+    File file = new File(folder.getRoot(), "fingerprints.fpmap");
+    MappedLongLongMap map = MappedLongLongMap.copyOf(file, source);
+    map.close();
+    source.close();
+
+    map = MappedLongLongMap.open(file, 0);
+    assertEquals(3000, map.size());
+    for (long key = 1; key <= 3000; ++key)
+      assertEquals(-key, map.get(key));
+    map.close();
+  }
+}
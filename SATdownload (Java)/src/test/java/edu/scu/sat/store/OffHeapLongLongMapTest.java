@@ -0,0 +1,99 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trips of {@link OffHeapLongLongMap} through its saved file.
+ */
+public class OffHeapLongLongMapTest {
+
+  /**
+   * Directory for the saved tables.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * A saved table loads back with every entry, including the key that
+   * marks empty slots and the key standing in for it.
+   * 
+   * @throws IOException if the table could not be saved or loaded
+   */
+  @Test
+  public void savedTableLoadsBack() throws IOException {
+    File file = new File(folder.getRoot(), "fingerprints.bin");
+    OffHeapLongLongMap map = new OffHeapLongLongMap(10);
+    // Enough entries to grow the table a few times
+    for (long key = 1; key <= 5000; ++key)
+      map.put(key * 0x9e3779b97f4a7c15L, key);
+    map.put(0L, -1L);
+    map.save(file);
+
+    OffHeapLongLongMap loaded = OffHeapLongLongMap.load(file);
+    assertEquals(map.size(), loaded.size());
+    for (long key = 1; key <= 5000; ++key)
+      assertEquals(key, loaded.get(key * 0x9e3779b97f4a7c15L));
+    assertEquals(-1L, loaded.get(0L));
+    assertEquals(LongLongMap.NO_VALUE, loaded.get(5001L));
+  }
+
+  /**
+   * A table opened from a file saves back to it on flush, and keeps
+   * growing after it has been loaded.
+   * 
+   * @throws IOException if the table could not be saved or loaded
+   */
+  @Test
+  public void openedTableFlushesBack() throws IOException {
+    File file = new File(folder.getRoot(), "fingerprints.bin");
+    OffHeapLongLongMap map = OffHeapLongLongMap.open(file, 0);
+    for (long key = 1; key <= 100; ++key)
+      map.put(key, key * 2);
+    map.flush();
+    map.close();
+
+    map = OffHeapLongLongMap.open(file, 0);
+    for (long key = 101; key <= 1000; ++key)
+      map.put(key, key * 2);
+    map.flush();
+    map.close();
+
+    OffHeapLongLongMap loaded = OffHeapLongLongMap.load(file);
+    assertEquals(1000, loaded.size());
+    for (long key = 1; key <= 1000; ++key)
+      assertEquals(key * 2, loaded.get(key));
+  }
+}
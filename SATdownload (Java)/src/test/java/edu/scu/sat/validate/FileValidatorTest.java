@@ -0,0 +1,204 @@
+/**
+ * SATdownload
+ * Copyright (C) 2015 Santa Clara University
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * For a copy of the GNU General Public License, v3.0, please refer to
+ * <https://www.gnu.org/licenses/gpl-3.0.en.html>.
+ *
+ * Additional Terms:
+ *   1. Santa Clara University reserves the right to refuse support of the
+ *      software at any time.  We are not obligated to assist in documenting,
+ *      debugging, customizing, testing or otherwise explaining or supporting
+ *      the software.
+ *   2. Your institution may share the software (or derivative work) only for
+ *      educational or research purposes and must do so without charging any
+ *      fees.  This requirement revokes the permission in section 4 to charge
+ *      a fee for this or any derivative work.
+ */
+package edu.scu.sat.validate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks of {@link FileValidator} on small score files.
+ */
+public class FileValidatorTest {
+
+  /**
+   * Directory for the score files.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Validator for files with one header line, split into tiny chunks so
+   * that several are checked.
+   */
+  private final FileValidator validator = new FileValidator(
+      ForkJoinPool.commonPool(), ',', 1, 0, 16);
+
+  /**
+   * Write a score file.
+   * 
+   * @param text Contents
+   * @return File written
+   * @throws IOException if the file could not be written
+   */
+  private File write(String text) throws IOException {
+    File file = folder.newFile();
+    Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  /**
+   * A file whose last record has no line terminator is accepted, and that
+   * record is counted.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void lastLineTerminatorOptional() throws IOException {
+    String text = "id,score,date\n1,0.5,x\n2,0.7,y\n3,0.9,z";
+    assertEquals(3, validator.validate(write(text), -1));
+    assertEquals(3, validator.validate(write(text + "\n"), -1));
+  }
+
+  /**
+   * The last record is still checked when it has no line terminator.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void unterminatedLastRecordChecked() throws IOException {
+    try {
+      validator.validate(write("id,score,date\n1,0.5,x\n2,0.7,y\n3,0.9"), -1);
+      fail("Short last record accepted");
+    } catch (ValidationException e) {
+      assertEquals(4, e.getLine());
+    }
+  }
+
+  /**
+   * Write a score file whose one record has some raw bytes in a field.
+   * 
+   * @param bytes Bytes to put in the record
+   * @return File written
+   * @throws IOException if the file could not be written
+   */
+  private File writeBytes(int... bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write("id,score,date\n1,0.5,".getBytes(StandardCharsets.UTF_8));
+    for (int b : bytes)
+      out.write(b);
+    out.write('\n');
+    File file = folder.newFile();
+    Files.write(file.toPath(), out.toByteArray());
+    return file;
+  }
+
+  /**
+   * Check that a record with some raw bytes in it is rejected on its line.
+   * 
+   * @param bytes Bytes to put in the record
+   * @throws IOException if the file could not be read
+   */
+  private void assertRejected(int... bytes) throws IOException {
+    try {
+      validator.validate(writeBytes(bytes), -1);
+      fail("Invalid UTF-8 accepted");
+    } catch (ValidationException e) {
+      assertEquals(2, e.getLine());
+    }
+  }
+
+  /**
+   * The first and last characters of each UTF-8 length and the characters
+   * next to the surrogates are accepted.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void validUtf8Accepted() throws IOException {
+    assertEquals(1, validator.validate(writeBytes(0xc2, 0x80, 0xdf, 0xbf),
+        -1));
+    assertEquals(1, validator.validate(writeBytes(0xe0, 0xa0, 0x80, 0xed,
+        0x9f, 0xbf, 0xee, 0x80, 0x80, 0xef, 0xbf, 0xbf), -1));
+    assertEquals(1, validator.validate(writeBytes(0xf0, 0x90, 0x80, 0x80,
+        0xf4, 0x8f, 0xbf, 0xbf), -1));
+  }
+
+  /**
+   * A three byte overlong form is rejected.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void overlongThreeBytesRejected() throws IOException {
+    assertRejected(0xe0, 0x80, 0x80);
+    assertRejected(0xe0, 0x9f, 0xbf);
+  }
+
+  /**
+   * A four byte overlong form is rejected.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void overlongFourBytesRejected() throws IOException {
+    assertRejected(0xf0, 0x80, 0x80, 0x80);
+    assertRejected(0xf0, 0x8f, 0xbf, 0xbf);
+  }
+
+  /**
+   * A UTF-16 surrogate is rejected.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void surrogateRejected() throws IOException {
+    assertRejected(0xed, 0xa0, 0x80);
+    assertRejected(0xed, 0xbf, 0xbf);
+  }
+
+  /**
+   * A code point above U+10FFFF is rejected.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test
+  public void aboveMaximumRejected() throws IOException {
+    assertRejected(0xf4, 0x90, 0x80, 0x80);
+    assertRejected(0xf5, 0x80, 0x80, 0x80);
+  }
+
+  /**
+   * A file shorter than the size the service reported is rejected.
+   * 
+   * @throws IOException if the file could not be read
+   */
+  @Test(expected = ValidationException.class)
+  public void shortFileRejected() throws IOException {
+    validator.validate(write("id,score,date\n1,0.5,x\n"), 30);
+  }
+}